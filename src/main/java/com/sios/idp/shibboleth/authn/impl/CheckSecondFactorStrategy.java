@@ -0,0 +1,112 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.sios.idp.shibboleth.common.TotpAuthnSessionChecker;
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
+
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import net.shibboleth.idp.session.context.navigate.CanonicalUsernameLookupStrategy;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * 多要素認証 (MFA) フローで、1要素目の認証後に2要素目 (TOTP) の認証が必要かを判定する遷移関数です.<br>
+ * mfa-authn-config.xmlのスクリプト (shibboleth.ContextFunctions.Scripted) による判定を置き換えます。
+ * 1要素目で確定したユーザ名を取得し、Cookieに保存されたTOTP認証セッションが正当な場合はnull (MFAフローの終了) を、
+ * それ以外は2要素目のフロー名を返却します。
+ * TOTP認証セッションは、ユーザ名と依頼元から選択したレルム ({@link RealmRegistry#select(String, String)}) の設定で検証します。
+ * スクリプトエンジンを使用しないため、リクエスト毎のスクリプトの評価が発生しません。
+ * IdP 3系のshibboleth.authn.MFA.TransitionのnextFlowStrategyに設定するため、GuavaのFunctionを実装します。
+ * @author SIOS Technology, Inc.
+ */
+public class CheckSecondFactorStrategy implements Function<ProfileRequestContext, String> {
+
+    /** 2要素目のフロー名の既定値です. */
+    public static final String DEFAULT_NEXT_FLOW = "authn/Totp";
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(CheckSecondFactorStrategy.class);
+
+    /** ユーザ名を取得する関数. */
+    @Nonnull
+    private Function<ProfileRequestContext, String> usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
+
+    /** TOTP認証セッションの整合性を確認するクラス. */
+    @Nullable
+    private TotpAuthnSessionChecker totpAuthnSessionChecker;
+
+    /** 2要素目のフロー名. */
+    @Nonnull
+    private String nextFlow = DEFAULT_NEXT_FLOW;
+
+    /** コンストラクタです. */
+    public CheckSecondFactorStrategy() {
+    }
+
+    /**
+     * ユーザ名を取得する関数を設定します. 既定は{@link CanonicalUsernameLookupStrategy}です.
+     * @param strategy ユーザ名を取得する関数
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
+    /**
+     * TOTP認証セッションの整合性を確認するクラスを設定します.
+     * @param checker TOTP認証セッションの整合性を確認するクラス
+     */
+    public void setTotpAuthnSessionChecker(@Nonnull final TotpAuthnSessionChecker checker) {
+        totpAuthnSessionChecker = Constraint.isNotNull(checker, "TotpAuthnSessionChecker cannot be null");
+    }
+
+    /**
+     * 2要素目のフロー名を設定します. 既定は{@value #DEFAULT_NEXT_FLOW}です.
+     * @param flow 2要素目のフロー名
+     */
+    public void setNextFlow(@Nonnull final String flow) {
+        nextFlow = Constraint.isNotNull(flow, "Next flow cannot be null");
+    }
+
+    /**
+     * 2要素目の認証が必要かを判定します.
+     * @param input プロファイルリクエストコンテキスト
+     * @return 2要素目の認証が必要な場合はフロー名、TOTP認証セッションが正当な場合はnull
+     */
+    @Override
+    @Nullable
+    public String apply(@Nullable final ProfileRequestContext input) {
+        Constraint.isNotNull(totpAuthnSessionChecker, "TotpAuthnSessionChecker is not set");
+        final String username = input == null ? null : usernameLookupStrategy.apply(input);
+        log.debug("Username is: {}", username);
+        if (username == null) {
+            log.debug("ユーザ名が取得できないため、TOTP認証を要求します。");
+            return nextFlow;
+        }
+
+        final RelyingPartyContext rpContext = input.getSubcontext(RelyingPartyContext.class);
+        final Realm realm = RealmRegistry.getInstance().select(username,
+                rpContext == null ? null : rpContext.getRelyingPartyId());
+        final boolean valid = ConfigScope.pin(
+                () -> Realm.execute(realm, () -> totpAuthnSessionChecker.isValidTotpAuthnSession(username)));
+        if (valid) {
+            log.debug("TOTP session is valid.");
+            return null;
+        }
+        log.debug("TOTP session is invalid.");
+        return nextFlow;
+    }
+}
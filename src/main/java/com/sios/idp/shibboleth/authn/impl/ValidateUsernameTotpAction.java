@@ -30,12 +30,16 @@ import org.slf4j.LoggerFactory;
 import com.sios.idp.shibboleth.authn.context.UsernameTotpContext;
 import com.sios.idp.shibboleth.authn.jaas.OneTimePasswordCallback;
 import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
 import com.sios.idp.shibboleth.common.util.ExceptionUtil;
 import com.sios.idp.shibboleth.common.util.TotpAuthnSessionIdGenerator;
 import com.sios.idp.shibboleth.exception.TotpAuthnSessionIdGenerationException;
 
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
@@ -116,25 +120,31 @@ public class ValidateUsernameTotpAction extends AbstractUsernameTotpValidationAc
     public void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
 
-        String loginConfigName = "";
-        HttpServletRequest request = getHttpServletRequest();
+        final HttpServletRequest request = getHttpServletRequest();
 
         log.info("TOTP認証を利用します。");
-        loginConfigName = getTotpJaasLoginConfigName();
+        final String loginConfigName = getTotpJaasLoginConfigName();
+        final Realm realm = selectRealm(profileRequestContext);
         try {
-            authenticate(loginConfigName);
-            log.info("ログイン成功：{} (from {})", getUsernameTotpContext().getUsername(), request.getRemoteAddr());
-            if (AppConfig.getTotpAuthnSessionExpirationSec() > 0
-                    && getUsernameTotpContext().trustsTotpAuthnSession()) {
-                try {
-                    log.info("TOTP認証セッションを信頼し、セッションIDをCookieに記録します。");
-                    trustTotpAuthnSession();
-                } catch (TotpAuthnSessionIdGenerationException e) {
-                    log.warn("TOTP認証セッションIDの生成に失敗しました。TOTP認証セッションの信頼を中止します。");
+            // 認証、及びTOTP認証セッションの記録は選択したレルムの設定で行う
+            // 処理中に設定ファイルが再読み込みされても、同じスナップショットの設定値を使用する
+            ConfigScope.pin(() -> Realm.execute(realm, () -> {
+                authenticate(loginConfigName);
+                log.info("ログイン成功：{} (from {})", getUsernameTotpContext().getUsername(),
+                        request.getRemoteAddr());
+                if (AppConfig.getTotpAuthnSessionExpirationSec() > 0
+                        && getUsernameTotpContext().trustsTotpAuthnSession()) {
+                    try {
+                        log.info("TOTP認証セッションを信頼し、セッションIDをCookieに記録します。");
+                        trustTotpAuthnSession();
+                    } catch (TotpAuthnSessionIdGenerationException e) {
+                        log.warn("TOTP認証セッションIDの生成に失敗しました。TOTP認証セッションの信頼を中止します。");
+                    }
+                } else {
+                    log.info("TOTP認証セッション生成を信頼しません。");
                 }
-            } else {
-                log.info("TOTP認証セッション生成を信頼しません。");
-            }
+                return null;
+            }));
             buildAuthenticationResult(profileRequestContext, authenticationContext);
             ActionSupport.buildProceedEvent(profileRequestContext);
             return;
@@ -152,6 +162,22 @@ public class ValidateUsernameTotpAction extends AbstractUsernameTotpValidationAc
 
     }
 
+    /**
+     * ユーザ名、依頼元 (Relying Party) から認証に使用するレルムを選択します.
+     * @param profileRequestContext プロファイルリクエストコンテキスト
+     * @return レルム. 該当しない場合は既定の設定で認証するためnull
+     */
+    @Nullable
+    private Realm selectRealm(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final RelyingPartyContext rpContext = profileRequestContext.getSubcontext(RelyingPartyContext.class);
+        final Realm realm = RealmRegistry.getInstance().select(getUsernameTotpContext().getUsername(),
+                rpContext == null ? null : rpContext.getRelyingPartyId());
+        if (realm != null) {
+            log.info("レルム {} の設定で認証します。", realm);
+        }
+        return realm;
+    }
+
     /**
      * JAAS定義を生成し、JAAS定義に従ってログインをします.
      * @param loginConfigName 使用されるログイン定義名
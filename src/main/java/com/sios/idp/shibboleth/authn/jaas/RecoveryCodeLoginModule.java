@@ -0,0 +1,250 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.jaas;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.authn.recovery.RecoveryCodeVerifier;
+import com.sios.idp.shibboleth.authn.recovery.RecoveryCodes;
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
+import com.sios.idp.shibboleth.common.util.ExceptionUtil;
+import com.sios.idp.shibboleth.exception.RecoveryCodeVerificationException;
+import com.sun.security.auth.UserPrincipal;
+
+/**
+ * JAAS LoginModule のワンタイムリカバリコード認証の実装クラスです.<br>
+ * TOTPと同じ入力欄に入力されたリカバリコードを{@link RecoveryCodeVerifier}で検証します。
+ * ログイン構成ファイルで{@link TotpLoginModule}の代替 (sufficient) として定義して利用します。<br>
+ * TOTPの認証に失敗した全ての入力が本モジュールに渡されるため、{@link RecoveryCodes#isWellFormed(String)}で
+ * リカバリコードの形式でない入力 (数字のみのTOTP等) はデータソースを参照せずに本モジュールを無視 (loginがfalseを返却) します。
+ * リカバリコードは乱数から生成した高エントロピーな値である必要があります ({@link RecoveryCodes}を参照)。
+ * @author SIOS Technology, Inc.
+ */
+public class RecoveryCodeLoginModule implements LoginModule {
+
+    /** Class logger. */
+    private final Logger _logger = LoggerFactory.getLogger(this.getClass());
+
+    /** CallbackHandler. */
+    private CallbackHandler _callbackHandler;
+
+    /** LoginModule間の共有情報. */
+    @SuppressWarnings("unused")
+    private Map<String, ?> _sharedState;
+
+    /** login.configに定義されたオプション. */
+    @SuppressWarnings("unused")
+    private Map<String, ?> _options;
+
+    /** Subject. */
+    private Subject _subject;
+    /** User principal. */
+    private UserPrincipal userPrincipal;
+
+    /** ユーザ名. */
+    private String userName;
+    /** リカバリコード. */
+    private String recoveryCode;
+
+    /** 認証第1フェーズの成否. */
+    private boolean succeeded = false;
+    /** 認証第2フェーズの成否. */
+    private boolean commitSucceeded = false;
+
+    @Override
+    /** @inheritDoc */
+    public void initialize(Subject subject,
+             CallbackHandler callbackHandler,
+             Map<String, ?> sharedState,  Map<String, ?> options) {
+
+        this._subject = subject;
+        this._callbackHandler = callbackHandler;
+        this._sharedState = sharedState;
+        this._options = options;
+    }
+
+    @Override
+    /** @inheritDoc */
+    public boolean login() throws LoginException {
+
+        // 認証に使用するINPUT情報取得
+        getAuthInputFromCallbacks();
+
+        // リカバリコードの形式でない入力 (TOTP等) は、データソースを参照せずに本モジュールを無視する
+        if (!RecoveryCodes.isWellFormed(recoveryCode)) {
+            _logger.debug("リカバリコードの形式でない入力のため、リカバリコード認証を行いません。");
+            clearPrivateAuthInfo();
+            return false;
+        }
+
+        // レルムが束縛されていない場合は、ユーザ名の接尾辞からレルムを選択
+        Realm current = Realm.current();
+        Realm realm = current == null ? RealmRegistry.getInstance().select(userName, null) : current;
+        // 認証中に設定ファイルが再読み込みされても、同じスナップショットの設定値で認証する
+        return ConfigScope.pin(() -> Realm.execute(realm, this::authenticate));
+    }
+
+    /**
+     * 実行中のレルムの設定でリカバリコード認証を行います.
+     * @return 認証に成功した場合はtrue
+     * @throws LoginException 認証に失敗した場合
+     */
+    private boolean authenticate() throws LoginException {
+
+        // リカバリコード認証 (一致したリカバリコードは使用済みになる)
+        try {
+            succeeded = RecoveryCodeVerifier.getInstance().verify(userName, recoveryCode);
+        } catch (RecoveryCodeVerificationException e) {
+            handleException(e, "リカバリコードの検証に失敗しました。ユーザ名：{0}", userName);
+        }
+
+        if (!succeeded) {
+            throw new FailedLoginException("リカバリコード認証エラー");
+        }
+        _logger.debug(MessageFormat.format("リカバリコード 1次認証フェーズ結果：{0}", succeeded));
+        return succeeded;
+    }
+
+    @Override
+    /** @inheritDoc */
+    public boolean commit() throws LoginException {
+
+        if (!succeeded) {
+            clearPrivateAuthInfo();
+            _logger.debug(MessageFormat.format("リカバリコード 2次認証フェーズ結果：{0}", false));
+            return false;
+        }
+
+        checkSubjectReadOnly();
+
+        if (succeeded) {
+            userPrincipal = new UserPrincipal(userName);
+            Set<Principal> principals = _subject.getPrincipals();
+            if (!principals.contains(userPrincipal)) {
+                principals.add(userPrincipal);
+            }
+            clearPrivateAuthInfo();
+            commitSucceeded  = true;
+        }
+        _logger.debug(MessageFormat.format("リカバリコード 2次認証フェーズ結果：{0}", true));
+        return true;
+    }
+
+    @Override
+    /** @inheritDoc */
+    public boolean abort() throws LoginException {
+
+        if (!succeeded) { return false; }
+
+        if (commitSucceeded) {
+            logout();
+        } else {
+            clearPrivateAuthInfo();
+            clearPrivateAuthResult();
+        }
+        return true;
+    }
+
+    @Override
+    /** @inheritDoc */
+    public boolean logout() throws LoginException {
+        clearPrivateAuthResult();
+        checkSubjectReadOnly();
+        clearPrincipal();
+        return true;
+    }
+
+    /**
+     * {@link javax.security.auth.callback.Callback}から認証INPUT情報を取得します.
+     */
+    private void getAuthInputFromCallbacks()  {
+
+        Callback[] callbacks = new Callback[2];
+        callbacks[0] = new NameCallback("username: ");
+        callbacks[1] = new OneTimePasswordCallback("one-time password: ");
+        try {
+            _callbackHandler.handle(callbacks);
+        } catch (IOException e) {
+            handleException(e, "Callbackからの入力情報取得時にjava.io.IOExceptionが発生しました。");
+        } catch (UnsupportedCallbackException e) {
+            handleException(e, "未サポートのCallbackが指定されました。");
+        }
+        userName = ((NameCallback) callbacks[0]).getName();
+        OneTimePasswordCallback otpCallback = (OneTimePasswordCallback) callbacks[1];
+        recoveryCode = otpCallback.getOneTimePassword();
+        otpCallback.clearOneTimePassword();
+    }
+
+    /**
+     * {@link javax.security.auth.Subject}が読取専用であるかをチェックします.
+     * @throws LoginException Subjectが読取専用の場合
+     */
+    private void checkSubjectReadOnly() throws LoginException {
+        if (_subject.isReadOnly()) {
+            clearPrivateAuthInfo();
+            throw new LoginException("認証サブジェクトが読み取り専用です");
+        }
+    }
+
+    /**
+     * 状態をクリアします.
+     */
+    private void clearPrincipal() {
+        Set<Principal> principals = _subject.getPrincipals();
+        if (principals.contains(userPrincipal)) {
+            principals.remove(userPrincipal);
+        }
+        userPrincipal = null;
+    }
+
+    /**
+     * 状態をクリアします.
+     */
+    private void clearPrivateAuthInfo() {
+        userName = null;
+        recoveryCode = null;
+    }
+
+    /**
+     * 内部的に保持している認証結果をクリアします.
+     */
+    private void clearPrivateAuthResult() {
+        succeeded = false;
+        commitSucceeded = false;
+    }
+
+
+    /**
+     * 回復不可能な例外としてハンドリングします.
+     * 指定されたメッセージのエラーログを出力し、{@link java.lang.RuntimeException}をRe-throwします。
+     * @param e 例外
+     * @param message メッセージ
+     * @param messageArgs メッセージ埋め込み文字列
+     */
+    private void handleException(Exception e, String message, Object...messageArgs) {
+        _logger.error(MessageFormat.format(message, messageArgs));
+        _logger.error(ExceptionUtil.stackTraceToString(e));
+        throw new RuntimeException(e);
+    }
+}
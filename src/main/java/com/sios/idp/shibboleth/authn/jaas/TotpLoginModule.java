@@ -26,6 +26,9 @@ import org.slf4j.LoggerFactory;
 import com.sios.idp.shibboleth.authn.totp.Totp;
 import com.sios.idp.shibboleth.authn.totp.TotpCache;
 import com.sios.idp.shibboleth.authn.totp.TotpProvider;
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
 import com.sios.idp.shibboleth.common.util.ExceptionUtil;
 import com.sios.idp.shibboleth.exception.TotpGenerationException;
 import com.sios.idp.shibboleth.exception.TotpProviderInstantiationException;
@@ -99,6 +102,20 @@ public class TotpLoginModule implements LoginModule {
         // 認証に使用するINPUT情報取得
         getAuthInputFromCallbacks();
 
+        // レルムが束縛されていない場合は、ユーザ名の接尾辞からレルムを選択
+        Realm current = Realm.current();
+        Realm realm = current == null ? RealmRegistry.getInstance().select(userName, null) : current;
+        // 認証中に設定ファイルが再読み込みされても、同じスナップショットの設定値で認証する
+        return ConfigScope.pin(() -> Realm.execute(realm, this::authenticate));
+    }
+
+    /**
+     * 実行中のレルムの設定でTOTP認証を行います.
+     * @return 認証に成功した場合はtrue
+     * @throws LoginException 認証に失敗した場合
+     */
+    private boolean authenticate() throws LoginException {
+
         // TOTP期待値の生成
         Totp expectedTotp = null;
         try {
@@ -111,15 +128,13 @@ public class TotpLoginModule implements LoginModule {
         // ユーザ固有IDの取得
         String immutableUserId = expectedTotp.getImmutableUserId();
 
-        // TOTP認証
+        // TOTP認証 (一致したデバイス、タイムカウントのTOTPを認証済みにする)
         Totp inputtedTotp = new Totp(
                 immutableUserId, expectedTotp.getTimeCounter(), oneTimePassword);
         TotpCache totpCache = TotpCache.getInstance();
-        succeeded =  totpCache.isAvailable(immutableUserId, inputtedTotp);
+        succeeded =  totpCache.authenticate(immutableUserId, inputtedTotp);
 
-        if (succeeded) {
-            expectedTotp.isAuthenticated(true);
-        } else {
+        if (!succeeded) {
             throw new FailedLoginException("TOTP認証エラー");
         }
         _logger.debug(MessageFormat.format("TOTP 1次認証フェーズ結果：{0}", succeeded));
@@ -0,0 +1,273 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.recovery;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
+import com.sios.idp.shibboleth.datasource.dao.Dao;
+import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.DaoInstantiationException;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.RecoveryCodeVerificationException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * ワンタイムリカバリコードの検証機能を提供します.<br>
+ * ユーザ毎のリカバリコードのハッシュ値集合 ({@link RecoveryCodes}) をキャッシュし、入力値の検証はキャッシュ上で行います。
+ * 一致したリカバリコードは直ちにキャッシュから取り除き、データソースから削除できた場合のみ一致とします。
+ * 削除はデータソースの条件付きの更新で行い、他の要求が先に削除していた場合
+ * ({@link ValueAlreadyRemovedException}) は不一致とします。
+ * 複製の遅延などで削除前の値が再ロードされても再利用されないよう、使用済みの値は一定期間記録します。
+ * @author SIOS Technology, Inc.
+ */
+public final class RecoveryCodeVerifier {
+
+    /** ユーザ名と使用済みの値を連結して記録する際の区切り文字です. */
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    /** 使用済みの値を記録する時間(時間)です. */
+    private static final long CONSUMED_VALUE_EXPIRATION_HOURS = 24L;
+
+    /** Singletonなインスタンス. */
+    private static final RecoveryCodeVerifier VERIFIER = new RecoveryCodeVerifier(getExpireAfterWrite());
+
+    /** Class logger. */
+    private final Logger _logger = LoggerFactory.getLogger(this.getClass());
+
+    /** ユーザ名毎のリカバリコードのハッシュ値集合のキャッシュ. */
+    private final Cache<String, RecoveryCodes> cache;
+
+    /** データソースから削除した使用済みの値の記録. */
+    private final Cache<String, Boolean> consumedValues;
+
+    /**
+     * コンストラクタです.
+     * @param expireAfterWriteSec ハッシュ値集合がキャッシュに存在する時間(秒)
+     */
+    RecoveryCodeVerifier(long expireAfterWriteSec) {
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(expireAfterWriteSec, TimeUnit.SECONDS).build();
+        this.consumedValues = CacheBuilder.newBuilder()
+                .expireAfterWrite(CONSUMED_VALUE_EXPIRATION_HOURS, TimeUnit.HOURS).build();
+    }
+
+    /**
+     * リカバリコード検証オブジェクトを取得します.
+     * レルムが束縛されている場合は、レルム毎のリカバリコード検証オブジェクトを取得します。
+     * @return リカバリコード検証オブジェクト
+     */
+    public static RecoveryCodeVerifier getInstance() {
+        Realm realm = Realm.current();
+        return realm == null ? VERIFIER : realm.getComponent(RecoveryCodeVerifier.class,
+                () -> new RecoveryCodeVerifier(getExpireAfterWrite()));
+    }
+
+    /**
+     * 入力されたリカバリコードを検証します.
+     * 一致した場合、そのリカバリコードをデータソースから削除し、以降の検証では一致しません。
+     * データソースからの削除に失敗した場合は、リカバリコードを未使用に戻して例外をthrowします。
+     * {@link com.sios.idp.shibboleth.common.AppConfig}のrecoveryCodeAttributeNameが空の場合は常に不一致となります。
+     * @param userName ユーザ名
+     * @param code 入力されたリカバリコード
+     * @return True:未使用のリカバリコードと一致した/False:一致しなかった
+     * @throws RecoveryCodeVerificationException ユーザ情報の取得、ハッシュ値の計算、または使用済みの値の削除に失敗した場合
+     */
+    public boolean verify(String userName, String code) throws RecoveryCodeVerificationException {
+
+        String attributeName = AppConfig.getRecoveryCodeAttributeName();
+        if (attributeName == null || attributeName.isEmpty()) {
+            _logger.debug("リカバリコードの属性名が設定されていないため、リカバリコード認証を行いません。");
+            return false;
+        }
+
+        RecoveryCodes codes = getRecoveryCodes(userName, attributeName);
+        String storedValue = null;
+        try {
+            storedValue = codes.consume(code);
+        } catch (NoSuchAlgorithmException e) {
+            handleException(e, "リカバリコードのハッシュ値の計算に失敗しました。");
+        } catch (UnsupportedEncodingException e) {
+            handleException(e, "リカバリコードのハッシュ値の計算に失敗しました。");
+        }
+        if (storedValue == null) {
+            _logger.debug("ユーザ名：{}のリカバリコードが一致しませんでした。", userName);
+            return false;
+        }
+
+        String consumedKey = toConsumedKey(userName, storedValue);
+        consumedValues.put(consumedKey, Boolean.TRUE);
+        boolean removed;
+        try {
+            removed = remove(userName, attributeName, storedValue);
+        } catch (RecoveryCodeVerificationException e) {
+            // 使用されなかったリカバリコードとして、次回の検証時にデータソースから再ロードする
+            consumedValues.invalidate(consumedKey);
+            cache.invalidate(userName);
+            throw e;
+        }
+        if (!removed) {
+            // 他の要求 (別のIdPノード等) が先に同じリカバリコードを使用した
+            _logger.warn("ユーザ名：{}のリカバリコードは他の要求で使用済みのため、一致しませんでした。", userName);
+            return false;
+        }
+        _logger.info("ユーザ名：{}のリカバリコードを使用しました。 (残り：{})", userName, codes.size());
+        return true;
+    }
+
+    /**
+     * 指定されたユーザ名のリカバリコードのハッシュ値集合をキャッシュから破棄します.
+     * @param userName ユーザ名
+     */
+    public void invalidate(String userName) {
+        cache.invalidate(userName);
+    }
+
+    /**
+     * 指定されたユーザ名のリカバリコードのハッシュ値集合を取得します.
+     * キャッシュに存在しない場合はデータソースから取得してキャッシュします。
+     * @param userName ユーザ名
+     * @param attributeName リカバリコードの属性名
+     * @return リカバリコードのハッシュ値集合
+     * @throws RecoveryCodeVerificationException ユーザ情報の取得に失敗した場合
+     */
+    private RecoveryCodes getRecoveryCodes(String userName, String attributeName)
+            throws RecoveryCodeVerificationException {
+        try {
+            return cache.get(userName, () -> loadRecoveryCodes(userName, attributeName));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RecoveryCodeVerificationException) {
+                throw (RecoveryCodeVerificationException) e.getCause();
+            }
+            throw new RecoveryCodeVerificationException(e.getCause());
+        }
+    }
+
+    /**
+     * データソースからリカバリコードを取得します. 使用済みとして記録されている値は除外します.
+     * @param userName ユーザ名
+     * @param attributeName リカバリコードの属性名
+     * @return リカバリコードのハッシュ値集合
+     * @throws RecoveryCodeVerificationException ユーザ情報の取得に失敗した場合
+     */
+    private RecoveryCodes loadRecoveryCodes(String userName, String attributeName)
+            throws RecoveryCodeVerificationException {
+
+        _logger.info("ユーザ名：{}のリカバリコードの取得を開始します。", userName);
+        SearchResult result = null;
+        try {
+            result = createDao().getUser(RealmRegistry.toLocalUserName(userName));
+        } catch (UserDuplicatedException e) {
+            handleException(e, "ユーザ名：{0}のユーザ情報が複数件存在します。", userName);
+        } catch (DataAccessException e) {
+            handleException(e, "ユーザ名：{0}のユーザ情報取得時にデータアクセスエラーが発生しました。", userName);
+        } catch (UnexpectedException e) {
+            handleException(e, "ユーザ名：{0}のユーザ情報取得時に予期せぬエラーが発生しました。", userName);
+        }
+        if (result == null) {
+            String msg = MessageFormat.format("ユーザ名：{0}のユーザ情報が取得できませんでした。", userName);
+            _logger.error(msg);
+            throw new RecoveryCodeVerificationException(msg);
+        }
+
+        List<String> values = new ArrayList<String>();
+        for (String value : result.getValues(attributeName)) {
+            if (consumedValues.getIfPresent(toConsumedKey(userName, value)) == null) {
+                values.add(value);
+            }
+        }
+        return RecoveryCodes.parse(values);
+    }
+
+    /**
+     * 使用済みのリカバリコードをデータソースから削除します.
+     * @param userName ユーザ名
+     * @param attributeName リカバリコードの属性名
+     * @param storedValue データソースに格納されている値
+     * @return 削除した場合はtrue、他の要求が削除済みの場合はfalse
+     * @throws RecoveryCodeVerificationException 削除に失敗した場合
+     */
+    private boolean remove(String userName, String attributeName, String storedValue)
+            throws RecoveryCodeVerificationException {
+        try {
+            createDao().removeValue(RealmRegistry.toLocalUserName(userName), attributeName, storedValue);
+        } catch (ValueAlreadyRemovedException e) {
+            return false;
+        } catch (UserDuplicatedException e) {
+            handleException(e, "ユーザ名：{0}のユーザ情報が複数件存在するため、使用済みリカバリコードを削除できません。", userName);
+        } catch (DataAccessException e) {
+            handleException(e, "ユーザ名：{0}の使用済みリカバリコードの削除に失敗しました。", userName);
+        } catch (UnexpectedException | RuntimeException e) {
+            handleException(e, "ユーザ名：{0}の使用済みリカバリコードの削除時に予期せぬエラーが発生しました。", userName);
+        }
+        _logger.info("ユーザ名：{}の使用済みリカバリコードを削除しました。", userName);
+        return true;
+    }
+
+    /**
+     * DAOのインスタンスを生成します.
+     * @return DAO
+     * @throws RecoveryCodeVerificationException DAOのインスタンス生成に失敗した場合
+     */
+    private Dao createDao() throws RecoveryCodeVerificationException {
+        try {
+            return DaoFactory.getInstance().createInstance();
+        } catch (DaoInstantiationException e) {
+            throw new RecoveryCodeVerificationException(MessageFormat.format(
+                    "DAOインタフェース {0} の実装クラスのインスタンス生成に失敗しました", Dao.class.getName()), e);
+        }
+    }
+
+    /**
+     * 使用済みの値を記録する際のキーを生成します.
+     * @param userName ユーザ名
+     * @param storedValue データソースに格納されている値
+     * @return キー
+     */
+    private static String toConsumedKey(String userName, String storedValue) {
+        return userName + KEY_SEPARATOR + storedValue;
+    }
+
+    /**
+     * ハッシュ値集合がキャッシュに存在する時間(秒)を取得します.
+     * @return キャッシュ有効期限(秒)
+     */
+    private static long getExpireAfterWrite() {
+        Long sec = AppConfig.getRecoveryCodeCacheExpirationSec();
+        return sec == null || sec < 0 ? 0L : sec;
+    }
+
+    /**
+     * 回復不可能な例外としてハンドリングします.
+     * 指定されたメッセージのエラーログを出力し、{@link RecoveryCodeVerificationException}をthrowします。
+     * @param e 例外
+     * @param message メッセージ
+     * @param messageArgs メッセージ埋め込み文字列
+     * @throws RecoveryCodeVerificationException 常にthrowされます
+     */
+    private void handleException(Exception e, String message, Object... messageArgs)
+            throws RecoveryCodeVerificationException {
+        String msg = MessageFormat.format(message, messageArgs);
+        _logger.error(msg);
+        throw new RecoveryCodeVerificationException(msg, e);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.recovery;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sios.idp.shibboleth.common.util.Base64;
+import com.sios.idp.shibboleth.common.util.Sha256;
+
+/**
+ * 1ユーザ分のワンタイムリカバリコードのハッシュ値集合を保持するクラスです.<br>
+ * リカバリコードはデータソースの複数値属性に「ソルト$ハッシュ値」の形式で格納されている必要があります。
+ * ハッシュ値はソルトと正規化したリカバリコードを連結した文字列のSHA-256をBASE64エンコードした値です。<br>
+ * 入力値の検証ではソルト毎に1回だけハッシュ値を計算し、ハッシュ集合を参照します。
+ * 同一ユーザのリカバリコードは同一のソルトで発行することで、コード数に依らず1回のハッシュ計算で検証できます。<br>
+ * ハッシュはソルト付きのSHA-256を1回計算するだけのため、推測可能なコードに対する総当たりは防げません。
+ * リカバリコードは乱数から生成した{@value #MIN_LENGTH}文字以上のBase32文字列 (80ビット以上) で発行する必要があり、
+ * 利用者が決めた文字列等の低エントロピーな値は使用できません。
+ * @author SIOS Technology, Inc.
+ */
+public final class RecoveryCodes {
+
+    /** ソルトとハッシュ値の区切り文字です. */
+    public static final String SEPARATOR = "$";
+
+    /** 正規化したリカバリコードの最小の長さです. Base32の16文字で80ビットになります. */
+    public static final int MIN_LENGTH = 16;
+
+    /** 正規化したリカバリコードの最大の長さです. */
+    public static final int MAX_LENGTH = 64;
+
+    /** ソルト毎のハッシュ値集合. */
+    private final Map<String, Set<String>> hashesBySalt = new LinkedHashMap<String, Set<String>>();
+
+    /**
+     * privateコンストラクタです.
+     * インスタンスは{@link #parse(Collection)}で生成します。
+     */
+    private RecoveryCodes() {
+    }
+
+    /**
+     * データソースに格納された値からインスタンスを生成します.
+     * 形式が不正な値は無視します。
+     * @param storedValues データソースに格納されたリカバリコードの値
+     * @return リカバリコードのハッシュ値集合
+     */
+    public static RecoveryCodes parse(Collection<String> storedValues) {
+        RecoveryCodes codes = new RecoveryCodes();
+        for (String storedValue : storedValues) {
+            int idx = storedValue == null ? -1 : storedValue.indexOf(SEPARATOR);
+            if (idx <= 0 || idx == storedValue.length() - 1) {
+                continue;
+            }
+            String salt = storedValue.substring(0, idx);
+            Set<String> hashes = codes.hashesBySalt.get(salt);
+            if (hashes == null) {
+                hashes = new HashSet<String>();
+                codes.hashesBySalt.put(salt, hashes);
+            }
+            hashes.add(storedValue.substring(idx + 1));
+        }
+        return codes;
+    }
+
+    /**
+     * 入力されたリカバリコードに一致するハッシュ値を集合から取り除きます.
+     * 同一のリカバリコードは一度しか一致しません。
+     * @param code 入力されたリカバリコード
+     * @return 一致した場合はデータソースに格納されている値、一致しない場合はnull
+     * @throws NoSuchAlgorithmException アルゴリズムが利用不可能な場合
+     * @throws UnsupportedEncodingException 文字エンコードが利用不可能な場合
+     */
+    public synchronized String consume(String code)
+            throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        String normalized = normalize(code);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        for (Map.Entry<String, Set<String>> entry : hashesBySalt.entrySet()) {
+            String hash = hash(entry.getKey(), normalized);
+            if (entry.getValue().remove(hash)) {
+                return entry.getKey() + SEPARATOR + hash;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 未使用のリカバリコードの数を取得します.
+     * @return 未使用のリカバリコードの数
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Set<String> hashes : hashesBySalt.values()) {
+            size += hashes.size();
+        }
+        return size;
+    }
+
+    /**
+     * データソースに格納する値を生成します.
+     * @param salt ソルト. 区切り文字を含まない文字列である必要があります
+     * @param code リカバリコード
+     * @return データソースに格納する値
+     * @throws NoSuchAlgorithmException アルゴリズムが利用不可能な場合
+     * @throws UnsupportedEncodingException 文字エンコードが利用不可能な場合
+     */
+    public static String toStoredValue(String salt, String code)
+            throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if (salt == null || salt.isEmpty() || salt.contains(SEPARATOR)) {
+            throw new IllegalArgumentException("ソルトには区切り文字を含まない空でない文字列を指定してください。");
+        }
+        return salt + SEPARATOR + hash(salt, normalize(code));
+    }
+
+    /**
+     * 入力値がリカバリコードの形式であるかを判定します.
+     * 正規化した値がBase32の文字 (A～Z、2～7) のみで構成され、長さが{@value #MIN_LENGTH}～{@value #MAX_LENGTH}文字の場合に
+     * 形式が正しいと判定します。数字のみのTOTPは形式が正しいと判定されないため、データソースを参照せずに除外できます。
+     * @param code 入力値
+     * @return リカバリコードの形式の場合はtrue
+     */
+    public static boolean isWellFormed(String code) {
+        String normalized = normalize(code);
+        if (normalized.length() < MIN_LENGTH || normalized.length() > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (!(c >= 'A' && c <= 'Z') && !(c >= '2' && c <= '7')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ソルトと正規化済みリカバリコードからハッシュ値を計算します.
+     * @param salt ソルト
+     * @param normalizedCode 正規化済みリカバリコード
+     * @return BASE64エンコードされたハッシュ値
+     * @throws NoSuchAlgorithmException アルゴリズムが利用不可能な場合
+     * @throws UnsupportedEncodingException 文字エンコードが利用不可能な場合
+     */
+    static String hash(String salt, String normalizedCode)
+            throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        return Base64.encode(Sha256.hash(salt + normalizedCode));
+    }
+
+    /**
+     * リカバリコードを正規化します. 空白、ハイフンを除去し、英字を大文字に揃えます.
+     * @param code リカバリコード
+     * @return 正規化されたリカバリコード
+     */
+    static String normalize(String code) {
+        if (code == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(code.length());
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c)) {
+                sb.append(Character.toUpperCase(c));
+            }
+        }
+        return sb.toString();
+    }
+}
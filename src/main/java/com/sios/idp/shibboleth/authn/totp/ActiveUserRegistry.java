@@ -0,0 +1,102 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
+/**
+ * 最近TOTPを生成したユーザ名を記録するクラスです.<br>
+ * 記録したユーザ名は停止時にファイルへ保存し、次回の起動時に秘密鍵を先読みする対象とします ({@link CachePrefetcher})。
+ * 記録するユーザ数には上限があり、上限を超えた場合は最も古く使用されたユーザから破棄します。
+ * @author SIOS Technology, Inc.
+ */
+public final class ActiveUserRegistry {
+
+    /** 記録するユーザ数の上限. */
+    static final long MAXIMUM_SIZE = 10000L;
+
+    /** Singletonなインスタンス. */
+    private static final ActiveUserRegistry ACTIVE_USER_REGISTRY = new ActiveUserRegistry();
+
+    /** 最近TOTPを生成したユーザ名. */
+    private final Cache<String, Boolean> users = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private ActiveUserRegistry() {
+    }
+
+    /**
+     * 最近TOTPを生成したユーザ名の記録を取得します.
+     * @return ユーザ名の記録
+     */
+    public static ActiveUserRegistry getInstance() {
+        return ACTIVE_USER_REGISTRY;
+    }
+
+    /**
+     * TOTPを生成したユーザ名を記録します.
+     * 先読みは既定の設定のディレクトリに対して行うため、レルムで生成したユーザ名は記録しません。
+     * @param userName ユーザ名
+     */
+    public void record(String userName) {
+        if (Realm.current() != null) {
+            return;
+        }
+        users.put(userName, Boolean.TRUE);
+    }
+
+    /**
+     * 記録したユーザ名をファイルに保存します. 既存のファイルは置き換えます.
+     * @param path ファイルのパス
+     * @return 保存したユーザ数
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public int save(Path path) throws IOException {
+        List<String> userNames = new ArrayList<String>(users.asMap().keySet());
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, userNames, StandardCharsets.UTF_8);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return userNames.size();
+    }
+
+    /**
+     * ファイルに保存されたユーザ名を読み込みます. 読み込んだユーザ名は記録にも追加します.
+     * @param path ファイルのパス
+     * @return ユーザ名のリスト. ファイルが存在しない場合は空のリスト
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public List<String> load(Path path) throws IOException {
+        List<String> userNames = new ArrayList<String>();
+        if (!Files.exists(path)) {
+            return userNames;
+        }
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String userName = line.trim();
+            if (!userName.isEmpty() && userNames.size() < MAXIMUM_SIZE) {
+                userNames.add(userName);
+                record(userName);
+            }
+        }
+        return userNames;
+    }
+}
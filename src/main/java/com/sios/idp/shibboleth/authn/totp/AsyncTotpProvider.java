@@ -0,0 +1,28 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 非同期TOTPプロバイダのインタフェースです.
+ * ユーザ情報の取得、秘密鍵の復号化、TOTPの生成を呼び出し元のスレッドを占有せずに実行し、
+ * {@link com.sios.idp.shibboleth.authn.totp.Totp}オブジェクトを{@link CompletionStage}で提供します。
+ * 呼び出し元はタイムアウトやフォールバックを合成できます。
+ * 同期的な呼び出しには{@link BlockingTotpProvider}を利用します。
+ * @author SIOS Technology, Inc.
+ */
+public interface AsyncTotpProvider {
+
+    /**
+     * TOTPオブジェクトを非同期に取得します.
+     * TOTP生成に失敗した場合、{@link com.sios.idp.shibboleth.exception.TotpGenerationException}で異常完了します。
+     * @param userName ユーザ名
+     * @return TOTPオブジェクトのCompletionStage
+     */
+    CompletionStage<Totp> getTotpAsync(String userName);
+
+}
@@ -0,0 +1,87 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.text.MessageFormat;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.exception.TotpGenerationException;
+
+/**
+ * {@link AsyncTotpProvider}を{@link TotpProvider}として利用するためのアダプタクラスです.
+ * 非同期TOTPプロバイダの完了を待ち、{@link com.sios.idp.shibboleth.authn.jaas.TotpLoginModule}に結果を返します。
+ * 待機時間は{@link com.sios.idp.shibboleth.common.AppConfig}のtotpGenerationTimeoutMillisに従います。
+ * @author SIOS Technology, Inc.
+ */
+public class BlockingTotpProvider implements TotpProvider {
+
+    /** 非同期TOTPプロバイダ. */
+    private final AsyncTotpProvider asyncProvider;
+
+    /**
+     * {@link TotpProviderImpl}の完了を待つアダプタを生成します.
+     * JAASログイン構成ファイルのTotpProviderClassに指定する場合に利用されます。
+     */
+    public BlockingTotpProvider() {
+        this(new TotpProviderImpl());
+    }
+
+    /**
+     * 指定された非同期TOTPプロバイダの完了を待つアダプタを生成します.
+     * @param asyncProvider 非同期TOTPプロバイダ
+     */
+    public BlockingTotpProvider(AsyncTotpProvider asyncProvider) {
+        this.asyncProvider = asyncProvider;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Totp getTotp(String userName) throws TotpGenerationException {
+        return await(asyncProvider.getTotpAsync(userName), userName);
+    }
+
+    /**
+     * TOTP生成の完了を待ちます.
+     * 異常完了した場合は原因の{@link TotpGenerationException}をthrowします。
+     * @param stage TOTPオブジェクトのCompletionStage
+     * @param userName ユーザ名
+     * @return TOTPオブジェクト
+     * @throws TotpGenerationException TOTP生成に失敗した場合、待機時間を超過した場合
+     */
+    static Totp await(CompletionStage<Totp> stage, String userName) throws TotpGenerationException {
+
+        Long timeoutMillis = AppConfig.getTotpGenerationTimeoutMillis();
+        Future<Totp> future = stage.toCompletableFuture();
+        try {
+            if (timeoutMillis == null || timeoutMillis <= 0) {
+                return future.get();
+            }
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TotpGenerationException(e);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TotpGenerationException(MessageFormat.format(
+                    "ユーザ名：{0}のTOTP生成が{1}ミリ秒以内に完了しませんでした。", userName, timeoutMillis), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TotpGenerationException) {
+                throw (TotpGenerationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TotpGenerationException(cause);
+        }
+    }
+}
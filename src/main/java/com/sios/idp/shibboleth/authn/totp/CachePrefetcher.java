@@ -0,0 +1,293 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.datasource.ldap.LdapPagedSearch;
+import com.sios.idp.shibboleth.datasource.ldap.LdapSearchBase;
+import com.sios.idp.shibboleth.datasource.ldap.LdapUtil;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.TotpGenerationException;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * 起動時にユーザ情報、復号化済み秘密鍵のキャッシュを先読みするクラスです.<br>
+ * 以下の順にバックグラウンドで実行します。
+ * <ol>
+ * <li>ベースDN配下の全ユーザをページング検索し、{@link UserRecordCache}に格納します
+ * (userRecordCacheTtlSec、userRecordMaxStalenessSecが共に0の場合は行いません)</li>
+ * <li>前回の停止時に保存した最近TOTPを生成したユーザ ({@link ActiveUserRegistry}) のTOTPを生成し、
+ * 秘密鍵の復号化結果を{@link SecretKeyCache}に格納します</li>
+ * </ol>
+ * 秘密鍵の復号化は、CPU数にprefetchCpuPercentを乗じた並列度のForkJoinPoolで行い、認証処理のCPUを使い切らないようにします。
+ * @author SIOS Technology, Inc.
+ */
+public final class CachePrefetcher implements Runnable {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachePrefetcher.class);
+
+    /** 進捗をログに出力する間隔 (ユーザ数). */
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    /** Singletonなインスタンス. */
+    private static CachePrefetcher prefetcher;
+
+    /** TOTPを生成するクラス. 秘密鍵の復号化は呼び出し元のスレッドで行います. */
+    private final TotpProviderImpl provider;
+
+    /** 秘密鍵の復号化の並列度. */
+    private final int parallelism;
+
+    /** 検索したページ数. */
+    private final AtomicLong pageCount = new AtomicLong();
+
+    /** キャッシュに格納したユーザ数. */
+    private final AtomicLong cachedUserCount = new AtomicLong();
+
+    /** 秘密鍵を先読みしたユーザ数. */
+    private final AtomicLong warmedUserCount = new AtomicLong();
+
+    /** 秘密鍵の先読みに失敗したユーザ数. */
+    private final AtomicLong failedUserCount = new AtomicLong();
+
+    /** 先読みを実行するスレッド. */
+    private volatile Thread thread;
+
+    /** 完了までの所要時間 (ミリ秒). 実行中は-1. */
+    private volatile long elapsedMillis = -1L;
+
+    /**
+     * コンストラクタです.
+     * @param provider TOTPを生成するクラス
+     * @param parallelism 秘密鍵の復号化の並列度
+     */
+    CachePrefetcher(TotpProviderImpl provider, int parallelism) {
+        this.provider = provider;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 先読みをバックグラウンドで開始します. 既に開始している場合は何もしません.
+     */
+    public static synchronized void start() {
+        if (prefetcher == null) {
+            prefetcher = new CachePrefetcher(new TotpProviderImpl(Runnable::run), getParallelism());
+            Thread thread = new Thread(prefetcher, "cache-prefetch");
+            thread.setDaemon(true);
+            prefetcher.thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * 先読みを中断し、最近TOTPを生成したユーザ名を保存します.
+     */
+    public static synchronized void stop() {
+        if (prefetcher != null) {
+            Thread thread = prefetcher.thread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            prefetcher = null;
+        }
+        Path path = getActiveUsersFile();
+        if (path != null) {
+            try {
+                int count = ActiveUserRegistry.getInstance().save(path);
+                LOGGER.info("最近TOTPを生成したユーザ名を保存しました。 (パス：{}, ユーザ数：{})", path, count);
+            } catch (IOException e) {
+                LOGGER.warn("最近TOTPを生成したユーザ名の保存に失敗しました。 (パス：{}, 理由：{})", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 開始した先読みを取得します.
+     * @return 先読み. 開始していない場合はnull
+     */
+    public static synchronized CachePrefetcher getInstance() {
+        return prefetcher;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            prefetchUsers();
+            Path path = getActiveUsersFile();
+            if (path != null) {
+                warmSecretKeys(ActiveUserRegistry.getInstance().load(path));
+            }
+        } catch (IOException | LDAPException e) {
+            LOGGER.warn("キャッシュの先読みに失敗しました。 (理由：{})", e.getMessage());
+        } catch (InterruptedException | CancellationException e) {
+            LOGGER.info("キャッシュの先読みを中断しました。");
+            Thread.currentThread().interrupt();
+        } finally {
+            elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOGGER.info("キャッシュの先読みを終了しました。 (ユーザ情報：{}件, 秘密鍵：{}件, 失敗：{}件, 所要時間：{}ミリ秒)",
+                    cachedUserCount.get(), warmedUserCount.get(), failedUserCount.get(), elapsedMillis);
+        }
+    }
+
+    /**
+     * 全ユーザのユーザ情報を{@link UserRecordCache}に格納します.
+     * @throws LDAPException 検索に失敗した場合
+     */
+    void prefetchUsers() throws LDAPException {
+        Long ttlSec = AppConfig.getUserRecordCacheTtlSec();
+        Long stalenessSec = AppConfig.getUserRecordMaxStalenessSec();
+        if ((ttlSec == null || ttlSec <= 0) && (stalenessSec == null || stalenessSec <= 0)) {
+            LOGGER.info("ユーザ情報をキャッシュしない設定のため、ユーザ情報の先読みを行いません。");
+            return;
+        }
+        UserRecordCache cache = UserRecordCache.getInstance();
+        List<String> attributeNames = Arrays.asList(LdapUtil.getReturningAttributes());
+        try (LDAPConnection connection = AsyncLdapConnectionPool.getInstance().openConnection()) {
+            pageCount.set(LdapPagedSearch.forEachUser(connection, LdapSearchBase.getAll(),
+                    AppConfig.getLdapUserNameAttributeName(), attributeNames, LdapPagedSearch.DEFAULT_PAGE_SIZE,
+                    (userName, attributes) -> {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new CancellationException();
+                        }
+                        cache.put(userName, toSearchResult(attributes));
+                        if (cachedUserCount.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                            LOGGER.info("ユーザ情報を先読みしています。 ({}件)", cachedUserCount.get());
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * 指定されたユーザのTOTPを並列に生成し、秘密鍵の復号化結果をキャッシュします.
+     * @param userNames ユーザ名のリスト
+     * @throws InterruptedException 中断された場合
+     */
+    void warmSecretKeys(List<String> userNames) throws InterruptedException {
+        if (userNames.isEmpty()) {
+            return;
+        }
+        LOGGER.info("{}件のユーザの秘密鍵を並列度{}で先読みします。", userNames.size(), parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> userNames.parallelStream().forEach(this::warm)).get();
+        } catch (ExecutionException e) {
+            LOGGER.warn("秘密鍵の先読みに失敗しました。 (理由：{})", e.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 検索したページ数を取得します.
+     * @return 検索したページ数
+     */
+    public long getPageCount() {
+        return pageCount.get();
+    }
+
+    /**
+     * キャッシュに格納したユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public long getCachedUserCount() {
+        return cachedUserCount.get();
+    }
+
+    /**
+     * 秘密鍵を先読みしたユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public long getWarmedUserCount() {
+        return warmedUserCount.get();
+    }
+
+    /**
+     * 秘密鍵の先読みに失敗したユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public long getFailedUserCount() {
+        return failedUserCount.get();
+    }
+
+    /**
+     * 完了までの所要時間を取得します.
+     * @return 所要時間 (ミリ秒). 実行中は-1
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * 1ユーザのTOTPを生成し、秘密鍵の復号化結果をキャッシュします.
+     * @param userName ユーザ名
+     */
+    private void warm(String userName) {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        try {
+            provider.getTotp(userName);
+            warmedUserCount.incrementAndGet();
+        } catch (TotpGenerationException | RuntimeException e) {
+            failedUserCount.incrementAndGet();
+            LOGGER.debug("ユーザ名：{}の秘密鍵の先読みに失敗しました。 (理由：{})", userName, e.getMessage());
+        }
+    }
+
+    /**
+     * 属性名毎の値をユーザ情報に変換します.
+     * @param attributes 属性名毎の値
+     * @return ユーザ情報
+     */
+    private static SearchResult toSearchResult(Map<String, List<String>> attributes) {
+        SearchResult result = new SearchResult();
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            for (String value : attribute.getValue()) {
+                result.add(attribute.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 秘密鍵の復号化の並列度を取得します.
+     * @return CPU数にprefetchCpuPercentを乗じた並列度 (1以上)
+     */
+    private static int getParallelism() {
+        Integer percent = AppConfig.getPrefetchCpuPercent();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, cpus * (percent == null ? 50 : Math.min(Math.max(percent, 0), 100)) / 100);
+    }
+
+    /**
+     * 最近TOTPを生成したユーザ名を保存するファイルのパスを取得します.
+     * @return ファイルのパス. 設定されていない場合はnull
+     */
+    private static Path getActiveUsersFile() {
+        String path = AppConfig.getPrefetchActiveUsersFile();
+        return path == null || path.trim().isEmpty() ? null : Paths.get(path.trim());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
+/**
+ * ユーザ固有ID、鍵バージョン毎の復号化済み秘密鍵のキャッシュ機能を提供します.<br>
+ * 鍵のローテーション中は新旧両方の鍵を保持し、受け入れなくなったバージョンの鍵のみを破棄します。
+ * 保持する秘密鍵は平文のため、既定 (secretKeyCacheExpirationSecが0) ではキャッシュしません。
+ * @author SIOS Technology, Inc.
+ */
+public final class SecretKeyCache {
+
+    /** Singletonなインスタンス. */
+    private static final SecretKeyCache SECRET_KEY_CACHE = new SecretKeyCache();
+
+    /** ユーザ固有ID毎の &lt;鍵バージョン識別子, 復号化済み秘密鍵&gt; のキャッシュ. */
+    private volatile Cache<String, Map<String, byte[]>> cache;
+
+    /** キャッシュの寿命 (秒). */
+    private long expireAfterWrite;
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private SecretKeyCache() {
+        expireAfterWrite = getExpireAfterWrite();
+        cache = CacheBuilder.newBuilder().expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * 復号化済み秘密鍵のキャッシュオブジェクトを取得します.
+     * レルムが束縛されている場合は、レルム毎のキャッシュオブジェクトを取得します。
+     * @return 復号化済み秘密鍵のキャッシュオブジェクト
+     */
+    public static SecretKeyCache getInstance() {
+        Realm realm = Realm.current();
+        return realm == null ? SECRET_KEY_CACHE : realm.getComponent(SecretKeyCache.class, SecretKeyCache::new);
+    }
+
+    /**
+     * 設定値の再読み込み後に、キャッシュの寿命を現在の設定値で計算し直します.
+     * 寿命が変更された場合は、保持している秘密鍵を引き継いだキャッシュに置き換えます。
+     * @return キャッシュを置き換えた場合はtrue
+     */
+    public synchronized boolean reconfigure() {
+        long sec = getExpireAfterWrite();
+        if (sec == expireAfterWrite) {
+            return false;
+        }
+        Cache<String, Map<String, byte[]>> next =
+                CacheBuilder.newBuilder().expireAfterWrite(sec, TimeUnit.SECONDS).build();
+        next.putAll(cache.asMap());
+        cache = next;
+        expireAfterWrite = sec;
+        return true;
+    }
+
+    /**
+     * 指定されたユーザ固有ID、鍵バージョン識別子の復号化済み秘密鍵を取得します.
+     * @param immutableUserId ユーザ固有ID
+     * @param keyVersionId 鍵バージョン識別子
+     * @return 復号化済み秘密鍵. キャッシュに存在しない場合はnull
+     */
+    public byte[] get(String immutableUserId, String keyVersionId) {
+        Map<String, byte[]> keys = cache.getIfPresent(immutableUserId);
+        if (keys == null) {
+            return null;
+        }
+        byte[] key = keys.get(keyVersionId);
+        return key == null ? null : key.clone();
+    }
+
+    /**
+     * 指定されたユーザ固有ID、鍵バージョン識別子で復号化済み秘密鍵を格納します.
+     * @param immutableUserId ユーザ固有ID
+     * @param keyVersionId 鍵バージョン識別子
+     * @param key 復号化済み秘密鍵
+     */
+    public void put(String immutableUserId, String keyVersionId, byte[] key) {
+        Map<String, byte[]> keys = cache.asMap().computeIfAbsent(
+                immutableUserId, k -> new ConcurrentHashMap<String, byte[]>());
+        keys.put(keyVersionId, key.clone());
+    }
+
+    /**
+     * 指定されたユーザ固有IDの復号化済み秘密鍵のうち、指定された鍵バージョン識別子以外のものを破棄します.
+     * @param immutableUserId ユーザ固有ID
+     * @param keyVersionIds 保持する鍵バージョン識別子
+     */
+    public void retain(String immutableUserId, Collection<String> keyVersionIds) {
+        Map<String, byte[]> keys = cache.getIfPresent(immutableUserId);
+        if (keys != null) {
+            keys.keySet().retainAll(keyVersionIds);
+        }
+    }
+
+    /**
+     * 指定されたユーザ固有IDの全ての復号化済み秘密鍵を破棄します.
+     * @param immutableUserId ユーザ固有ID
+     */
+    public void invalidate(String immutableUserId) {
+        cache.invalidate(immutableUserId);
+    }
+
+    /**
+     * 全ての復号化済み秘密鍵を破棄します.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * キャッシュの寿命を取得します.
+     * @return キャッシュの寿命 (秒)
+     */
+    private static long getExpireAfterWrite() {
+        Long sec = AppConfig.getSecretKeyCacheExpirationSec();
+        return sec == null || sec < 0 ? 0L : sec;
+    }
+}
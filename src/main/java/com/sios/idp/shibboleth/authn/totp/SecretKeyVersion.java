@@ -0,0 +1,183 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sios.idp.shibboleth.exception.InvalidUserDataException;
+
+/**
+ * バージョン付きの暗号化秘密鍵を表すクラスです.<br>
+ * 秘密鍵の属性値は次のいずれかの形式で格納されます。
+ * <ul>
+ * <li>暗号化秘密鍵 (バージョンなし)</li>
+ * <li>{スロット:バージョン:有効化日時}暗号化秘密鍵 (有効化日時はエポック秒)</li>
+ * </ul>
+ * 同一スロットの秘密鍵は同一デバイスの鍵の世代を表します。鍵をローテーションする場合は、
+ * 旧バージョンの値を残したまま新バージョンの値を追加します。
+ * 旧バージョンの鍵は新バージョンの有効化日時から重複期間が経過するまで受け入れられます。
+ * @author SIOS Technology, Inc.
+ */
+public final class SecretKeyVersion {
+
+    /** バージョン情報の開始文字です. */
+    private static final char PREFIX_START = '{';
+
+    /** バージョン情報の終了文字です. */
+    private static final char PREFIX_END = '}';
+
+    /** バージョン情報の区切り文字です. */
+    private static final String PREFIX_SEPARATOR = ":";
+
+    /** スロット. バージョンなしの場合はnull. */
+    private final String slot;
+
+    /** バージョン. */
+    private final long version;
+
+    /** 有効化日時 (エポック秒). */
+    private final long activatedAtSec;
+
+    /** 暗号化秘密鍵. */
+    private final String encryptedSecretKey;
+
+    /**
+     * コンストラクタです.
+     * @param slot スロット
+     * @param version バージョン
+     * @param activatedAtSec 有効化日時 (エポック秒)
+     * @param encryptedSecretKey 暗号化秘密鍵
+     */
+    private SecretKeyVersion(String slot, long version, long activatedAtSec, String encryptedSecretKey) {
+        this.slot = slot;
+        this.version = version;
+        this.activatedAtSec = activatedAtSec;
+        this.encryptedSecretKey = encryptedSecretKey;
+    }
+
+    /**
+     * 秘密鍵の属性値を解析します.
+     * @param value 秘密鍵の属性値
+     * @return バージョン付きの暗号化秘密鍵
+     * @throws InvalidUserDataException バージョン情報の形式が不正な場合
+     */
+    public static SecretKeyVersion parse(String value) throws InvalidUserDataException {
+
+        if (value.isEmpty() || value.charAt(0) != PREFIX_START) {
+            return new SecretKeyVersion(null, 0L, 0L, value);
+        }
+        int end = value.indexOf(PREFIX_END);
+        String[] prefix = end < 0 ? new String[0] : value.substring(1, end).split(PREFIX_SEPARATOR, -1);
+        if (prefix.length != 3 || prefix[0].isEmpty() || end == value.length() - 1) {
+            throw new InvalidUserDataException(MessageFormat.format(
+                    "秘密鍵のバージョン情報の形式が不正です。{0}", value.substring(0, end < 0 ? 1 : end + 1)));
+        }
+        try {
+            return new SecretKeyVersion(prefix[0], Long.parseLong(prefix[1]), Long.parseLong(prefix[2]),
+                    value.substring(end + 1));
+        } catch (NumberFormatException e) {
+            throw new InvalidUserDataException(MessageFormat.format(
+                    "秘密鍵のバージョン情報の形式が不正です。{0}", value.substring(0, end + 1)), e);
+        }
+    }
+
+    /**
+     * 指定日時に受け入れる秘密鍵を選択します.<br>
+     * スロット毎に、有効化日時を過ぎた最新バージョンの鍵を受け入れます。
+     * 最新バージョンの有効化日時から重複期間が経過していない場合は、1つ前のバージョンの鍵も受け入れます。
+     * バージョンなしの鍵は常に受け入れます。
+     * @param keyVersions 秘密鍵のリスト
+     * @param nowSec 現在日時 (エポック秒)
+     * @param overlapSec 重複期間 (秒)
+     * @return 受け入れる秘密鍵のリスト. 元のリストの順序を保持します
+     */
+    public static List<SecretKeyVersion> selectAcceptable(
+            List<SecretKeyVersion> keyVersions, long nowSec, long overlapSec) {
+
+        Map<String, List<SecretKeyVersion>> slots = new LinkedHashMap<String, List<SecretKeyVersion>>();
+        List<SecretKeyVersion> acceptable = new ArrayList<SecretKeyVersion>();
+        for (SecretKeyVersion keyVersion : keyVersions) {
+            if (!keyVersion.isVersioned()) {
+                acceptable.add(keyVersion);
+                continue;
+            }
+            List<SecretKeyVersion> slotVersions = slots.get(keyVersion.slot);
+            if (slotVersions == null) {
+                slotVersions = new ArrayList<SecretKeyVersion>();
+                slots.put(keyVersion.slot, slotVersions);
+            }
+            if (keyVersion.activatedAtSec <= nowSec) {
+                slotVersions.add(keyVersion);
+            }
+        }
+
+        for (List<SecretKeyVersion> slotVersions : slots.values()) {
+            if (slotVersions.isEmpty()) {
+                continue;
+            }
+            Collections.sort(slotVersions, Comparator.comparingLong(SecretKeyVersion::getVersion).reversed());
+            SecretKeyVersion current = slotVersions.get(0);
+            acceptable.add(current);
+            if (slotVersions.size() > 1 && nowSec < current.activatedAtSec + Math.max(overlapSec, 0L)) {
+                acceptable.add(slotVersions.get(1));
+            }
+        }
+
+        List<SecretKeyVersion> ordered = new ArrayList<SecretKeyVersion>(acceptable.size());
+        for (SecretKeyVersion keyVersion : keyVersions) {
+            if (acceptable.contains(keyVersion)) {
+                ordered.add(keyVersion);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * バージョン情報を持つかどうかを取得します.
+     * @return バージョン情報を持つ場合はtrue
+     */
+    public boolean isVersioned() {
+        return slot != null;
+    }
+
+    /**
+     * スロットを取得します.
+     * @return スロット. バージョンなしの場合はnull
+     */
+    public String getSlot() {
+        return slot;
+    }
+
+    /**
+     * バージョンを取得します.
+     * @return バージョン. バージョンなしの場合は0
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 有効化日時を取得します.
+     * @return 有効化日時 (エポック秒). バージョンなしの場合は0
+     */
+    public long getActivatedAtSec() {
+        return activatedAtSec;
+    }
+
+    /**
+     * 暗号化秘密鍵を取得します.
+     * @return 暗号化秘密鍵
+     */
+    public String getEncryptedSecretKey() {
+        return encryptedSecretKey;
+    }
+}
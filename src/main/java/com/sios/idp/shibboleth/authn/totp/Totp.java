@@ -26,6 +26,9 @@ public class Totp implements Serializable {
     /** ワンタイムパスワードです. */
     private final String _totp;
 
+    /** TOTP生成に使用した秘密鍵 (デバイス) の識別子です. 秘密鍵が1つのみの場合はnullです. */
+    private final String _deviceId;
+
     /** 認証済みフラグです. */
     private boolean _isAuthenticated = false;
 
@@ -36,9 +39,21 @@ public class Totp implements Serializable {
      * @param totp ワンタイムパスワード
      */
     public Totp(String immutableUserId, long timeCounter, String totp) {
+        this(immutableUserId, timeCounter, totp, null);
+    }
+
+    /**
+     * 指定されたユーザ固有ID、タイムカウンタ、ワンタイムパスワード、デバイス識別子でインスタンスを生成します.
+     * @param immutableUserId ユーザ固有ID
+     * @param timeCounter タイムカウンタ
+     * @param totp ワンタイムパスワード
+     * @param deviceId TOTP生成に使用した秘密鍵 (デバイス) の識別子
+     */
+    public Totp(String immutableUserId, long timeCounter, String totp, String deviceId) {
         this._immutableUserId = immutableUserId;
         this._timeCounter = timeCounter;
         this._totp = totp;
+        this._deviceId = deviceId;
     }
 
     @Override
@@ -60,6 +75,11 @@ public class Totp implements Serializable {
         } else {
             if (!getTotp().equals(other.getTotp())) { return false; }
         }
+        if (getDeviceId() == null) {
+            if (other.getDeviceId() != null) { return false; }
+        } else {
+            if (!getDeviceId().equals(other.getDeviceId())) { return false; }
+        }
         if (getTimeCounter() != other.getTimeCounter()) { return false; }
         if (isAuthenticated() != other.isAuthenticated()) { return false; }
         return true;
@@ -70,7 +90,7 @@ public class Totp implements Serializable {
     public int hashCode() {
         return Arrays.hashCode(
                 new Object[] {
-                        getImmutableUserId(), getTimeCounter(), getTotp(), isAuthenticated()
+                        getImmutableUserId(), getTimeCounter(), getTotp(), getDeviceId(), isAuthenticated()
                         });
     }
 
@@ -98,6 +118,14 @@ public class Totp implements Serializable {
         return _totp;
     }
 
+    /**
+     * TOTP生成に使用した秘密鍵 (デバイス) の識別子を取得します.
+     * @return デバイス識別子. 秘密鍵が1つのみの場合はnull
+     */
+    public String getDeviceId() {
+        return _deviceId;
+    }
+
     /**
      * 認証済みフラグを取得します.
      * @return 認証済みの場合true、認証済みでない場合false
@@ -7,20 +7,35 @@ package com.sios.idp.shibboleth.authn.totp;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
 
 /**
  * ユーザ固有ID、タイムカウンタ毎のTOTPキャッシュ機能を提供します.<br>
  * TOTPの保持の仕方：
  * &lt;String immutableUserId, &lt;Long timeCounter,
  * com.sios.shibboleth.idp.auth.totp.Totp totp&gt;&gt;<br>
- * キャッシュ機能そのものは{@link com.sios.idp.shibboleth.authn.totp.TotpStorage}に処理を委譲します。
+ * キャッシュ機能そのものは{@link com.sios.idp.shibboleth.authn.totp.TotpStorage}に処理を委譲します。<br>
+ * 1ユーザに複数の秘密鍵 (デバイス) が登録されている場合、TOTPはユーザ固有IDとデバイス識別子の組毎に保持し、
+ * 認証済みフラグ (リプレイ防止) もデバイス毎に管理します。<br>
+ * 秘密鍵がローテーションされた場合は、鍵が変化したデバイスのTOTPのみを破棄します。<br>
+ * 各操作は読み取りロックを取得して委譲先を1回だけ参照し、
+ * 委譲先の置き換えは書き込みロックで行うため、置き換え中の操作が古い委譲先に反映されて失われることはありません。
  * @author SIOS Technology, Inc.
  */
 public final class TotpCache {
@@ -28,10 +43,16 @@ public final class TotpCache {
     /** Class logger. */
     private final Logger _logger = LoggerFactory.getLogger(this.getClass());
 
+    /** ユーザ固有IDとデバイス識別子を連結してキャッシュキーとする際の区切り文字です. */
+    private static final String DEVICE_KEY_SEPARATOR = "\u0000";
+
     /** Singletonなインスタンス. */
     private static final TotpCache TOTP_CACHE = new TotpCache();
 
-    /** キャッシュ機能の委譲先クラス. */
+    /** 委譲先の参照と置き換えを排他するロック. */
+    private final ReadWriteLock storageLock = new ReentrantReadWriteLock();
+
+    /** キャッシュ機能の委譲先クラス. 設定値の再読み込みで寿命が変更された場合は置き換えます. storageLockで保護します. */
     private TotpStorage totpStorage = new TotpStorage();
 
     /**
@@ -43,10 +64,36 @@ public final class TotpCache {
 
     /**
      * TOTPキャッシュオブジェクトを取得します.
+     * レルムが束縛されている場合は、レルム毎のキャッシュオブジェクトを取得します。
      * @return TOTPキャッシュオブジェクト
      */
     public static TotpCache getInstance() {
-        return TOTP_CACHE;
+        Realm realm = Realm.current();
+        return realm == null ? TOTP_CACHE : realm.getComponent(TotpCache.class, TotpCache::new);
+    }
+
+    /**
+     * 設定値の再読み込み後に、キャッシュの寿命を現在の設定値で計算し直します.
+     * 寿命が変更された場合は、保持しているTOTP (認証済みフラグを含む) を引き継いだキャッシュに置き換えます。
+     * 引き継いだTOTPの寿命は、格納した時刻から新しい寿命で計算します。
+     * @return キャッシュを置き換えた場合はtrue
+     */
+    public boolean reconfigure() {
+        Lock lock = storageLock.writeLock();
+        lock.lock();
+        try {
+            TotpStorage previous = totpStorage;
+            long expireAfterWrite = TotpStorage.getExpireAfterWrite();
+            if (expireAfterWrite == previous.getExpireAfterWriteSec()) {
+                return false;
+            }
+            totpStorage = new TotpStorage(previous);
+            _logger.info("TOTPキャッシュの寿命を変更しました。 ({}秒 -> {}秒)",
+                    previous.getExpireAfterWriteSec(), expireAfterWrite);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -61,7 +108,56 @@ public final class TotpCache {
             throw new IllegalArgumentException(MessageFormat.format(
                     "TOTP生成に使用するタイムカウンタは正の整数値である必要があります。{0}", timeCounter));
         }
-        totpStorage.put(immutableUserId, timeCounter, totp);
+        withStorage(storage -> storage.put(toStorageKey(immutableUserId, totp.getDeviceId()), timeCounter, totp));
+    }
+
+    /**
+     * 指定されたユーザ固有IDに登録されている秘密鍵 (デバイス) の識別子を記録します.
+     * 記録したデバイスのTOTPは{@link #isAvailable(String, Totp)}、{@link #authenticate(String, Totp)}の
+     * 比較対象となります。
+     * @param immutableUserId ユーザ固有ID
+     * @param deviceIds デバイス識別子のコレクション
+     */
+    public void registerDevices(String immutableUserId, Collection<String> deviceIds) {
+        withStorage(storage -> {
+            storage.putDeviceIds(immutableUserId, deviceIds);
+            return null;
+        });
+    }
+
+    /**
+     * 指定されたユーザ固有IDのTOTP生成に使用する秘密鍵のバージョンを記録します.
+     * 前回記録したバージョンから鍵が変化した、または使用されなくなったデバイスのTOTPのみをキャッシュから破棄します。
+     * 鍵が変化していないデバイスのTOTP (認証済みフラグを含む) は保持します。
+     * @param immutableUserId ユーザ固有ID
+     * @param keyVersions デバイス識別子 (単一の秘密鍵の場合はnull) 毎の鍵バージョン識別子
+     * @return TOTPを破棄したデバイスが存在した場合はtrue
+     */
+    public boolean updateKeyVersions(String immutableUserId, Map<String, String> keyVersions) {
+
+        Map<String, String> current = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : keyVersions.entrySet()) {
+            current.put(toStorageKey(immutableUserId, entry.getKey()), entry.getValue());
+        }
+        return withStorage(storage -> {
+            synchronized (storage) {
+                Map<String, String> previous = storage.getKeyVersions(immutableUserId);
+                storage.putKeyVersions(immutableUserId, current);
+                if (previous == null) {
+                    return false;
+                }
+                boolean changed = false;
+                for (Map.Entry<String, String> entry : previous.entrySet()) {
+                    if (!entry.getValue().equals(current.get(entry.getKey()))) {
+                        storage.removeAll(entry.getKey());
+                        changed = true;
+                        _logger.debug("鍵バージョンが変化したTOTPを破棄しました。 キャッシュキー：{} 鍵バージョン：{}",
+                                entry.getKey(), entry.getValue());
+                    }
+                }
+                return changed;
+            }
+        });
     }
 
     /**
@@ -76,11 +172,37 @@ public final class TotpCache {
     public boolean isAvailable(String immutableUserId, Totp totp) {
         _logger.debug("TOTP有効判定 ユーザ固有ID：{}, 現在のタイムカウンタ：{}, TOTP：{}",
                 immutableUserId, totp.getTimeCounter(), totp.getTotp());
-        synchronized (totpStorage) {
-            List<String> totps = getAvailableTotps(immutableUserId, totp.getTimeCounter());
-            return totps.contains(totp.getTotp());
-        }
+        return withStorage(storage -> {
+            synchronized (storage) {
+                return findAvailableTotp(storage, immutableUserId, totp) != null;
+            }
+        });
+    }
 
+    /**
+     * 指定されたユーザ固有IDとTOTPオブジェクトで認証を行います.
+     * {@link #isAvailable(String, Totp)}と同じ条件で一致するTOTPを検索し、一致したTOTPを認証済みにします。
+     * 一致するTOTPの検索と認証済みフラグの設定は排他的に行うため、同一のTOTPで2回以上認証が成功することはありません。
+     * 複数デバイスが登録されている場合、認証済みとなるのは一致したデバイスのTOTPのみです。
+     * @param immutableUserId ユーザ固有ID
+     * @param totp 入力されたTOTPオブジェクト
+     * @return 一致する未使用のTOTPが存在した場合はtrue、存在しない場合はfalse
+     */
+    public boolean authenticate(String immutableUserId, Totp totp) {
+        _logger.debug("TOTP認証 ユーザ固有ID：{}, 現在のタイムカウンタ：{}, TOTP：{}",
+                immutableUserId, totp.getTimeCounter(), totp.getTotp());
+        return withStorage(storage -> {
+            synchronized (storage) {
+                Totp matched = findAvailableTotp(storage, immutableUserId, totp);
+                if (matched == null) {
+                    return false;
+                }
+                matched.isAuthenticated(true);
+                _logger.debug("認証済みにしたTOTP ユーザ固有ID：{} デバイス：{} タイムカウント：{}",
+                        immutableUserId, matched.getDeviceId(), matched.getTimeCounter());
+                return true;
+            }
+        });
     }
 
     /**
@@ -95,8 +217,20 @@ public final class TotpCache {
      *      1つでもキャッシュに存在しない場合はfalse、全てキャッシュに存在している場合はtrue
      */
     boolean exists(String immutableUserId, long timeCounter) {
-        _logger.debug("TOTP存在チェック ユーザ固有ID：{}, 現在のタイムカウンタ：{}", immutableUserId, timeCounter);
-        return totpStorage.contains(immutableUserId, timeCounter);
+        return exists(immutableUserId, null, timeCounter);
+    }
+
+    /**
+     * 指定されたユーザ固有ID、デバイス識別子、タイムカウントのTOTPがキャッシュに存在するかどうかを取得します.
+     * @param immutableUserId ユーザ固有ID
+     * @param deviceId デバイス識別子
+     * @param timeCounter タイムカウント
+     * @return キャッシュに存在する場合はtrue、存在しない場合はfalse
+     */
+    boolean exists(String immutableUserId, String deviceId, long timeCounter) {
+        _logger.debug("TOTP存在チェック ユーザ固有ID：{}, デバイス：{}, 現在のタイムカウンタ：{}",
+                immutableUserId, deviceId, timeCounter);
+        return withStorage(storage -> storage.contains(toStorageKey(immutableUserId, deviceId), timeCounter));
     }
 
     /**
@@ -112,11 +246,24 @@ public final class TotpCache {
      *      1つでもキャッシュに存在しない場合はfalse、全てキャッシュに存在している場合はtrue
      */
     boolean exists(String immutableUserId, long timeCounter, int timeCounterOffset) {
+        return exists(immutableUserId, null, timeCounter, timeCounterOffset);
+    }
+
+    /**
+     * 指定されたユーザ固有ID、デバイス識別子について、指定タイムカウントから
+     * 指定オフセット値を差し引いたタイムカウントまでのTOTPが全てキャッシュに存在するかどうかを取得します.
+     * @param immutableUserId ユーザ固有ID
+     * @param deviceId デバイス識別子
+     * @param timeCounter タイムカウント
+     * @param timeCounterOffset 有効なTOTPとして許容するタイムカウントオフセット値
+     * @return 1つでもキャッシュに存在しない場合はfalse、全てキャッシュに存在している場合はtrue
+     */
+    boolean exists(String immutableUserId, String deviceId, long timeCounter, int timeCounterOffset) {
 
-        _logger.debug("TOTP存在チェック ユーザ固有ID：{}, 現在のタイムカウンタ：{}, タイムカウントオフセット値：{}",
-                immutableUserId, timeCounter, timeCounterOffset);
+        _logger.debug("TOTP存在チェック ユーザ固有ID：{}, デバイス：{}, 現在のタイムカウンタ：{}, タイムカウントオフセット値：{}",
+                immutableUserId, deviceId, timeCounter, timeCounterOffset);
         for (int i = 0; i <= timeCounterOffset; i++) {
-            if (!exists(immutableUserId, timeCounter - i)) {
+            if (!exists(immutableUserId, deviceId, timeCounter - i)) {
                 return false;
             }
         }
@@ -130,22 +277,91 @@ public final class TotpCache {
      * @return TOTPオブジェクト
      */
     Totp get(String immutableUserId, long timeCounter) {
-        return totpStorage.get(immutableUserId, timeCounter);
+        return get(immutableUserId, null, timeCounter);
+    }
+
+    /**
+     * 指定されたユーザ固有ID、デバイス識別子、タイムカウントのTOTPオブジェクトを取得します.
+     * @param immutableUserId ユーザ固有ID
+     * @param deviceId デバイス識別子
+     * @param timeCounter タイムカウント
+     * @return TOTPオブジェクト
+     */
+    Totp get(String immutableUserId, String deviceId, long timeCounter) {
+        return withStorage(storage -> storage.get(toStorageKey(immutableUserId, deviceId), timeCounter));
+    }
+
+    /**
+     * ユーザ固有IDとデバイス識別子からキャッシュキーを生成します.
+     * @param immutableUserId ユーザ固有ID
+     * @param deviceId デバイス識別子
+     * @return キャッシュキー. デバイス識別子がnullの場合はユーザ固有ID
+     */
+    static String toStorageKey(String immutableUserId, String deviceId) {
+        if (deviceId == null) {
+            return immutableUserId;
+        }
+        return immutableUserId + DEVICE_KEY_SEPARATOR + deviceId;
+    }
+
+    /**
+     * 読み取りロックを取得し、委譲先に処理を実行させます.
+     * 処理の間、委譲先は置き換えられません。
+     * @param <T> 処理結果の型
+     * @param action 委譲先を受け取る処理
+     * @return 処理結果
+     */
+    private <T> T withStorage(Function<TotpStorage, T> action) {
+        Lock lock = storageLock.readLock();
+        lock.lock();
+        try {
+            return action.apply(totpStorage);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * 利用可能なTOTP文字列のコレクションを取得します.
+     * 指定されたユーザ固有IDの全デバイスの利用可能なTOTPから、指定されたTOTPと一致するものを検索します.
+     * @param storage 委譲先
+     * @param immutableUserId ユーザ固有ID
+     * @param totp TOTPオブジェクト
+     * @return 一致したTOTPオブジェクト. 一致するものが存在しない場合はnull
+     */
+    private Totp findAvailableTotp(TotpStorage storage, String immutableUserId, Totp totp) {
+
+        List<String> storageKeys = new ArrayList<String>();
+        storageKeys.add(immutableUserId);
+        Set<String> deviceIds = storage.getDeviceIds(immutableUserId);
+        if (deviceIds != null) {
+            for (String deviceId : deviceIds) {
+                storageKeys.add(toStorageKey(immutableUserId, deviceId));
+            }
+        }
+        for (String storageKey : storageKeys) {
+            for (Totp t : getAvailableTotps(storage, storageKey, totp.getTimeCounter())) {
+                if (Objects.equals(t.getTotp(), totp.getTotp())) {
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 利用可能なTOTPオブジェクトのコレクションを取得します.
      * 次の条件を全て満たすものを有効なTOTPとして取得します。
      * <ul>
      * <li>指定されたタイムカウンタのTOTP、及び任意の数(※)以前までのタイムカウンタのTOTP
      * (※) {@link com.sios.idp.shibboleth.common.AppConfig｝のallowedTimeCountOffset値に従います。</li>
      * <li>一度も認証に使用されていないTOTPであること</li>
      * </ul>
-     * @param immutableUserId ユーザ固有ID
+     * @param storage 委譲先
+     * @param storageKey キャッシュキー (ユーザ固有ID、またはユーザ固有IDとデバイス識別子の組)
      * @param timeCounter タイムカウンタ
      * @return 利用可能なTOTPオブジェクトのコレクション
      */
-    private List<String> getAvailableTotps(String immutableUserId, long timeCounter) {
+    private List<Totp> getAvailableTotps(TotpStorage storage, String storageKey, long timeCounter) {
 
         int cntOffset = AppConfig.getAllowedTimeCountOffset();
         _logger.debug(
@@ -156,26 +372,26 @@ public final class TotpCache {
                 "TOTP認証を許容するタイムカウントのオフセット設定値が負数のため、ゼロとして扱います。 ");
         }
         long allowedTimeCount = timeCounter - cntOffset;
-        Iterator<Long> timeCounters = totpStorage.getKeys(immutableUserId);
+        Iterator<Long> timeCounters = storage.getKeys(storageKey);
 
         if (timeCounters == null) {
-            return new ArrayList<String>();
+            return new ArrayList<Totp>();
         }
-        List<String> totps = new ArrayList<String>();
+        List<Totp> totps = new ArrayList<Totp>();
         while (timeCounters.hasNext()) {
             long time = timeCounters.next();
             if (allowedTimeCount <= time) {
-                Totp t = totpStorage.get(immutableUserId, time);
+                Totp t = storage.get(storageKey, time);
                 // 認証済みのものは除外
                 if (t != null && !t.isAuthenticated()) {
-                    totps.add(t.getTotp());
+                    totps.add(t);
                     _logger.debug("有効なTOTP ユーザ固有ID：{} タイムカウント：{} TOTP：{}",
-                            immutableUserId, t.getTimeCounter(), t.getTotp());
+                            storageKey, t.getTimeCounter(), t.getTotp());
                 }
             } else {
                 // 許容するタイムカウントよりも前のTOTPは無効なため削除
-                totpStorage.remove(immutableUserId, time);
-                _logger.debug("破棄されたTOTP ユーザ固有ID：{} タイムカウント：{}", immutableUserId, time);
+                storage.remove(storageKey, time);
+                _logger.debug("破棄されたTOTP ユーザ固有ID：{} タイムカウント：{}", storageKey, time);
             }
         }
         return totps;
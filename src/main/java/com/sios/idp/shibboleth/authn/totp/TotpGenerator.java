@@ -7,6 +7,7 @@ package com.sios.idp.shibboleth.authn.totp;
 
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.text.MessageFormat;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -23,6 +24,10 @@ public class TotpGenerator {
     /** MACアルゴリズムを表す定数です. */
     private static final String MAC_ALGORITHM = "HMACSHA1";
 
+    /** ワンタイムパスワード桁数毎の10のべき乗です. */
+    private static final int[] POWERS_OF_TEN = {
+        1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000 };
+
     /** Class logger. */
     private final Logger _logger = LoggerFactory.getLogger(this.getClass());
 
@@ -54,26 +59,59 @@ public class TotpGenerator {
      * @throws GeneralSecurityException TOTP生成に失敗した場合
      */
     public String generateTotp() throws GeneralSecurityException {
+        return generateTotps(1)[0];
+    }
 
-        // CHECKSTYLE:OFF マジックナンバー例外
+    /**
+     * タイムカウンタから遡って指定された件数分のワンタイムパスワードを一括で生成します.<br>
+     * 戻り値のi番目の要素はタイムカウンタ (コンストラクタで指定した値 - i) のワンタイムパスワードです。
+     * HMACインスタンスの取得と鍵の初期化は1回のみ行い、全てのタイムカウンタで使い回します。
+     * @param count 生成する件数
+     * @return ワンタイムパスワード文字列の配列
+     * @throws GeneralSecurityException TOTP生成に失敗した場合
+     */
+    public String[] generateTotps(int count) throws GeneralSecurityException {
 
-        byte[] value = ByteBuffer.allocate(8).putLong(_timeCounter).array();
+        if (count < 1) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "TOTPの生成件数は1以上の整数値である必要があります。 (生成件数：{0})", count));
+        }
 
         final Mac mac = Mac.getInstance(MAC_ALGORITHM);
         mac.init(new SecretKeySpec(_secretKeyByteArray, ""));
-        byte[] hash = mac.doFinal(value);
-        int offset = hash[hash.length - 1] & 0xf;
 
-        int binary = ((hash[offset] & 0x7f) << 24)
-                | ((hash[offset + 1] & 0xff) << 16)
-                | ((hash[offset + 2] & 0xff) << 8)
-                | (hash[offset + 3] & 0xff);
+        // CHECKSTYLE:OFF マジックナンバー例外
+
+        ByteBuffer value = ByteBuffer.allocate(8);
+        String[] totps = new String[count];
+        for (int i = 0; i < count; i++) {
+            value.putLong(0, _timeCounter - i);
+            byte[] hash = mac.doFinal(value.array());
+            int offset = hash[hash.length - 1] & 0xf;
+
+            int binary = ((hash[offset] & 0x7f) << 24)
+                    | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8)
+                    | (hash[offset + 3] & 0xff);
+
+            totps[i] = padOutput(binary % getModulus());
+        }
 
         // CHECKSTYLE:ON マジックナンバー例外
 
+        return totps;
+    }
+
+    /**
+     * ワンタイムパスワード桁数に対応する10のべき乗を取得します.
+     * @return 10のワンタイムパスワード桁数乗
+     */
+    private int getModulus() {
+        if (_codeLength < POWERS_OF_TEN.length) {
+            return POWERS_OF_TEN[_codeLength];
+        }
         final double powBase = 10d;
-        int otp = binary % (int) Math.pow(powBase, _codeLength);
-        return padOutput(otp);
+        return (int) Math.pow(powBase, _codeLength);
     }
 
     /**
@@ -82,10 +120,14 @@ public class TotpGenerator {
      * @return 左ゼロ埋めしたワンタイムパスワード文字列
      */
     private String padOutput(int value) {
-        String result = Integer.toString(value);
-        for (int i = result.length(); i < _codeLength; i++) {
-            result = "0" + result;
+        String digits = Integer.toString(value);
+        if (digits.length() >= _codeLength) {
+            return digits;
+        }
+        StringBuilder result = new StringBuilder(_codeLength);
+        for (int i = digits.length(); i < _codeLength; i++) {
+            result.append('0');
         }
-        return result;
+        return result.append(digits).toString();
     }
 }
@@ -6,13 +6,36 @@
 package com.sios.idp.shibboleth.authn.totp;
 
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
 import com.sios.idp.shibboleth.common.util.SecretKeyDecrypter;
+import com.sios.idp.shibboleth.common.util.SingleFlight;
+import com.sios.idp.shibboleth.datasource.dao.AsyncDao;
 import com.sios.idp.shibboleth.datasource.dao.Dao;
 import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
 import com.sios.idp.shibboleth.dto.SearchResult;
@@ -25,113 +48,453 @@ import com.sios.idp.shibboleth.exception.UnexpectedException;
 import com.sios.idp.shibboleth.exception.UserDuplicatedException;
 
 /**
- * {@link com.sios.idp.shibboleth.authn.totp.TotpProvider}の実装クラスです.
+ * {@link com.sios.idp.shibboleth.authn.totp.TotpProvider}、
+ * {@link com.sios.idp.shibboleth.authn.totp.AsyncTotpProvider}の実装クラスです.
+ * ユーザに複数の秘密鍵 (デバイス) が登録されている場合は、全てのデバイスのTOTPを生成してキャッシュします。
+ * 秘密鍵のローテーション中は新旧両方の鍵のTOTPを生成し、secretKeyCacheExpirationSecが正の場合、復号化済みの秘密鍵は{@link SecretKeyCache}にキャッシュします。<br>
+ * TOTPの生成は、ユーザ情報の取得、デバイス毎の秘密鍵の復号化とTOTP生成のステージで構成されます。
+ * DAOが{@link AsyncDao}を実装している場合、ユーザ情報の取得は呼び出し元のスレッドを占有しません。
+ * 復号化が必要な秘密鍵が複数ある場合、復号化は並行して実行されます。<br>
+ * 同じユーザ名のユーザ情報の取得、同じ暗号化秘密鍵の復号化が同時に要求された場合は、
+ * {@link SingleFlight}により1回の処理にまとめ、結果を共有します。<br>
+ * デバイス識別子は復号化した秘密鍵のHMACから生成するため、同じ秘密鍵を暗号化し直してもTOTPの認証済みフラグは保持されます。
+ * 暗号化秘密鍵毎に解決したデバイス識別子は保持し、以降は復号化せずに使用します。
  * @author SIOS Technology, Inc.
  */
-public class TotpProviderImpl implements TotpProvider {
+public class TotpProviderImpl implements TotpProvider, AsyncTotpProvider {
+
+    /** デバイス識別子として使用するハッシュ値のバイト数です. */
+    private static final int DEVICE_ID_BYTES = 8;
+
+    /** デバイス識別子の生成に使用するHMACのアルゴリズムです. */
+    private static final String DEVICE_ID_ALGORITHM = "HmacSHA256";
+
+    /** デバイス識別子の生成に使用するHMACの鍵. 識別子はプロセス内のキャッシュでのみ使用するため、起動毎に生成します. */
+    private static final byte[] DEVICE_ID_KEY = newDeviceIdKey();
+
+    /** 暗号化秘密鍵から解決済みのデバイス識別子を保持する件数の上限です. */
+    private static final long MAX_DEVICE_IDS = 100000L;
+
+    /** 暗号化秘密鍵 (レルムで修飾) 毎の、解決済みのデバイス識別子. */
+    private static final Cache<String, String> DEVICE_IDS =
+            CacheBuilder.newBuilder().maximumSize(MAX_DEVICE_IDS).build();
+
+    /** 呼び出し元のスレッドでステージを実行するExecutorです. */
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    /** ユーザ名毎に同時実行をまとめるユーザ情報の取得処理. */
+    private static final SingleFlight<String, SearchResult> USER_INFO_FLIGHTS = new SingleFlight<String, SearchResult>();
+
+    /** 暗号化秘密鍵毎に同時実行をまとめる復号化処理. */
+    private static final SingleFlight<String, byte[]> DECRYPT_FLIGHTS = new SingleFlight<String, byte[]>();
 
     /** Class logger. */
     private final Logger _logger = LoggerFactory.getLogger(this.getClass());
 
+    /** 秘密鍵の復号化を実行するExecutor. */
+    private final Executor decryptExecutor;
+
+    /**
+     * 共有のExecutorで秘密鍵を復号化するTOTPプロバイダを生成します.
+     */
+    public TotpProviderImpl() {
+        this(DecryptExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * 指定されたExecutorで秘密鍵を復号化するTOTPプロバイダを生成します.
+     * @param decryptExecutor 秘密鍵の復号化を実行するExecutor
+     */
+    TotpProviderImpl(Executor decryptExecutor) {
+        this.decryptExecutor = decryptExecutor;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Totp getTotp(String userName) throws TotpGenerationException {
+        return BlockingTotpProvider.await(getTotpAsync(userName), userName);
+    }
 
-        // タイムカウント取得
+    /** {@inheritDoc} */
+    @Override
+    public CompletionStage<Totp> getTotpAsync(String userName) {
+
+        // タイムカウント取得 (ユーザ情報の取得時間に影響されないよう要求時点で確定)
         TotpCounter counter = new TotpCounter(AppConfig.getTimeStepSec());
         long timeCounter = counter.getTimeCount();
 
-        // ユーザ固有ID取得
-        SearchResult userInfoMap = getUserInfo(userName);
-        String attributeName = AppConfig.getImmutableUserIdAttributeName();
-        String immutableUserId = userInfoMap.getValue(attributeName);
-        if (immutableUserId == null || immutableUserId.length() == 0) {
-            throw new InvalidUserDataException(MessageFormat.format(
-                    "ユーザ名 ：{0}のユーザ固有ID (データ属性名：{1})が取得できませんでした。", userName, attributeName));
+        return getUserInfoAsync(userName).thenCompose(Realm.bind(
+                userInfoMap -> generateTotp(userName, userInfoMap, timeCounter))).thenApply(Realm.bind(totp -> {
+                    ActiveUserRegistry.getInstance().record(userName);
+                    return totp;
+                }));
+    }
+
+    /**
+     * 実行中のユーザ情報の取得処理に合流した回数を取得します.
+     * @return ユーザ情報の取得をまとめた回数
+     */
+    public static long getCoalescedUserInfoCount() {
+        return USER_INFO_FLIGHTS.getCoalescedCount();
+    }
+
+    /**
+     * 実行中の秘密鍵の復号化処理に合流した回数を取得します.
+     * @return 秘密鍵の復号化をまとめた回数
+     */
+    public static long getCoalescedDecryptCount() {
+        return DECRYPT_FLIGHTS.getCoalescedCount();
+    }
+
+    /**
+     * ユーザ情報からデバイス毎のTOTPを生成します.
+     * デバイス識別子が未解決の秘密鍵は復号化して識別子を解決し、復号化した秘密鍵はTOTPの生成にも使用します。
+     * @param userName ユーザ名
+     * @param userInfoMap ユーザ情報
+     * @param timeCounter タイムカウント
+     * @return 1つ目のデバイスのTOTPオブジェクトのCompletionStage
+     */
+    private CompletableFuture<Totp> generateTotp(String userName, SearchResult userInfoMap, long timeCounter) {
+
+        String immutableUserId = null;
+        List<SecretKeyVersion> keyVersions = null;
+        try {
+            // ユーザ固有ID取得
+            String attributeName = AppConfig.getImmutableUserIdAttributeName();
+            immutableUserId = userInfoMap.getValue(attributeName);
+            if (immutableUserId == null || immutableUserId.length() == 0) {
+                throw new InvalidUserDataException(MessageFormat.format(
+                        "ユーザ名 ：{0}のユーザ固有ID (データ属性名：{1})が取得できませんでした。", userName, attributeName));
+            }
+
+            // 暗号化秘密鍵の取得 (デバイス毎に1つ、ローテーション中のデバイスは新旧2つ)
+            keyVersions = getUserSecretKeys(userInfoMap);
+        } catch (TotpGenerationException e) {
+            return failed(e);
         }
 
-        // TOTPキャッシュの存在チェック
-        TotpCache cache = TotpCache.getInstance();
-        if (cache.exists(immutableUserId, timeCounter, AppConfig.getAllowedTimeCountOffset())) {
-            // キャッシュ存在時は生成済みTOTPを返却
-            Totp cachedTotp = cache.get(immutableUserId, timeCounter);
-            _logger.debug("TOTPをキャッシュから取得しました。 (ユーザ固有ID：{}, タイムカウント：{}, TOTP：{})",
-                    immutableUserId, cachedTotp.getTimeCounter(), cachedTotp.getTotp());
-            return cachedTotp;
+        // デバイス識別子が未解決の秘密鍵の復号化ステージ (復号化が複数必要な場合のみ並行して実行)
+        int size = keyVersions.size();
+        int decryptCount = 0;
+        for (SecretKeyVersion keyVersion : keyVersions) {
+            if (DEVICE_IDS.getIfPresent(Realm.qualify(keyVersion.getEncryptedSecretKey())) == null) {
+                decryptCount++;
+            }
+        }
+        Executor executor = decryptCount > 1 ? decryptExecutor : DIRECT_EXECUTOR;
+        List<CompletableFuture<byte[]>> keyStages = new ArrayList<CompletableFuture<byte[]>>(size);
+        for (SecretKeyVersion keyVersion : keyVersions) {
+            String encryptedSecretKey = keyVersion.getEncryptedSecretKey();
+            keyStages.add(DEVICE_IDS.getIfPresent(Realm.qualify(encryptedSecretKey)) != null
+                    ? CompletableFuture.completedFuture(null) : decrypt(encryptedSecretKey, executor));
         }
 
-        // 暗号化秘密鍵の取得
-        String encryptedSecretKey = getUserSecretKey(userInfoMap);
+        String userId = immutableUserId;
+        List<SecretKeyVersion> versions = keyVersions;
+        return CompletableFuture.allOf(keyStages.toArray(new CompletableFuture<?>[size])).thenCompose(Realm.bind(v -> {
+            boolean deviceScoped = size > 1 || versions.get(0).isVersioned();
+            List<String> keyVersionIdList = new ArrayList<String>(size);
+            Map<String, String> keyVersionIds = new LinkedHashMap<String, String>();
+            byte[][] decryptedKeys = new byte[size][];
+            try {
+                for (int i = 0; i < size; i++) {
+                    decryptedKeys[i] = keyStages.get(i).join();
+                    String keyVersionId = toDeviceId(versions.get(i).getEncryptedSecretKey(), decryptedKeys[i]);
+                    keyVersionIdList.add(keyVersionId);
+                    keyVersionIds.put(deviceScoped ? keyVersionId : null, keyVersionId);
+                }
+            } catch (TotpGenerationException e) {
+                return failed(e);
+            }
+            return generateTotp(userId, versions, keyVersionIdList, keyVersionIds, decryptedKeys, timeCounter);
+        }));
+    }
 
-        // 秘密鍵の復号化
-        byte[] keyBytes = decryptSecretKey(encryptedSecretKey);
+    /**
+     * デバイス識別子を解決した秘密鍵からデバイス毎のTOTPを生成します.
+     * キャッシュに存在しないデバイスのTOTPのみ、秘密鍵を復号化して生成します。
+     * @param immutableUserId ユーザ固有ID
+     * @param keyVersions バージョン付きの暗号化秘密鍵のリスト
+     * @param keyVersionIdList 秘密鍵毎のデバイス識別子
+     * @param keyVersionIds TOTPキャッシュのデバイス識別子 (単一の秘密鍵の場合はnull) 毎の鍵バージョン識別子
+     * @param decryptedKeys デバイス識別子の解決時に復号化した秘密鍵. 復号化していない場合はnull
+     * @param timeCounter タイムカウント
+     * @return 1つ目のデバイスのTOTPオブジェクトのCompletionStage
+     */
+    private CompletableFuture<Totp> generateTotp(String immutableUserId, List<SecretKeyVersion> keyVersions,
+            List<String> keyVersionIdList, Map<String, String> keyVersionIds, byte[][] decryptedKeys,
+            long timeCounter) {
 
-        // TOTP生成
-        Totp totp =  generateTotp(
-                immutableUserId, AppConfig.getTotpLength(), timeCounter, keyBytes);
-        _logger.debug("TOTPを生成しました。 (ユーザ固有ID：{}, タイムカウント：{}, TOTP：{})",
-                immutableUserId, totp.getTimeCounter(), totp.getTotp());
-        cache.add(immutableUserId, totp);
+        // 鍵バージョンが変化したデバイスのTOTP、復号化済み秘密鍵のみを破棄
+        TotpCache cache = TotpCache.getInstance();
+        if (cache.updateKeyVersions(immutableUserId, keyVersionIds)) {
+            _logger.info("秘密鍵のバージョンが変更されたため、ユーザ固有ID：{}のTOTPキャッシュを更新します。", immutableUserId);
+        }
+        SecretKeyCache keyCache = SecretKeyCache.getInstance();
+        keyCache.retain(immutableUserId, keyVersionIds.values());
 
-        // 現在のタイムカウント以前のTOTPをキャッシュ
-        cachePreviousTotp(immutableUserId, timeCounter, keyBytes);
+        int cntOffset = AppConfig.getAllowedTimeCountOffset();
+        if (cntOffset < 0) {
+            cntOffset = 0;
+        }
+
+        // TOTPキャッシュ、復号化済み秘密鍵キャッシュの存在チェック
+        boolean deviceScoped = !keyVersionIds.containsKey(null);
+        int size = keyVersions.size();
+        Totp[] cachedTotps = new Totp[size];
+        byte[][] cachedKeys = new byte[size][];
+        int decryptCount = 0;
+        for (int i = 0; i < size; i++) {
+            String deviceId = deviceScoped ? keyVersionIdList.get(i) : null;
+            if (cache.exists(immutableUserId, deviceId, timeCounter, cntOffset)) {
+                // キャッシュ存在時は生成済みTOTPを使用
+                cachedTotps[i] = cache.get(immutableUserId, deviceId, timeCounter);
+                _logger.debug("TOTPをキャッシュから取得しました。 (ユーザ固有ID：{}, デバイス：{}, タイムカウント：{}, TOTP：{})",
+                        immutableUserId, deviceId, cachedTotps[i].getTimeCounter(), cachedTotps[i].getTotp());
+            } else if (decryptedKeys[i] != null) {
+                cachedKeys[i] = decryptedKeys[i];
+                keyCache.put(immutableUserId, keyVersionIdList.get(i), decryptedKeys[i]);
+            } else {
+                cachedKeys[i] = keyCache.get(immutableUserId, keyVersionIdList.get(i));
+                if (cachedKeys[i] == null) {
+                    decryptCount++;
+                }
+            }
+        }
 
-        return totp;
+        // デバイス毎の秘密鍵の復号化ステージ (復号化が複数必要な場合のみ並行して実行)
+        Executor executor = decryptCount > 1 ? decryptExecutor : DIRECT_EXECUTOR;
+        List<CompletableFuture<byte[]>> keyStages = new ArrayList<CompletableFuture<byte[]>>(size);
+        for (int i = 0; i < size; i++) {
+            if (cachedTotps[i] != null || cachedKeys[i] != null) {
+                keyStages.add(CompletableFuture.completedFuture(cachedKeys[i]));
+                continue;
+            }
+            String userId = immutableUserId;
+            String keyVersionId = keyVersionIdList.get(i);
+            String encryptedSecretKey = keyVersions.get(i).getEncryptedSecretKey();
+            keyStages.add(decrypt(encryptedSecretKey, executor).thenApply(keyBytes -> {
+                keyCache.put(userId, keyVersionId, keyBytes);
+                return keyBytes;
+            }));
+        }
+
+        // 全ての秘密鍵が揃った後、現在のタイムカウントから許容オフセット分のTOTPをデバイスの順に一括生成してキャッシュ
+        String userId = immutableUserId;
+        List<String> deviceIdList = keyVersionIdList;
+        Set<String> deviceIds = keyVersionIds.keySet();
+        int offset = cntOffset;
+        return CompletableFuture.allOf(keyStages.toArray(new CompletableFuture<?>[size])).thenCompose(Realm.bind(v -> supply(() -> {
+            Totp totp = cachedTotps[0];
+            for (int i = 0; i < size; i++) {
+                if (cachedTotps[i] == null) {
+                    String deviceId = deviceScoped ? deviceIdList.get(i) : null;
+                    Totp deviceTotp = cacheTotpWindow(userId, deviceId, timeCounter, offset, keyStages.get(i).join());
+                    if (i == 0) {
+                        totp = deviceTotp;
+                    }
+                }
+            }
+            if (deviceScoped) {
+                cache.registerDevices(userId, deviceIds);
+            }
+            return totp;
+        }, DIRECT_EXECUTOR)));
     }
 
     /**
-     * ユーザの秘密鍵を取得します.
+     * ユーザの秘密鍵のうち、現在受け入れる秘密鍵を取得します.
+     * 複数のデバイスが登録されている場合、ローテーション中の場合、秘密鍵の属性は複数値となります。
+     * ローテーション中の新旧の鍵の選択は{@link SecretKeyVersion#selectAcceptable(List, long, long)}に従います。
      * @param userInfoMap ユーザ情報
-     * @return 暗号化された秘密鍵
-     * @throws TotpGenerationException ユーザ情報が複数件存在した場合、ユーザ情報の取得に失敗、
-     *   及び取得結果が0件の場合、秘密鍵が取得できない場合
+     * @return バージョン付きの暗号化秘密鍵のリスト
+     * @throws TotpGenerationException 秘密鍵が1つも取得できない場合、秘密鍵のバージョン情報が不正な場合
      */
-    private String getUserSecretKey(SearchResult userInfoMap) throws TotpGenerationException {
+    private List<SecretKeyVersion> getUserSecretKeys(SearchResult userInfoMap) throws TotpGenerationException {
 
         _logger.debug("秘密鍵の取得を開始します。");
-        String secretKey = userInfoMap.getValue(AppConfig.getSecretKeyAttributeName());
-        if (secretKey == null || secretKey.isEmpty()) {
+        List<SecretKeyVersion> secretKeys = new ArrayList<SecretKeyVersion>();
+        for (String secretKey : userInfoMap.getValues(AppConfig.getSecretKeyAttributeName())) {
+            if (secretKey != null && !secretKey.isEmpty()) {
+                secretKeys.add(SecretKeyVersion.parse(secretKey));
+            }
+        }
+        Long overlapSec = AppConfig.getSecretKeyRotationOverlapSec();
+        secretKeys = SecretKeyVersion.selectAcceptable(
+                secretKeys, System.currentTimeMillis() / 1000L, overlapSec == null ? 0L : overlapSec);
+        if (secretKeys.isEmpty()) {
             throw new TotpGenerationException("秘密鍵の取得に失敗しました。");
         }
-        _logger.debug("秘密鍵の取得に成功しました。");
-        return secretKey;
+        _logger.debug("秘密鍵の取得に成功しました。 (秘密鍵数：{})", secretKeys.size());
+        return secretKeys;
+    }
+
+    /**
+     * デバイス識別子の生成に使用するHMACの鍵を生成します.
+     * @return HMACの鍵
+     */
+    private static byte[] newDeviceIdKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * 暗号化秘密鍵を復号化し、デバイス識別子を解決します.
+     * 同じ暗号化秘密鍵の復号化が同時に要求された場合は、1回の処理にまとめます。
+     * @param encryptedSecretKey 暗号化秘密鍵
+     * @param executor 復号化を実行するExecutor
+     * @return 復号化した秘密鍵のCompletableFuture
+     */
+    private CompletableFuture<byte[]> decrypt(String encryptedSecretKey, Executor executor) {
+
+        String key = Realm.qualify(encryptedSecretKey);
+        return DECRYPT_FLIGHTS.execute(key, () -> supply(() -> {
+            byte[] keyBytes = decryptSecretKey(encryptedSecretKey);
+            DEVICE_IDS.put(key, toDeviceId(keyBytes));
+            return keyBytes;
+        }, executor));
+    }
+
+    /**
+     * 暗号化秘密鍵のデバイス識別子を取得します.
+     * 解決済みの場合はその識別子、それ以外は復号化した秘密鍵から生成した識別子を返却します。
+     * @param encryptedSecretKey 暗号化秘密鍵
+     * @param keyBytes 復号化した秘密鍵. 復号化していない場合はnull
+     * @return デバイス識別子
+     * @throws TotpGenerationException 解決済みでなく、秘密鍵も復号化していない場合、識別子の生成に失敗した場合
+     */
+    private String toDeviceId(String encryptedSecretKey, byte[] keyBytes) throws TotpGenerationException {
+
+        String deviceId = DEVICE_IDS.getIfPresent(Realm.qualify(encryptedSecretKey));
+        if (deviceId != null) {
+            return deviceId;
+        }
+        if (keyBytes == null) {
+            throw new TotpGenerationException("デバイス識別子の生成に失敗しました。秘密鍵が復号化されていません。");
+        }
+        return toDeviceId(keyBytes);
+    }
+
+    /**
+     * 復号化した秘密鍵からデバイス識別子を生成します.
+     * 秘密鍵のHMAC-SHA256 (鍵は起動毎に生成) の先頭8バイトを16進数文字列にしたものをデバイス識別子とします。
+     * 暗号化秘密鍵から生成しないため、同じ秘密鍵を暗号化し直した場合も同じ識別子となります。
+     * @param keyBytes 復号化した秘密鍵
+     * @return デバイス識別子
+     * @throws TotpGenerationException HMACの計算に失敗した場合
+     */
+    private String toDeviceId(byte[] keyBytes) throws TotpGenerationException {
+
+        byte[] hash = null;
+        try {
+            Mac mac = Mac.getInstance(DEVICE_ID_ALGORITHM);
+            mac.init(new SecretKeySpec(DEVICE_ID_KEY, DEVICE_ID_ALGORITHM));
+            hash = mac.doFinal(keyBytes);
+        } catch (GeneralSecurityException e) {
+            handleException(e, "デバイス識別子の生成に失敗しました。{0}アルゴリズムが利用できません。", DEVICE_ID_ALGORITHM);
+        }
+        StringBuilder sb = new StringBuilder(DEVICE_ID_BYTES * 2);
+        for (int i = 0; i < DEVICE_ID_BYTES; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
     }
 
     /**
      * ユーザ名を検索条件にユーザ情報を取得します.
+     * 同じユーザ名のユーザ情報を取得中の場合は、その結果を共有します。
+     * {@link UserNameFilter}によりディレクトリに存在しないことが確定したユーザ名は、検索せずに失敗とします。
      * @param userName ユーザ名
-     * @return ユーザ情報
-     * @throws TotpGenerationException ユーザ情報が不正な場合
+     * @return ユーザ情報のCompletionStage
      */
-    private SearchResult getUserInfo(String userName) throws TotpGenerationException {
+    private CompletableFuture<SearchResult> getUserInfoAsync(String userName) {
+        if (!UserNameFilter.getInstance().mightContain(userName)) {
+            String msg = MessageFormat.format("ユーザ名：{0}のユーザ情報が取得できませんでした。", userName);
+            _logger.error(msg);
+            return failed(new TotpGenerationException(msg));
+        }
+        return USER_INFO_FLIGHTS.execute(Realm.qualify(userName), () -> lookupUserInfo(userName));
+    }
+
+    /**
+     * DAOからユーザ情報を取得します.
+     * DAOが{@link AsyncDao}を実装している場合は非同期に取得します。
+     * ユーザ情報のキャッシュ、ディレクトリの障害時の遮断はDAOのデコレータ (daoDecorators) で行います。
+     * @param userName ユーザ名
+     * @return ユーザ情報のCompletionStage
+     */
+    private CompletableFuture<SearchResult> lookupUserInfo(String userName) {
 
         _logger.info("ユーザ名：{}のユーザ情報の取得を開始します。", userName);
         Dao dao = null;
         try {
             dao = DaoFactory.getInstance().createInstance();
         } catch (DaoInstantiationException e) {
-            handleException(e, "DAOインタフェース {0} の実装クラスのインスタンス生成に失敗しました", Dao.class.getName());
+            return failed(exception(e, "DAOインタフェース {0} の実装クラスのインスタンス生成に失敗しました", Dao.class.getName()));
         }
-        SearchResult result = null;
-        try {
-            result = dao.getUser(userName);
-        } catch (UserDuplicatedException e) {
-            handleException(e, "ユーザ名：{0}のユーザ情報が複数件存在します。", userName);
-        } catch (DataAccessException e) {
-            handleException(e, "ユーザ名：{0}のユーザ情報取得時にデータアクセスエラーが発生しました。", userName);
-        } catch (UnexpectedException e) {
-            handleException(e, "ユーザ名：{0}のユーザ情報取得時に予期せぬエラーが発生しました。", userName);
+
+        String localUserName = RealmRegistry.toLocalUserName(userName);
+        CompletableFuture<SearchResult> stage;
+        if (dao instanceof AsyncDao) {
+            stage = ((AsyncDao) dao).getUserAsync(localUserName);
+        } else {
+            stage = new CompletableFuture<SearchResult>();
+            try {
+                stage.complete(dao.getUser(localUserName));
+            } catch (Exception e) {
+                stage.completeExceptionally(e);
+            }
         }
 
+        return stage.handle(Realm.bind((SearchResult result, Throwable e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause != null) {
+                throw new CompletionException(toTotpGenerationException(cause, userName));
+            }
+            if (result == null) {
+                UserNameFilter.getInstance().recordFalsePositive();
+            }
+            return checkUserInfo(result, userName);
+        }));
+    }
+
+    /**
+     * 取得したユーザ情報が存在することを確認します.
+     * @param result ユーザ情報
+     * @param userName ユーザ名
+     * @return ユーザ情報
+     * @throws CompletionException ユーザ情報が存在しない場合 ({@link TotpGenerationException}を保持します)
+     */
+    private SearchResult checkUserInfo(SearchResult result, String userName) {
+
         if (result == null) {
             String msg = MessageFormat.format("ユーザ名：{0}のユーザ情報が取得できませんでした。", userName);
             _logger.error(msg);
-            throw new TotpGenerationException(msg);
+            throw new CompletionException(new TotpGenerationException(msg));
         }
         _logger.info("ユーザ名：{}のユーザ情報の取得に成功しました。", userName);
         return result;
     }
 
+    /**
+     * ユーザ情報の取得時に発生した例外を{@link TotpGenerationException}に変換します.
+     * @param e 例外オブジェクト
+     * @param userName ユーザ名
+     * @return TOTP生成例外
+     */
+    private Throwable toTotpGenerationException(Throwable e, String userName) {
+
+        if (e instanceof UserDuplicatedException) {
+            return exception(e, "ユーザ名：{0}のユーザ情報が複数件存在します。", userName);
+        } else if (e instanceof DataAccessException) {
+            return exception(e, "ユーザ名：{0}のユーザ情報取得時にデータアクセスエラーが発生しました。", userName);
+        } else if (e instanceof UnexpectedException) {
+            return exception(e, "ユーザ名：{0}のユーザ情報取得時に予期せぬエラーが発生しました。", userName);
+        }
+        return e;
+    }
+
     /**
      * 秘密鍵を復号化します.<br/>
      * 以下の手順で復号化します。
@@ -164,52 +527,45 @@ public class TotpProviderImpl implements TotpProvider {
     }
 
     /**
-     * TOTPを生成します.
+     * 指定タイムカウントから任意オフセット値(※)を差し引いたタイムカウントまでのTOTPを一括生成し、キャッシュします.
+     * 既にキャッシュされているタイムカウントのTOTPはキャッシュのものを残します。<br/>
+     * (※)  {@link com.sios.idp.shibboleth.common.AppConfig｝のallowedTimeCountOffset値に従います。
      * @param immutableUserId ユーザ固有ID
-     * @param totpLength TOTP桁数
-     * @param timeCounter タイムカウンタ
-     * @param keyBytes TOTP生成に使用する復号化済み秘密鍵
-     * @return TOTPオブジェクト
+     * @param deviceId デバイス識別子
+     * @param timeCounter タイムカウント
+     * @param cntOffset 許容するタイムカウントのオフセット値
+     * @param secretKey 秘密鍵
+     * @return 指定タイムカウントのTOTPオブジェクト
      * @throws TotpGenerationException TOTP生成に失敗した場合
      */
-    private Totp generateTotp(
-            String immutableUserId, int totpLength, long timeCounter, byte[] keyBytes)
-            throws TotpGenerationException {
+    private Totp cacheTotpWindow(String immutableUserId, String deviceId, long timeCounter, int cntOffset,
+            byte[] secretKey) throws TotpGenerationException {
 
-        TotpGenerator totpGenerator = new TotpGenerator(keyBytes, timeCounter, totpLength);
-        String totpValue = null;
+        TotpGenerator totpGenerator = new TotpGenerator(secretKey, timeCounter, AppConfig.getTotpLength());
+        String[] totpValues = null;
         try {
-            totpValue = totpGenerator.generateTotp();
+            totpValues = totpGenerator.generateTotps(cntOffset + 1);
         } catch (GeneralSecurityException e) {
             _logger.error("TOTPの生成に失敗しました。", e);
             throw new TotpGenerationException(e);
         }
-        Totp totp = new Totp(immutableUserId, timeCounter, totpValue);
-        return totp;
-    }
 
-    /**
-     * 指定タイムカウントから任意オフセット値(※)を差し引いたタイムカウントまでのTOTPをキャッシュします.
-     * 既にキャッシュされている場合は何もしません。<br/>
-     * (※)  {@link com.sios.idp.shibboleth.common.AppConfig｝のallowedTimeCountOffset値に従います。
-     * @param immutableUserId ユーザ固有ID
-     * @param timeCounter タイムカウント
-     * @param secretKey 秘密鍵
-     * @throws TotpGenerationException TOTP生成に失敗した場合
-     */
-    private void cachePreviousTotp(String immutableUserId, long timeCounter, byte[] secretKey)
-            throws TotpGenerationException {
-
-        int cntOffset = AppConfig.getAllowedTimeCountOffset();
         TotpCache cache = TotpCache.getInstance();
+        Totp totp = null;
         for (int i = 0; i <= cntOffset; i++) {
             long timeCnt = timeCounter - i;
-            if (!cache.exists(immutableUserId, timeCnt)) {
-               Totp totp = generateTotp(
-                       immutableUserId, AppConfig.getTotpLength(), timeCnt, secretKey);
-               cache.add(immutableUserId, totp);
+            Totp generated = new Totp(immutableUserId, timeCnt, totpValues[i], deviceId);
+            if (!cache.exists(immutableUserId, deviceId, timeCnt)) {
+                cache.add(immutableUserId, generated);
+                _logger.debug("TOTPを生成しました。 (ユーザ固有ID：{}, デバイス：{}, タイムカウント：{}, TOTP：{})",
+                        immutableUserId, deviceId, timeCnt, generated.getTotp());
+            }
+            if (i == 0) {
+                totp = generated;
             }
         }
+        Totp cached = cache.get(immutableUserId, deviceId, timeCounter);
+        return cached != null ? cached : totp;
     }
 
     /**
@@ -221,8 +577,82 @@ public class TotpProviderImpl implements TotpProvider {
      */
     private void handleException(Exception e, String message, Object... messageArgs)
             throws TotpGenerationException {
+        throw exception(e, message, messageArgs);
+    }
+
+    /**
+     * エラーログを出力し、例外を{@link TotpGenerationException}でラップします.
+     * @param e 例外オブジェクト
+     * @param message メッセージ
+     * @param messageArgs メッセージ埋め込み文字列
+     * @return TOTP生成例外
+     */
+    private TotpGenerationException exception(Throwable e, String message, Object... messageArgs) {
         String msg = MessageFormat.format(message, messageArgs);
         _logger.error(msg);
-        throw new TotpGenerationException(msg, e);
+        return new TotpGenerationException(msg, e);
+    }
+
+    /**
+     * 例外で異常完了したCompletableFutureを生成します.
+     * @param <T> 結果の型
+     * @param e 例外オブジェクト
+     * @return 異常完了したCompletableFuture
+     */
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * ステージを指定されたExecutorで実行します. 呼び出し元のレルムを引き継ぎます.
+     * @param <T> 結果の型
+     * @param stage ステージ
+     * @param executor Executor
+     * @return ステージの結果のCompletableFuture
+     */
+    private static <T> CompletableFuture<T> supply(Stage<T> stage, Executor executor) {
+        return CompletableFuture.supplyAsync(Realm.bind(() -> {
+            try {
+                return stage.call();
+            } catch (TotpGenerationException e) {
+                throw new CompletionException(e);
+            }
+        }), executor);
+    }
+
+    /**
+     * TOTP生成の1ステージを表します.
+     * @param <T> 結果の型
+     */
+    @FunctionalInterface
+    private interface Stage<T> {
+
+        /**
+         * ステージを実行します.
+         * @return 結果
+         * @throws TotpGenerationException TOTP生成に失敗した場合
+         */
+        T call() throws TotpGenerationException;
+    }
+
+    /**
+     * 秘密鍵の復号化を並行して実行する共有のExecutorを保持します.
+     * 初回利用時に生成されます。
+     */
+    private static final class DecryptExecutorHolder {
+
+        /** 秘密鍵の復号化を実行するExecutor. */
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "totp-decrypt-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
     }
 }
@@ -5,28 +5,75 @@
  */
 package com.sios.idp.shibboleth.authn.totp;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.sios.idp.shibboleth.common.AppConfig;
 
 /**
- * メモリキャッシュのラッパークラスです. メモリキャッシュに対する操作を行います
+ * メモリキャッシュのラッパークラスです. メモリキャッシュに対する操作を行います<br>
+ * エントリは格納した時刻を保持し、格納から寿命が経過したエントリは、キャッシュを引き継いだ後も存在しないものとして扱います。
  * @author SIOS Technology, Inc.
  */
 public class TotpStorage {
     /** キャッシュ. */
-    private Cache<String, Map<Long, Totp>> cache;
+    private Cache<String, Entry<Map<Long, Totp>>> cache;
+
+    /** ユーザID毎のデバイス識別子のキャッシュ. */
+    private Cache<String, Entry<Set<String>>> deviceIdCache;
+
+    /** ユーザID毎の &lt;キャッシュキー, 鍵バージョン識別子&gt; のキャッシュ. */
+    private Cache<String, Entry<Map<String, String>>> keyVersionCache;
+
+    /** キャッシュの寿命 (秒). 生成時の設定値から1回だけ計算します. */
+    private final long expireAfterWrite;
+
+    /** 格納した時刻を計測する時計. */
+    private final Ticker ticker;
 
     /**
      * コンストラクタ.
      */
     public TotpStorage() {
-        cache = CacheBuilder.newBuilder().expireAfterWrite(getExpireAfterWrite(), TimeUnit.SECONDS).build();
+        this(Ticker.systemTicker());
+    }
+
+    /**
+     * 指定された時計で寿命を計測するコンストラクタです.
+     * @param ticker 時計
+     */
+    TotpStorage(Ticker ticker) {
+        this.ticker = ticker;
+        expireAfterWrite = getExpireAfterWrite();
+        cache = CacheBuilder.newBuilder().ticker(ticker).expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS).build();
+        deviceIdCache = CacheBuilder.newBuilder().ticker(ticker)
+                .expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS).build();
+        keyVersionCache = CacheBuilder.newBuilder().ticker(ticker)
+                .expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * 現在の設定値の寿命で、指定されたキャッシュの内容を引き継ぐインスタンスを生成します.
+     * 設定値の再読み込みでキャッシュの寿命が変更された場合に使用します。
+     * 引き継いだエントリの寿命は、元のキャッシュに格納した時刻から新しい寿命で計算します。
+     * 引き継ぐ間に元のキャッシュが更新されないことは、呼び出し元で保証してください。
+     * @param previous 引き継ぐキャッシュ
+     */
+    public TotpStorage(TotpStorage previous) {
+        this(previous.ticker);
+        inherit(previous.cache, cache);
+        inherit(previous.deviceIdCache, deviceIdCache);
+        inherit(previous.keyVersionCache, keyVersionCache);
     }
 
     /**
@@ -36,7 +83,7 @@ public class TotpStorage {
      * @return True:キャッシュTotpが存在する/False:キャッシュにTotpが存在しない
      */
     public boolean contains(String immutableUserId, long timeCounter) {
-        Map<Long, Totp> map = cache.getIfPresent(immutableUserId);
+        Map<Long, Totp> map = getIfPresent(cache, immutableUserId);
         if (map != null) {
             if (map.containsKey(timeCounter)) { return true; }
         }
@@ -52,7 +99,7 @@ public class TotpStorage {
      */
     public Totp put(String immutableUserId, Long timeCounter, Totp totp) {
         synchronized (cache) {
-            Map<Long, Totp> map = cache.getIfPresent(immutableUserId);
+            Map<Long, Totp> map = getIfPresent(cache, immutableUserId);
             if (map != null) {
                 if (!map.containsKey(timeCounter)) {
                     map.put(timeCounter, totp);
@@ -60,7 +107,7 @@ public class TotpStorage {
             } else {
                 map = new ConcurrentHashMap<Long, Totp>();
                 map.put(timeCounter, totp);
-                cache.put(immutableUserId, map);
+                put(cache, immutableUserId, map);
             }
         }
         return totp;
@@ -73,7 +120,7 @@ public class TotpStorage {
      * @return ワンタイムパスワード
      */
     public Totp get(String immutableUserId, Long timeCounter) {
-        Map<Long, Totp> map = cache.getIfPresent(immutableUserId);
+        Map<Long, Totp> map = getIfPresent(cache, immutableUserId);
         if (map != null) { return map.get(timeCounter); }
         return null;
     }
@@ -84,7 +131,7 @@ public class TotpStorage {
      * @return タイムカウンタのイテレータ
      */
     public Iterator<Long> getKeys(final String immutableUserId) {
-        Map<Long, Totp> map = cache.getIfPresent(immutableUserId);
+        Map<Long, Totp> map = getIfPresent(cache, immutableUserId);
         if (map != null) { return map.keySet().iterator(); }
         return null;
     }
@@ -96,11 +143,66 @@ public class TotpStorage {
      * @return ワンタイムパスワード
      */
     public Totp remove(String immutableUserId, Long timeCounter) {
-        Map<Long, Totp> map = cache.getIfPresent(immutableUserId);
+        Map<Long, Totp> map = getIfPresent(cache, immutableUserId);
         if (map != null) { return map.remove(timeCounter); }
         return null;
     }
 
+    /**
+     * 指定されたキャッシュキーのワンタイムパスワードを全てキャッシュから削除します.
+     * @param immutableUserId ユーザID (キャッシュキー)
+     */
+    public void removeAll(String immutableUserId) {
+        cache.invalidate(immutableUserId);
+    }
+
+    /**
+     * 指定されたユーザIDをキーにデバイス識別子をキャッシュに格納します.
+     * 既に格納されている場合は置き換えます。
+     * @param immutableUserId ユーザID
+     * @param deviceIds デバイス識別子のコレクション
+     */
+    public void putDeviceIds(String immutableUserId, Collection<String> deviceIds) {
+        put(deviceIdCache, immutableUserId, Collections.unmodifiableSet(new LinkedHashSet<String>(deviceIds)));
+    }
+
+    /**
+     * 指定されたユーザIDをキーにキャッシュからデバイス識別子を取得します.
+     * @param immutableUserId ユーザID
+     * @return デバイス識別子のセット. キャッシュに存在しない場合はnull
+     */
+    public Set<String> getDeviceIds(String immutableUserId) {
+        return getIfPresent(deviceIdCache, immutableUserId);
+    }
+
+    /**
+     * 指定されたユーザIDをキーにキャッシュキー毎の鍵バージョン識別子をキャッシュに格納します.
+     * 既に格納されている場合は置き換えます。
+     * @param immutableUserId ユーザID
+     * @param keyVersions キャッシュキー毎の鍵バージョン識別子
+     */
+    public void putKeyVersions(String immutableUserId, Map<String, String> keyVersions) {
+        put(keyVersionCache, immutableUserId,
+                Collections.unmodifiableMap(new LinkedHashMap<String, String>(keyVersions)));
+    }
+
+    /**
+     * 指定されたユーザIDをキーにキャッシュからキャッシュキー毎の鍵バージョン識別子を取得します.
+     * @param immutableUserId ユーザID
+     * @return キャッシュキー毎の鍵バージョン識別子. キャッシュに存在しない場合はnull
+     */
+    public Map<String, String> getKeyVersions(String immutableUserId) {
+        return getIfPresent(keyVersionCache, immutableUserId);
+    }
+
+    /**
+     * キャッシュの寿命を取得します.
+     * @return キャッシュの寿命 (秒)
+     */
+    public long getExpireAfterWriteSec() {
+        return expireAfterWrite;
+    }
+
     /**
      * デバック用文字列化メソッド.
      * @return キャッシュを文字列化したもの
@@ -109,7 +211,7 @@ public class TotpStorage {
         StringBuilder sb = new StringBuilder();
         for (Iterator<String> iter = cache.asMap().keySet().iterator(); iter.hasNext();) {
             String userId = iter.next();
-            Map<Long, Totp> map = cache.getIfPresent(userId);
+            Map<Long, Totp> map = getIfPresent(cache, userId);
             if (map != null) {
                 for (Totp t : map.values()) {
                     sb.append("UId=").append(userId).append(" Tc = ").append(t.getTimeCounter()).append(" Totp=")
@@ -121,10 +223,63 @@ public class TotpStorage {
     }
 
     /**
-     * キャッシュの寿命を計算します.
+     * 格納した時刻とともに値をキャッシュに格納します.
+     * @param <V> 値の型
+     * @param target 格納先のキャッシュ
+     * @param key キー
+     * @param value 値
+     */
+    private <V> void put(Cache<String, Entry<V>> target, String key, V value) {
+        target.put(key, new Entry<V>(value, ticker.read()));
+    }
+
+    /**
+     * キャッシュから値を取得します. 格納から寿命が経過している場合は破棄します.
+     * @param <V> 値の型
+     * @param source 取得元のキャッシュ
+     * @param key キー
+     * @return 値. 存在しない場合、寿命が経過している場合はnull
+     */
+    private <V> V getIfPresent(Cache<String, Entry<V>> source, String key) {
+        Entry<V> entry = source.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry)) {
+            source.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 寿命が経過していないエントリを、格納した時刻を保ったまま引き継ぎます.
+     * @param <V> 値の型
+     * @param source 引き継ぐキャッシュ
+     * @param target 引き継ぎ先のキャッシュ
+     */
+    private <V> void inherit(Cache<String, Entry<V>> source, Cache<String, Entry<V>> target) {
+        for (Map.Entry<String, Entry<V>> entry : source.asMap().entrySet()) {
+            if (!isExpired(entry.getValue())) {
+                target.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * エントリの格納から寿命が経過しているかを判定します.
+     * @param entry エントリ
+     * @return 寿命が経過している場合はtrue
+     */
+    private boolean isExpired(Entry<?> entry) {
+        return ticker.read() - entry.writeNanos >= TimeUnit.SECONDS.toNanos(expireAfterWrite);
+    }
+
+    /**
+     * 現在の設定値からキャッシュの寿命を計算します.
      * @return キャッシュの寿命
      */
-    private Long getExpireAfterWrite() {
+    static Long getExpireAfterWrite() {
         Integer allowedTimeCountOffset = AppConfig.getAllowedTimeCountOffset();
         if (allowedTimeCountOffset < 0) {
             allowedTimeCountOffset = 0;
@@ -133,4 +288,27 @@ public class TotpStorage {
                 + AppConfig.getTotpCacheExpirationBufferSec() < 0) { return 0L; }
         return AppConfig.getTimeStepSec() * (allowedTimeCountOffset + 1) + AppConfig.getTotpCacheExpirationBufferSec();
     }
+
+    /**
+     * 値と格納した時刻の組です.
+     * @param <V> 値の型
+     */
+    private static final class Entry<V> {
+
+        /** 値. */
+        private final V value;
+
+        /** 格納した時刻 (ナノ秒). */
+        private final long writeNanos;
+
+        /**
+         * コンストラクタです.
+         * @param value 値
+         * @param writeNanos 格納した時刻 (ナノ秒)
+         */
+        private Entry(V value, long writeNanos) {
+            this.value = value;
+            this.writeNanos = writeNanos;
+        }
+    }
 }
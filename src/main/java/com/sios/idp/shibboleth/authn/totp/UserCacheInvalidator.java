@@ -0,0 +1,48 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ディレクトリでユーザ情報が変更された場合に、キャッシュされたユーザ情報を破棄するクラスです.<br>
+ * {@link UserRecordCache}のユーザ情報と{@link SecretKeyCache}の復号化済み秘密鍵を破棄します。
+ * {@link TotpCache}のTOTPは破棄しません。次回のユーザ情報の取得時に鍵バージョンの変化として検知され、
+ * 鍵が変化したデバイスのTOTPのみが破棄されるため、変化していないTOTPの認証済みフラグ (リプレイ防止) は保持されます。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserCacheInvalidator {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserCacheInvalidator.class);
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private UserCacheInvalidator() {
+    }
+
+    /**
+     * 指定されたユーザ固有IDのキャッシュを破棄します.
+     * @param immutableUserId ユーザ固有ID
+     */
+    public static void invalidate(String immutableUserId) {
+        UserRecordCache.getInstance().invalidateImmutableUserId(immutableUserId);
+        SecretKeyCache.getInstance().invalidate(immutableUserId);
+        LOGGER.debug("ユーザ固有ID：{}のキャッシュを破棄しました。", immutableUserId);
+    }
+
+    /**
+     * 全てのユーザのキャッシュを破棄します. ディレクトリの変更を検知できなかった期間がある場合に使用します.
+     */
+    public static void invalidateAll() {
+        UserRecordCache.getInstance().invalidateAll();
+        SecretKeyCache.getInstance().invalidateAll();
+        LOGGER.info("全てのユーザのキャッシュを破棄しました。");
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.datasource.ldap.LdapPagedSearch;
+import com.sios.idp.shibboleth.datasource.ldap.LdapSearchBase;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * 存在するユーザ名のBloomフィルタを保持するクラスです.<br>
+ * ベースDN配下の全ユーザのユーザ名をページング検索で走査して構築し、userNameFilterRebuildIntervalSec毎に再構築します。
+ * 構築後に追加されたユーザ名は{@link #put(String)}で追加します (LDAPの変更監視が有効な場合は変更通知から追加されます)。
+ * {@link #mightContain(String)}がfalseを返すユーザ名はディレクトリに存在しないため、検索せずに拒否できます。<br>
+ * 構築前、または構築に失敗した場合は全てのユーザ名を存在する可能性があるものとして扱います。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserNameFilter {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserNameFilter.class);
+
+    /** 構築後に追加されるユーザ名のために確保する件数の下限. */
+    private static final int MINIMUM_HEADROOM = 1000;
+
+    /** 誤検知率の既定値. */
+    private static final double DEFAULT_FPP = 0.01d;
+
+    /** Singletonなインスタンス. */
+    private static final UserNameFilter INSTANCE = new UserNameFilter();
+
+    /** 現在のBloomフィルタ. 構築前はnull. */
+    private volatile BloomFilter<CharSequence> filter;
+
+    /** 再構築中に追加されたユーザ名. 再構築中以外はnull. */
+    private Set<String> pending;
+
+    /** 再構築を実行するExecutor. */
+    private ScheduledExecutorService scheduler;
+
+    /** 現在のBloomフィルタの構築時のユーザ数. */
+    private volatile long builtUserCount;
+
+    /** 現在のBloomフィルタの構築の所要時間 (ミリ秒). 構築前は-1. */
+    private volatile long buildMillis = -1L;
+
+    /** 存在しないユーザ名として拒否した数. */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /** 存在する可能性があると判定したが、ユーザ情報が存在しなかった数. */
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    /**
+     * コンストラクタです.
+     */
+    UserNameFilter() {
+    }
+
+    /**
+     * Singletonなインスタンスを取得します.
+     * @return Singletonなインスタンス
+     */
+    public static UserNameFilter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Bloomフィルタの構築をバックグラウンドで開始します. 既に開始している場合は何もしません.
+     */
+    public static void start() {
+        synchronized (INSTANCE) {
+            if (INSTANCE.scheduler != null) {
+                return;
+            }
+            INSTANCE.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "user-name-filter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Long interval = AppConfig.getUserNameFilterRebuildIntervalSec();
+            if (interval != null && interval > 0) {
+                INSTANCE.scheduler.scheduleWithFixedDelay(INSTANCE::rebuildQuietly, 0L, interval, TimeUnit.SECONDS);
+            } else {
+                INSTANCE.scheduler.execute(INSTANCE::rebuildQuietly);
+            }
+        }
+    }
+
+    /**
+     * Bloomフィルタの再構築を停止し、破棄します. 以降は全てのユーザ名を存在する可能性があるものとして扱います.
+     */
+    public static void stop() {
+        synchronized (INSTANCE) {
+            if (INSTANCE.scheduler != null) {
+                INSTANCE.scheduler.shutdownNow();
+                INSTANCE.scheduler = null;
+            }
+            INSTANCE.filter = null;
+            INSTANCE.pending = null;
+        }
+    }
+
+    /**
+     * ユーザ名が存在する可能性があるかを判定します.
+     * Bloomフィルタは既定の設定のディレクトリから構築するため、レルムが束縛されている場合は判定しません。
+     * @param userName ユーザ名
+     * @return 存在する可能性がある場合、Bloomフィルタが構築されていない場合、レルムが束縛されている場合はtrue
+     */
+    public boolean mightContain(String userName) {
+        BloomFilter<CharSequence> current = filter;
+        if (current == null || userName == null || Realm.current() != null || current.mightContain(normalize(userName))) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * ユーザ名を追加します. Bloomフィルタが構築されていない場合は何もしません.
+     * @param userName ユーザ名
+     */
+    public synchronized void put(String userName) {
+        if (filter == null || userName == null) {
+            return;
+        }
+        String normalized = normalize(userName);
+        filter.put(normalized);
+        if (pending != null) {
+            pending.add(normalized);
+        }
+    }
+
+    /**
+     * {@link #mightContain(String)}がtrueを返したユーザ名のユーザ情報が存在しなかったことを記録します.
+     * 誤検知、または構築後に削除されたユーザ名です。
+     */
+    public void recordFalsePositive() {
+        if (filter != null && Realm.current() == null) {
+            falsePositiveCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * ベースDN配下の全ユーザのユーザ名を走査し、Bloomフィルタを再構築します.
+     * 走査中に{@link #put(String)}で追加されたユーザ名は新しいBloomフィルタにも追加します。
+     * @throws LDAPException 検索に失敗した場合. 現在のBloomフィルタは維持されます
+     */
+    void rebuild() throws LDAPException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        }
+        try {
+            List<String> userNames = new ArrayList<String>();
+            int pages;
+            try (LDAPConnection connection = AsyncLdapConnectionPool.getInstance().openConnection()) {
+                pages = LdapPagedSearch.forEachUser(connection, LdapSearchBase.getAll(),
+                        AppConfig.getLdapUserNameAttributeName(), Collections.<String>emptyList(),
+                        LdapPagedSearch.DEFAULT_PAGE_SIZE, (userName, attributes) -> userNames.add(userName));
+            }
+            LOGGER.debug("Bloomフィルタを構築するため{}ページ、{}件のユーザ名を検索しました。", pages, userNames.size());
+            build(userNames, start);
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * 指定されたユーザ名でBloomフィルタを構築し、現在のBloomフィルタと置き換えます.
+     * @param userNames ユーザ名
+     */
+    void build(Collection<String> userNames) {
+        build(userNames, System.nanoTime());
+    }
+
+    /**
+     * 存在しないユーザ名として拒否した数を取得します.
+     * @return 拒否した数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * 存在する可能性があると判定したが、ユーザ情報が存在しなかった数を取得します.
+     * @return 誤検知 (または構築後に削除されたユーザ) の数
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+
+    /**
+     * 現在のBloomフィルタの推定誤検知率を取得します. 構築後に追加したユーザ名の分だけ上昇します.
+     * @return 推定誤検知率. 構築されていない場合は1
+     */
+    public double getExpectedFpp() {
+        BloomFilter<CharSequence> current = filter;
+        return current == null ? 1.0d : current.expectedFpp();
+    }
+
+    /**
+     * 現在のBloomフィルタの構築時のユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public long getBuiltUserCount() {
+        return builtUserCount;
+    }
+
+    /**
+     * 現在のBloomフィルタの構築の所要時間を取得します.
+     * @return 所要時間 (ミリ秒). 構築されていない場合は-1
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * Bloomフィルタが構築されているかを取得します.
+     * @return 構築されている場合はtrue
+     */
+    public boolean isReady() {
+        return filter != null;
+    }
+
+    /**
+     * 指定されたユーザ名でBloomフィルタを構築し、現在のBloomフィルタと置き換えます.
+     * @param userNames ユーザ名
+     * @param start 構築の開始時刻 (ナノ秒)
+     */
+    private void build(Collection<String> userNames, long start) {
+        int count = userNames.size();
+        long expectedInsertions = count + Math.max(count / 10, MINIMUM_HEADROOM);
+        BloomFilter<CharSequence> built = BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, getFpp());
+        for (String userName : userNames) {
+            built.put(normalize(userName));
+        }
+        synchronized (this) {
+            if (pending != null) {
+                for (String userName : pending) {
+                    built.put(userName);
+                }
+            }
+            filter = built;
+        }
+        builtUserCount = count;
+        buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("ユーザ名のBloomフィルタを構築しました。 (ユーザ数：{}, 推定誤検知率：{}, 所要時間：{}ミリ秒)",
+                count, built.expectedFpp(), buildMillis);
+    }
+
+    /**
+     * 定期的な再構築を行います. 失敗した場合は現在のBloomフィルタを維持します.
+     */
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (LDAPException | RuntimeException e) {
+            LOGGER.warn("ユーザ名のBloomフィルタの構築に失敗しました。現在のBloomフィルタを使用します。 (理由：{})", e.getMessage());
+        }
+    }
+
+    /**
+     * 設定された誤検知率を取得します.
+     * @return 誤検知率 (0より大きく1未満)
+     */
+    private static double getFpp() {
+        Double fpp = AppConfig.getUserNameFilterFpp();
+        return fpp == null || fpp <= 0d || fpp >= 1d ? DEFAULT_FPP : fpp;
+    }
+
+    /**
+     * ユーザ名を正規化します. LDAPのユーザ名の比較は大文字・小文字を区別しないため、小文字に変換します.
+     * @param userName ユーザ名
+     * @return 正規化したユーザ名
+     */
+    private static String normalize(String userName) {
+        return userName.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.authn.totp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.dto.SearchResult;
+
+/**
+ * ユーザ名毎に最後に取得できたユーザ情報のキャッシュ機能を提供します.<br>
+ * 取得からuserRecordCacheTtlSec以内のユーザ情報はDAOに問い合わせずに使用します ({@link #getFresh(String)})。
+ * また、ディレクトリの障害時 (サーキットブレーカーが開いている場合、DAOがエラーとなった場合) に限り、
+ * 取得からuserRecordMaxStalenessSec以内のユーザ情報を代わりに使用します ({@link #getStale(String)})。
+ * DAOの呼び出しでは、cacheデコレータ ({@link com.sios.idp.shibboleth.datasource.dao.CachingDao}) が使用します。
+ * ユーザ固有IDによる破棄 ({@link #invalidateImmutableUserId(String)}) のため、ユーザ固有IDからユーザ名への索引を保持します。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserRecordCache {
+
+    /** Singletonなインスタンス. */
+    private static final UserRecordCache USER_RECORD_CACHE = new UserRecordCache();
+
+    /** キャッシュするユーザ数の上限. */
+    private static final long MAXIMUM_SIZE = 100000L;
+
+    /** ユーザ名毎の &lt;取得時刻, ユーザ情報&gt; のキャッシュ. */
+    private final Cache<String, Entry> cache;
+
+    /** ユーザ固有ID毎の、キャッシュしているユーザ名の索引. */
+    private final Map<String, Set<String>> userNamesByImmutableUserId = new ConcurrentHashMap<String, Set<String>>();
+
+    /** 期限内のユーザ情報を代わりに使用した回数. */
+    private final AtomicLong staleServedCount = new AtomicLong();
+
+    /** DAOに問い合わせずにユーザ情報を使用した回数. */
+    private final AtomicLong freshHitCount = new AtomicLong();
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private UserRecordCache() {
+        CacheBuilder<String, Entry> builder = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE)
+                .removalListener(this::unindex);
+        long sec = getRetentionSec();
+        if (sec > 0) {
+            builder.expireAfterWrite(sec, TimeUnit.SECONDS);
+        }
+        cache = builder.build();
+    }
+
+    /**
+     * ユーザ情報のキャッシュオブジェクトを取得します.
+     * レルムが束縛されている場合は、レルム毎のキャッシュオブジェクトを取得します。
+     * @return ユーザ情報のキャッシュオブジェクト
+     */
+    public static UserRecordCache getInstance() {
+        Realm realm = Realm.current();
+        return realm == null ? USER_RECORD_CACHE : realm.getComponent(UserRecordCache.class, UserRecordCache::new);
+    }
+
+    /**
+     * 取得できたユーザ情報を格納します. 使用できる期間が共に0の場合は格納しません.
+     * @param userName ユーザ名
+     * @param result ユーザ情報
+     */
+    public void put(String userName, SearchResult result) {
+        if (getRetentionSec() > 0) {
+            Entry entry = new Entry(result, AppConfig.getImmutableUserIdAttributeName());
+            cache.put(userName, entry);
+            for (String immutableUserId : entry.immutableUserIds) {
+                userNamesByImmutableUserId.computeIfAbsent(immutableUserId,
+                        key -> ConcurrentHashMap.newKeySet()).add(userName);
+            }
+        }
+    }
+
+    /**
+     * 取得からDAOに問い合わせずに使用できる期間内のユーザ情報を取得します.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合、期間を経過している場合はnull
+     */
+    public SearchResult getFresh(String userName) {
+        long ttlSec = getTtlSec();
+        if (ttlSec <= 0) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(userName);
+        if (entry == null || System.nanoTime() - entry.storedAt > TimeUnit.SECONDS.toNanos(ttlSec)) {
+            return null;
+        }
+        freshHitCount.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * 障害時に、取得から使用できる期間内のユーザ情報を取得します.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合、期間を経過している場合はnull
+     */
+    public SearchResult getStale(String userName) {
+        Entry entry = cache.getIfPresent(userName);
+        if (entry == null || System.nanoTime() - entry.storedAt > TimeUnit.SECONDS.toNanos(getMaxStalenessSec())) {
+            return null;
+        }
+        staleServedCount.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * 指定されたユーザ名のユーザ情報を破棄します.
+     * @param userName ユーザ名
+     */
+    public void invalidate(String userName) {
+        cache.invalidate(userName);
+    }
+
+    /**
+     * 指定されたユーザ固有IDを持つユーザ情報を破棄します. 索引から対象のユーザ名を特定し、キャッシュ全体は走査しません.
+     * @param immutableUserId ユーザ固有ID
+     */
+    public void invalidateImmutableUserId(String immutableUserId) {
+        Set<String> userNames = userNamesByImmutableUserId.remove(immutableUserId);
+        if (userNames != null) {
+            cache.invalidateAll(userNames);
+        }
+    }
+
+    /**
+     * 期限内のユーザ情報を代わりに使用した回数を取得します.
+     * @return 回数
+     */
+    public long getStaleServedCount() {
+        return staleServedCount.get();
+    }
+
+    /**
+     * DAOに問い合わせずにユーザ情報を使用した回数を取得します.
+     * @return 回数
+     */
+    public long getFreshHitCount() {
+        return freshHitCount.get();
+    }
+
+    /**
+     * 格納しているユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * 全てのユーザ情報を破棄します.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        userNamesByImmutableUserId.clear();
+    }
+
+    /**
+     * キャッシュから取り除かれたユーザ情報のユーザ名を索引から削除します.
+     * 同じユーザ名で格納し直したユーザ情報が同じユーザ固有IDを持つ場合は削除しません。
+     * @param notification 取り除かれたユーザ情報
+     */
+    private void unindex(RemovalNotification<String, Entry> notification) {
+        String userName = notification.getKey();
+        Entry removed = notification.getValue();
+        if (userName == null || removed == null) {
+            return;
+        }
+        for (String immutableUserId : removed.immutableUserIds) {
+            userNamesByImmutableUserId.computeIfPresent(immutableUserId, (key, userNames) -> {
+                Entry current = cache.getIfPresent(userName);
+                if (current == null || !current.immutableUserIds.contains(immutableUserId)) {
+                    userNames.remove(userName);
+                }
+                return userNames.isEmpty() ? null : userNames;
+            });
+        }
+    }
+
+    /**
+     * 障害時にユーザ情報を使用できる期間を取得します.
+     * @return 期間 (秒)
+     */
+    private static long getMaxStalenessSec() {
+        Long sec = AppConfig.getUserRecordMaxStalenessSec();
+        return sec == null || sec < 0 ? 0L : sec;
+    }
+
+    /**
+     * ユーザ情報をDAOに問い合わせずに使用できる期間を取得します.
+     * @return 期間 (秒)
+     */
+    private static long getTtlSec() {
+        Long sec = AppConfig.getUserRecordCacheTtlSec();
+        return sec == null || sec < 0 ? 0L : sec;
+    }
+
+    /**
+     * ユーザ情報を保持する期間を取得します.
+     * @return 期間 (秒)
+     */
+    private static long getRetentionSec() {
+        return Math.max(getMaxStalenessSec(), getTtlSec());
+    }
+
+    /**
+     * キャッシュしたユーザ情報です.
+     */
+    private static final class Entry {
+
+        /** 格納時刻 (ナノ秒). */
+        private final long storedAt = System.nanoTime();
+
+        /** ユーザ情報. */
+        private final SearchResult result;
+
+        /** 格納時のユーザ固有ID. */
+        private final List<String> immutableUserIds;
+
+        /**
+         * コンストラクタです.
+         * @param result ユーザ情報
+         * @param immutableIdAttributeName ユーザ固有IDの属性名
+         */
+        private Entry(SearchResult result, String immutableIdAttributeName) {
+            this.result = result;
+            this.immutableUserIds = new ArrayList<String>(result.getValues(immutableIdAttributeName));
+        }
+    }
+}
@@ -5,97 +5,442 @@
  */
 package com.sios.idp.shibboleth.common;
 
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
 /**
- * アプリケーション設定を保持するクラスです.
+ * アプリケーション設定を保持するクラスです.<br>
+ * 設定項目の名前、型、既定値は{@link ConfigKey}で定義し、{@link AppConfigLoader}が読み込んだ値は
+ * 不変の{@link ConfigSnapshot}として保持します。configFilePathの設定ファイルが変更された場合は、再読み込みしたスナップショットに置き換えます。
+ * 取得メソッドは呼び出しの度に最新のスナップショットを参照するため、連続した呼び出しが別のスナップショットの値を返却することがあります。
+ * 1回の認証等、一連の処理で同じスナップショットの値を使用する場合は{@link ConfigScope#pin(Realm.Action)}で処理を実行します。
+ * 実行中のスレッドに{@link Realm}が束縛されている場合、各取得メソッドはレルムで上書きされた設定値を返却します。
  * @author SIOS Technology, Inc.
  */
 public final class AppConfig implements Config {
 
-    /** LDAPの接続先URLを定義します. */
-    private static String ldapUrl;
+    /** 現在の設定値のスナップショット. */
+    private static volatile ConfigSnapshot snapshot = ConfigSnapshot.EMPTY;
 
-    /** LDAPアクセス時のバインドDNを定義します. */
-    private static String ldapBindDN;
+    /**
+     * privateコンストラクタ. 外部からのインスタンス生成を許可しません.
+     */
+    private AppConfig() { }
+
+    /**
+     * 現在の設定値のスナップショットを取得します.
+     * 実行中のスレッドにスナップショットが固定されている場合は、固定したスナップショットを取得します。
+     * 実行中のスレッドにレルムが束縛されている場合は、レルムの設定値で上書きしたスナップショットを取得します。
+     * @return スナップショット
+     */
+    public static ConfigSnapshot getSnapshot() {
+        ConfigSnapshot pinned = ConfigScope.current();
+        ConfigSnapshot current = pinned == null ? snapshot : pinned;
+        Realm realm = Realm.current();
+        return realm == null ? current : realm.getSnapshot(current);
+    }
 
-    /** LDAPアクセス時のユーザパスワードを定義します. */
-    private static String ldapBindPassword;
+    /**
+     * レルムの設定値で上書きしていない、既定のスナップショットを取得します.
+     * 実行中のスレッドに固定したスナップショットは参照しません。
+     * @return スナップショット
+     */
+    public static ConfigSnapshot getDefaultSnapshot() {
+        return snapshot;
+    }
 
-    /** LDAPへSEARCHを実行する際のBASE DNを定義します. */
-    private static String ldapBaseDN;
+    /**
+     * 設定値のスナップショットを置き換えます.
+     * @param newSnapshot 新しいスナップショット
+     */
+    static void setSnapshot(ConfigSnapshot newSnapshot) {
+        snapshot = newSnapshot;
+    }
 
-    /** LDAPへサーチを実行する際のクエリを定義します. */
-    private static String ldapFilter;
+    /**
+     * 現在のスナップショットから設定値を取得します.
+     * @param <T> 設定値の型
+     * @param key 設定項目
+     * @return 設定値
+     */
+    private static <T> T resolve(ConfigKey<T> key) {
+        return getSnapshot().get(key);
+    }
 
-    /** 暗号アルゴリズムを定義します. */
-    private static String cipherArgorithm;
+    /**
+     * LDAPの永続検索によりユーザ情報の変更を監視し、キャッシュを破棄するかを取得します.
+     * @return 監視する場合はtrue
+     */
+    public static Boolean getLdapChangeWatchEnabled() {
+        return resolve(ConfigKey.LDAP_CHANGE_WATCH_ENABLED);
+    }
 
-    /** SALTの値を生成するベースの長さを定数として定義します. */
-    private static Integer saltLength;
+    /**
+     * LDAPの永続検索が終了した場合に再開するまでの時間 (ミリ秒) を取得します.
+     * @return 再開するまでの時間 (ミリ秒)
+     */
+    public static Long getLdapChangeWatchRetryMillis() {
+        return resolve(ConfigKey.LDAP_CHANGE_WATCH_RETRY_MILLIS);
+    }
 
-    /** PBEKeySpecを作成するために行なう繰り返し回数を定義します. */
-    private static Integer iterationCount;
+    /**
+     * ldapスキームのLDAP接続でStartTLSを使用するかを取得します.
+     * @return StartTLSを使用する場合はtrue
+     */
+    public static Boolean getLdapStartTls() {
+        return resolve(ConfigKey.LDAP_START_TLS);
+    }
 
-    /** 暗号化・複合化する際のbit数を定義します. */
-    private static Integer cipherKeyLength;
+    /**
+     * LDAPS、StartTLSでサーバ証明書の検証に使用するトラストストアのパスを取得します.
+     * @return トラストストアのパス
+     */
+    public static String getLdapTrustStorePath() {
+        return resolve(ConfigKey.LDAP_TRUST_STORE_PATH);
+    }
 
-    /** 暗号化するために必要なインスタンスを定義します. */
-    private static String cipherTransformationName;
+    /**
+     * LDAPのトラストストアのパスワードを取得します.
+     * @return トラストストアのパスワード
+     */
+    public static String getLdapTrustStorePassword() {
+        return resolve(ConfigKey.LDAP_TRUST_STORE_PASSWORD);
+    }
 
-    /** ユーザ固有IDのLDAP属性名を表します. */
-    private static String immutableIdAttributeName;
+    /**
+     * LDAPのトラストストアの形式を取得します.
+     * @return トラストストアの形式
+     */
+    public static String getLdapTrustStoreType() {
+        return resolve(ConfigKey.LDAP_TRUST_STORE_TYPE);
+    }
 
-    /** 秘密鍵のLDAP属性名を表します. */
-    private static String secretKeyAttributeName;
+    /**
+     * LDAPのTLS接続で有効にするプロトコルを取得します.
+     * @return カンマ区切りのプロトコル
+     */
+    public static String getLdapTlsProtocols() {
+        return resolve(ConfigKey.LDAP_TLS_PROTOCOLS);
+    }
 
-    /** 秘密鍵パスフレーズを表します. */
-    private static String secretKeyPassPhrase;
+    /**
+     * LDAPのTLS接続で有効にする暗号スイートを取得します.
+     * @return カンマ区切りの暗号スイート
+     */
+    public static String getLdapTlsCipherSuites() {
+        return resolve(ConfigKey.LDAP_TLS_CIPHER_SUITES);
+    }
 
-    /** {@link com.sios.idp.shibboleth.datasource.dao.Dao}の実装クラスの完全修飾名を表します. */
-    private static String daoImplClassName;
+    /**
+     * LDAPのTLS接続でサーバ証明書のホスト名を検証するかを取得します.
+     * @return 検証する場合はtrue
+     */
+    public static Boolean getLdapTlsHostnameVerification() {
+        return resolve(ConfigKey.LDAP_TLS_HOSTNAME_VERIFICATION);
+    }
 
-    /** TOTP生成時のタイムステップサイズ (秒) を表します. */
-    private static Long timeStepSec;
+    /**
+     * LDAPのTLSセッションを再開に使用できる期間 (秒) を取得します.
+     * @return 再開に使用できる期間 (秒)
+     */
+    public static Integer getLdapTlsSessionTimeoutSec() {
+        return resolve(ConfigKey.LDAP_TLS_SESSION_TIMEOUT_SEC);
+    }
 
-    /** TOTP桁数を表します. */
-    private static Integer totpLength;
+    /**
+     * ユーザ情報のスナップショットファイルのパスを取得します.
+     * @return スナップショットファイルのパス
+     */
+    public static String getUserSnapshotPath() {
+        return resolve(ConfigKey.USER_SNAPSHOT_PATH);
+    }
 
-    /** TOTP認証時に許容するタイムカウントのオフセット値です. */
-    private static Integer allowedTimeCountOffset;
+    /**
+     * スナップショットファイルの更新を確認する間隔 (ミリ秒) を取得します.
+     * @return 確認する間隔 (ミリ秒) (0の場合は確認しない)
+     */
+    public static Long getUserSnapshotReloadIntervalMillis() {
+        return resolve(ConfigKey.USER_SNAPSHOT_RELOAD_INTERVAL_MILLIS);
+    }
 
-    /** TOTPがキャッシュに存在する時間(秒)です. */
-    private static Long totpCacheExpirationBufferSec;
+    /**
+     * スナップショットの更新ジャーナルをスナップショットファイルに統合する更新件数を取得します.
+     * @return 統合する更新件数 (0の場合は統合しない)
+     */
+    public static Integer getUserSnapshotCompactThreshold() {
+        return resolve(ConfigKey.USER_SNAPSHOT_COMPACT_THRESHOLD);
+    }
 
-    /** TOTP認証セッションIDを記憶するCookieの名前です. */
-    private static String totpAuthnSessionIdCookieName;
+    /**
+     * ユーザ名のLDAP属性名を取得します.
+     * @return ユーザ名のLDAP属性名
+     */
+    public static String getLdapUserNameAttributeName() {
+        return resolve(ConfigKey.LDAP_USER_NAME_ATTRIBUTE_NAME);
+    }
 
-    /** TOTP認証セッションの発行日時を記憶するCookieの名前です. */
-    private static String totpAuthnSessionIssueDateCookieName;
+    /**
+     * 複数ユーザのユーザ情報をまとめて取得する際に、1回の検索で検索するユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public static Integer getUserBatchSize() {
+        return resolve(ConfigKey.USER_BATCH_SIZE);
+    }
 
-    /** TOTP認証セッションの有効期限（秒）です. 0や負の値の場合、TOTP認証セッションを利用しません. */
-    private static Integer totpAuthnSessionExpirationSec;
+    /**
+     * JDBCの接続先URLを取得します.
+     * @return 接続先URL
+     */
+    public static String getJdbcUrl() {
+        return resolve(ConfigKey.JDBC_URL);
+    }
 
-    /** TOTP認証セッションIDを発行する際に利用するソルト文字列です. */
-    private static String totpAuthnSessionIdSalt;
+    /**
+     * JDBCの接続ユーザを取得します.
+     * @return 接続ユーザ (空の場合は接続先URLのみで接続する)
+     */
+    public static String getJdbcUser() {
+        return resolve(ConfigKey.JDBC_USER);
+    }
 
     /**
-     * privateコンストラクタ. 外部からのインスタンス生成を許可しません.
+     * JDBCの接続パスワードを取得します.
+     * @return 接続パスワード
      */
-    private AppConfig() { }
+    public static String getJdbcPassword() {
+        return resolve(ConfigKey.JDBC_PASSWORD);
+    }
+
+    /**
+     * JDBC接続プールが同時に貸し出す接続数を取得します.
+     * @return 接続数
+     */
+    public static Integer getJdbcMaxPoolSize() {
+        return resolve(ConfigKey.JDBC_MAX_POOL_SIZE);
+    }
+
+    /**
+     * JDBC接続プールの接続の返却を待つ時間 (ミリ秒) を取得します.
+     * @return 待つ時間 (ミリ秒)
+     */
+    public static Long getJdbcBorrowTimeoutMillis() {
+        return resolve(ConfigKey.JDBC_BORROW_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * JDBC接続毎にキャッシュするPreparedStatement数を取得します.
+     * @return PreparedStatement数
+     */
+    public static Integer getJdbcStatementCacheSize() {
+        return resolve(ConfigKey.JDBC_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * JDBCのSQLのタイムアウト (秒) を取得します.
+     * @return タイムアウト (秒) (0の場合は無制限)
+     */
+    public static Integer getJdbcQueryTimeoutSec() {
+        return resolve(ConfigKey.JDBC_QUERY_TIMEOUT_SEC);
+    }
+
+    /**
+     * ユーザ名でユーザ情報を検索するSQLを取得します.
+     * @return SQL
+     */
+    public static String getJdbcUserQuery() {
+        return resolve(ConfigKey.JDBC_USER_QUERY);
+    }
+
+    /**
+     * 複数ユーザのユーザ情報を検索するSQLを取得します.
+     * @return SQL
+     */
+    public static String getJdbcUsersQuery() {
+        return resolve(ConfigKey.JDBC_USERS_QUERY);
+    }
+
+    /**
+     * 複数ユーザの検索結果のユーザ名の列名を取得します.
+     * @return 列名
+     */
+    public static String getJdbcUserNameColumn() {
+        return resolve(ConfigKey.JDBC_USER_NAME_COLUMN);
+    }
+
+    /**
+     * 属性値を削除するSQLを取得します.
+     * @return SQL
+     */
+    public static String getJdbcRemoveValueQuery() {
+        return resolve(ConfigKey.JDBC_REMOVE_VALUE_QUERY);
+    }
+
+    /**
+     * JDBCの検索結果の列と属性の対応を取得します.
+     * @return 列と属性の対応 (列名=属性名のカンマ区切り)
+     */
+    public static String getJdbcColumnMapping() {
+        return resolve(ConfigKey.JDBC_COLUMN_MAPPING);
+    }
+
+    /**
+     * ユーザ情報を取得するHTTPのURLを取得します.
+     * @return ユーザ情報を取得するURL
+     */
+    public static String getHttpUserUrl() {
+        return resolve(ConfigKey.HTTP_USER_URL);
+    }
+
+    /**
+     * 属性値を削除するHTTPのURLを取得します.
+     * @return 属性値を削除するURL
+     */
+    public static String getHttpUserPatchUrl() {
+        return resolve(ConfigKey.HTTP_USER_PATCH_URL);
+    }
+
+    /**
+     * HTTPのAuthorizationヘッダの値を取得します.
+     * @return Authorizationヘッダの値
+     */
+    public static String getHttpAuthorization() {
+        return resolve(ConfigKey.HTTP_AUTHORIZATION);
+    }
+
+    /**
+     * HTTPの接続タイムアウト (ミリ秒) を取得します.
+     * @return 接続タイムアウト (ミリ秒)
+     */
+    public static Long getHttpConnectTimeoutMillis() {
+        return resolve(ConfigKey.HTTP_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * HTTPのリクエストタイムアウト (ミリ秒) を取得します.
+     * @return リクエストタイムアウト (ミリ秒)
+     */
+    public static Long getHttpRequestTimeoutMillis() {
+        return resolve(ConfigKey.HTTP_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * HTTPのレスポンスの上限サイズ (バイト) を取得します.
+     * @return レスポンスの上限サイズ (バイト)
+     */
+    public static Integer getHttpMaxResponseBytes() {
+        return resolve(ConfigKey.HTTP_MAX_RESPONSE_BYTES);
+    }
+
+    /**
+     * HTTPのレスポンスで複数のユーザ情報を格納するJSONのメンバー名を取得します.
+     * @return ユーザ情報を格納するメンバー名
+     */
+    public static String getHttpResourcesMember() {
+        return resolve(ConfigKey.HTTP_RESOURCES_MEMBER);
+    }
+
+    /**
+     * 起動時にユーザ情報、復号化済み秘密鍵を先読みするかを取得します.
+     * @return 先読みする場合はtrue
+     */
+    public static Boolean getPrefetchEnabled() {
+        return resolve(ConfigKey.PREFETCH_ENABLED);
+    }
+
+    /**
+     * 先読みで秘密鍵の復号化に使用するCPUの割合 (パーセント) を取得します.
+     * @return CPUの割合 (パーセント)
+     */
+    public static Integer getPrefetchCpuPercent() {
+        return resolve(ConfigKey.PREFETCH_CPU_PERCENT);
+    }
+
+    /**
+     * 最近TOTPを生成したユーザ名を保存するファイルのパスを取得します.
+     * @return ファイルのパス (空の場合は秘密鍵を先読みしない)
+     */
+    public static String getPrefetchActiveUsersFile() {
+        return resolve(ConfigKey.PREFETCH_ACTIVE_USERS_FILE);
+    }
+
+    /**
+     * 取得したユーザ情報をDAOに問い合わせずに使用する期間 (秒) を取得します.
+     * @return 期間 (秒) (0の場合は使用しない)
+     */
+    public static Long getUserRecordCacheTtlSec() {
+        return resolve(ConfigKey.USER_RECORD_CACHE_TTL_SEC);
+    }
+
+    /**
+     * 存在するユーザ名のBloomフィルタにより、存在しないユーザ名を検索せずに拒否するかを取得します.
+     * @return 拒否する場合はtrue
+     */
+    public static Boolean getUserNameFilterEnabled() {
+        return resolve(ConfigKey.USER_NAME_FILTER_ENABLED);
+    }
+
+    /**
+     * ユーザ名のBloomフィルタの誤検知率を取得します.
+     * @return 誤検知率
+     */
+    public static Double getUserNameFilterFpp() {
+        return resolve(ConfigKey.USER_NAME_FILTER_FPP);
+    }
+
+    /**
+     * ユーザ名のBloomフィルタを再構築する間隔 (秒) を取得します.
+     * @return 間隔 (秒) (0の場合は起動時のみ構築する)
+     */
+    public static Long getUserNameFilterRebuildIntervalSec() {
+        return resolve(ConfigKey.USER_NAME_FILTER_REBUILD_INTERVAL_SEC);
+    }
+
+    /**
+     * DAOのサーキットブレーカーを開く連続失敗回数を取得します.
+     * @return 連続失敗回数 (0の場合はサーキットブレーカーを使用しない)
+     */
+    public static Integer getDaoCircuitBreakerFailureThreshold() {
+        return resolve(ConfigKey.DAO_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+    }
+
+    /**
+     * DAOのユーザ情報取得を失敗とみなす応答時間 (ミリ秒) を取得します.
+     * @return 応答時間 (ミリ秒) (0の場合は応答時間で判定しない)
+     */
+    public static Long getDaoCircuitBreakerSlowCallMillis() {
+        return resolve(ConfigKey.DAO_CIRCUIT_BREAKER_SLOW_CALL_MILLIS);
+    }
+
+    /**
+     * DAOのサーキットブレーカーが開いてから試行を再開するまでの時間 (ミリ秒) を取得します.
+     * @return 試行を再開するまでの時間 (ミリ秒)
+     */
+    public static Long getDaoCircuitBreakerOpenMillis() {
+        return resolve(ConfigKey.DAO_CIRCUIT_BREAKER_OPEN_MILLIS);
+    }
+
+    /**
+     * ディレクトリ障害時に前回取得したユーザ情報を使用できる期間 (秒) を取得します.
+     * @return 期間 (秒) (0の場合は使用しない)
+     */
+    public static Long getUserRecordMaxStalenessSec() {
+        return resolve(ConfigKey.USER_RECORD_MAX_STALENESS_SEC);
+    }
 
     /**
      * 暗号アルゴリズムを取得します.
      * @return cipherArgorithm 暗号アルゴリズム
      */
     public static String getCipherArgorithm() {
-        return cipherArgorithm;
+        return resolve(ConfigKey.CIPHER_ARGORITHM);
     }
 
     /**
-     * LDAP接続先URLを取得します.
+     * LDAP接続先URLを取得します. 複数のレプリカが定義されている場合は空白区切りの文字列です.
      * @return LDAP接続先URL
      */
     public static String getLdapUrl() {
-        return ldapUrl;
+        return resolve(ConfigKey.LDAP_URL);
     }
 
     /**
@@ -103,7 +448,7 @@ public final class AppConfig implements Config {
      * @return LDAPのバインドDN
      */
     public static String getLdapBindDN() {
-        return ldapBindDN;
+        return resolve(ConfigKey.LDAP_BIND_DN);
     }
 
     /**
@@ -111,7 +456,7 @@ public final class AppConfig implements Config {
      * @return LDAPアクセス時のパスワード
      */
     public static String getLdapBindPassword() {
-        return ldapBindPassword;
+        return resolve(ConfigKey.LDAP_BIND_PASSWORD);
     }
 
     /**
@@ -119,7 +464,15 @@ public final class AppConfig implements Config {
      * @return LDAP検索時のベースDN
      */
     public static String getLdapBaseDN() {
-        return ldapBaseDN;
+        return resolve(ConfigKey.LDAP_BASE_DN);
+    }
+
+    /**
+     * ユーザを検索する複数のベースDNを取得します.
+     * @return ユーザを検索する複数のベースDN
+     */
+    public static String getLdapBaseDNs() {
+        return resolve(ConfigKey.LDAP_BASE_DNS);
     }
 
     /**
@@ -127,7 +480,7 @@ public final class AppConfig implements Config {
      * @return LDAP検索フィルタ
      */
     public static String getLdapFilter() {
-        return ldapFilter;
+        return resolve(ConfigKey.LDAP_FILTER);
     }
 
     /**
@@ -135,7 +488,7 @@ public final class AppConfig implements Config {
      * @return SALTの長さ
      */
     public static Integer getSaltLength() {
-        return saltLength;
+        return resolve(ConfigKey.SALT_LENGTH);
     }
 
     /**
@@ -143,7 +496,7 @@ public final class AppConfig implements Config {
      * @return 繰り返し回数
      */
     public static Integer getIterationCount() {
-        return iterationCount;
+        return resolve(ConfigKey.ITERATION_COUNT);
     }
 
     /**
@@ -151,7 +504,7 @@ public final class AppConfig implements Config {
      * @return key length
      */
     public static Integer getCipherKeyLength() {
-        return cipherKeyLength;
+        return resolve(ConfigKey.CIPHER_KEY_LENGTH);
     }
 
     /**
@@ -159,7 +512,7 @@ public final class AppConfig implements Config {
      * @return インスタンス
      */
     public static String getCipherTransformationName() {
-        return cipherTransformationName;
+        return resolve(ConfigKey.CIPHER_TRANSFORMATION_NAME);
     }
 
     /**
@@ -167,7 +520,7 @@ public final class AppConfig implements Config {
      * @return immutableIdAttributeName ユーザ固有IDのLDAP属性名
      */
     public static String getImmutableUserIdAttributeName() {
-        return immutableIdAttributeName;
+        return resolve(ConfigKey.IMMUTABLE_ID_ATTRIBUTE_NAME);
     }
 
     /**
@@ -175,7 +528,7 @@ public final class AppConfig implements Config {
      * @return 秘密鍵のLDAP属性名
      */
     public static String getSecretKeyAttributeName() {
-        return secretKeyAttributeName;
+        return resolve(ConfigKey.SECRET_KEY_ATTRIBUTE_NAME);
     }
 
     /**
@@ -183,7 +536,7 @@ public final class AppConfig implements Config {
      * @return 秘密鍵パスフレーズ
      */
     public static String getSecretKeyPassPhrase() {
-        return secretKeyPassPhrase;
+        return resolve(ConfigKey.SECRET_KEY_PASS_PHRASE);
     }
 
     /**
@@ -191,7 +544,127 @@ public final class AppConfig implements Config {
      * @return daoImplClassName DAO実装クラスの完全修飾名
      */
     public static String getDaoImplClassName() {
-        return daoImplClassName;
+        return resolve(ConfigKey.DAO_IMPL_CLASS_NAME);
+    }
+
+    /**
+     * {@link com.sios.idp.shibboleth.datasource.dao.Dao}の実装クラスに適用するデコレータを取得します.
+     * @return 外側から順にカンマ区切りで指定したデコレータ名またはクラスの完全修飾名
+     */
+    public static String getDaoDecorators() {
+        return resolve(ConfigKey.DAO_DECORATORS);
+    }
+
+    /**
+     * timeoutデコレータがDAOの応答を待つ時間 (ミリ秒) を取得します.
+     * @return 待ち時間 (ミリ秒)
+     */
+    public static Long getDaoTimeoutMillis() {
+        return resolve(ConfigKey.DAO_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * timeoutデコレータが同期的なDAOを呼び出すスレッド数の上限を取得します.
+     * @return スレッド数の上限
+     */
+    public static Integer getDaoTimeoutMaxThreads() {
+        return resolve(ConfigKey.DAO_TIMEOUT_MAX_THREADS);
+    }
+
+    /**
+     * timeoutデコレータが同期的なDAOの呼び出しを待機させる数の上限を取得します.
+     * @return 待機させる数の上限
+     */
+    public static Integer getDaoTimeoutMaxQueued() {
+        return resolve(ConfigKey.DAO_TIMEOUT_MAX_QUEUED);
+    }
+
+    /**
+     * 秘密鍵のローテーション時に新旧両方の鍵を受け入れる重複期間 (秒) を取得します.
+     * @return 重複期間 (秒)
+     */
+    public static Long getSecretKeyRotationOverlapSec() {
+        return resolve(ConfigKey.SECRET_KEY_ROTATION_OVERLAP_SEC);
+    }
+
+    /**
+     * 復号化済み秘密鍵がキャッシュに存在する時間(秒)を取得します.
+     * @return 復号化済み秘密鍵のキャッシュ有効期限（秒）
+     */
+    public static Long getSecretKeyCacheExpirationSec() {
+        return resolve(ConfigKey.SECRET_KEY_CACHE_EXPIRATION_SEC);
+    }
+
+    /**
+     * 非同期LDAP DAOが非同期操作を多重化するLDAP接続の数を取得します.
+     * @return LDAP接続の数
+     */
+    public static Integer getLdapAsyncConnectionCount() {
+        return resolve(ConfigKey.LDAP_ASYNC_CONNECTION_COUNT);
+    }
+
+    /**
+     * 非同期LDAP DAOのレプリカの選択方式を取得します.
+     * @return レプリカの選択方式 (EWMA, LEAST_OUTSTANDING)
+     */
+    public static String getLdapReplicaSelection() {
+        return resolve(ConfigKey.LDAP_REPLICA_SELECTION);
+    }
+
+    /**
+     * レプリカを切り離すまでの連続失敗回数を取得します.
+     * @return 連続失敗回数
+     */
+    public static Integer getLdapReplicaFailureThreshold() {
+        return resolve(ConfigKey.LDAP_REPLICA_FAILURE_THRESHOLD);
+    }
+
+    /**
+     * 切り離したレプリカの死活監視の間隔 (ミリ秒) を取得します.
+     * @return 死活監視の間隔 (ミリ秒)
+     */
+    public static Long getLdapReplicaProbeIntervalMillis() {
+        return resolve(ConfigKey.LDAP_REPLICA_PROBE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * LDAP検索をヘッジするまでの遅延時間とする応答時間のパーセンタイルを取得します.
+     * @return パーセンタイル (0の場合はヘッジしない)
+     */
+    public static Integer getLdapHedgePercentile() {
+        return resolve(ConfigKey.LDAP_HEDGE_PERCENTILE);
+    }
+
+    /**
+     * 集計期間毎の検索数に対するヘッジ数の上限の割合を取得します.
+     * @return ヘッジ数の上限の割合 (パーセント)
+     */
+    public static Integer getLdapHedgeBudgetPercent() {
+        return resolve(ConfigKey.LDAP_HEDGE_BUDGET_PERCENT);
+    }
+
+    /**
+     * ヘッジ数の上限を集計する期間 (ミリ秒) を取得します.
+     * @return 集計期間 (ミリ秒)
+     */
+    public static Long getLdapHedgeBudgetWindowMillis() {
+        return resolve(ConfigKey.LDAP_HEDGE_BUDGET_WINDOW_MILLIS);
+    }
+
+    /**
+     * 非同期LDAP DAOの操作毎のタイムアウト (ミリ秒) を取得します.
+     * @return 操作毎のタイムアウト (ミリ秒)
+     */
+    public static Long getLdapOperationTimeoutMillis() {
+        return resolve(ConfigKey.LDAP_OPERATION_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * TOTP生成の完了を待つ時間(ミリ秒)を取得します.
+     * @return TOTP生成の完了を待つ時間(ミリ秒)
+     */
+    public static Long getTotpGenerationTimeoutMillis() {
+        return resolve(ConfigKey.TOTP_GENERATION_TIMEOUT_MILLIS);
     }
 
     /**
@@ -199,7 +672,7 @@ public final class AppConfig implements Config {
      * @return タイムステップサイズ (秒)
      */
     public static Long getTimeStepSec() {
-        return timeStepSec;
+        return resolve(ConfigKey.TIME_STEP_SEC);
     }
 
     /**
@@ -207,7 +680,7 @@ public final class AppConfig implements Config {
      * @return TOTP桁数
      */
     public static Integer getTotpLength() {
-        return totpLength;
+        return resolve(ConfigKey.TOTP_LENGTH);
     }
 
     /**
@@ -215,7 +688,7 @@ public final class AppConfig implements Config {
      * @return 許容されるタイムカウントのオフセット値
      */
     public static Integer getAllowedTimeCountOffset() {
-        return allowedTimeCountOffset;
+        return resolve(ConfigKey.ALLOWED_TIME_COUNT_OFFSET);
     }
 
     /**
@@ -223,7 +696,7 @@ public final class AppConfig implements Config {
      * @return タイムステップサイズ (秒)
      */
     public static Long getTotpCacheExpirationBufferSec() {
-        return totpCacheExpirationBufferSec;
+        return resolve(ConfigKey.TOTP_CACHE_EXPIRATION_BUFFER_SEC);
     }
 
     /**
@@ -231,7 +704,7 @@ public final class AppConfig implements Config {
      * @return セッションIDを記憶するCookieの名前
      */
     public static String getTotpAuthnSessionIdCookieName() {
-        return totpAuthnSessionIdCookieName;
+        return resolve(ConfigKey.TOTP_AUTHN_SESSION_ID_COOKIE_NAME);
     }
 
     /**
@@ -239,7 +712,7 @@ public final class AppConfig implements Config {
      * @return セッションの発行日時を記憶するCookieの名前
      */
     public static String getTotpAuthnSessionIssueDateCookieName() {
-        return totpAuthnSessionIssueDateCookieName;
+        return resolve(ConfigKey.TOTP_AUTHN_SESSION_ISSUE_DATE_COOKIE_NAME);
     }
 
     /**
@@ -247,7 +720,7 @@ public final class AppConfig implements Config {
      * @return セッションの有効期限（秒）
      */
     public static Integer getTotpAuthnSessionExpirationSec() {
-        return totpAuthnSessionExpirationSec;
+        return resolve(ConfigKey.TOTP_AUTHN_SESSION_EXPIRATION_SEC);
     }
 
     /**
@@ -255,7 +728,94 @@ public final class AppConfig implements Config {
      * @return ソルト文字列
      */
     public static String getTotpAuthnSessionIdSalt() {
-        return totpAuthnSessionIdSalt;
+        return resolve(ConfigKey.TOTP_AUTHN_SESSION_ID_SALT);
+    }
+
+    /**
+     * リカバリコードのハッシュ値を格納するLDAP属性名を取得します.
+     * @return リカバリコードのLDAP属性名
+     */
+    public static String getRecoveryCodeAttributeName() {
+        return resolve(ConfigKey.RECOVERY_CODE_ATTRIBUTE_NAME);
+    }
+
+    /**
+     * ユーザ毎のリカバリコードのハッシュ値がキャッシュに存在する時間(秒)を取得します.
+     * @return リカバリコードのキャッシュ有効期限（秒）
+     */
+    public static Long getRecoveryCodeCacheExpirationSec() {
+        return resolve(ConfigKey.RECOVERY_CODE_CACHE_EXPIRATION_SEC);
     }
 
+    /**
+     * レルム名を取得します.
+     * @return カンマ区切りのレルム名
+     */
+    public static String getRealms() {
+        return resolve(ConfigKey.REALMS);
+    }
+
+    /**
+     * ユーザ名とレルム名の区切り文字を取得します.
+     * @return ユーザ名とレルム名の区切り文字
+     */
+    public static String getRealmSeparator() {
+        return resolve(ConfigKey.REALM_SEPARATOR);
+    }
+
+    /**
+     * ディレクトリを検索する際に、ユーザ名からレルム名の接尾辞を取り除くかを取得します.
+     * @return 取り除く場合はtrue
+     */
+    public static Boolean getRealmStripSuffix() {
+        return resolve(ConfigKey.REALM_STRIP_SUFFIX);
+    }
+
+    /**
+     * レルムを選択する依頼元のエンティティIDを取得します.
+     * @return カンマ区切りの依頼元のエンティティID
+     */
+    public static String getRealmRelyingParties() {
+        return resolve(ConfigKey.REALM_RELYING_PARTIES);
+    }
+
+    /**
+     * コンテキストパラメータを上書きする設定ファイルのパスを取得します.
+     * @return 設定ファイルのパス. 使用しない場合は空文字列
+     */
+    public static String getConfigFilePath() {
+        return resolve(ConfigKey.CONFIG_FILE_PATH);
+    }
+
+    /**
+     * 設定ファイルの変更を確認する間隔 (ミリ秒) を取得します.
+     * @return 変更を確認する間隔 (ミリ秒)
+     */
+    public static Long getConfigFileCheckIntervalMillis() {
+        return resolve(ConfigKey.CONFIG_FILE_CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * 起動時にウォームアップするかを取得します.
+     * @return ウォームアップする場合はtrue
+     */
+    public static Boolean getWarmUpEnabled() {
+        return resolve(ConfigKey.WARM_UP_ENABLED);
+    }
+
+    /**
+     * ウォームアップでTOTP、ハッシュ値を生成する回数を取得します.
+     * @return 生成する回数
+     */
+    public static Integer getWarmUpIterations() {
+        return resolve(ConfigKey.WARM_UP_ITERATIONS);
+    }
+
+    /**
+     * ウォームアップを打ち切るまでの時間 (ミリ秒) を取得します.
+     * @return ウォームアップを打ち切るまでの時間 (ミリ秒)
+     */
+    public static Long getWarmUpTimeoutMillis() {
+        return resolve(ConfigKey.WARM_UP_TIMEOUT_MILLIS);
+    }
 }
@@ -5,11 +5,23 @@
  */
 package com.sios.idp.shibboleth.common;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import javax.servlet.ServletContext;
 
@@ -23,6 +35,11 @@ import com.sios.idp.shibboleth.exception.ConfigInitializationException;
  * ロードした情報を格納する{@link com.sios.idp.shibboleth.common.Config}の全てのフィールド名が
  * &lt;context-param&gt;タグ内の&lt;param-name&gt;タグに同一名で定義されている必要があります。
  * Config実装クラスのフィールドはString型のみがロード対象フィールドとして扱われます。
+ * ただし、{@link com.sios.idp.shibboleth.common.DefaultValue}が付与されたフィールドは省略可能で、
+ * 定義されていない場合は既定値がロードされます。
+ * コンテキストパラメータconfigFilePathに設定ファイル (プロパティ形式、UTF-8) が指定されている場合は、
+ * 設定ファイルの値をコンテキストパラメータより優先します。
+ * {@link AppConfig}の設定項目は{@link ConfigKey}の定数で定義し、設定値は不変の{@link ConfigSnapshot}として読み込みます。
  * @author SIOS Technology, Inc.
  */
 public class AppConfigLoader implements ConfigLoadable {
@@ -39,11 +56,15 @@ public class AppConfigLoader implements ConfigLoadable {
                 put(Integer.class, "valueOf");
                 put(Long.class, "valueOf");
                 put(Double.class, "valueOf");
+                put(Boolean.class, "valueOf");
             }
     };
     /** Class logger. */
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /** 設定ファイルのパスを指定するコンテキストパラメータ名です. */
+    public static final String CONFIG_FILE_PATH_PARAMETER = "configFilePath";
+
     /** サーブレットコンテキストを表します. */
     private ServletContext _ctx;
 
@@ -58,41 +79,191 @@ public class AppConfigLoader implements ConfigLoadable {
     /** {@inheritDoc} */
     @Override
     public void load(Class<? extends Config> configClass) throws ConfigInitializationException {
-        // Integer, Long
+        Properties file = readConfigFile();
+        Map<String, Object> values = loadValues(configClass, file);
+        if (configClass == AppConfig.class) {
+            AppConfig.setSnapshot(new ConfigSnapshot(values, getSource()));
+            return;
+        }
         try {
-            Field[] fields = configClass.getDeclaredFields();
-            for (Field f : fields) {
-                if (!f.isAccessible()) {
-                    f.setAccessible(true);
-                }
-                Class<?> fieldType = f.getType();
-                if (CONVERT_METHOD_NAMES.containsKey(fieldType)) {
-                    String convertMethodName = CONVERT_METHOD_NAMES.get(fieldType);
-                    Object val = getConfigValue(f.getName());
-                    if (convertMethodName != null) {
-                        Method m = fieldType.getMethod(convertMethodName, String.class);
-                        val = m.invoke(null, val);
+            for (Field f : configClass.getDeclaredFields()) {
+                if (values.containsKey(f.getName())) {
+                    if (!f.isAccessible()) {
+                        f.setAccessible(true);
                     }
-                    f.set(null, val);
-                    logger.debug(MessageFormat.format(
-                          "AppConfig type: {0} key: {1} value: {2}",
-                          fieldType.getName(), f.getName(), val));
+                    f.set(null, values.get(f.getName()));
+                }
+            }
+        } catch (Exception e) {
+            throw new ConfigInitializationException(e);
+        }
+    }
+
+    /**
+     * {@link AppConfig}の設定値を読み込み直し、変更がある場合はスナップショットを置き換えます.
+     * 設定値の読み込み、変換に失敗した場合は、現在のスナップショットを維持します。
+     * @return 値が変更された設定項目の名前. 変更がない場合は空
+     * @throws ConfigInitializationException 設定ファイルの読み込み、設定値の変換に失敗した場合
+     */
+    public synchronized Set<String> reload() throws ConfigInitializationException {
+        Properties file = readConfigFile();
+        ConfigSnapshot loaded = new ConfigSnapshot(loadValues(AppConfig.class, file), getSource());
+        ConfigSnapshot previous = AppConfig.getDefaultSnapshot();
+        Set<String> changed = loaded.getChangedNames(previous);
+        if (changed.isEmpty()) {
+            return Collections.emptySet();
+        }
+        AppConfig.setSnapshot(loaded);
+        logger.info(MessageFormat.format("設定値を再読み込みしました。 (バージョン：{0}, 読み込み元：{1}, 変更された設定：{2})",
+                loaded.getVersion(), loaded.getSource(), changed));
+        return changed;
+    }
+
+    /**
+     * 設定ファイルのパスを取得します.
+     * @return 設定ファイルのパス. 指定されていない場合はnull
+     */
+    public Path getConfigFilePath() {
+        String value = _ctx.getInitParameter(CONFIG_FILE_PATH_PARAMETER);
+        return value == null || value.trim().isEmpty() ? null : Paths.get(value.trim());
+    }
+
+    /**
+     * 全ての設定項目の設定値を読み込み、変換します.
+     * @param configClass 設定情報を格納するクラス
+     * @param file 設定ファイルの値
+     * @return 設定項目の名前と変換済みの値. 定義された順
+     * @throws ConfigInitializationException 設定値が定義されていない場合、値の変換に失敗した場合
+     */
+    private Map<String, Object> loadValues(Class<? extends Config> configClass, Properties file)
+            throws ConfigInitializationException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        try {
+            for (ConfigKey<?> key : getKeys(configClass)) {
+                Object val = convert(key, getConfigValue(key.getName(), key.getDefaultValue(), file));
+                values.put(key.getName(), val);
+                logger.debug(MessageFormat.format(
+                      "AppConfig type: {0} key: {1} value: {2}",
+                      key.getType().getName(), key.getName(), val));
+            }
+        } catch (Exception e) {
+            throw new ConfigInitializationException(e);
+        }
+        return values;
+    }
+
+    /**
+     * 設定情報を格納するクラスの設定項目を取得します.
+     * {@link AppConfig}の場合は{@link ConfigKey}の定数を、それ以外のクラスの場合は変換可能な型のフィールドを設定項目とします。
+     * @param configClass 設定情報を格納するクラス
+     * @return 設定項目. 定義された順
+     */
+    private static List<ConfigKey<?>> getKeys(Class<? extends Config> configClass) {
+        if (configClass == AppConfig.class) {
+            return ConfigKey.values();
+        }
+        List<ConfigKey<?>> keys = new ArrayList<ConfigKey<?>>();
+        for (Field f : configClass.getDeclaredFields()) {
+            if (CONVERT_METHOD_NAMES.containsKey(f.getType())) {
+                DefaultValue defaultValue = f.getAnnotation(DefaultValue.class);
+                keys.add(new ConfigKey<>(f.getName(), f.getType(), defaultValue == null ? null : defaultValue.value()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 文字列の設定値を設定項目の型に変換します.
+     * @param key 設定項目
+     * @param value 文字列の設定値
+     * @return 変換済みの値
+     * @throws ReflectiveOperationException 値の変換に失敗した場合
+     */
+    private static Object convert(ConfigKey<?> key, String value) throws ReflectiveOperationException {
+        String convertMethodName = CONVERT_METHOD_NAMES.get(key.getType());
+        if (convertMethodName == null) {
+            return value;
+        }
+        Method m = key.getType().getMethod(convertMethodName, String.class);
+        return m.invoke(null, value);
+    }
+
+    /**
+     * 設定ファイルを読み込みます.
+     * @return 設定ファイルの値. 設定ファイルが指定されていない場合は空
+     * @throws ConfigInitializationException 設定ファイルの読み込みに失敗した場合
+     */
+    private Properties readConfigFile() throws ConfigInitializationException {
+        Properties file = new Properties();
+        Path path = getConfigFilePath();
+        if (path == null) {
+            return file;
+        }
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            file.load(reader);
+        } catch (IOException e) {
+            throw new ConfigInitializationException(MessageFormat.format("設定ファイル {0} を読み込めません。", path), e);
+        }
+        return file;
+    }
+
+    /**
+     * 設定値の読み込み元の説明を取得します.
+     * @return 読み込み元の説明
+     */
+    private String getSource() {
+        Path path = getConfigFilePath();
+        return path == null ? "context-param" : "context-param, " + path;
+    }
+
+    /**
+     * 指定された接頭辞を付けたコンテキストパラメータから、{@link Config}の設定項目を上書きする設定値をロードします.
+     * 例えば接頭辞が「realm.a.」の場合、設定項目ldapUrlはパラメータ「realm.a.ldapUrl」から取得します。
+     * 定義されていない設定項目は結果に含めません。
+     * @param configClass 設定情報を格納するクラス
+     * @param prefix コンテキストパラメータ名の接頭辞
+     * @return 設定項目の名前と変換済みの値. 定義された順
+     * @throws ConfigInitializationException 値の変換に失敗した場合
+     */
+    public Map<String, Object> loadOverrides(Class<? extends Config> configClass, String prefix)
+            throws ConfigInitializationException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        Properties file = readConfigFile();
+        try {
+            for (ConfigKey<?> key : getKeys(configClass)) {
+                String value = file.getProperty(prefix + key.getName(), _ctx.getInitParameter(prefix + key.getName()));
+                if (value == null) {
+                    continue;
                 }
+                Object val = convert(key, value.trim());
+                values.put(key.getName(), val);
+                logger.debug(MessageFormat.format(
+                        "AppConfig prefix: {0} type: {1} key: {2} value: {3}",
+                        prefix, key.getType().getName(), key.getName(), val));
             }
         } catch (Exception e) {
             throw new ConfigInitializationException(e);
         }
+        return values;
     }
 
     /**
-     * 指定されたキーに対応する値をサーブレットコンテキストから取得します.
+     * 指定されたキーに対応する値を設定ファイル、サーブレットコンテキストの順に取得します.
      * @param key キー
+     * @param defaultValue 既定値. 省略可能な設定項目でない場合はnull
+     * @param file 設定ファイルの値
      * @return 設定値
      * @throws ConfigInitializationException {@link com.sios.shibboleth.idp.common.Config}のフィールド名と
-     *      同名のパラメータがサーブレットコンテキストに定義されていない場合
+     *      同名のパラメータがサーブレットコンテキストに定義されておらず、既定値も定義されていない場合
      */
-    private String getConfigValue(String key) throws ConfigInitializationException {
-        String value = _ctx.getInitParameter(key);
+    private String getConfigValue(String key, String defaultValue, Properties file)
+            throws ConfigInitializationException {
+        String value = file.getProperty(key, _ctx.getInitParameter(key));
+        if (value == null && defaultValue != null) {
+            logger.debug(MessageFormat.format(
+                    "ServletCotextパラメータ {0} が定義されていないため、既定値 {1} を使用します。", key, defaultValue));
+            return defaultValue;
+        }
         if (value == null) {
             throw new ConfigInitializationException(MessageFormat.format(
                     "Configurationクラスで期待されるServletCotextパラメータ {0} が定義されていません。", key));
@@ -0,0 +1,138 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.exception.ConfigInitializationException;
+
+/**
+ * 設定ファイル ({@link AppConfig}のconfigFilePath) の変更を監視し、設定値を再読み込みするクラスです.<br>
+ * configFileCheckIntervalMillis毎に設定ファイルの属性 (ファイルキー、更新日時、サイズ) を確認し、
+ * 変化した場合は{@link AppConfigLoader#reload()}でスナップショットを置き換えます。
+ * 再読み込みに失敗した場合は警告を出力し、現在のスナップショットを維持します。
+ * @author SIOS Technology, Inc.
+ */
+public final class ConfigFileWatcher {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigFileWatcher.class);
+
+    /** Singletonなインスタンス. */
+    private static ConfigFileWatcher watcher;
+
+    /** 設定情報のローダ. */
+    private final AppConfigLoader loader;
+
+    /** 監視する設定ファイル. */
+    private final Path path;
+
+    /** 設定値が変更された場合の処理. */
+    private final Consumer<Set<String>> onChange;
+
+    /** 変更を確認するExecutor. */
+    private final ScheduledExecutorService scheduler;
+
+    /** 最後に読み込んだ設定ファイルの属性. */
+    private List<Object> version;
+
+    /**
+     * コンストラクタです.
+     * @param loader 設定情報のローダ
+     * @param path 監視する設定ファイル
+     * @param onChange 設定値が変更された場合の処理. 変更された設定項目のフィールド名を受け取ります
+     */
+    private ConfigFileWatcher(AppConfigLoader loader, Path path, Consumer<Set<String>> onChange) {
+        this.loader = loader;
+        this.path = path;
+        this.onChange = onChange;
+        this.version = readVersion();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-file-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 設定ファイルの監視を開始します.
+     * 設定ファイルが指定されていない場合、または確認する間隔が0以下の場合は何もしません。
+     * @param loader 設定情報のローダ. 起動時の設定値を読み込み済みであること
+     * @param onChange 設定値が変更された場合の処理. 変更された設定項目のフィールド名を受け取ります
+     */
+    public static synchronized void start(AppConfigLoader loader, Consumer<Set<String>> onChange) {
+        stop();
+        Path path = loader.getConfigFilePath();
+        Long interval = AppConfig.getConfigFileCheckIntervalMillis();
+        if (path == null || interval == null || interval <= 0) {
+            return;
+        }
+        ConfigFileWatcher created = new ConfigFileWatcher(loader, path, onChange);
+        created.scheduler.scheduleWithFixedDelay(created::check, interval, interval, TimeUnit.MILLISECONDS);
+        watcher = created;
+        LOGGER.info("設定ファイルの監視を開始しました。 (パス：{}, 確認間隔：{}ミリ秒)", path, interval);
+    }
+
+    /**
+     * 設定ファイルの監視を停止します.
+     */
+    public static synchronized void stop() {
+        if (watcher != null) {
+            watcher.scheduler.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * 設定ファイルが変更されている場合は、設定値を再読み込みします.
+     * @return 値が変更された設定項目がある場合はtrue
+     */
+    synchronized boolean check() {
+        List<Object> current = readVersion();
+        if (current == null || current.equals(version)) {
+            return false;
+        }
+        try {
+            Set<String> changed = loader.reload();
+            version = current;
+            if (changed.isEmpty()) {
+                return false;
+            }
+            onChange.accept(changed);
+            return true;
+        } catch (ConfigInitializationException | RuntimeException e) {
+            LOGGER.warn("設定ファイル {} の再読み込みに失敗しました。現在の設定値を維持します。", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * 設定ファイルの属性を取得します.
+     * @return ファイルキー、更新日時、サイズ. 取得できない場合はnull
+     */
+    private List<Object> readVersion() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        } catch (IOException e) {
+            LOGGER.warn("設定ファイル {} の属性を取得できません。", path, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link AppConfig}の設定項目の名前、型、既定値を定義するクラスです.<br>
+ * 各定数が1つの設定項目を表し、{@link AppConfigLoader}は定義された順に全ての設定項目を読み込んで
+ * {@link ConfigSnapshot}を生成します。設定項目の名前はコンテキストパラメータ名、設定ファイルのキーと同一です。
+ * 既定値を持たない設定項目は省略できません。
+ * @param <T> 設定値の型 (String, Integer, Long, Double, Boolean)
+ * @author SIOS Technology, Inc.
+ */
+public final class ConfigKey<T> {
+
+    /** {@link AppConfig}の設定項目. 定義された順. */
+    private static final List<ConfigKey<?>> KEYS = new ArrayList<ConfigKey<?>>();
+
+    /** LDAPの接続先URLを定義します. 複数のレプリカは空白区切りで列挙します. */
+    public static final ConfigKey<String> LDAP_URL = define("ldapUrl", String.class);
+
+    /** LDAPアクセス時のバインドDNを定義します. */
+    public static final ConfigKey<String> LDAP_BIND_DN = define("ldapBindDN", String.class);
+
+    /** LDAPアクセス時のユーザパスワードを定義します. */
+    public static final ConfigKey<String> LDAP_BIND_PASSWORD = define("ldapBindPassword", String.class);
+
+    /** LDAPへSEARCHを実行する際のBASE DNを定義します. */
+    public static final ConfigKey<String> LDAP_BASE_DN = define("ldapBaseDN", String.class);
+
+    /**
+     * ユーザを検索する複数のベースDNをセミコロン区切りで定義します.
+     * 各ベースDNには「|」に続けて検索範囲 (sub, one) とタイムアウト (ミリ秒) を指定できます。空の場合はldapBaseDNのサブツリーを検索します。
+     */
+    public static final ConfigKey<String> LDAP_BASE_DNS = define("ldapBaseDNs", String.class, "");
+
+    /** LDAPへサーチを実行する際のクエリを定義します. */
+    public static final ConfigKey<String> LDAP_FILTER = define("ldapFilter", String.class);
+
+    /** 非同期LDAP DAOが非同期操作を多重化するLDAP接続の数を定義します. */
+    public static final ConfigKey<Integer> LDAP_ASYNC_CONNECTION_COUNT = define(
+            "ldapAsyncConnectionCount", Integer.class, "2");
+
+    /** 非同期LDAP DAOの操作毎のタイムアウト (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> LDAP_OPERATION_TIMEOUT_MILLIS = define(
+            "ldapOperationTimeoutMillis", Long.class, "5000");
+
+    /** 非同期LDAP DAOのレプリカの選択方式 (EWMA, LEAST_OUTSTANDING) を定義します. */
+    public static final ConfigKey<String> LDAP_REPLICA_SELECTION = define("ldapReplicaSelection", String.class, "EWMA");
+
+    /** レプリカを切り離すまでの連続失敗回数を定義します. */
+    public static final ConfigKey<Integer> LDAP_REPLICA_FAILURE_THRESHOLD = define(
+            "ldapReplicaFailureThreshold", Integer.class, "3");
+
+    /** 切り離したレプリカの死活監視の間隔 (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> LDAP_REPLICA_PROBE_INTERVAL_MILLIS = define(
+            "ldapReplicaProbeIntervalMillis", Long.class, "5000");
+
+    /** LDAP検索をヘッジするまでの遅延時間とする応答時間のパーセンタイルを定義します. 0の場合はヘッジしません. */
+    public static final ConfigKey<Integer> LDAP_HEDGE_PERCENTILE = define("ldapHedgePercentile", Integer.class, "0");
+
+    /** 集計期間毎の検索数に対するヘッジ数の上限の割合 (パーセント) を定義します. */
+    public static final ConfigKey<Integer> LDAP_HEDGE_BUDGET_PERCENT = define(
+            "ldapHedgeBudgetPercent", Integer.class, "5");
+
+    /** ヘッジ数の上限を集計する期間 (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> LDAP_HEDGE_BUDGET_WINDOW_MILLIS = define(
+            "ldapHedgeBudgetWindowMillis", Long.class, "10000");
+
+    /** LDAPの永続検索によりユーザ情報の変更を監視し、キャッシュを破棄するかを定義します. レルムでは上書きできません. */
+    public static final ConfigKey<Boolean> LDAP_CHANGE_WATCH_ENABLED = define(
+            "ldapChangeWatchEnabled", Boolean.class, "false");
+
+    /** LDAPの永続検索が終了した場合に再開するまでの時間 (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> LDAP_CHANGE_WATCH_RETRY_MILLIS = define(
+            "ldapChangeWatchRetryMillis", Long.class, "10000");
+
+    /** ldapスキームのLDAP接続でStartTLSを使用するかを定義します. */
+    public static final ConfigKey<Boolean> LDAP_START_TLS = define("ldapStartTls", Boolean.class, "false");
+
+    /** LDAPS、StartTLSでサーバ証明書の検証に使用するトラストストアのパスを定義します. 空の場合はJVMの既定値を使用します. */
+    public static final ConfigKey<String> LDAP_TRUST_STORE_PATH = define("ldapTrustStorePath", String.class, "");
+
+    /** LDAPのトラストストアのパスワードを定義します. */
+    public static final ConfigKey<String> LDAP_TRUST_STORE_PASSWORD = define(
+            "ldapTrustStorePassword", String.class, "");
+
+    /** LDAPのトラストストアの形式 (PKCS12, JKS等) を定義します. */
+    public static final ConfigKey<String> LDAP_TRUST_STORE_TYPE = define("ldapTrustStoreType", String.class, "PKCS12");
+
+    /** LDAPのTLS接続で有効にするプロトコルをカンマ区切りで定義します. 空の場合はJVMの既定値を使用します. */
+    public static final ConfigKey<String> LDAP_TLS_PROTOCOLS = define("ldapTlsProtocols", String.class, "");
+
+    /** LDAPのTLS接続で有効にする暗号スイートをカンマ区切りで定義します. 空の場合はJVMの既定値を使用します. */
+    public static final ConfigKey<String> LDAP_TLS_CIPHER_SUITES = define("ldapTlsCipherSuites", String.class, "");
+
+    /** LDAPのTLS接続でサーバ証明書のホスト名を検証するかを定義します. */
+    public static final ConfigKey<Boolean> LDAP_TLS_HOSTNAME_VERIFICATION = define(
+            "ldapTlsHostnameVerification", Boolean.class, "true");
+
+    /** LDAPのTLSセッションを再開に使用できる期間 (秒) を定義します. 0の場合は期間を制限しません. */
+    public static final ConfigKey<Integer> LDAP_TLS_SESSION_TIMEOUT_SEC = define(
+            "ldapTlsSessionTimeoutSec", Integer.class, "86400");
+
+    /** ユーザ情報のスナップショットファイルのパスを定義します. */
+    public static final ConfigKey<String> USER_SNAPSHOT_PATH = define("userSnapshotPath", String.class, "");
+
+    /** スナップショットファイルの更新を確認する間隔 (ミリ秒) を定義します. 0の場合は確認しません. */
+    public static final ConfigKey<Long> USER_SNAPSHOT_RELOAD_INTERVAL_MILLIS = define(
+            "userSnapshotReloadIntervalMillis", Long.class, "60000");
+
+    /** スナップショットの更新ジャーナルをスナップショットファイルに統合する更新件数を定義します. 0の場合は統合しません. */
+    public static final ConfigKey<Integer> USER_SNAPSHOT_COMPACT_THRESHOLD = define(
+            "userSnapshotCompactThreshold", Integer.class, "10000");
+
+    /** ユーザ名のLDAP属性名を定義します. ディレクトリ全体を走査する処理で使用します. */
+    public static final ConfigKey<String> LDAP_USER_NAME_ATTRIBUTE_NAME = define(
+            "ldapUserNameAttributeName", String.class, "uid");
+
+    /** 複数ユーザのユーザ情報をまとめて取得する際に、1回の検索で検索するユーザ数を定義します. */
+    public static final ConfigKey<Integer> USER_BATCH_SIZE = define("userBatchSize", Integer.class, "100");
+
+    /** JDBCの接続先URLを定義します. */
+    public static final ConfigKey<String> JDBC_URL = define("jdbcUrl", String.class, "");
+
+    /** JDBCの接続ユーザを定義します. 空の場合は接続先URLのみで接続します. */
+    public static final ConfigKey<String> JDBC_USER = define("jdbcUser", String.class, "");
+
+    /** JDBCの接続パスワードを定義します. */
+    public static final ConfigKey<String> JDBC_PASSWORD = define("jdbcPassword", String.class, "");
+
+    /** JDBC接続プールが同時に貸し出す接続数を定義します. */
+    public static final ConfigKey<Integer> JDBC_MAX_POOL_SIZE = define("jdbcMaxPoolSize", Integer.class, "10");
+
+    /** JDBC接続プールの接続の返却を待つ時間 (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> JDBC_BORROW_TIMEOUT_MILLIS = define(
+            "jdbcBorrowTimeoutMillis", Long.class, "5000");
+
+    /** JDBC接続毎にキャッシュするPreparedStatement数を定義します. */
+    public static final ConfigKey<Integer> JDBC_STATEMENT_CACHE_SIZE = define(
+            "jdbcStatementCacheSize", Integer.class, "32");
+
+    /** JDBCのSQLのタイムアウト (秒) を定義します. 0の場合は無制限です. */
+    public static final ConfigKey<Integer> JDBC_QUERY_TIMEOUT_SEC = define("jdbcQueryTimeoutSec", Integer.class, "5");
+
+    /** ユーザ名でユーザ情報を検索するSQLを定義します. */
+    public static final ConfigKey<String> JDBC_USER_QUERY = define(
+            "jdbcUserQuery", String.class, "SELECT immutable_id, secret_key, recovery_code FROM totp_user WHERE user_name = ?");
+
+    /** 複数ユーザのユーザ情報を検索するSQLを定義します. {0}はユーザ名のパラメータの並びに置き換えます. */
+    public static final ConfigKey<String> JDBC_USERS_QUERY = define(
+            "jdbcUsersQuery", String.class, "SELECT user_name, immutable_id, secret_key, recovery_code FROM totp_user WHERE user_name IN ({0})");
+
+    /** 複数ユーザの検索結果のユーザ名の列名を定義します. */
+    public static final ConfigKey<String> JDBC_USER_NAME_COLUMN = define(
+            "jdbcUserNameColumn", String.class, "user_name");
+
+    /** 属性値を削除するSQLを定義します. {0}は属性に対応する列名に置き換えます. */
+    public static final ConfigKey<String> JDBC_REMOVE_VALUE_QUERY = define(
+            "jdbcRemoveValueQuery", String.class, "UPDATE totp_user SET {0} = NULL WHERE user_name = ? AND {0} = ?");
+
+    /** JDBCの検索結果の列と属性の対応 (列名=属性名のカンマ区切り) を定義します. 空の場合は列名を属性名とします. */
+    public static final ConfigKey<String> JDBC_COLUMN_MAPPING = define("jdbcColumnMapping", String.class, "");
+
+    /** ユーザ情報を取得するHTTPのURLを定義します. {0}はユーザ名に置き換えます. */
+    public static final ConfigKey<String> HTTP_USER_URL = define("httpUserUrl", String.class, "");
+
+    /** 属性値を削除するHTTPのURLを定義します. {0}はユーザ情報のidに置き換えます. 空の場合は削除できません. */
+    public static final ConfigKey<String> HTTP_USER_PATCH_URL = define("httpUserPatchUrl", String.class, "");
+
+    /** HTTPのAuthorizationヘッダの値を定義します. 空の場合は送信しません. */
+    public static final ConfigKey<String> HTTP_AUTHORIZATION = define("httpAuthorization", String.class, "");
+
+    /** HTTPの接続タイムアウト (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> HTTP_CONNECT_TIMEOUT_MILLIS = define(
+            "httpConnectTimeoutMillis", Long.class, "3000");
+
+    /** HTTPのリクエストタイムアウト (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> HTTP_REQUEST_TIMEOUT_MILLIS = define(
+            "httpRequestTimeoutMillis", Long.class, "5000");
+
+    /** HTTPのレスポンスの上限サイズ (バイト) を定義します. */
+    public static final ConfigKey<Integer> HTTP_MAX_RESPONSE_BYTES = define(
+            "httpMaxResponseBytes", Integer.class, "1048576");
+
+    /** HTTPのレスポンスで複数のユーザ情報を格納するJSONのメンバー名を定義します. */
+    public static final ConfigKey<String> HTTP_RESOURCES_MEMBER = define(
+            "httpResourcesMember", String.class, "Resources");
+
+    /** 起動時にユーザ情報、復号化済み秘密鍵を先読みするかを定義します. レルムでは上書きできません. */
+    public static final ConfigKey<Boolean> PREFETCH_ENABLED = define("prefetchEnabled", Boolean.class, "false");
+
+    /** 先読みで秘密鍵の復号化に使用するCPUの割合 (パーセント) を定義します. */
+    public static final ConfigKey<Integer> PREFETCH_CPU_PERCENT = define("prefetchCpuPercent", Integer.class, "50");
+
+    /** 最近TOTPを生成したユーザ名を保存するファイルのパスを定義します. 空の場合は秘密鍵を先読みしません. */
+    public static final ConfigKey<String> PREFETCH_ACTIVE_USERS_FILE = define(
+            "prefetchActiveUsersFile", String.class, "");
+
+    /** 取得したユーザ情報をDAOに問い合わせずに使用する期間 (秒) を定義します. 0の場合は使用しません. */
+    public static final ConfigKey<Long> USER_RECORD_CACHE_TTL_SEC = define("userRecordCacheTtlSec", Long.class, "0");
+
+    /** 存在するユーザ名のBloomフィルタにより、存在しないユーザ名を検索せずに拒否するかを定義します. レルムでは上書きできません. */
+    public static final ConfigKey<Boolean> USER_NAME_FILTER_ENABLED = define(
+            "userNameFilterEnabled", Boolean.class, "false");
+
+    /** ユーザ名のBloomフィルタの誤検知率を定義します. */
+    public static final ConfigKey<Double> USER_NAME_FILTER_FPP = define("userNameFilterFpp", Double.class, "0.01");
+
+    /** ユーザ名のBloomフィルタを再構築する間隔 (秒) を定義します. 0の場合は起動時のみ構築します. */
+    public static final ConfigKey<Long> USER_NAME_FILTER_REBUILD_INTERVAL_SEC = define(
+            "userNameFilterRebuildIntervalSec", Long.class, "3600");
+
+    /** DAOのサーキットブレーカーを開く連続失敗回数を定義します. 0の場合はサーキットブレーカーを使用しません. */
+    public static final ConfigKey<Integer> DAO_CIRCUIT_BREAKER_FAILURE_THRESHOLD = define(
+            "daoCircuitBreakerFailureThreshold", Integer.class, "5");
+
+    /** DAOのユーザ情報取得を失敗とみなす応答時間 (ミリ秒) を定義します. 0の場合は応答時間で判定しません. */
+    public static final ConfigKey<Long> DAO_CIRCUIT_BREAKER_SLOW_CALL_MILLIS = define(
+            "daoCircuitBreakerSlowCallMillis", Long.class, "0");
+
+    /** DAOのサーキットブレーカーが開いてから試行を再開するまでの時間 (ミリ秒) を定義します. */
+    public static final ConfigKey<Long> DAO_CIRCUIT_BREAKER_OPEN_MILLIS = define(
+            "daoCircuitBreakerOpenMillis", Long.class, "30000");
+
+    /**
+     * ディレクトリ障害時に前回取得したユーザ情報を使用できる期間 (秒) を定義します. 0の場合は使用しません.
+     * 障害中の変更を反映できないため、ldapChangeWatchEnabledがtrueの場合 (既定のレルムのみ) に限り使用します。
+     */
+    public static final ConfigKey<Long> USER_RECORD_MAX_STALENESS_SEC = define(
+            "userRecordMaxStalenessSec", Long.class, "0");
+
+    /** 暗号アルゴリズムを定義します. */
+    public static final ConfigKey<String> CIPHER_ARGORITHM = define("cipherArgorithm", String.class);
+
+    /** SALTの値を生成するベースの長さを定数として定義します. */
+    public static final ConfigKey<Integer> SALT_LENGTH = define("saltLength", Integer.class);
+
+    /** PBEKeySpecを作成するために行なう繰り返し回数を定義します. */
+    public static final ConfigKey<Integer> ITERATION_COUNT = define("iterationCount", Integer.class);
+
+    /** 暗号化・複合化する際のbit数を定義します. */
+    public static final ConfigKey<Integer> CIPHER_KEY_LENGTH = define("cipherKeyLength", Integer.class);
+
+    /** 暗号化するために必要なインスタンスを定義します. */
+    public static final ConfigKey<String> CIPHER_TRANSFORMATION_NAME = define("cipherTransformationName", String.class);
+
+    /** ユーザ固有IDのLDAP属性名を表します. */
+    public static final ConfigKey<String> IMMUTABLE_ID_ATTRIBUTE_NAME = define(
+            "immutableIdAttributeName", String.class);
+
+    /** 秘密鍵のLDAP属性名を表します. */
+    public static final ConfigKey<String> SECRET_KEY_ATTRIBUTE_NAME = define("secretKeyAttributeName", String.class);
+
+    /** 秘密鍵パスフレーズを表します. */
+    public static final ConfigKey<String> SECRET_KEY_PASS_PHRASE = define("secretKeyPassPhrase", String.class);
+
+    /** {@link com.sios.idp.shibboleth.datasource.dao.Dao}の実装クラスの完全修飾名を表します. */
+    public static final ConfigKey<String> DAO_IMPL_CLASS_NAME = define("daoImplClassName", String.class);
+
+    /**
+     * {@link com.sios.idp.shibboleth.datasource.dao.Dao}の実装クラスに適用するデコレータを、外側から順にカンマ区切りで定義します.
+     * 組み込みのデコレータ名 (metrics, timeout, circuitBreaker, coalescing, cache) またはクラスの完全修飾名を指定します。
+     * ユーザ情報のキャッシュとディレクトリの障害時の遮断はデコレータで行うため、既定値はcache,circuitBreakerです。
+     * 変更する場合も、これらを含めない限りキャッシュと遮断は行いません。
+     */
+    public static final ConfigKey<String> DAO_DECORATORS = define("daoDecorators", String.class, "cache,circuitBreaker");
+
+    /** timeoutデコレータがDAOの応答を待つ時間 (ミリ秒) です. 0の場合、待ち時間を制限しません. */
+    public static final ConfigKey<Long> DAO_TIMEOUT_MILLIS = define("daoTimeoutMillis", Long.class, "5000");
+
+    /** timeoutデコレータが同期的なDAOを呼び出すスレッド数の上限です. */
+    public static final ConfigKey<Integer> DAO_TIMEOUT_MAX_THREADS = define(
+            "daoTimeoutMaxThreads", Integer.class, "32");
+
+    /** timeoutデコレータが同期的なDAOの呼び出しを待機させる数の上限です. 超過した呼び出しは直ちに失敗します. */
+    public static final ConfigKey<Integer> DAO_TIMEOUT_MAX_QUEUED = define("daoTimeoutMaxQueued", Integer.class, "64");
+
+    /** 秘密鍵のローテーション時に新旧両方の鍵を受け入れる重複期間 (秒) です. */
+    public static final ConfigKey<Long> SECRET_KEY_ROTATION_OVERLAP_SEC = define(
+            "secretKeyRotationOverlapSec", Long.class, "86400");
+
+    /**
+     * 復号化済み秘密鍵がキャッシュに存在する時間(秒)です. 0 (既定値) の場合、復号化済み秘密鍵をキャッシュしません.
+     * 正の値を指定すると、その間は平文の秘密鍵をヒープに保持するため、ヒープダンプ等から秘密鍵が漏洩し得ます。
+     */
+    public static final ConfigKey<Long> SECRET_KEY_CACHE_EXPIRATION_SEC = define(
+            "secretKeyCacheExpirationSec", Long.class, "0");
+
+    /** TOTP生成時のタイムステップサイズ (秒) を表します. */
+    public static final ConfigKey<Long> TIME_STEP_SEC = define("timeStepSec", Long.class);
+
+    /** TOTP桁数を表します. */
+    public static final ConfigKey<Integer> TOTP_LENGTH = define("totpLength", Integer.class);
+
+    /** TOTP認証時に許容するタイムカウントのオフセット値です. */
+    public static final ConfigKey<Integer> ALLOWED_TIME_COUNT_OFFSET = define("allowedTimeCountOffset", Integer.class);
+
+    /** TOTPがキャッシュに存在する時間(秒)です. */
+    public static final ConfigKey<Long> TOTP_CACHE_EXPIRATION_BUFFER_SEC = define(
+            "totpCacheExpirationBufferSec", Long.class);
+
+    /** TOTP認証セッションIDを記憶するCookieの名前です. */
+    public static final ConfigKey<String> TOTP_AUTHN_SESSION_ID_COOKIE_NAME = define(
+            "totpAuthnSessionIdCookieName", String.class);
+
+    /** TOTP認証セッションの発行日時を記憶するCookieの名前です. */
+    public static final ConfigKey<String> TOTP_AUTHN_SESSION_ISSUE_DATE_COOKIE_NAME = define(
+            "totpAuthnSessionIssueDateCookieName", String.class);
+
+    /** TOTP認証セッションの有効期限（秒）です. 0や負の値の場合、TOTP認証セッションを利用しません. */
+    public static final ConfigKey<Integer> TOTP_AUTHN_SESSION_EXPIRATION_SEC = define(
+            "totpAuthnSessionExpirationSec", Integer.class);
+
+    /** TOTP認証セッションIDを発行する際に利用するソルト文字列です. */
+    public static final ConfigKey<String> TOTP_AUTHN_SESSION_ID_SALT = define("totpAuthnSessionIdSalt", String.class);
+
+    /** リカバリコードのハッシュ値を格納するLDAP属性名です. 空文字の場合、リカバリコード認証を利用しません. */
+    public static final ConfigKey<String> RECOVERY_CODE_ATTRIBUTE_NAME = define(
+            "recoveryCodeAttributeName", String.class, "");
+
+    /** ユーザ毎のリカバリコードのハッシュ値がキャッシュに存在する時間(秒)です. */
+    public static final ConfigKey<Long> RECOVERY_CODE_CACHE_EXPIRATION_SEC = define(
+            "recoveryCodeCacheExpirationSec", Long.class, "300");
+
+    /** TOTP生成の完了を待つ時間(ミリ秒)です. 0以下の場合は無制限に待ちます. */
+    public static final ConfigKey<Long> TOTP_GENERATION_TIMEOUT_MILLIS = define(
+            "totpGenerationTimeoutMillis", Long.class, "0");
+
+    /** レルム名をカンマ区切りで定義します. 空の場合はレルムを使用しません. */
+    public static final ConfigKey<String> REALMS = define("realms", String.class, "");
+
+    /** ユーザ名とレルム名の区切り文字を定義します. */
+    public static final ConfigKey<String> REALM_SEPARATOR = define("realmSeparator", String.class, "@");
+
+    /** ディレクトリを検索する際に、ユーザ名からレルム名の接尾辞を取り除くかを定義します. */
+    public static final ConfigKey<Boolean> REALM_STRIP_SUFFIX = define("realmStripSuffix", Boolean.class, "true");
+
+    /** レルムを選択する依頼元のエンティティIDをカンマ区切りで定義します. レルム毎に上書きして使用します. */
+    public static final ConfigKey<String> REALM_RELYING_PARTIES = define("realmRelyingParties", String.class, "");
+
+    /**
+     * コンテキストパラメータを上書きする設定ファイル (プロパティ形式、UTF-8) のパスを定義します.
+     * 空の場合は設定ファイルを使用しません。このパラメータはコンテキストパラメータからのみ読み込みます。
+     */
+    public static final ConfigKey<String> CONFIG_FILE_PATH = define("configFilePath", String.class, "");
+
+    /** 設定ファイルの変更を確認する間隔 (ミリ秒) を定義します. 0以下の場合は起動時のみ読み込みます. */
+    public static final ConfigKey<Long> CONFIG_FILE_CHECK_INTERVAL_MILLIS = define(
+            "configFileCheckIntervalMillis", Long.class, "10000");
+
+    /** 起動時に暗号処理、キャッシュ、LDAP接続をウォームアップするかを定義します. */
+    public static final ConfigKey<Boolean> WARM_UP_ENABLED = define("warmUpEnabled", Boolean.class, "true");
+
+    /** ウォームアップでTOTP、ハッシュ値を生成する回数を定義します. */
+    public static final ConfigKey<Integer> WARM_UP_ITERATIONS = define("warmUpIterations", Integer.class, "2000");
+
+    /** ウォームアップを打ち切るまでの時間 (ミリ秒) を定義します. 0の場合、時間を制限しません. */
+    public static final ConfigKey<Long> WARM_UP_TIMEOUT_MILLIS = define("warmUpTimeoutMillis", Long.class, "30000");
+
+    /** 設定項目の名前. */
+    private final String name;
+
+    /** 設定値の型. */
+    private final Class<T> type;
+
+    /** 既定値. 省略できない設定項目の場合はnull. */
+    private final String defaultValue;
+
+    /**
+     * コンストラクタです.
+     * @param name 設定項目の名前
+     * @param type 設定値の型
+     * @param defaultValue 既定値. 省略できない設定項目の場合はnull
+     */
+    ConfigKey(String name, Class<T> type, String defaultValue) {
+        this.name = name;
+        this.type = type;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * 省略できない{@link AppConfig}の設定項目を定義します.
+     * @param <T> 設定値の型
+     * @param name 設定項目の名前
+     * @param type 設定値の型
+     * @return 設定項目
+     */
+    private static <T> ConfigKey<T> define(String name, Class<T> type) {
+        return define(name, type, null);
+    }
+
+    /**
+     * 既定値を持つ{@link AppConfig}の設定項目を定義します.
+     * @param <T> 設定値の型
+     * @param name 設定項目の名前
+     * @param type 設定値の型
+     * @param defaultValue 既定値
+     * @return 設定項目
+     */
+    private static <T> ConfigKey<T> define(String name, Class<T> type, String defaultValue) {
+        ConfigKey<T> key = new ConfigKey<T>(name, type, defaultValue);
+        KEYS.add(key);
+        return key;
+    }
+
+    /**
+     * {@link AppConfig}の全ての設定項目を取得します.
+     * @return 設定項目. 定義された順
+     */
+    public static List<ConfigKey<?>> values() {
+        return Collections.unmodifiableList(KEYS);
+    }
+
+    /**
+     * 設定項目の名前を取得します.
+     * @return 設定項目の名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 設定値の型を取得します.
+     * @return 設定値の型
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * 既定値を取得します.
+     * @return 既定値. 省略できない設定項目の場合はnull
+     */
+    public String getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ある時点で読み込んだ設定値の一式を保持する不変クラスです.<br>
+ * {@link AppConfig}は現在のスナップショットをvolatileな参照で保持し、設定ファイルの再読み込み時は
+ * スナップショット全体を置き換えます。そのため、取得メソッドは読み込みの途中の値を返却しません。
+ * 複数の取得メソッドの値を同じスナップショットから取得する場合は、
+ * {@link com.sios.idp.shibboleth.common.realm.ConfigScope}で実行中のスレッドにスナップショットを固定します。
+ * レルムの設定値は、既定のスナップショットに上書きする値を重ねたスナップショット ({@link #withOverrides(Map)}) として保持します。
+ * @author SIOS Technology, Inc.
+ */
+public final class ConfigSnapshot {
+
+    /** 読み込んだ順に採番するバージョン. */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /** 設定値を読み込む前のスナップショット. */
+    public static final ConfigSnapshot EMPTY = new ConfigSnapshot(Collections.<String, Object>emptyMap(), "-");
+
+    /** 設定項目の名前と変換済みの設定値. */
+    private final Map<String, Object> values;
+
+    /** 読み込み元の説明. */
+    private final String source;
+
+    /** バージョン. 上書きしたスナップショットは上書き元と同じ値です. */
+    private final long version;
+
+    /** 上書き元のスナップショット. 上書きしていない場合はnull. */
+    private final ConfigSnapshot base;
+
+    /**
+     * コンストラクタです.
+     * @param values 設定項目の名前と変換済みの設定値
+     * @param source 読み込み元の説明 (ログ出力用)
+     */
+    public ConfigSnapshot(Map<String, Object> values, String source) {
+        this(new LinkedHashMap<String, Object>(values), source, VERSIONS.getAndIncrement(), null);
+    }
+
+    /**
+     * コンストラクタです.
+     * @param values 設定項目の名前と変換済みの設定値. 複製せずに保持します
+     * @param source 読み込み元の説明
+     * @param version バージョン
+     * @param base 上書き元のスナップショット
+     */
+    private ConfigSnapshot(Map<String, Object> values, String source, long version, ConfigSnapshot base) {
+        this.values = Collections.unmodifiableMap(values);
+        this.source = source;
+        this.version = version;
+        this.base = base;
+    }
+
+    /**
+     * 設定値を取得します.
+     * @param <T> 設定値の型
+     * @param key 設定項目
+     * @return 設定値. 存在しない場合はnull
+     */
+    public <T> T get(ConfigKey<T> key) {
+        return key.getType().cast(values.get(key.getName()));
+    }
+
+    /**
+     * 全ての設定値を取得します.
+     * @return 設定項目の名前と変換済みの設定値
+     */
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * 読み込み元の説明を取得します.
+     * @return 読み込み元の説明
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * バージョンを取得します. 読み込む度に増加します.
+     * @return バージョン
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 上書き元のスナップショットを取得します.
+     * @return 上書き元のスナップショット. 上書きしていない場合はnull
+     */
+    public ConfigSnapshot getBase() {
+        return base;
+    }
+
+    /**
+     * 設定値の一部を上書きしたスナップショットを生成します.
+     * @param overrides 上書きする設定項目の名前と変換済みの設定値
+     * @return 上書きしたスナップショット
+     */
+    public ConfigSnapshot withOverrides(Map<String, Object> overrides) {
+        Map<String, Object> merged = new LinkedHashMap<String, Object>(values);
+        merged.putAll(overrides);
+        return new ConfigSnapshot(merged, source, version, this);
+    }
+
+    /**
+     * 指定されたスナップショットから値が変更された設定項目の名前を取得します.
+     * @param previous 変更前のスナップショット
+     * @return 追加、削除、変更された設定項目の名前. 名前順
+     */
+    public Set<String> getChangedNames(ConfigSnapshot previous) {
+        Set<String> changed = new TreeSet<String>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (!Objects.equals(entry.getValue(), previous.values.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String name : previous.values.keySet()) {
+            if (!values.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public String toString() {
+        return "ConfigSnapshot(version=" + version + ", source=" + source + ")";
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * {@link com.sios.idp.shibboleth.common.Config}のフィールドの既定値を定義するアノテーションです.
+ * 本アノテーションが付与されたフィールドは省略可能な設定項目として扱われ、
+ * 外部設定情報に定義されていない場合は既定値がロードされます。
+ * @author SIOS Technology, Inc.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface DefaultValue {
+
+    /**
+     * 既定値を文字列で取得します.
+     * @return 既定値
+     */
+    String value();
+}
@@ -5,9 +5,33 @@
  */
 package com.sios.idp.shibboleth.common;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.authn.recovery.RecoveryCodeVerifier;
+import com.sios.idp.shibboleth.authn.totp.CachePrefetcher;
+import com.sios.idp.shibboleth.authn.totp.SecretKeyCache;
+import com.sios.idp.shibboleth.authn.totp.TotpCache;
+import com.sios.idp.shibboleth.authn.totp.UserCacheInvalidator;
+import com.sios.idp.shibboleth.authn.totp.UserNameFilter;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
+import com.sios.idp.shibboleth.common.util.DeferredCloser;
+import com.sios.idp.shibboleth.datasource.dao.TimeoutDao;
+import com.sios.idp.shibboleth.datasource.http.HttpUserClient;
+import com.sios.idp.shibboleth.datasource.jdbc.JdbcConnectionPool;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.datasource.ldap.LdapChangeWatcher;
+import com.sios.idp.shibboleth.datasource.ldap.LdapTlsContext;
+import com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotStore;
 import com.sios.idp.shibboleth.exception.ConfigInitializationException;
 
 /**
@@ -16,20 +40,221 @@ import com.sios.idp.shibboleth.exception.ConfigInitializationException;
  */
 public class TotpAuthnServletContextListener implements ServletContextListener {
 
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TotpAuthnServletContextListener.class);
+
+    /** 変更時にLDAPの接続プールを作り直す設定項目です. */
+    private static final Set<String> LDAP_POOL_KEYS = names(ConfigKey.LDAP_URL, ConfigKey.LDAP_BIND_DN,
+            ConfigKey.LDAP_BIND_PASSWORD, ConfigKey.LDAP_ASYNC_CONNECTION_COUNT, ConfigKey.LDAP_OPERATION_TIMEOUT_MILLIS,
+            ConfigKey.LDAP_REPLICA_SELECTION, ConfigKey.LDAP_REPLICA_FAILURE_THRESHOLD,
+            ConfigKey.LDAP_REPLICA_PROBE_INTERVAL_MILLIS, ConfigKey.LDAP_HEDGE_PERCENTILE,
+            ConfigKey.LDAP_HEDGE_BUDGET_PERCENT, ConfigKey.LDAP_HEDGE_BUDGET_WINDOW_MILLIS, ConfigKey.LDAP_START_TLS);
+
+    /** 変更時にLDAPのTLSの設定と接続プールを作り直す設定項目です. */
+    private static final Set<String> LDAP_TLS_KEYS = names(ConfigKey.LDAP_TRUST_STORE_PATH,
+            ConfigKey.LDAP_TRUST_STORE_PASSWORD, ConfigKey.LDAP_TRUST_STORE_TYPE, ConfigKey.LDAP_TLS_PROTOCOLS,
+            ConfigKey.LDAP_TLS_CIPHER_SUITES, ConfigKey.LDAP_TLS_HOSTNAME_VERIFICATION,
+            ConfigKey.LDAP_TLS_SESSION_TIMEOUT_SEC);
+
+    /** 変更時にJDBCの接続プールを作り直す設定項目です. SQL等、呼び出し毎に参照する設定項目は含めません. */
+    private static final Set<String> JDBC_POOL_KEYS = names(ConfigKey.JDBC_URL, ConfigKey.JDBC_USER,
+            ConfigKey.JDBC_PASSWORD, ConfigKey.JDBC_MAX_POOL_SIZE, ConfigKey.JDBC_BORROW_TIMEOUT_MILLIS,
+            ConfigKey.JDBC_STATEMENT_CACHE_SIZE);
+
+    /** 変更時にHTTPクライアントを作り直す設定項目です. */
+    private static final Set<String> HTTP_CLIENT_KEYS = names(ConfigKey.HTTP_USER_URL, ConfigKey.HTTP_USER_PATCH_URL,
+            ConfigKey.HTTP_AUTHORIZATION, ConfigKey.HTTP_CONNECT_TIMEOUT_MILLIS, ConfigKey.HTTP_REQUEST_TIMEOUT_MILLIS,
+            ConfigKey.HTTP_MAX_RESPONSE_BYTES, ConfigKey.HTTP_RESOURCES_MEMBER);
+
+    /** 変更時にスナップショットファイルを開き直す設定項目です. */
+    private static final Set<String> USER_SNAPSHOT_KEYS = names(ConfigKey.USER_SNAPSHOT_PATH,
+            ConfigKey.USER_SNAPSHOT_RELOAD_INTERVAL_MILLIS);
+
+    /** 変更時にTOTPキャッシュを作り直す設定項目です. */
+    private static final Set<String> TOTP_CACHE_KEYS = names(ConfigKey.TIME_STEP_SEC,
+            ConfigKey.ALLOWED_TIME_COUNT_OFFSET, ConfigKey.TOTP_CACHE_EXPIRATION_BUFFER_SEC);
+
+    /** 起動時のみ読み込み、変更の反映に再起動が必要な設定項目です. */
+    private static final Set<String> RESTART_REQUIRED_KEYS = names(ConfigKey.REALMS, ConfigKey.REALM_SEPARATOR,
+            ConfigKey.REALM_STRIP_SUFFIX, ConfigKey.REALM_RELYING_PARTIES, ConfigKey.CONFIG_FILE_PATH,
+            ConfigKey.CONFIG_FILE_CHECK_INTERVAL_MILLIS, ConfigKey.LDAP_CHANGE_WATCH_ENABLED,
+            ConfigKey.LDAP_CHANGE_WATCH_RETRY_MILLIS, ConfigKey.USER_NAME_FILTER_ENABLED, ConfigKey.USER_NAME_FILTER_FPP,
+            ConfigKey.USER_NAME_FILTER_REBUILD_INTERVAL_SEC, ConfigKey.PREFETCH_ENABLED, ConfigKey.PREFETCH_CPU_PERCENT,
+            ConfigKey.PREFETCH_ACTIVE_USERS_FILE, ConfigKey.RECOVERY_CODE_CACHE_EXPIRATION_SEC,
+            ConfigKey.DAO_TIMEOUT_MAX_THREADS, ConfigKey.DAO_TIMEOUT_MAX_QUEUED);
+
     /** {@inheritDoc} */
     @Override
     public void contextDestroyed(ServletContextEvent arg0) {
-        // no implementation.
+        ConfigFileWatcher.stop();
+        WarmUp.stop();
+        RealmRegistry.shutdown(TotpAuthnServletContextListener::shutdownRealm);
+        CachePrefetcher.stop();
+        UserNameFilter.stop();
+        LdapChangeWatcher.stop();
+        AsyncLdapConnectionPool.shutdown();
+        LdapTlsContext.shutdown();
+        JdbcConnectionPool.shutdown();
+        HttpUserClient.shutdown();
+        TimeoutDao.shutdown();
+        UserSnapshotStore.shutdown();
+        DeferredCloser.shutdown();
     }
 
     /** {@inheritDoc} */
     @Override
     public void contextInitialized(ServletContextEvent event) {
-        ConfigLoadable loader = new AppConfigLoader(event.getServletContext());
+        AppConfigLoader loader = new AppConfigLoader(event.getServletContext());
         try {
             loader.load(AppConfig.class);
+            RealmRegistry.load(loader);
         } catch (ConfigInitializationException e) {
             throw new RuntimeException("AppConfigの初期化に失敗しました。", e);
         }
+        Long stalenessSec = AppConfig.getUserRecordMaxStalenessSec();
+        if (stalenessSec != null && stalenessSec > 0 && !Boolean.TRUE.equals(AppConfig.getLdapChangeWatchEnabled())) {
+            LOGGER.warn("ldapChangeWatchEnabledがtrueでないため、userRecordMaxStalenessSec ({}秒) は無効です。"
+                    + "ディレクトリの障害時に前回取得したユーザ情報を使用しません。", stalenessSec);
+        }
+        if (Boolean.TRUE.equals(AppConfig.getLdapChangeWatchEnabled())) {
+            LdapChangeWatcher.start(UserCacheInvalidator::invalidate, UserNameFilter.getInstance()::put,
+                    UserCacheInvalidator::invalidateAll);
+        }
+        if (Boolean.TRUE.equals(AppConfig.getUserNameFilterEnabled())) {
+            UserNameFilter.start();
+        }
+        if (Boolean.TRUE.equals(AppConfig.getPrefetchEnabled())) {
+            CachePrefetcher.start();
+        }
+        // 起動を遅延させないよう、ウォームアップはバックグラウンドで実行する
+        WarmUp.start();
+        ConfigFileWatcher.start(loader, TotpAuthnServletContextListener::applyConfigChanges);
+    }
+
+    /**
+     * 再読み込みで変更された設定値を、設定値から生成したインスタンスに反映します.
+     * 接続プール等は新しい設定値で生成したインスタンスに置き換え、古いインスタンスは処理中の要求の完了後に停止します。
+     * レルムのインスタンスには、レルムで上書きしていない設定項目の変更のみを反映します。
+     * @param names 値が変更された設定項目の名前
+     */
+    static void applyConfigChanges(Set<String> names) {
+        Set<String> restartRequired = new TreeSet<String>();
+        for (String name : names) {
+            if (RESTART_REQUIRED_KEYS.contains(name)) {
+                restartRequired.add(name);
+            }
+        }
+        if (!restartRequired.isEmpty()) {
+            LOGGER.warn("設定項目 {} の変更は、再起動するまで反映されません。", restartRequired);
+        }
+        reconfigure(names);
+        for (Realm realm : RealmRegistry.getInstance().getRealms()) {
+            Set<String> inherited = new TreeSet<String>();
+            for (String name : names) {
+                if (!realm.overrides(name)) {
+                    inherited.add(name);
+                }
+            }
+            try {
+                Realm.execute(realm, () -> {
+                    reconfigure(inherited);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                LOGGER.warn("レルム {} への設定値の反映に失敗しました。", realm, e);
+            }
+        }
+    }
+
+    /**
+     * 実行中のレルムのインスタンスに、変更された設定値を反映します.
+     * @param names 値が変更された設定項目の名前
+     */
+    private static void reconfigure(Set<String> names) {
+        boolean tls = containsAny(names, LDAP_TLS_KEYS);
+        if (tls) {
+            LdapTlsContext.shutdown();
+        }
+        if (tls || containsAny(names, LDAP_POOL_KEYS)) {
+            reconfigure("LDAP接続プール", () -> {
+                AsyncLdapConnectionPool.reconfigure();
+                return null;
+            });
+        }
+        if (containsAny(names, JDBC_POOL_KEYS)) {
+            reconfigure("JDBC接続プール", () -> {
+                JdbcConnectionPool.reconfigure();
+                return null;
+            });
+        }
+        if (containsAny(names, HTTP_CLIENT_KEYS)) {
+            reconfigure("HTTPクライアント", () -> {
+                HttpUserClient.reconfigure();
+                return null;
+            });
+        }
+        if (containsAny(names, USER_SNAPSHOT_KEYS)) {
+            reconfigure("ユーザ情報のスナップショット", () -> {
+                UserSnapshotStore.reconfigure();
+                return null;
+            });
+        }
+        if (containsAny(names, TOTP_CACHE_KEYS)) {
+            TotpCache.getInstance().reconfigure();
+        }
+        if (names.contains(ConfigKey.SECRET_KEY_CACHE_EXPIRATION_SEC.getName())) {
+            SecretKeyCache.getInstance().reconfigure();
+        }
+    }
+
+    /**
+     * インスタンスを新しい設定値で生成したインスタンスに置き換えます.
+     * 生成に失敗した場合は警告を出力し、現在のインスタンスを継続して使用します。
+     * @param description インスタンスの説明 (ログ出力用)
+     * @param action 置き換える処理
+     */
+    private static void reconfigure(String description, Realm.Action<Void, Exception> action) {
+        try {
+            action.execute();
+        } catch (Exception e) {
+            LOGGER.warn("{}を新しい設定値で生成できないため、現在のインスタンスを継続して使用します。 (レルム：{})",
+                    description, Realm.current(), e);
+        }
+    }
+
+    /**
+     * 値が変更された設定項目に、指定された設定項目のいずれかが含まれるかを判定します.
+     * @param names 値が変更された設定項目の名前
+     * @param keys 判定する設定項目の名前
+     * @return いずれかが含まれる場合はtrue
+     */
+    private static boolean containsAny(Set<String> names, Set<String> keys) {
+        return !Collections.disjoint(names, keys);
+    }
+
+    /**
+     * 設定項目の名前の集合を生成します.
+     * @param keys 設定項目
+     * @return 設定項目の名前の集合
+     */
+    private static Set<String> names(ConfigKey<?>... keys) {
+        Set<String> names = new HashSet<String>();
+        for (ConfigKey<?> key : keys) {
+            names.add(key.getName());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * 実行中のレルムのインスタンスを停止します.
+     * 変更監視、先読み、Bloomフィルタは既定の設定でのみ動作するため、レルム毎の停止は不要です。
+     */
+    private static void shutdownRealm() {
+        Realm.current().removeComponent(RecoveryCodeVerifier.class);
+        AsyncLdapConnectionPool.shutdown();
+        LdapTlsContext.shutdown();
+        JdbcConnectionPool.shutdown();
+        HttpUserClient.shutdown();
+        UserSnapshotStore.shutdown();
     }
 }
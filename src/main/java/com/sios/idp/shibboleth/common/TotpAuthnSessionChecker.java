@@ -57,14 +57,16 @@ public class TotpAuthnSessionChecker {
             return false;
         }
 
+        final String sessionIdCookieName = AppConfig.getTotpAuthnSessionIdCookieName();
+        final String issueDateCookieName = AppConfig.getTotpAuthnSessionIssueDateCookieName();
         String actualSessionId = null;
         String issueDateString = null;
         for (final Cookie cookie : cookies) {
             final String cookieName = cookie.getName();
-            if (AppConfig.getTotpAuthnSessionIdCookieName().equals(cookieName)) {
+            if (sessionIdCookieName.equals(cookieName)) {
                 actualSessionId = cookie.getValue();
                 logger.debug("TOTP認証セッションID : {}", actualSessionId);
-            } else if (AppConfig.getTotpAuthnSessionIssueDateCookieName().equals(cookieName)) {
+            } else if (issueDateCookieName.equals(cookieName)) {
                 issueDateString = cookie.getValue();
                 logger.debug("処理日時 : {}", issueDateString);
             }
@@ -0,0 +1,198 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.authn.totp.SecretKeyCache;
+import com.sios.idp.shibboleth.authn.totp.Totp;
+import com.sios.idp.shibboleth.authn.totp.TotpCache;
+import com.sios.idp.shibboleth.authn.totp.TotpCounter;
+import com.sios.idp.shibboleth.authn.totp.TotpGenerator;
+import com.sios.idp.shibboleth.authn.totp.UserRecordCache;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
+import com.sios.idp.shibboleth.common.util.Aes;
+import com.sios.idp.shibboleth.common.util.Sha256;
+import com.sios.idp.shibboleth.datasource.dao.AsyncLdapDaoImpl;
+import com.sios.idp.shibboleth.datasource.dao.Dao;
+import com.sios.idp.shibboleth.datasource.dao.DaoDecorator;
+import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.exception.DaoInstantiationException;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * 起動時に、初回の認証で発生するクラスのロード、JITコンパイル、暗号プロバイダの検索、接続の確立を済ませるクラスです.<br>
+ * 合成した秘密鍵でTOTPの生成、ハッシュ値の計算、秘密鍵の暗号化と復号化を繰り返し、
+ * TOTP、秘密鍵、ユーザ情報のキャッシュを生成して、非同期LDAPのDAOの場合は接続プールの全ての接続を確立します。
+ * JNDIのDAO ({@link com.sios.idp.shibboleth.datasource.dao.LdapDaoImpl}) は接続をプールしないため、接続は確立しません。
+ * レルムが定義されている場合は、レルム毎のキャッシュ、接続も生成します。
+ * 起動を遅延させないよう、{@link #start()}によりデーモンスレッドで実行し、warmUpTimeoutMillisを超過した場合は
+ * 次の処理に進まずに打ち切ります (実行中の接続の確立はldapOperationTimeoutMillisで打ち切られます)。
+ * ウォームアップの失敗は警告を出力するのみで、起動は継続します。
+ * @author SIOS Technology, Inc.
+ */
+public final class WarmUp {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmUp.class);
+
+    /** キャッシュの参照に使用する、実在しないユーザ固有IDです. */
+    private static final String SYNTHETIC_USER_ID = "\u0000warm-up";
+
+    /** 合成する秘密鍵の長さ (バイト). */
+    private static final int SYNTHETIC_KEY_LENGTH = 20;
+
+    /** ウォームアップを実行するスレッド. */
+    private static Thread thread;
+
+    /**
+     * privateコンストラクタ. 外部からのインスタンス生成を許可しません.
+     */
+    private WarmUp() {
+    }
+
+    /**
+     * ウォームアップをデーモンスレッドで開始します. warmUpEnabledがfalseの場合、既に開始している場合は何もしません.
+     */
+    public static synchronized void start() {
+        if (Boolean.FALSE.equals(AppConfig.getWarmUpEnabled()) || thread != null) {
+            return;
+        }
+        thread = new Thread(WarmUp::run, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 実行中のウォームアップを中断します.
+     */
+    public static synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * ウォームアップを呼び出し元のスレッドで実行します.
+     * warmUpEnabledがfalseの場合は、ウォームアップせずに完了とします。
+     * warmUpTimeoutMillisを超過した場合、または中断された場合は、残りの処理を行わずに完了とします。
+     * @return 所要時間 (ミリ秒)
+     */
+    public static long run() {
+        long start = System.nanoTime();
+        if (Boolean.FALSE.equals(AppConfig.getWarmUpEnabled())) {
+            return 0L;
+        }
+        Long timeoutMillis = AppConfig.getWarmUpTimeoutMillis();
+        long deadline = timeoutMillis == null || timeoutMillis <= 0
+                ? Long.MAX_VALUE : start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Integer iterations = AppConfig.getWarmUpIterations();
+        exerciseCrypto(iterations == null ? 0 : Math.max(iterations, 0), deadline);
+        if (!isExpired(deadline)) {
+            exerciseComponents();
+        }
+        for (Realm realm : RealmRegistry.getInstance().getRealms()) {
+            if (isExpired(deadline)) {
+                break;
+            }
+            Realm.execute(realm, () -> {
+                exerciseComponents();
+                return null;
+            });
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (isExpired(deadline)) {
+            LOGGER.warn("ウォームアップを打ち切りました。 (所要時間：{}ミリ秒, warmUpTimeoutMillis：{})",
+                    elapsed, timeoutMillis);
+        } else {
+            LOGGER.info("ウォームアップが完了しました。 (所要時間：{}ミリ秒, 繰り返し回数：{}, レルム数：{})",
+                    elapsed, iterations, RealmRegistry.getInstance().getRealms().size());
+        }
+        return elapsed;
+    }
+
+    /**
+     * ウォームアップを打ち切るかを判定します.
+     * @param deadline 打ち切る時刻 ({@link System#nanoTime()})
+     * @return 打ち切る時刻を過ぎた場合、実行中のスレッドが中断された場合はtrue
+     */
+    private static boolean isExpired(long deadline) {
+        return Thread.currentThread().isInterrupted() || System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * 合成した秘密鍵で、TOTPの生成、ハッシュ値の計算、秘密鍵の暗号化と復号化を実行します.
+     * @param iterations TOTP、ハッシュ値を生成する回数
+     * @param deadline 打ち切る時刻 ({@link System#nanoTime()})
+     */
+    private static void exerciseCrypto(int iterations, long deadline) {
+        long start = System.nanoTime();
+        byte[] key = new byte[SYNTHETIC_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        try {
+            long timeCounter = new TotpCounter(AppConfig.getTimeStepSec()).getTimeCount();
+            int totpLength = AppConfig.getTotpLength();
+            for (int i = 0; i < iterations && !isExpired(deadline); i++) {
+                new TotpGenerator(key, timeCounter - i, totpLength).generateTotp();
+                Sha256.hash(SYNTHETIC_USER_ID + i);
+            }
+            String passPhrase = Arrays.toString(key);
+            Aes.decrypt(passPhrase, Aes.encrypt(passPhrase, SYNTHETIC_USER_ID));
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            LOGGER.warn("暗号処理のウォームアップに失敗しました。", e);
+            return;
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        LOGGER.debug("暗号処理のウォームアップが完了しました。 (所要時間：{}ミリ秒)",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 実行中のレルムのキャッシュ、DAOを生成し、LDAPの接続を確立します.
+     */
+    private static void exerciseComponents() {
+        long start = System.nanoTime();
+        try {
+            TotpCache.getInstance().isAvailable(SYNTHETIC_USER_ID, new Totp(SYNTHETIC_USER_ID, 0L, ""));
+            SecretKeyCache.getInstance().get(SYNTHETIC_USER_ID, "");
+            UserRecordCache.getInstance().getFresh(SYNTHETIC_USER_ID);
+        } catch (RuntimeException e) {
+            LOGGER.warn("キャッシュのウォームアップに失敗しました。 (レルム：{})", Realm.current(), e);
+        }
+        Dao dao;
+        try {
+            dao = DaoFactory.getInstance().createInstance();
+        } catch (DaoInstantiationException | RuntimeException e) {
+            LOGGER.warn("DAOのウォームアップに失敗しました。 (レルム：{})", Realm.current(), e);
+            return;
+        }
+        while (dao instanceof DaoDecorator) {
+            dao = ((DaoDecorator) dao).getDelegate();
+        }
+        int opened = 0;
+        try {
+            if (dao instanceof AsyncLdapDaoImpl) {
+                opened = AsyncLdapConnectionPool.getInstance().connectAll();
+            }
+        } catch (LDAPException | RuntimeException e) {
+            LOGGER.warn("LDAP接続のウォームアップに失敗しました。 (レルム：{}, 理由：{})", Realm.current(), e.getMessage());
+        }
+        LOGGER.debug("キャッシュ、DAOのウォームアップが完了しました。 (レルム：{}, DAO：{}, 確立したLDAP接続数：{}, 所要時間：{}ミリ秒)",
+                Realm.current(), dao.getClass().getSimpleName(), opened,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
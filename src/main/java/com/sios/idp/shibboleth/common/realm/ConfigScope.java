@@ -0,0 +1,71 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common.realm;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.ConfigSnapshot;
+
+/**
+ * 実行中のスレッドに{@link ConfigSnapshot}を固定する範囲を管理するクラスです.<br>
+ * {@link AppConfig}の取得メソッドは呼び出しの度に最新のスナップショットを参照するため、1回の認証等の一連の処理は
+ * {@link #pin(Realm.Action)}で実行し、処理中に設定ファイルが再読み込みされても同じスナップショットの値を使用します。
+ * 固定したスナップショットは、{@link Realm#bind(Runnable)}等で別のスレッドで実行する処理に引き継ぎます。
+ * @author SIOS Technology, Inc.
+ */
+public final class ConfigScope {
+
+    /** 実行中のスレッドに固定した既定のスナップショット. */
+    private static final ThreadLocal<ConfigSnapshot> PINNED = new ThreadLocal<ConfigSnapshot>();
+
+    /**
+     * privateコンストラクタ. 外部からのインスタンス生成を許可しません.
+     */
+    private ConfigScope() { }
+
+    /**
+     * 実行中のスレッドに固定されている既定のスナップショットを取得します.
+     * @return スナップショット. 固定されていない場合はnull
+     */
+    public static ConfigSnapshot current() {
+        return PINNED.get();
+    }
+
+    /**
+     * 現在の既定のスナップショットを実行中のスレッドに固定して処理を実行します.
+     * 処理中に設定ファイルが再読み込みされても、{@link AppConfig}の取得メソッドは固定したスナップショットの値を返却します。
+     * 既に固定されている場合は、固定済みのスナップショットのまま実行します。
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     * @param action 処理
+     * @return 処理結果
+     * @throws E 処理が失敗した場合
+     */
+    public static <T, E extends Exception> T pin(Realm.Action<T, E> action) throws E {
+        return pin(PINNED.get() == null ? AppConfig.getDefaultSnapshot() : null, action);
+    }
+
+    /**
+     * 指定されたスナップショットを実行中のスレッドに固定して処理を実行します. 終了後は固定を解除します.
+     * 既に固定されている場合、またはスナップショットがnullの場合は、固定の状態を変更せずに実行します。
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     * @param pinned 固定する既定のスナップショット
+     * @param action 処理
+     * @return 処理結果
+     * @throws E 処理が失敗した場合
+     */
+    static <T, E extends Exception> T pin(ConfigSnapshot pinned, Realm.Action<T, E> action) throws E {
+        if (pinned == null || PINNED.get() != null) {
+            return action.execute();
+        }
+        PINNED.set(pinned);
+        try {
+            return action.execute();
+        } finally {
+            PINNED.remove();
+        }
+    }
+}
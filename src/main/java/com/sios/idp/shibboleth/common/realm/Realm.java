@@ -0,0 +1,340 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common.realm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.sios.idp.shibboleth.common.ConfigKey;
+import com.sios.idp.shibboleth.common.ConfigSnapshot;
+
+/**
+ * 1つの組織 (テナント) のディレクトリ、TOTPの設定、キャッシュを分離する単位 (レルム) を表すクラスです.<br>
+ * レルムは{@link com.sios.idp.shibboleth.common.AppConfig}の設定値の一部を上書きし、
+ * DAO、接続プール、TOTPキャッシュ等のSingletonなインスタンスをレルム毎に保持します。
+ * 実行中のスレッドに束縛されたレルム ({@link #current()}) がある場合、AppConfigの取得メソッドはレルムの設定値を返却し、
+ * 各クラスの getInstance() はレルムのインスタンスを返却します。
+ * 非同期処理の継続は別のスレッドで実行されるため、{@link #bind(Runnable)}等で呼び出し元のレルムを引き継ぎます。
+ * 呼び出し元で{@link ConfigScope#pin(Action)}によりスナップショットが固定されている場合は、スナップショットも引き継ぎます。
+ * @author SIOS Technology, Inc.
+ */
+public final class Realm {
+
+    /** 実行中のスレッドに束縛されたレルム. */
+    private static final ThreadLocal<Realm> CURRENT = new ThreadLocal<Realm>();
+
+    /** レルム毎のキーを連結する際の区切り文字です. */
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    /** レルム名. */
+    private final String name;
+
+    /** 上書きする設定値 (AppConfigの設定項目の名前と変換済みの値). */
+    private final Map<String, Object> parameters;
+
+    /** レルムのSingletonなインスタンス. */
+    private final ConcurrentMap<Class<?>, Object> components = new ConcurrentHashMap<Class<?>, Object>();
+
+    /** 既定のスナップショットにレルムの設定値を上書きしたスナップショット. */
+    private volatile ConfigSnapshot snapshot;
+
+    /**
+     * コンストラクタです.
+     * @param name レルム名
+     * @param parameters 上書きする設定値 (AppConfigの設定項目の名前と変換済みの値)
+     */
+    public Realm(String name, Map<String, Object> parameters) {
+        this.name = name;
+        this.parameters = Collections.unmodifiableMap(new HashMap<String, Object>(parameters));
+    }
+
+    /**
+     * 実行中のスレッドに束縛されたレルムを取得します.
+     * @return レルム. 束縛されていない (既定の設定を使用する) 場合はnull
+     */
+    public static Realm current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 指定されたキーを実行中のレルムで修飾します.
+     * レルム間で共有するキャッシュ、同時実行の集約等のキーが衝突しないよう使用します。
+     * @param key キー
+     * @return レルムに束縛されていない場合はキー、束縛されている場合はレルム名を連結したキー
+     */
+    public static String qualify(String key) {
+        Realm realm = CURRENT.get();
+        return realm == null ? key : realm.name + KEY_SEPARATOR + key;
+    }
+
+    /**
+     * レルム名を取得します.
+     * @return レルム名
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 上書きする設定値を取得します.
+     * @param <T> 設定値の型
+     * @param key 設定項目
+     * @param defaultValue 上書きされていない場合の値
+     * @return 上書きされている場合はレルムの設定値、それ以外は既定値
+     */
+    public <T> T getParameter(ConfigKey<T> key, T defaultValue) {
+        Object value = parameters.get(key.getName());
+        return value == null ? defaultValue : key.getType().cast(value);
+    }
+
+    /**
+     * 既定のスナップショットにレルムの設定値を上書きしたスナップショットを取得します.
+     * 既定のスナップショットが置き換えられるまでは、同じインスタンスを返却します。
+     * @param base 既定のスナップショット
+     * @return レルムのスナップショット
+     */
+    public ConfigSnapshot getSnapshot(ConfigSnapshot base) {
+        ConfigSnapshot current = snapshot;
+        if (current == null || current.getBase() != base) {
+            current = base.withOverrides(parameters);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    /**
+     * レルムで上書きされた設定値の名前を取得します.
+     * @param parameterName AppConfigの設定項目の名前
+     * @return 上書きされている場合はtrue
+     */
+    public boolean overrides(String parameterName) {
+        return parameters.containsKey(parameterName);
+    }
+
+    /**
+     * レルムのSingletonなインスタンスを取得します. 存在しない場合は生成して保持します.
+     * @param <T> インスタンスの型
+     * @param <E> 生成時の例外の型
+     * @param type インスタンスのクラス
+     * @param factory インスタンスの生成処理. レルムを束縛したスレッドで実行します
+     * @return インスタンス
+     * @throws E インスタンスの生成に失敗した場合
+     */
+    public <T, E extends Exception> T getComponent(Class<T> type, Action<T, E> factory) throws E {
+        Object component = components.get(type);
+        if (component != null) {
+            return type.cast(component);
+        }
+        synchronized (components) {
+            component = components.get(type);
+            if (component == null) {
+                component = execute(factory);
+                components.put(type, component);
+            }
+            return type.cast(component);
+        }
+    }
+
+    /**
+     * レルムのSingletonなインスタンスを破棄します.
+     * @param <T> インスタンスの型
+     * @param type インスタンスのクラス
+     * @return 破棄したインスタンス. 存在しない場合はnull
+     */
+    public <T> T removeComponent(Class<T> type) {
+        synchronized (components) {
+            return type.cast(components.remove(type));
+        }
+    }
+
+    /**
+     * レルムのSingletonなインスタンスを新しく生成したインスタンスに置き換えます.
+     * 存在しない場合は生成せず、次回の{@link #getComponent(Class, Action)}で生成します。
+     * @param <T> インスタンスの型
+     * @param <E> 生成時の例外の型
+     * @param type インスタンスのクラス
+     * @param factory インスタンスの生成処理. レルムを束縛したスレッドで実行します
+     * @return 置き換えたインスタンス. 存在しなかった場合はnull
+     * @throws E インスタンスの生成に失敗した場合. 置き換えず、元のインスタンスを保持します
+     */
+    public <T, E extends Exception> T replaceComponent(Class<T> type, Action<T, E> factory) throws E {
+        synchronized (components) {
+            if (!components.containsKey(type)) {
+                return null;
+            }
+            T created = execute(factory);
+            return type.cast(components.put(type, created));
+        }
+    }
+
+    /**
+     * レルムを実行中のスレッドに束縛して処理を実行します. 終了後は元のレルムに戻します.
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     * @param action 処理
+     * @return 処理結果
+     * @throws E 処理が失敗した場合
+     */
+    public <T, E extends Exception> T execute(Action<T, E> action) throws E {
+        return execute(this, action);
+    }
+
+    /**
+     * 指定されたレルムを実行中のスレッドに束縛して処理を実行します. 終了後は元のレルムに戻します.
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     * @param realm レルム. nullの場合は既定の設定で実行します
+     * @param action 処理
+     * @return 処理結果
+     * @throws E 処理が失敗した場合
+     */
+    public static <T, E extends Exception> T execute(Realm realm, Action<T, E> action) throws E {
+        Realm previous = CURRENT.get();
+        if (previous == realm) {
+            return action.execute();
+        }
+        set(realm);
+        try {
+            return action.execute();
+        } finally {
+            set(previous);
+        }
+    }
+
+    /**
+     * 呼び出し元のレルムで実行する処理を生成します.
+     * @param task 処理
+     * @return 呼び出し元のレルムを束縛して実行する処理
+     */
+    public static Runnable bind(Runnable task) {
+        return bind(CURRENT.get(), task);
+    }
+
+    /**
+     * 指定されたレルムで実行する処理を生成します. スレッドのFactory等、生成時とは別のレルムを指定する場合に使用します.
+     * @param realm レルム. nullの場合は既定の設定で実行します
+     * @param task 処理
+     * @return 指定されたレルムを束縛して実行する処理
+     */
+    public static Runnable bind(Realm realm, Runnable task) {
+        ConfigSnapshot pinned = ConfigScope.current();
+        return () -> execute(realm, pinned, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * 呼び出し元のレルムで実行する処理を生成します.
+     * @param <T> 処理結果の型
+     * @param supplier 処理
+     * @return 呼び出し元のレルムを束縛して実行する処理
+     */
+    public static <T> Supplier<T> bind(Supplier<T> supplier) {
+        Realm realm = CURRENT.get();
+        ConfigSnapshot pinned = ConfigScope.current();
+        return () -> execute(realm, pinned, supplier::get);
+    }
+
+    /**
+     * 呼び出し元のレルムで実行する処理を生成します.
+     * @param <T> 引数の型
+     * @param <R> 処理結果の型
+     * @param function 処理
+     * @return 呼び出し元のレルムを束縛して実行する処理
+     */
+    public static <T, R> Function<T, R> bind(Function<T, R> function) {
+        Realm realm = CURRENT.get();
+        ConfigSnapshot pinned = ConfigScope.current();
+        return value -> execute(realm, pinned, () -> function.apply(value));
+    }
+
+    /**
+     * 呼び出し元のレルムで実行する処理を生成します.
+     * @param <T> 1つ目の引数の型
+     * @param <U> 2つ目の引数の型
+     * @param <R> 処理結果の型
+     * @param function 処理
+     * @return 呼び出し元のレルムを束縛して実行する処理
+     */
+    public static <T, U, R> BiFunction<T, U, R> bind(BiFunction<T, U, R> function) {
+        Realm realm = CURRENT.get();
+        ConfigSnapshot pinned = ConfigScope.current();
+        return (value1, value2) -> execute(realm, pinned, () -> function.apply(value1, value2));
+    }
+
+    /**
+     * 呼び出し元のレルムで実行する処理を生成します.
+     * @param <T> 1つ目の引数の型
+     * @param <U> 2つ目の引数の型
+     * @param consumer 処理
+     * @return 呼び出し元のレルムを束縛して実行する処理
+     */
+    public static <T, U> BiConsumer<T, U> bind(BiConsumer<T, U> consumer) {
+        Realm realm = CURRENT.get();
+        ConfigSnapshot pinned = ConfigScope.current();
+        return (value1, value2) -> execute(realm, pinned, () -> {
+            consumer.accept(value1, value2);
+            return null;
+        });
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * 呼び出し元で固定されていたスナップショットとレルムを束縛して処理を実行します.
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     * @param realm レルム
+     * @param pinned 呼び出し元で固定されていたスナップショット. 固定されていなかった場合はnull
+     * @param action 処理
+     * @return 処理結果
+     * @throws E 処理が失敗した場合
+     */
+    private static <T, E extends Exception> T execute(Realm realm, ConfigSnapshot pinned, Action<T, E> action)
+            throws E {
+        return ConfigScope.pin(pinned, () -> execute(realm, action));
+    }
+
+    /**
+     * 実行中のスレッドにレルムを束縛します.
+     * @param realm レルム. nullの場合は束縛を解除します
+     */
+    private static void set(Realm realm) {
+        if (realm == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(realm);
+        }
+    }
+
+    /**
+     * レルムを束縛して実行する処理です.
+     * @param <T> 処理結果の型
+     * @param <E> 処理の例外の型
+     */
+    @FunctionalInterface
+    public interface Action<T, E extends Exception> {
+
+        /**
+         * 処理を実行します.
+         * @return 処理結果
+         * @throws E 処理が失敗した場合
+         */
+        T execute() throws E;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common.realm;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.AppConfigLoader;
+import com.sios.idp.shibboleth.common.ConfigKey;
+import com.sios.idp.shibboleth.exception.ConfigInitializationException;
+
+/**
+ * 定義されたレルムを保持し、ユーザ名、依頼元 (Relying Party) からレルムを選択するクラスです.<br>
+ * {@link AppConfig}のrealmsにレルム名をカンマ区切りで定義し、レルム毎の設定値は
+ * コンテキストパラメータ「realm.&lt;レルム名&gt;.&lt;パラメータ名&gt;」で上書きします。
+ * 依頼元のエンティティIDをrealmRelyingPartiesに含むレルムがある場合はそのレルムを、
+ * それ以外はユーザ名がrealmSeparatorとレルム名で終わる場合 (例：alice@tenant-a) にそのレルムを選択します。
+ * いずれにも該当しない場合はレルムを使用せず、既定の設定で認証します。
+ * ディレクトリの変更監視、事前読み込み、ユーザ名のBloomフィルタは既定の設定に対してのみ動作するため、
+ * これらの設定値をレルムで上書きした場合は読み込み時にエラーとします。
+ * @author SIOS Technology, Inc.
+ */
+public final class RealmRegistry {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RealmRegistry.class);
+
+    /** レルム毎の設定値を定義するコンテキストパラメータの接頭辞です. */
+    public static final String PARAMETER_PREFIX = "realm.";
+
+    /** 既定の設定に対してのみ動作し、レルムで上書きできない設定項目です. */
+    private static final List<ConfigKey<?>> DEFAULT_ONLY_KEYS = Arrays.<ConfigKey<?>>asList(
+            ConfigKey.USER_NAME_FILTER_ENABLED, ConfigKey.PREFETCH_ENABLED, ConfigKey.LDAP_CHANGE_WATCH_ENABLED);
+
+    /** レルムを定義しない場合のインスタンス. */
+    private static final RealmRegistry EMPTY = new RealmRegistry(Collections.<Realm>emptyList());
+
+    /** Singletonなインスタンス. */
+    private static volatile RealmRegistry registry = EMPTY;
+
+    /** レルム名とレルム. */
+    private final Map<String, Realm> realms = new LinkedHashMap<String, Realm>();
+
+    /** 依頼元のエンティティIDとレルム. */
+    private final Map<String, Realm> relyingParties = new HashMap<String, Realm>();
+
+    /**
+     * コンストラクタです.
+     * @param realms レルム
+     */
+    RealmRegistry(Collection<Realm> realms) {
+        for (Realm realm : realms) {
+            this.realms.put(realm.getName(), realm);
+            for (String entityId : split(realm.getParameter(ConfigKey.REALM_RELYING_PARTIES, ""))) {
+                if (relyingParties.containsKey(entityId)) {
+                    throw new IllegalArgumentException(MessageFormat.format(
+                            "依頼元 {0} が複数のレルム ({1}, {2}) に定義されています。",
+                            entityId, relyingParties.get(entityId), realm));
+                }
+                relyingParties.put(entityId, realm);
+            }
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを取得します.
+     * @return レルムの一覧. {@link #load(AppConfigLoader)}の前は空
+     */
+    public static RealmRegistry getInstance() {
+        return registry;
+    }
+
+    /**
+     * {@link AppConfig}のrealmsに定義されたレルムの設定値を読み込みます.
+     * @param loader 設定情報のローダ
+     * @throws ConfigInitializationException 設定値の読み込み、変換に失敗した場合、またはレルムで上書きできない設定項目を上書きした場合
+     */
+    public static synchronized void load(AppConfigLoader loader) throws ConfigInitializationException {
+        List<Realm> realms = new ArrayList<Realm>();
+        for (String name : split(AppConfig.getRealms())) {
+            Map<String, Object> parameters =
+                    loader.loadOverrides(AppConfig.class, PARAMETER_PREFIX + name + ".");
+            for (ConfigKey<?> key : DEFAULT_ONLY_KEYS) {
+                if (parameters.containsKey(key.getName())) {
+                    throw new ConfigInitializationException(MessageFormat.format(
+                            "設定項目 {0} は既定の設定に対してのみ有効なため、レルム {1} で上書きできません。",
+                            key.getName(), name));
+                }
+            }
+            realms.add(new Realm(name, parameters));
+            LOGGER.info("レルム {} を読み込みました。 (上書きする設定：{})", name, parameters.keySet());
+        }
+        try {
+            registry = realms.isEmpty() ? EMPTY : new RealmRegistry(realms);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigInitializationException(e);
+        }
+    }
+
+    /**
+     * 読み込んだレルムを設定します.
+     * @param realms レルム
+     */
+    static synchronized void set(Collection<Realm> realms) {
+        registry = realms.isEmpty() ? EMPTY : new RealmRegistry(realms);
+    }
+
+    /**
+     * 全てのレルムのインスタンスを停止し、レルムの定義を破棄します.
+     * @param shutdownAction レルム毎に実行する停止処理. レルムを束縛したスレッドで実行します
+     */
+    public static synchronized void shutdown(Runnable shutdownAction) {
+        for (Realm realm : registry.realms.values()) {
+            try {
+                Realm.execute(realm, () -> {
+                    shutdownAction.run();
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                LOGGER.warn("レルム {} の停止に失敗しました。", realm, e);
+            }
+        }
+        registry = EMPTY;
+    }
+
+    /**
+     * 定義されたレルムを取得します.
+     * @return レルム. 定義された順
+     */
+    public Collection<Realm> getRealms() {
+        return Collections.unmodifiableCollection(realms.values());
+    }
+
+    /**
+     * 指定されたレルム名のレルムを取得します.
+     * @param name レルム名
+     * @return レルム. 存在しない場合はnull
+     */
+    public Realm getRealm(String name) {
+        return realms.get(name);
+    }
+
+    /**
+     * ユーザ名、依頼元からレルムを選択します.
+     * 依頼元がレルムに定義されている場合は、依頼元のレルムを選択します。
+     * ユーザ名の接尾辞 (realmSeparator以降) が別のレルム名に一致しても、依頼元のレルムを他のレルムで認証させないため採用しません。
+     * 依頼元がいずれのレルムにも定義されていない場合は、接尾辞がレルム名に一致するレルムを選択します。
+     * @param userName ユーザ名
+     * @param relyingPartyId 依頼元のエンティティID. 不明な場合はnull
+     * @return レルム. 該当しない場合はnull
+     */
+    public Realm select(String userName, String relyingPartyId) {
+        if (realms.isEmpty()) {
+            return null;
+        }
+        String suffix = getSuffix(userName);
+        Realm suffixRealm = suffix == null ? null : realms.get(suffix);
+        Realm relyingPartyRealm = relyingPartyId == null ? null : relyingParties.get(relyingPartyId);
+        if (relyingPartyRealm == null) {
+            return suffixRealm;
+        }
+        if (suffixRealm != null && suffixRealm != relyingPartyRealm) {
+            LOGGER.warn("ユーザ名 {} の接尾辞が依頼元 {} のレルム {} と異なるため、接尾辞のレルム {} は使用しません。",
+                    userName, relyingPartyId, relyingPartyRealm, suffixRealm);
+        }
+        return relyingPartyRealm;
+    }
+
+    /**
+     * 実行中のレルムでディレクトリを検索するユーザ名を取得します.
+     * realmStripSuffixがtrueの場合、ユーザ名から実行中のレルムの接尾辞を取り除きます。
+     * @param userName ユーザ名
+     * @return ディレクトリを検索するユーザ名
+     */
+    public static String toLocalUserName(String userName) {
+        Realm realm = Realm.current();
+        if (realm == null || userName == null || Boolean.FALSE.equals(AppConfig.getRealmStripSuffix())) {
+            return userName;
+        }
+        String suffix = getSeparator() + realm.getName();
+        if (userName.length() > suffix.length() && userName.endsWith(suffix)) {
+            return userName.substring(0, userName.length() - suffix.length());
+        }
+        return userName;
+    }
+
+    /**
+     * ユーザ名の接尾辞を取得します.
+     * @param userName ユーザ名
+     * @return 最後のrealmSeparator以降の文字列. 含まない場合はnull
+     */
+    private static String getSuffix(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        int index = userName.lastIndexOf(getSeparator());
+        return index < 0 ? null : userName.substring(index + getSeparator().length());
+    }
+
+    /**
+     * ユーザ名とレルム名の区切り文字を取得します.
+     * @return 区切り文字
+     */
+    private static String getSeparator() {
+        String separator = AppConfig.getRealmSeparator();
+        return separator == null || separator.isEmpty() ? "@" : separator;
+    }
+
+    /**
+     * カンマ区切りの設定値を分割します.
+     * @param value 設定値
+     * @return 前後の空白を除いた空でない値
+     */
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<String>();
+        if (value != null) {
+            for (String element : value.split(",")) {
+                if (!element.trim().isEmpty()) {
+                    values.add(element.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
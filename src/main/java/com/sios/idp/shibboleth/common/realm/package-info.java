@@ -0,0 +1,9 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+/**
+ * Shibboleth IdP 多要素認証で、組織 (テナント) 毎に設定値とキャッシュを分離するレルムを提供します.
+ */
+package com.sios.idp.shibboleth.common.realm;
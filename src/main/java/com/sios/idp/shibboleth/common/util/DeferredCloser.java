@@ -0,0 +1,78 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 置き換えられた接続プール等を、処理中の要求が完了するまで待ってから停止するクラスです.<br>
+ * 設定値の再読み込みでは新しいインスタンスを生成して公開した後に、古いインスタンスを本クラスに渡します。
+ * 古いインスタンスを取得済みの要求はタイムアウトまでに完了するため、停止までの待ち時間にはタイムアウトを指定します。
+ * @author SIOS Technology, Inc.
+ */
+public final class DeferredCloser {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeferredCloser.class);
+
+    /** 停止を実行するExecutor. 初回の登録時に生成します. */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * privateコンストラクタ. 外部からのインスタンス生成を許可しません.
+     */
+    private DeferredCloser() { }
+
+    /**
+     * 指定時間の経過後に停止処理を実行します.
+     * @param close 停止処理
+     * @param drainMillis 処理中の要求の完了を待つ時間 (ミリ秒). 0以下の場合は直ちに実行します
+     */
+    public static synchronized void closeLater(Runnable close, long drainMillis) {
+        if (drainMillis <= 0) {
+            closeQuietly(close);
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "deferred-closer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        scheduler.schedule(() -> closeQuietly(close), drainMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 待機中の停止処理を直ちに実行し、Executorを停止します. アプリケーションの終了時に使用します.
+     */
+    public static synchronized void shutdown() {
+        if (scheduler == null) {
+            return;
+        }
+        for (Runnable pending : scheduler.shutdownNow()) {
+            pending.run();
+        }
+        scheduler = null;
+    }
+
+    /**
+     * 停止処理を実行します. 失敗した場合は警告を出力します.
+     * @param close 停止処理
+     */
+    private static void closeQuietly(Runnable close) {
+        try {
+            close.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("置き換えられたインスタンスの停止に失敗しました。", e);
+        }
+    }
+}
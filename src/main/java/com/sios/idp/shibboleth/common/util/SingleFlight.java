@@ -0,0 +1,93 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.common.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 同一キーの処理の同時実行を1つにまとめるクラスです.
+ * 同じキーの処理が実行中の場合、後続の呼び出し元は新たに処理を実行せず、実行中の処理の結果を共有します。
+ * 処理の完了後に呼び出された場合は、再度処理を実行します (結果はキャッシュしません)。
+ * @param <K> キーの型
+ * @param <V> 結果の型
+ * @author SIOS Technology, Inc.
+ */
+public final class SingleFlight<K, V> {
+
+    /** 実行中の処理. */
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    /** 処理を実行した回数. */
+    private final AtomicLong executedCount = new AtomicLong();
+
+    /** 実行中の処理に合流した回数. */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * 指定キーの処理を実行します. 同じキーの処理が実行中の場合は、その結果を返却します.
+     * 返却されるCompletableFutureは呼び出し元毎に異なるため、取り消しは他の呼び出し元に影響しません。
+     * @param key キー
+     * @param call 処理
+     * @return 処理結果のCompletableFuture
+     */
+    public CompletableFuture<V> execute(K key, Supplier<? extends CompletionStage<V>> call) {
+
+        CompletableFuture<V> created = new CompletableFuture<V>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return existing.copy();
+        }
+
+        executedCount.incrementAndGet();
+        try {
+            call.get().whenComplete((value, e) -> {
+                // 完了後の呼び出しが新たに処理を実行できるよう、結果の通知前に除去する
+                inFlight.remove(key, created);
+                if (e != null) {
+                    created.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                            ? e.getCause() : e);
+                } else {
+                    created.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created.copy();
+    }
+
+    /**
+     * 処理を実行した回数を取得します.
+     * @return 処理を実行した回数
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * 実行中の処理に合流した (処理を実行しなかった) 回数を取得します.
+     * @return 実行中の処理に合流した回数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * 実行中の処理の数を取得します.
+     * @return 実行中の処理の数
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
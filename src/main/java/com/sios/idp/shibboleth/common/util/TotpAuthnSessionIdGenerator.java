@@ -8,11 +8,15 @@ package com.sios.idp.shibboleth.common.util;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.RealmRegistry;
 import com.sios.idp.shibboleth.datasource.dao.Dao;
 import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
 import com.sios.idp.shibboleth.dto.SearchResult;
@@ -99,11 +103,24 @@ public final class TotpAuthnSessionIdGenerator {
             throws DaoInstantiationException, DataAccessException, UserDuplicatedException,
             UnexpectedException, TotpAuthnSessionIdGenerationException {
         Dao dao = DaoFactory.getInstance().createInstance();
-        SearchResult result = dao.getUser(username);
+        SearchResult result = dao.getUser(RealmRegistry.toLocalUserName(username));
         if (result == null) {
             handleException(null, "ユーザー名{0}の検索結果が0件です。", username);
         }
 
+        List<String> encryptedSecretKeys = result.getValues(AppConfig.getSecretKeyAttributeName());
+        if (encryptedSecretKeys.size() > 1) {
+            // 複数デバイスの場合は取得順序に依存しないよう、ソートして連結する
+            List<String> sortedKeys = new ArrayList<String>(encryptedSecretKeys);
+            sortedKeys.removeAll(Collections.singleton(null));
+            Collections.sort(sortedKeys);
+            StringBuilder sb = new StringBuilder();
+            for (String encryptedSecretKey : sortedKeys) {
+                sb.append(encryptedSecretKey);
+            }
+            return sb.toString();
+        }
+
         String encryptedSecretKey = result.getValue(AppConfig.getSecretKeyAttributeName());
         if (encryptedSecretKey == null) {
             handleException(null, "ユーザー{0}にTOTP秘密鍵が設定されていません。", username);
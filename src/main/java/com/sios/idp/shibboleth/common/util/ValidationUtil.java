@@ -31,7 +31,7 @@ public final class ValidationUtil {
 
     /**
      * LdapSearchResultが格納されたListが0である場合にfalseを返し、 １つだけの場合、trueを返します。
-     * 複数のResultが格納されている場合にはユーザ情報重複によりエラーが返されます.
+     * 複数のResultが格納されている場合、重複が設定されている場合にはユーザ情報重複によりエラーが返されます.
      * @param results LdapSearchResultsオブジェクト
      * @return boolean型を返します.
      * @throws UserDuplicatedException ユーザ情報の取得で予期せぬエラーが発生している場合に例外が投げられる.
@@ -39,6 +39,9 @@ public final class ValidationUtil {
      */
     public static boolean isSingleRecorde(SearchResults results)
             throws UserDuplicatedException, UnexpectedException {
+        if (results.isDuplicated()) {
+            throw new UserDuplicatedException("ユーザ情報が複数存在します。");
+        }
         int i = results.getCount();
         if (i == 1) {
             return true;
@@ -0,0 +1,27 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+
+/**
+ * 非同期にユーザ情報を取得できるData Access Object インターフェースクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public interface AsyncDao extends Dao {
+    /**
+     * userNameをベースに非同期に情報の取得を行なうメソッドです.
+     * 呼び出し元のスレッドはデータソースへのI/Oを待たずに復帰します。
+     * 取得に失敗した場合、返却するFutureは{@link com.sios.idp.shibboleth.exception.DataAccessException}、
+     * {@link com.sios.idp.shibboleth.exception.UserDuplicatedException}、
+     * {@link com.sios.idp.shibboleth.exception.UnexpectedException}のいずれかで例外的に完了します。
+     * @param userName サーチに利用するフィルタの値
+     * @return ユーザ情報を結果とするFuture. ユーザ情報が存在しない場合の結果はnull
+     */
+    CompletableFuture<SearchResult> getUserAsync(String userName);
+}
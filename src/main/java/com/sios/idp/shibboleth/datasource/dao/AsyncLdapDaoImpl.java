@@ -0,0 +1,784 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.datasource.ldap.LdapFilterUtil;
+import com.sios.idp.shibboleth.datasource.ldap.LdapHedgePolicy;
+import com.sios.idp.shibboleth.datasource.ldap.LdapReplica;
+import com.sios.idp.shibboleth.datasource.ldap.LdapSearchBase;
+import com.sios.idp.shibboleth.datasource.ldap.LdapUserBatch;
+import com.sios.idp.shibboleth.datasource.ldap.LdapUtil;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+/**
+ * 非同期LDAP操作によりユーザ情報を取得する{@link AsyncDao}の実装クラスです.<br>
+ * LDAP操作は{@link AsyncLdapConnectionPool}が保持する少数の接続上で多重化され、
+ * 呼び出し元のスレッドはディレクトリへのI/Oを待ちません。
+ * 複数のLDAPレプリカが定義されている場合は検索毎にレプリカを選択し、
+ * 接続断、タイムアウト等のレプリカの障害時は他のレプリカで再試行します。
+ * 属性値の削除はプライマリのレプリカにのみ送信し、他のレプリカでは再試行しません。
+ * ヘッジが有効な場合、応答の遅い検索は別のレプリカにも送信し、先に完了した結果を使用します。
+ * 複数のベースDN ({@link LdapSearchBase}) が定義されている場合は各ベースDNを並行して検索し、結果を併合します。
+ * 操作毎のタイムアウトは、ベースDN毎のタイムアウトまたは{@link com.sios.idp.shibboleth.common.AppConfig}の
+ * ldapOperationTimeoutMillisに従います。
+ * 検索条件、取得属性、件数上限は{@link LdapDaoImpl}と同じです。
+ * @author SIOS Technology, Inc.
+ */
+public class AsyncLdapDaoImpl implements AsyncDao {
+
+    /** 検索結果の最大件数です. 2件目で重複が判定できます. */
+    private static final int SIZE_LIMIT = 2;
+
+    /** loggerの呼び出します. */
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    /**
+     * 与えられたuserNameを元にLDAPから情報の取得を行なうメソッドです.
+     * {@link #getUserAsync(String)}の完了を待ちます。
+     * @param userName ユーザネーム
+     * @return SearchResultオブジェクト
+     * @throws DataAccessException Ldapとの接続に失敗した際、タイムアウトした際に投げられる例外です.
+     * @throws UserDuplicatedException Ldapの検索の結果問題が発生した際に投げられる例外です.
+     */
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        try {
+            return getUserAsync(userName).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DataAccessException) {
+                throw (DataAccessException) cause;
+            } else if (cause instanceof UserDuplicatedException) {
+                throw (UserDuplicatedException) cause;
+            } else if (cause instanceof UnexpectedException) {
+                throw (UnexpectedException) cause;
+            }
+            throw new UnexpectedException(cause);
+        }
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+
+        logger.debug(MessageFormat.format("{0} の情報取得を開始します。", userName));
+        List<LdapSearchBase> bases = null;
+        try {
+            bases = LdapSearchBase.getAll();
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<SearchResult> failed = new CompletableFuture<SearchResult>();
+            failed.completeExceptionally(new UnexpectedException(e));
+            return failed;
+        }
+        UserFanOut fanOut = new UserFanOut(userName, bases);
+        fanOut.start();
+        return fanOut.future;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNamesを元に、ユーザ名をuserBatchSize件毎に論理和で結合した検索でLDAPから情報の取得を行なうメソッドです.
+     * 全てのベースDNの全ての検索を1つのレプリカで実行し、レプリカの障害時は他のレプリカで最初から再試行します。
+     * @param userNames ユーザネーム
+     * @return ユーザネーム毎のSearchResultsオブジェクト
+     * @throws DataAccessException Ldapとの接続に失敗した際、タイムアウトした際に投げられる例外です.
+     */
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+
+        logger.debug(MessageFormat.format("{0}件のユーザの情報取得を開始します。", userNames.size()));
+        List<LdapReplica> tried = new ArrayList<LdapReplica>();
+        while (true) {
+            LdapReplica replica = selectReplica(tried);
+            long start = replica.start();
+            try {
+                LdapUserBatch batch = new LdapUserBatch(userNames, AppConfig.getLdapUserNameAttributeName());
+                searchUsers(replica.getConnection(), batch);
+                replica.succeeded(start);
+                logger.debug("ユーザ情報の取得が完了しました。");
+                return batch.getResults();
+            } catch (LDAPException e) {
+                if (!isFailover(replica, start, tried, e.getResultCode())) {
+                    throw new DataAccessException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定されたLDAP接続で、ベースDN毎にユーザ名を論理和で結合した検索を順に実行し、受信したエントリをユーザに対応付けます.
+     * @param connection LDAP接続
+     * @param batch 検索するユーザ名と検索結果の格納先
+     * @throws LDAPException LDAP操作に失敗した場合
+     */
+    private void searchUsers(LDAPConnection connection, LdapUserBatch batch) throws LDAPException {
+
+        List<String> filters = batch.createFilters(AppConfig.getLdapFilter(), LdapUserBatch.getBatchSize());
+        for (LdapSearchBase base : getSearchBases()) {
+            for (String filter : filters) {
+                searchUsers(connection, batch, base, filter);
+            }
+        }
+    }
+
+    /**
+     * 指定されたベースDNで1回の検索を実行し、受信したエントリをユーザに対応付けます.
+     * @param connection LDAP接続
+     * @param batch 検索するユーザ名と検索結果の格納先
+     * @param base ベースDN
+     * @param filter 検索フィルタ
+     * @throws LDAPException LDAP操作に失敗した場合
+     */
+    private void searchUsers(LDAPConnection connection, LdapUserBatch batch, LdapSearchBase base, String filter)
+            throws LDAPException {
+
+        SearchRequest request = new SearchRequest(base.getBaseDN(), base.getScope(), filter,
+                batch.getReturningAttributes());
+        request.setResponseTimeoutMillis(base.getTimeoutMillis(AsyncLdapConnectionPool.getOperationTimeoutMillis()));
+        for (SearchResultEntry entry : connection.search(request).getSearchEntries()) {
+            SearchResult result = new SearchResult();
+            List<String> userNames = new ArrayList<String>();
+            for (Attribute attribute : entry.getAttributes()) {
+                for (String value : attribute.getValues()) {
+                    if (batch.isUserNameAttribute(attribute.getName())) {
+                        userNames.add(value);
+                    }
+                    if (batch.isReturningAttribute(attribute.getName())) {
+                        result.add(attribute.getName(), value);
+                    }
+                }
+            }
+            if (batch.add(userNames.toArray(new String[userNames.size()]), result) == 0) {
+                logger.debug(MessageFormat.format("検索したユーザ名に対応付けられないエントリを無視します。 (DN：{0})", entry.getDN()));
+            }
+        }
+    }
+
+    @Override
+    /**
+     * 与えられたuserNameで特定されるエントリから、指定された属性値を削除するメソッドです.
+     * 書き込みはプライマリのレプリカ ({@link AsyncLdapConnectionPool#getPrimary()}) にのみ送信します。
+     * 応答を受信できなかった削除はサーバで適用済みの可能性があるため、他のレプリカでは再試行しません。
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException Ldapとの接続、または更新に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException 更新対象のエントリが1件に特定できない場合に投げられる例外です.
+     * @throws ValueAlreadyRemovedException 値が存在しない (削除済みの) 場合に投げられる例外です.
+     */
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+
+        logger.debug(MessageFormat.format("{0} の属性 {1} の値削除を開始します。", userName, attributeName));
+        LdapReplica primary = null;
+        try {
+            primary = AsyncLdapConnectionPool.getInstance().getPrimary();
+        } catch (LDAPException e) {
+            throw new DataAccessException(e);
+        }
+        long start = primary.start();
+        try {
+            removeValue(primary.getConnection(), userName, attributeName, value);
+            primary.succeeded(start);
+        } catch (UserDuplicatedException | ValueAlreadyRemovedException e) {
+            primary.succeeded(start);
+            throw e;
+        } catch (LDAPException e) {
+            // 削除は冪等でないため、応答のないまま他のレプリカで再試行しない
+            if (LdapReplica.isReplicaFailure(e.getResultCode())) {
+                primary.failed(start);
+            } else {
+                primary.succeeded(start);
+            }
+            throw new DataAccessException(e);
+        }
+        logger.debug("属性値の削除が完了しました。");
+    }
+
+    /**
+     * 指定されたLDAP接続で、userNameで特定されるエントリから指定された属性値を削除します.
+     * エントリはベースDNを順に検索し、2件目を受信した時点で重複と判定します。
+     * @param connection LDAP接続
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws LDAPException LDAP操作に失敗した場合
+     * @throws UserDuplicatedException 更新対象のエントリが1件に特定できない場合
+     * @throws ValueAlreadyRemovedException 値が存在しない (削除済みの) 場合
+     */
+    private void removeValue(LDAPConnection connection, String userName, String attributeName, String value)
+            throws LDAPException, UserDuplicatedException, ValueAlreadyRemovedException {
+
+        String filter = LdapFilterUtil.format(AppConfig.getLdapFilter(), userName);
+        List<SearchResultEntry> entries = new ArrayList<SearchResultEntry>();
+        for (LdapSearchBase base : getSearchBases()) {
+            if (entries.size() >= SIZE_LIMIT) {
+                break;
+            }
+            SearchRequest request = new SearchRequest(base.getBaseDN(), base.getScope(), filter,
+                    SearchRequest.NO_ATTRIBUTES);
+            request.setSizeLimit(SIZE_LIMIT - entries.size());
+            request.setResponseTimeoutMillis(
+                    base.getTimeoutMillis(AsyncLdapConnectionPool.getOperationTimeoutMillis()));
+            try {
+                entries.addAll(connection.search(request).getSearchEntries());
+            } catch (LDAPSearchException e) {
+                // 件数上限に達した場合も、受信済みのエントリで重複を判定する
+                if (e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED) {
+                    throw e;
+                }
+                entries.addAll(e.getSearchEntries());
+            }
+        }
+        if (entries.size() != 1) {
+            throw new UserDuplicatedException(MessageFormat.format(
+                    "更新対象のエントリが1件に特定できません。ユーザ名：{0}, 件数：{1}", userName, entries.size()));
+        }
+        ModifyRequest modify = new ModifyRequest(entries.get(0).getDN(),
+                new Modification(ModificationType.DELETE, attributeName, value));
+        modify.setResponseTimeoutMillis(AsyncLdapConnectionPool.getOperationTimeoutMillis());
+        try {
+            connection.modify(modify);
+        } catch (LDAPException e) {
+            // 値の削除はサーバで値の存在を確認して行うため、値が存在しない場合は別の要求が削除済み
+            if (e.getResultCode() == ResultCode.NO_SUCH_ATTRIBUTE) {
+                throw new ValueAlreadyRemovedException(MessageFormat.format(
+                        "削除対象の値が存在しません。ユーザ名：{0}, 属性名：{1}", userName, attributeName), e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 検索するベースDNの一覧を取得します.
+     * @return ベースDNの一覧
+     * @throws LDAPException ベースDNの定義が不正な場合
+     */
+    private static List<LdapSearchBase> getSearchBases() throws LDAPException {
+        try {
+            return LdapSearchBase.getAll();
+        } catch (IllegalArgumentException e) {
+            throw new LDAPException(ResultCode.PARAM_ERROR, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 未試行のレプリカを選択し、試行済みとして記録します.
+     * @param tried 既に試行したレプリカ
+     * @return レプリカ
+     * @throws DataAccessException LDAP接続先URLが不正な場合、未試行のレプリカが存在しない場合
+     */
+    private LdapReplica selectReplica(List<LdapReplica> tried) throws DataAccessException {
+        LdapReplica replica = null;
+        try {
+            replica = AsyncLdapConnectionPool.getInstance().selectReplica(tried);
+        } catch (LDAPException e) {
+            throw new DataAccessException(e);
+        }
+        if (replica == null) {
+            throw new DataAccessException("全てのLDAPレプリカで操作に失敗しました。");
+        }
+        tried.add(replica);
+        return replica;
+    }
+
+    /**
+     * 失敗した操作の結果をレプリカに記録し、他のレプリカで再試行するかを判定します.
+     * 結果コードがレプリカの障害を示し、未試行のレプリカが存在する場合に再試行します。
+     * @param replica 操作を実行したレプリカ
+     * @param start 操作の開始時刻
+     * @param tried 既に試行したレプリカ
+     * @param resultCode 結果コード
+     * @return 再試行する場合はtrue
+     */
+    private boolean isFailover(LdapReplica replica, long start, List<LdapReplica> tried, ResultCode resultCode) {
+
+        if (!LdapReplica.isReplicaFailure(resultCode)) {
+            // レプリカは応答しているため、操作自体のエラーとして扱う
+            replica.succeeded(start);
+            return false;
+        }
+        replica.failed(start);
+        int replicaCount = 0;
+        try {
+            replicaCount = AsyncLdapConnectionPool.getInstance().getReplicas().size();
+        } catch (LDAPException e) {
+            return false;
+        }
+        if (tried.size() >= replicaCount) {
+            return false;
+        }
+        logger.warn(MessageFormat.format("LDAPレプリカ {0} での操作に失敗したため、他のレプリカで再試行します。 (結果コード：{1})",
+                replica.getLdapUrl(), resultCode));
+        return true;
+    }
+
+    /**
+     * 複数のベースDNに対する1回のユーザ情報取得を表すクラスです.<br>
+     * ベースDN毎の{@link UserLookup}を並行して実行し、受信したエントリを併合して
+     * {@link ValidationUtil#isSingleRecorde(SearchResults)}で判定します。
+     * 併合したエントリが2件に達して重複が確定した場合、またはいずれかの検索が失敗した場合は、
+     * 全てのベースDNの検索を待たずに完了し、実行中の他の検索を取り消します。
+     */
+    private final class UserFanOut {
+
+        /** ユーザ名. */
+        private final String userName;
+
+        /** 完了させるFuture. */
+        private final CompletableFuture<SearchResult> future = new CompletableFuture<SearchResult>();
+
+        /** ベースDN毎のユーザ情報取得. */
+        private final List<UserLookup> lookups = new ArrayList<UserLookup>();
+
+        /** 併合した検索結果. */
+        private final SearchResults merged = new SearchResults();
+
+        /** 完了していないベースDNの数. */
+        private int pending;
+
+        /**
+         * コンストラクタです.
+         * @param userName ユーザ名
+         * @param bases ベースDNの一覧
+         */
+        UserFanOut(String userName, List<LdapSearchBase> bases) {
+            this.userName = userName;
+            for (LdapSearchBase base : bases) {
+                lookups.add(new UserLookup(userName, base));
+            }
+            pending = lookups.size();
+            future.whenComplete((result, e) -> cancelRunning());
+        }
+
+        /**
+         * 全てのベースDNの検索を開始します.
+         */
+        void start() {
+            for (UserLookup lookup : lookups) {
+                if (future.isDone()) {
+                    break;
+                }
+                lookup.future.whenComplete((results, e) -> completed(lookup, results, e));
+                lookup.search(false);
+                lookup.scheduleHedge();
+            }
+        }
+
+        /**
+         * ベースDNの検索の完了を記録し、結果が確定した場合は完了します.
+         * @param lookup 完了したユーザ情報取得
+         * @param results 検索結果
+         * @param error 検索が失敗した場合の例外
+         */
+        private void completed(UserLookup lookup, SearchResults results, Throwable error) {
+
+            int remaining = 0;
+            synchronized (this) {
+                if (future.isDone()) {
+                    return;
+                }
+                if (error == null) {
+                    for (SearchResult result : results) {
+                        merged.add(result);
+                    }
+                    pending--;
+                    if (merged.getCount() < SIZE_LIMIT && pending > 0) {
+                        return;
+                    }
+                }
+                remaining = pending;
+            }
+            if (error != null) {
+                future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            if (remaining > 0) {
+                logger.debug(MessageFormat.format("重複が確定したため、残りのベースDNの検索を取り消します。 (ユーザ名：{0}, ベースDN：{1})",
+                        userName, lookup.base));
+            }
+            try {
+                if (ValidationUtil.isSingleRecorde(merged)) {
+                    logger.debug("ユーザ情報の取得が完了しました。");
+                    future.complete(merged.iterator().next());
+                } else {
+                    logger.debug("ユーザ情報の取得に失敗しました。");
+                    future.complete(null);
+                }
+            } catch (UserDuplicatedException e) {
+                future.completeExceptionally(e);
+            } catch (UnexpectedException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 完了していないベースDNの検索を取り消します. 取り消した検索は放棄 (abandon) されます.
+         */
+        private void cancelRunning() {
+            for (UserLookup lookup : lookups) {
+                lookup.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 1つのベースDNに対するユーザ情報取得を表すクラスです.<br>
+     * レプリカの障害時は他のレプリカで再試行し、ヘッジが有効な場合は遅延時間の経過後に別のレプリカにも検索を送信します。
+     * 最初に成功した検索の結果で完了し、実行中の他の検索は放棄 (abandon) します。
+     */
+    private final class UserLookup {
+
+        /** ユーザ名. */
+        private final String userName;
+
+        /** ベースDN. */
+        private final LdapSearchBase base;
+
+        /** 検索を開始したレルム. */
+        private final Realm realm = Realm.current();
+
+        /** 完了させるFuture. 受信した検索結果 (最大2件) で完了します. */
+        private final CompletableFuture<SearchResults> future = new CompletableFuture<SearchResults>();
+
+        /** 既に試行したレプリカ. */
+        private final List<LdapReplica> tried = new ArrayList<LdapReplica>();
+
+        /** 実行中の検索. */
+        private final List<UserSearchListener> running = new ArrayList<UserSearchListener>();
+
+        /**
+         * コンストラクタです.
+         * @param userName ユーザ名
+         * @param base ベースDN
+         */
+        UserLookup(String userName, LdapSearchBase base) {
+            this.userName = userName;
+            this.base = base;
+            future.whenComplete((result, e) -> abandonRunning());
+        }
+
+        /**
+         * 未試行のレプリカを選択し、ユーザ検索を非同期に実行します.
+         * @param hedge ヘッジした検索の場合はtrue
+         * @return 検索を開始した場合はtrue
+         */
+        boolean search(boolean hedge) {
+
+            LdapReplica replica = null;
+            synchronized (this) {
+                try {
+                    replica = selectReplica(tried);
+                } catch (DataAccessException e) {
+                    if (running.isEmpty()) {
+                        future.completeExceptionally(e);
+                    }
+                    return false;
+                }
+            }
+            UserSearchListener listener = new UserSearchListener(this, replica, hedge);
+            try {
+                SearchRequest request = new SearchRequest(listener, base.getBaseDN(), base.getScope(),
+                        LdapFilterUtil.format(AppConfig.getLdapFilter(), userName),
+                        LdapUtil.getReturningAttributes());
+                request.setSizeLimit(SIZE_LIMIT);
+                request.setResponseTimeoutMillis(
+                        base.getTimeoutMillis(AsyncLdapConnectionPool.getOperationTimeoutMillis()));
+                LDAPConnection connection = replica.getConnection();
+                synchronized (this) {
+                    if (future.isDone()) {
+                        // 送信前に取り消された
+                        listener.finish();
+                        replica.cancelled();
+                        return false;
+                    }
+                    running.add(listener);
+                }
+                listener.started(connection, connection.asyncSearch(request));
+            } catch (LDAPException e) {
+                failed(listener, e.getResultCode(), new DataAccessException(e));
+            }
+            return true;
+        }
+
+        /**
+         * ヘッジが有効な場合、遅延時間の経過後も完了していなければ別のレプリカで検索を実行するよう予約します.
+         */
+        void scheduleHedge() {
+
+            AsyncLdapConnectionPool pool = null;
+            try {
+                pool = AsyncLdapConnectionPool.getInstance();
+            } catch (LDAPException e) {
+                return;
+            }
+            LdapHedgePolicy policy = pool.getHedgePolicy();
+            long delayMillis = policy.onRequest();
+            if (delayMillis < 0 || pool.getReplicas().size() < 2 || future.isDone()) {
+                return;
+            }
+            try {
+                pool.schedule(() -> {
+                    if (!future.isDone() && policy.tryAcquire()) {
+                        logger.debug(MessageFormat.format("{0}ミリ秒以内に応答がないため、別のLDAPレプリカにも検索を送信します。 (ユーザ名：{1})",
+                                delayMillis, userName));
+                        search(true);
+                    }
+                }, delayMillis);
+            } catch (RejectedExecutionException e) {
+                logger.debug("非同期LDAP接続プールが停止しているため、ヘッジしません。");
+            }
+        }
+
+        /**
+         * 検索の成功を記録し、最初の成功であれば受信した検索結果で完了します.
+         * @param listener 成功した検索
+         * @param results 受信した検索結果
+         */
+        void succeeded(UserSearchListener listener, SearchResults results) {
+
+            if (!listener.finish()) {
+                return;
+            }
+            long latencyNanos = System.nanoTime() - listener.start;
+            listener.replica.succeeded(listener.start);
+            try {
+                AsyncLdapConnectionPool.getInstance().getHedgePolicy().record(latencyNanos);
+            } catch (LDAPException e) {
+                // 接続プールの生成後のため発生しない
+            }
+            synchronized (this) {
+                running.remove(listener);
+            }
+            if (listener.hedge && !future.isDone()) {
+                logger.debug(MessageFormat.format("ヘッジした検索が先に完了しました。 (ユーザ名：{0}, 接続先：{1})",
+                        userName, listener.replica.getLdapUrl()));
+            }
+            future.complete(results);
+        }
+
+        /**
+         * 検索の失敗を記録し、他のレプリカで再試行します.
+         * 再試行できず、実行中の検索も存在しない場合は例外で完了します。
+         * @param listener 失敗した検索
+         * @param resultCode 結果コード
+         * @param error 完了させる例外
+         */
+        void failed(UserSearchListener listener, ResultCode resultCode, DataAccessException error) {
+
+            if (!listener.finish()) {
+                return;
+            }
+            boolean failover = false;
+            synchronized (this) {
+                running.remove(listener);
+                failover = isFailover(listener.replica, listener.start, tried, resultCode);
+            }
+            if (failover && !future.isDone() && search(listener.hedge)) {
+                return;
+            }
+            synchronized (this) {
+                if (!running.isEmpty()) {
+                    return;
+                }
+            }
+            future.completeExceptionally(error);
+        }
+
+        /**
+         * 実行中の検索を放棄します.
+         */
+        private void abandonRunning() {
+
+            List<UserSearchListener> abandoned = null;
+            synchronized (this) {
+                abandoned = new ArrayList<UserSearchListener>(running);
+                running.clear();
+            }
+            for (UserSearchListener listener : abandoned) {
+                if (listener.finish()) {
+                    listener.replica.cancelled();
+                    listener.abandon();
+                }
+            }
+        }
+    }
+
+    /**
+     * ユーザ検索の結果を受け取り、{@link UserLookup}に通知するリスナです.
+     * 2件目のエントリを受信した時点で重複が確定するため、2件目以降の属性は詰め替えません。
+     */
+    private final class UserSearchListener implements AsyncSearchResultListener {
+
+        /** シリアルバージョンIDです. */
+        private static final long serialVersionUID = 1L;
+
+        /** ユーザ情報取得. */
+        private final transient UserLookup lookup;
+
+        /** 検索を実行したレプリカ. */
+        private final transient LdapReplica replica;
+
+        /** ヘッジした検索であるか. */
+        private final boolean hedge;
+
+        /** 検索の開始時刻. */
+        private final long start;
+
+        /** 完了 (成功、失敗、放棄のいずれか) したか. */
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        /** 受信した検索結果. */
+        private final SearchResults results = new SearchResults();
+
+        /** 検索を実行した接続. */
+        private transient volatile LDAPConnection connection;
+
+        /** 検索の要求ID. */
+        private transient volatile AsyncRequestID requestId;
+
+        /**
+         * コンストラクタです. レプリカに検索の開始を記録します.
+         * @param lookup ユーザ情報取得
+         * @param replica 検索を実行するレプリカ
+         * @param hedge ヘッジした検索の場合はtrue
+         */
+        UserSearchListener(UserLookup lookup, LdapReplica replica, boolean hedge) {
+            this.lookup = lookup;
+            this.replica = replica;
+            this.hedge = hedge;
+            this.start = replica.start();
+        }
+
+        /**
+         * 検索の送信を記録します. 送信前に放棄された場合は、直ちに放棄します.
+         * @param connection 検索を実行した接続
+         * @param requestId 検索の要求ID
+         */
+        void started(LDAPConnection connection, AsyncRequestID requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+            if (finished.get() && !requestId.isDone()) {
+                abandon();
+            }
+        }
+
+        /**
+         * 完了を記録します.
+         * @return 初めて完了した場合はtrue
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+
+        /**
+         * 送信済みの検索を放棄します.
+         */
+        void abandon() {
+            LDAPConnection conn = connection;
+            AsyncRequestID id = requestId;
+            if (conn == null || id == null || id.isDone()) {
+                return;
+            }
+            try {
+                conn.abandon(id);
+                logger.debug(MessageFormat.format("LDAP検索を放棄しました。 (接続先：{0})", replica.getLdapUrl()));
+            } catch (LDAPException e) {
+                logger.debug(MessageFormat.format("LDAP検索の放棄に失敗しました。 (接続先：{0}, 結果コード：{1})",
+                        replica.getLdapUrl(), e.getResultCode()));
+            }
+        }
+
+        @Override
+        /** {@inheritDoc} */
+        public void searchEntryReturned(SearchResultEntry searchEntry) {
+            SearchResult result = new SearchResult();
+            synchronized (results) {
+                if (results.getCount() == 0) {
+                    for (Attribute attr : searchEntry.getAttributes()) {
+                        for (String value : attr.getValues()) {
+                            result.add(attr.getName(), value);
+                        }
+                    }
+                }
+                results.add(result);
+            }
+        }
+
+        @Override
+        /** {@inheritDoc} */
+        public void searchReferenceReturned(SearchResultReference searchReference) {
+            // 参照は追跡しない
+        }
+
+        @Override
+        /** {@inheritDoc} */
+        public void searchResultReceived(AsyncRequestID requestID,
+                com.unboundid.ldap.sdk.SearchResult searchResult) {
+            // 結果は接続の受信スレッドで通知されるため、検索を開始したレルムで処理する
+            Realm.bind(lookup.realm, () -> resultReceived(searchResult)).run();
+        }
+
+        /**
+         * 検索の完了を{@link UserLookup}に通知します.
+         * @param searchResult 検索の結果
+         */
+        private void resultReceived(com.unboundid.ldap.sdk.SearchResult searchResult) {
+
+            ResultCode resultCode = searchResult.getResultCode();
+            if (resultCode != ResultCode.SUCCESS && resultCode != ResultCode.SIZE_LIMIT_EXCEEDED) {
+                logger.debug(MessageFormat.format(
+                        "ユーザ情報の取得に失敗しました。 (ユーザ名：{0}, 結果コード：{1})", lookup.userName, resultCode));
+                lookup.failed(this, resultCode, new DataAccessException(MessageFormat.format(
+                        "LDAP検索に失敗しました。ユーザ名：{0}, 結果コード：{1}, {2}",
+                        lookup.userName, resultCode, searchResult.getDiagnosticMessage())));
+                return;
+            }
+            // 結果の通知は全てのエントリの受信後のため、以降resultsは変更されない
+            lookup.succeeded(this, results);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.authn.totp.UserRecordCache;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * 取得したユーザ情報を{@link UserRecordCache}に格納し、有効期間内のユーザ情報を委譲先に問い合わせずに返却するデコレータです.<br>
+ * キャッシュは認証処理、ディレクトリの変更通知と共有します。有効期間 (userRecordCacheTtlSec) が0の場合は常に委譲します。
+ * 委譲先がユーザ情報の取得に失敗した場合 (circuitBreakerデコレータが遮断した場合を含みます) は、
+ * 取得からuserRecordMaxStalenessSec以内のユーザ情報があればそれを返却します。
+ * 障害中に無効化、鍵の失効等が行われたユーザ情報を使用しないよう、期限内のユーザ情報は
+ * ディレクトリの変更を監視している (ldapChangeWatchEnabledがtrue、かつ既定のレルムの) 場合に限り使用します。
+ * 遮断時にも期限内のユーザ情報を使用するため、circuitBreakerデコレータより外側で修飾します。
+ * 属性値を削除した場合は、そのユーザのユーザ情報を破棄します。
+ * @author SIOS Technology, Inc.
+ */
+public class CachingDao extends DaoDecorator {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingDao.class);
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    public CachingDao(Dao delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        UserRecordCache cache = UserRecordCache.getInstance();
+        SearchResult result = cache.getFresh(userName);
+        if (result != null) {
+            return result;
+        }
+        try {
+            result = super.getUser(userName);
+        } catch (DataAccessException | UnexpectedException e) {
+            SearchResult stale = getStale(cache, userName);
+            if (stale != null) {
+                return stale;
+            }
+            throw e;
+        }
+        if (result != null) {
+            cache.put(userName, result);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        UserRecordCache cache = UserRecordCache.getInstance();
+        SearchResult cached = cache.getFresh(userName);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return super.getUserAsync(userName).handle((result, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof DataAccessException || cause instanceof UnexpectedException) {
+                SearchResult stale = getStale(cache, userName);
+                if (stale != null) {
+                    return stale;
+                }
+            }
+            if (cause != null) {
+                throw new CompletionException(cause);
+            }
+            if (result != null) {
+                cache.put(userName, result);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        UserRecordCache cache = UserRecordCache.getInstance();
+        Map<String, SearchResults> found = new LinkedHashMap<String, SearchResults>();
+        List<String> misses = new ArrayList<String>();
+        for (String userName : userNames) {
+            SearchResult cached = cache.getFresh(userName);
+            if (cached != null) {
+                SearchResults results = new SearchResults();
+                results.add(cached);
+                found.put(userName, results);
+            } else if (!found.containsKey(userName)) {
+                found.put(userName, null);
+                misses.add(userName);
+            }
+        }
+        if (!misses.isEmpty()) {
+            for (Map.Entry<String, SearchResults> entry : super.getUsers(misses).entrySet()) {
+                SearchResults results = entry.getValue();
+                if (results != null && results.getCount() == 1) {
+                    cache.put(entry.getKey(), results.iterator().next());
+                }
+                found.put(entry.getKey(), results);
+            }
+        }
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            results.put(userName, found.get(userName));
+        }
+        return results;
+    }
+
+    @Override
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        try {
+            super.removeValue(userName, attributeName, value);
+        } finally {
+            UserRecordCache.getInstance().invalidate(userName);
+        }
+    }
+
+    /**
+     * 委譲先が失敗した場合に、期限内のユーザ情報をキャッシュから取得します.
+     * ディレクトリの変更を監視していない場合は使用しません。
+     * @param cache ユーザ情報のキャッシュ
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合、使用しない場合はnull
+     */
+    private static SearchResult getStale(UserRecordCache cache, String userName) {
+        if (!Boolean.TRUE.equals(AppConfig.getLdapChangeWatchEnabled()) || Realm.current() != null) {
+            return null;
+        }
+        SearchResult stale = cache.getStale(userName);
+        if (stale != null) {
+            LOGGER.warn(MessageFormat.format(
+                    "ディレクトリの障害を検知しているため、ユーザ名：{0}のキャッシュされたユーザ情報を使用します。", userName));
+        }
+        return stale;
+    }
+}
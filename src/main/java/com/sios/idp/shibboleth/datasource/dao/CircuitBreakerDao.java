@@ -0,0 +1,120 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * {@link DaoCircuitBreaker}が開いている間、委譲せずに{@link DataAccessException}とするデコレータです.<br>
+ * 委譲した結果をサーキットブレーカーに通知します。{@link UserDuplicatedException}はディレクトリの応答として成功とみなします。
+ * 遮断した場合に期限内のユーザ情報を使用するには、cacheデコレータで外側から修飾します。
+ * @author SIOS Technology, Inc.
+ */
+public class CircuitBreakerDao extends DaoDecorator {
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    public CircuitBreakerDao(Dao delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        return join(getUserAsync(userName));
+    }
+
+    @Override
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        DaoCircuitBreaker breaker = DaoCircuitBreaker.getInstance();
+        if (!breaker.tryAcquire()) {
+            return failed(new DataAccessException("circuit breaker is open"));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<SearchResult> future;
+        try {
+            future = super.getUserAsync(userName);
+        } catch (RuntimeException e) {
+            breaker.onFailure();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> record(breaker, e, System.nanoTime() - start));
+    }
+
+    @Override
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        DaoCircuitBreaker breaker = acquire();
+        Throwable failure = null;
+        try {
+            return super.getUsers(userNames);
+        } catch (DataAccessException | UnexpectedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // 応答時間は件数に比例するため、遅延の判定には使用しない
+            record(breaker, failure, 0L);
+        }
+    }
+
+    @Override
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        DaoCircuitBreaker breaker = acquire();
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            super.removeValue(userName, attributeName, value);
+        } catch (DataAccessException | UserDuplicatedException | ValueAlreadyRemovedException
+                | UnexpectedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            record(breaker, failure, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * サーキットブレーカーに呼び出しの許可を要求します.
+     * @return サーキットブレーカー
+     * @throws DataAccessException サーキットブレーカーが開いている場合
+     */
+    private static DaoCircuitBreaker acquire() throws DataAccessException {
+        DaoCircuitBreaker breaker = DaoCircuitBreaker.getInstance();
+        if (!breaker.tryAcquire()) {
+            throw new DataAccessException("circuit breaker is open");
+        }
+        return breaker;
+    }
+
+    /**
+     * 委譲した結果をサーキットブレーカーに通知します.
+     * @param breaker サーキットブレーカー
+     * @param e 委譲先の例外. 成功した場合はnull
+     * @param latencyNanos 応答時間 (ナノ秒)
+     */
+    private static void record(DaoCircuitBreaker breaker, Throwable e, long latencyNanos) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause == null || cause instanceof UserDuplicatedException
+                || cause instanceof ValueAlreadyRemovedException) {
+            breaker.onSuccess(latencyNanos);
+        } else {
+            breaker.onFailure();
+        }
+    }
+}
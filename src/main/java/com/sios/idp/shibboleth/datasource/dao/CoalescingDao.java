@@ -0,0 +1,60 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.sios.idp.shibboleth.common.util.SingleFlight;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * 同一ユーザのユーザ情報の同時取得を1回の委譲にまとめるデコレータです.<br>
+ * 取得中のユーザ情報を要求した呼び出し元は、委譲せずに取得中の結果を共有します (結果はキャッシュしません)。
+ * @author SIOS Technology, Inc.
+ */
+public class CoalescingDao extends DaoDecorator {
+
+    /** 実行中のユーザ情報の取得. */
+    private final SingleFlight<String, SearchResult> flights = new SingleFlight<String, SearchResult>();
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    public CoalescingDao(Dao delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        return join(getUserAsync(userName));
+    }
+
+    @Override
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        return flights.execute(userName, () -> super.getUserAsync(userName));
+    }
+
+    /**
+     * 委譲した回数を取得します.
+     * @return 委譲した回数
+     */
+    public long getExecutedCount() {
+        return flights.getExecutedCount();
+    }
+
+    /**
+     * 取得中の結果を共有した回数を取得します.
+     * @return 取得中の結果を共有した回数
+     */
+    public long getCoalescedCount() {
+        return flights.getCoalescedCount();
+    }
+}
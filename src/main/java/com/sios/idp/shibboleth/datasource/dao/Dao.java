@@ -5,10 +5,16 @@
  */
 package com.sios.idp.shibboleth.datasource.dao;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
 import com.sios.idp.shibboleth.exception.DataAccessException;
 import com.sios.idp.shibboleth.exception.UnexpectedException;
 import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
 
 /**
  * Ldap Data Action Object インターフェースクラスです.
@@ -17,6 +23,7 @@ import com.sios.idp.shibboleth.exception.UserDuplicatedException;
 public interface Dao {
     /**
      * LDAPからuserNameをベースに情報の取得を行なうメソッドです.
+     * 複数デバイス分の秘密鍵など、複数値属性は全ての値を{@link SearchResult}に格納して返却します。
      * @param userName サーチに利用するフィルタの値
      * @return LdapSearchResultオブジェクト
      * @throws DataAccessException LDAPとの接続に失敗した場合に例外が投げられる
@@ -25,4 +32,51 @@ public interface Dao {
      */
     SearchResult getUser(String userName)
             throws DataAccessException, UserDuplicatedException, UnexpectedException;
+
+    /**
+     * 複数ユーザのユーザ情報をまとめて取得するメソッドです.
+     * ユーザ毎の検索結果は{@link SearchResults}として返却し、存在しないユーザは0件、重複するユーザは
+     * {@link SearchResults#isDuplicated()}がtrueとなります。
+     * ユーザ毎の判定には{@link com.sios.idp.shibboleth.common.util.ValidationUtil#isSingleRecorde(SearchResults)}を使用します。
+     * 既定の実装はユーザ毎に{@link #getUser(String)}を呼び出し、重複するユーザは検索結果を持たずに重複を設定します。
+     * @param userNames ユーザ名
+     * @return 指定されたユーザ名毎の検索結果
+     * @throws DataAccessException LDAPとの接続に失敗した場合に例外が投げられる
+     * @throws UnexpectedException 予期せぬエラーが発生した場合に投げられる例外です
+     */
+    default Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            SearchResults user = new SearchResults();
+            try {
+                SearchResult result = getUser(userName);
+                if (result != null) {
+                    user.add(result);
+                }
+            } catch (UserDuplicatedException e) {
+                user.setDuplicated(true);
+            }
+            results.put(userName, user);
+        }
+        return results;
+    }
+
+    /**
+     * userNameで特定されるユーザ情報から、指定された属性の値を1つ削除するメソッドです.
+     * 使用済みのリカバリコードの削除など、値単位の更新に利用します。
+     * 値の存在の確認と削除は1回の条件付きの更新で行い、同じ値を同時に削除した場合は1つの要求だけが成功します。
+     * 既定の実装は更新に対応しておらず、常に{@link DataAccessException}を投げます。
+     * @param userName サーチに利用するフィルタの値
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException LDAPとの接続、または更新に失敗した場合、更新に対応していない場合に例外が投げられる
+     * @throws UserDuplicatedException ユーザ情報が特定できない場合に例外が投げられる
+     * @throws ValueAlreadyRemovedException 値が存在しない場合 (別の要求が先に削除した場合を含む) に例外が投げられる
+     * @throws UnexpectedException 予期せぬエラーが発生した場合に投げられる例外です
+     */
+    default void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        throw new DataAccessException(getClass().getName() + " は値の削除に対応していません。 (unsupported)");
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
+/**
+ * DAOによるユーザ情報取得のサーキットブレーカーです.<br>
+ * 連続して失敗 (エラー、または応答時間の閾値超過) した場合に開き、一定時間DAOを呼び出さずに即座に失敗させます。
+ * 一定時間の経過後は1件のみ試行を許可し (半開)、成功した場合に閉じ、失敗した場合は再び開きます。
+ * 閾値は判定の都度 {@link AppConfig} から取得します。
+ * @author SIOS Technology, Inc.
+ */
+public final class DaoCircuitBreaker {
+
+    /**
+     * サーキットブレーカーの状態です.
+     */
+    public enum State {
+        /** DAOの呼び出しを許可しています. */
+        CLOSED,
+        /** DAOの呼び出しを遮断しています. */
+        OPEN,
+        /** 1件のみ試行を許可しています. */
+        HALF_OPEN
+    }
+
+    /** Singletonなインスタンス. */
+    private static final DaoCircuitBreaker DAO_CIRCUIT_BREAKER = new DaoCircuitBreaker();
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DaoCircuitBreaker.class);
+
+    /** 現在の状態. */
+    private State state = State.CLOSED;
+
+    /** 連続失敗回数. */
+    private int consecutiveFailures;
+
+    /** 開いた時刻 (ナノ秒). */
+    private long openedAt;
+
+    /** 半開状態で試行中であるか. */
+    private boolean trialInFlight;
+
+    /** 開いた回数. */
+    private long openedCount;
+
+    /** 半開にした回数. */
+    private long halfOpenedCount;
+
+    /** 半開から閉じた回数. */
+    private long closedCount;
+
+    /** 遮断した呼び出し数. */
+    private long rejectedCount;
+
+    /**
+     * コンストラクタです.
+     */
+    DaoCircuitBreaker() {
+    }
+
+    /**
+     * サーキットブレーカーを取得します.
+     * レルムが束縛されている場合は、レルム毎のサーキットブレーカーを取得します。
+     * @return サーキットブレーカー
+     */
+    public static DaoCircuitBreaker getInstance() {
+        Realm realm = Realm.current();
+        return realm == null ? DAO_CIRCUIT_BREAKER
+                : realm.getComponent(DaoCircuitBreaker.class, DaoCircuitBreaker::new);
+    }
+
+    /**
+     * DAOの呼び出しを許可するかを判定します.
+     * 開いている場合は遮断し、開いてから一定時間が経過している場合は半開にして1件のみ許可します。
+     * 許可された呼び出しの結果は {@link #onSuccess(long)}、{@link #onFailure()} で通知してください。
+     * @return 呼び出しを許可する場合はtrue
+     */
+    public synchronized boolean tryAcquire() {
+        if (!isEnabled()) {
+            reset();
+            return true;
+        }
+        if (state == State.OPEN && System.nanoTime() - openedAt >= getOpenMillis() * 1000000L) {
+            transition(State.HALF_OPEN);
+            halfOpenedCount++;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * DAOの呼び出しの成功を通知します.
+     * 応答時間が閾値を超えている場合は失敗として扱います。
+     * @param latencyNanos 応答時間 (ナノ秒)
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        long slowCallMillis = getSlowCallMillis();
+        if (slowCallMillis > 0 && latencyNanos >= slowCallMillis * 1000000L) {
+            LOGGER.warn("DAOのユーザ情報取得に{}ミリ秒を要しました。失敗として扱います。", latencyNanos / 1000000L);
+            onFailure();
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            transition(State.CLOSED);
+            closedCount++;
+        }
+    }
+
+    /**
+     * DAOの呼び出しの失敗を通知します.
+     * 連続失敗回数が閾値に達した場合、または半開状態での試行に失敗した場合に開きます。
+     */
+    public synchronized void onFailure() {
+        if (!isEnabled()) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= getFailureThreshold()) {
+            trialInFlight = false;
+            openedAt = System.nanoTime();
+            transition(State.OPEN);
+            openedCount++;
+        }
+    }
+
+    /**
+     * 現在の状態を取得します.
+     * @return 現在の状態
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * 開いた回数を取得します.
+     * @return 開いた回数
+     */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * 半開にした回数を取得します.
+     * @return 半開にした回数
+     */
+    public synchronized long getHalfOpenedCount() {
+        return halfOpenedCount;
+    }
+
+    /**
+     * 半開から閉じた回数を取得します.
+     * @return 半開から閉じた回数
+     */
+    public synchronized long getClosedCount() {
+        return closedCount;
+    }
+
+    /**
+     * 遮断した呼び出し数を取得します.
+     * @return 遮断した呼び出し数
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * 状態を遷移させます.
+     * @param next 遷移先の状態
+     */
+    private void transition(State next) {
+        if (next == State.OPEN) {
+            LOGGER.warn("DAOのサーキットブレーカーを開きます。 ({} -> {}, 連続失敗回数：{})", state, next, consecutiveFailures);
+        } else {
+            LOGGER.info("DAOのサーキットブレーカーの状態を変更します。 ({} -> {})", state, next);
+        }
+        state = next;
+    }
+
+    /**
+     * 閉じた状態に戻します. サーキットブレーカーが無効にされた場合に使用します.
+     */
+    private void reset() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * サーキットブレーカーが有効であるかを取得します.
+     * @return 有効な場合はtrue
+     */
+    private static boolean isEnabled() {
+        return getFailureThreshold() > 0;
+    }
+
+    /**
+     * 開くまでの連続失敗回数を取得します.
+     * @return 連続失敗回数
+     */
+    private static int getFailureThreshold() {
+        Integer threshold = AppConfig.getDaoCircuitBreakerFailureThreshold();
+        return threshold == null ? 0 : threshold;
+    }
+
+    /**
+     * 失敗とみなす応答時間を取得します.
+     * @return 応答時間 (ミリ秒)
+     */
+    private static long getSlowCallMillis() {
+        Long millis = AppConfig.getDaoCircuitBreakerSlowCallMillis();
+        return millis == null ? 0L : millis;
+    }
+
+    /**
+     * 開いてから試行を再開するまでの時間を取得します.
+     * @return 時間 (ミリ秒)
+     */
+    private static long getOpenMillis() {
+        Long millis = AppConfig.getDaoCircuitBreakerOpenMillis();
+        return millis == null || millis < 0 ? 0L : millis;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * 他の{@link Dao}の呼び出しに処理を追加するデコレータの基底クラスです.<br>
+ * 全ての呼び出しを委譲先にそのまま委譲します。
+ * デコレータ自身は{@link AsyncDao}を実装しません。委譲先が非同期に取得できない場合、{@link #getUserAsync(String)}は
+ * 呼び出し元のスレッドで同期的に取得するため、非同期に取得できるか ({@link #isAsync()}) を判定してから使用します。
+ * {@link DaoFactory}は、デコレータを委譲先の{@link Dao}を引数とするコンストラクタで生成し、
+ * 非同期に取得できる場合に限り{@link AsyncDao}として公開します。
+ * @author SIOS Technology, Inc.
+ */
+public abstract class DaoDecorator implements Dao {
+
+    /** 委譲先のDAO. */
+    private final Dao delegate;
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    protected DaoDecorator(Dao delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("委譲先のDAOが指定されていません。");
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * 委譲先のDAOを取得します.
+     * @return 委譲先のDAO
+     */
+    public Dao getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * ユーザ情報を呼び出し元のスレッドを待たせずに取得できるかを判定します.
+     * @return 委譲先が非同期に取得できる場合はtrue
+     */
+    public boolean isAsync() {
+        return isAsync(delegate);
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        return delegate.getUser(userName);
+    }
+
+    /**
+     * ユーザ名をベースにユーザ情報を取得し、結果をFutureで返却します.
+     * {@link #isAsync()}がfalseの場合、呼び出し元のスレッドで同期的に取得してから復帰します。
+     * 取得に失敗した場合の例外は{@link AsyncDao#getUserAsync(String)}と同じです。
+     * @param userName サーチに利用するフィルタの値
+     * @return ユーザ情報を結果とするFuture. ユーザ情報が存在しない場合の結果はnull
+     */
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        return getUserAsync(delegate, userName);
+    }
+
+    @Override
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        return delegate.getUsers(userNames);
+    }
+
+    @Override
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        delegate.removeValue(userName, attributeName, value);
+    }
+
+    /**
+     * DAOがユーザ情報を呼び出し元のスレッドを待たせずに取得できるかを判定します.
+     * @param dao DAO
+     * @return DAOが{@link AsyncDao}、または非同期に取得できるデコレータの場合はtrue
+     */
+    protected static boolean isAsync(Dao dao) {
+        return dao instanceof DaoDecorator ? ((DaoDecorator) dao).isAsync() : dao instanceof AsyncDao;
+    }
+
+    /**
+     * DAOからユーザ情報を取得し、結果をFutureで返却します.
+     * DAOが非同期に取得できない場合は、呼び出し元のスレッドで同期的に取得します。
+     * @param dao DAO
+     * @param userName サーチに利用するフィルタの値
+     * @return ユーザ情報を結果とするFuture
+     */
+    protected static CompletableFuture<SearchResult> getUserAsync(Dao dao, String userName) {
+        if (dao instanceof DaoDecorator) {
+            return ((DaoDecorator) dao).getUserAsync(userName);
+        }
+        if (dao instanceof AsyncDao) {
+            return ((AsyncDao) dao).getUserAsync(userName);
+        }
+        CompletableFuture<SearchResult> future = new CompletableFuture<SearchResult>();
+        try {
+            future.complete(dao.getUser(userName));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Futureの完了を待ち、結果を取得します.
+     * 例外的に完了した場合は、{@link Dao}の例外に変換して投げます。
+     * @param <T> 結果の型
+     * @param future Future
+     * @return 結果
+     * @throws DataAccessException データソースとの通信に失敗した場合、待機中に割り込まれた場合
+     * @throws UserDuplicatedException ユーザ情報が1件に特定できない場合
+     * @throws UnexpectedException 予期せぬエラーが発生した場合
+     */
+    protected static <T> T join(CompletableFuture<T> future)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException(e);
+        }
+    }
+
+    /**
+     * 例外を{@link Dao}の例外として投げます.
+     * @param e 例外. {@link CompletionException}の場合は原因の例外を使用します
+     * @return 呼び出し元で{@code throw}するための戻り値 (実際には返却しません)
+     * @throws DataAccessException 例外がDataAccessExceptionの場合
+     * @throws UserDuplicatedException 例外がUserDuplicatedExceptionの場合
+     * @throws UnexpectedException それ以外の場合
+     */
+    protected static UnexpectedException rethrow(Throwable e)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof DataAccessException) {
+            throw (DataAccessException) cause;
+        }
+        if (cause instanceof UserDuplicatedException) {
+            throw (UserDuplicatedException) cause;
+        }
+        if (cause instanceof UnexpectedException) {
+            throw (UnexpectedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new UnexpectedException(cause);
+    }
+
+    /**
+     * 例外的に完了したFutureを生成します.
+     * @param e 例外
+     * @return 例外的に完了したFuture
+     */
+    protected static CompletableFuture<SearchResult> failed(Throwable e) {
+        CompletableFuture<SearchResult> future = new CompletableFuture<SearchResult>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
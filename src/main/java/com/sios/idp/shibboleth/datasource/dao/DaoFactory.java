@@ -6,11 +6,17 @@
 package com.sios.idp.shibboleth.datasource.dao;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
 import com.sios.idp.shibboleth.exception.DaoInstantiationException;
 
 /**
@@ -25,34 +31,144 @@ public final class DaoFactory {
     /** {@link com.sios.idp.shibboleth.datasource.dao.Dao}を生成するSingletonなFactoryインスタンスです. */
     private static final DaoFactory FACTORY = new DaoFactory();
 
+    /** 組み込みのデコレータ名とクラスです. */
+    private static final Map<String, Class<? extends DaoDecorator>> BUILTIN_DECORATORS;
+
+    static {
+        Map<String, Class<? extends DaoDecorator>> decorators = new HashMap<String, Class<? extends DaoDecorator>>();
+        decorators.put("metrics", MetricsDao.class);
+        decorators.put("timeout", TimeoutDao.class);
+        decorators.put("circuitBreaker", CircuitBreakerDao.class);
+        decorators.put("coalescing", CoalescingDao.class);
+        decorators.put("cache", CachingDao.class);
+        BUILTIN_DECORATORS = Collections.unmodifiableMap(decorators);
+    }
+
+    /** 生成したDAO. */
+    private volatile DaoChain chain;
+
     /**
      * Singletonなインスタンスを返します.
+     * レルムが束縛されている場合は、レルム毎のDAOを生成するインスタンスを返します。
      * @return {@link com.sios.idp.shibboleth.datasource.dao.Dao}を生成するFactoryクラス
      * */
     public static DaoFactory getInstance() {
-        return FACTORY;
+        Realm realm = Realm.current();
+        return realm == null ? FACTORY : realm.getComponent(DaoFactory.class, DaoFactory::new);
     }
 
     /**
      * {@link com.sios.idp.shibboleth.common.AppConfig}で指定された
-     * {@link com.sios.idp.shibboleth.datasource.dao.Dao}のインスタンスを生成します.
+     * {@link com.sios.idp.shibboleth.datasource.dao.Dao}のインスタンスを返します.
+     * DAOの実装クラスをdaoDecoratorsで指定されたデコレータで外側から順に修飾したインスタンスを、
+     * daoImplClassName、daoDecoratorsが変更されるまで共有します。
+     * 修飾したDAOは、ユーザ情報を非同期に取得できる場合 ({@link DaoDecorator#isAsync()}) に限り{@link AsyncDao}を実装します。
      * @return {@link com.sios.idp.shibboleth.datasource.dao.Dao}の実装インスタンス
-     * @throws DaoInstantiationException DAOのインスタンス生成に失敗した場合
+     * @throws DaoInstantiationException DAO、デコレータのインスタンス生成に失敗した場合
      */
     public Dao createInstance() throws  DaoInstantiationException {
 
         String daoClassName = AppConfig.getDaoImplClassName();
-        _logger.info(MessageFormat.format("データソースにアクセスするDAOクラス {0} を生成します。", daoClassName));
+        String decorators = AppConfig.getDaoDecorators();
+        String key = daoClassName + "|" + (decorators == null ? "" : decorators);
+        DaoChain current = chain;
+        if (current != null && current.key.equals(key)) {
+            return current.dao;
+        }
+        synchronized (this) {
+            current = chain;
+            if (current == null || !current.key.equals(key)) {
+                current = new DaoChain(key, build(daoClassName, decorators));
+                chain = current;
+            }
+            return current.dao;
+        }
+    }
 
-        Object dao = null;
+    /**
+     * DAOの実装クラスを生成し、デコレータで修飾します.
+     * @param daoClassName DAOの実装クラスの完全修飾名
+     * @param decorators 外側から順にカンマ区切りで指定したデコレータ名またはクラスの完全修飾名
+     * @return 修飾したDAO
+     * @throws DaoInstantiationException DAO、デコレータのインスタンス生成に失敗した場合
+     */
+    private Dao build(String daoClassName, String decorators) throws DaoInstantiationException {
+
+        _logger.info(MessageFormat.format("データソースにアクセスするDAOクラス {0} を生成します。", daoClassName));
+        Dao dao = null;
         try {
-            dao = Class.forName(daoClassName).newInstance();
+            dao = (Dao) Class.forName(daoClassName).newInstance();
         } catch (Exception e) {
             _logger.error(MessageFormat.format(
                     "データソースにアクセスするDAOクラス {0} の生成に失敗しました。", daoClassName));
             throw new DaoInstantiationException(e);
         }
-        return (Dao) dao;
+
+        List<String> names = new ArrayList<String>();
+        if (decorators != null) {
+            for (String name : decorators.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        // 内側のデコレータから順に修飾する
+        Collections.reverse(names);
+        for (String name : names) {
+            String decoratorClassName = BUILTIN_DECORATORS.containsKey(name)
+                    ? BUILTIN_DECORATORS.get(name).getName() : name;
+            try {
+                dao = Class.forName(decoratorClassName).asSubclass(DaoDecorator.class)
+                        .getConstructor(Dao.class).newInstance(dao);
+            } catch (Exception e) {
+                _logger.error(MessageFormat.format(
+                        "DAOのデコレータクラス {0} の生成に失敗しました。", decoratorClassName));
+                throw new DaoInstantiationException(e);
+            }
+        }
+        if (!names.isEmpty()) {
+            _logger.info(MessageFormat.format("DAOクラス {0} をデコレータ {1} で修飾しました。", daoClassName, decorators));
+        }
+        if (dao instanceof DaoDecorator && ((DaoDecorator) dao).isAsync()) {
+            dao = new AsyncDecoratedDao(dao);
+        }
+        return dao;
+    }
+
+    /**
+     * 非同期に取得できるデコレータを{@link AsyncDao}として公開するデコレータです.
+     */
+    private static final class AsyncDecoratedDao extends DaoDecorator implements AsyncDao {
+
+        /**
+         * コンストラクタです.
+         * @param delegate 委譲先のDAO
+         */
+        private AsyncDecoratedDao(Dao delegate) {
+            super(delegate);
+        }
+    }
+
+    /**
+     * 生成したDAOと、生成時の設定値の組です.
+     */
+    private static final class DaoChain {
+
+        /** 生成時のdaoImplClassName、daoDecorators. */
+        private final String key;
+
+        /** 生成したDAO. */
+        private final Dao dao;
+
+        /**
+         * コンストラクタです.
+         * @param key 生成時のdaoImplClassName、daoDecorators
+         * @param dao 生成したDAO
+         */
+        private DaoChain(String key, Dao dao) {
+            this.key = key;
+            this.dao = dao;
+        }
     }
 
 }
@@ -0,0 +1,182 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.http.HttpUserClient;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * REST/SCIMのユーザディレクトリからHTTPでユーザ情報を取得するDAOです.<br>
+ * 通信は{@link HttpUserClient}で行い、レスポンスのJSONのメンバー名を属性名とします
+ * (入れ子のオブジェクトは「親のメンバー名.メンバー名」)。
+ * 属性値の削除はユーザ情報の{@value #ID_ATTRIBUTE_NAME}に対するSCIMのPATCHで行い、
+ * {@value #VERSION_ATTRIBUTE_NAME}をIf-Matchヘッダに指定して取得時から更新されていない場合のみ削除します。
+ * @author SIOS Technology, Inc.
+ */
+public class HttpDaoImpl implements Dao {
+
+    /** ユーザ情報のidの属性名. */
+    public static final String ID_ATTRIBUTE_NAME = "id";
+
+    /** ユーザ情報のバージョン (ETag) の属性名. */
+    public static final String VERSION_ATTRIBUTE_NAME = "meta.version";
+
+    /** 属性値の削除が他の更新と競合した場合に試行する回数. */
+    private static final int MAX_REMOVE_ATTEMPTS = 3;
+
+    /** 1回に同時に発行するリクエスト数の既定値. */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** loggerの呼び出します. */
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    /**
+     * 与えられたuserNameを元にユーザディレクトリから情報の取得を行なうメソッドです.
+     * @param userName ユーザネーム
+     * @return SearchResultオブジェクト. 存在しない場合はnull
+     * @throws DataAccessException ユーザディレクトリとの通信に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException ユーザ情報が複数存在する際に投げられる例外です.
+     */
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の情報取得を開始します。", userName));
+        SearchResults results = null;
+        try {
+            results = HttpUserClient.getInstance().getUser(userName);
+        } catch (IOException e) {
+            throw new DataAccessException(e);
+        }
+        if (ValidationUtil.isSingleRecorde(results)) {
+            logger.debug("ユーザ情報の取得が完了しました。");
+            return results.iterator().next();
+        }
+        logger.debug("ユーザ情報の取得に失敗しました。");
+        return null;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNamesを元に、userBatchSize件毎にリクエストを同時に発行してユーザディレクトリから情報の取得を行なうメソッドです.
+     * HTTP/2に対応したサーバとは、同時に発行したリクエストが1つの接続で多重化されます。
+     * @param userNames ユーザネーム
+     * @return ユーザネーム毎のSearchResultsオブジェクト
+     * @throws DataAccessException ユーザディレクトリとの通信に失敗した際に投げられる例外です.
+     */
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0}件のユーザの情報取得を開始します。", userNames.size()));
+        Integer configured = AppConfig.getUserBatchSize();
+        int batchSize = configured == null || configured <= 0 ? DEFAULT_BATCH_SIZE : configured;
+        Map<String, SearchResults> found = new LinkedHashMap<String, SearchResults>();
+        try {
+            HttpUserClient client = HttpUserClient.getInstance();
+            List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(userNames));
+            for (List<String> chunk : Lists.partition(distinct, batchSize)) {
+                List<CompletableFuture<SearchResults>> futures = new ArrayList<CompletableFuture<SearchResults>>();
+                for (String userName : chunk) {
+                    futures.add(client.getUserAsync(userName));
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    found.put(chunk.get(i), futures.get(i).get());
+                }
+            }
+        } catch (IOException e) {
+            throw new DataAccessException(e);
+        } catch (ExecutionException e) {
+            throw new DataAccessException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException(e);
+        }
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            results.put(userName, found.get(userName));
+        }
+        logger.debug("ユーザ情報の取得が完了しました。");
+        return results;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNameのユーザ情報から、指定された属性値をSCIMのPATCHで削除するメソッドです.
+     * 取得したユーザ情報の{@value #VERSION_ATTRIBUTE_NAME}をIf-Matchヘッダに指定し、取得から削除までの間に
+     * 他の要求がユーザ情報を更新していた場合 (412) は、ユーザ情報を取得し直して値の有無から判定し直します。
+     * バージョンを返却しないサーバでは条件付きの削除ができないため、削除を行いません。
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException ユーザディレクトリとの通信、または更新に失敗した際、バージョンが取得できない際に投げられる例外です.
+     * @throws UserDuplicatedException 更新対象のユーザ情報が1件に特定できない場合に投げられる例外です.
+     * @throws ValueAlreadyRemovedException 値を持たない (削除済みの) 場合に投げられる例外です.
+     */
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の属性 {1} の値削除を開始します。", userName, attributeName));
+        for (int attempt = 1; attempt <= MAX_REMOVE_ATTEMPTS; attempt++) {
+            SearchResult user = getUser(userName);
+            String id = user == null ? null : user.getValue(ID_ATTRIBUTE_NAME);
+            if (id == null) {
+                throw new UserDuplicatedException(MessageFormat.format(
+                        "更新対象のユーザ情報が1件に特定できません。ユーザ名：{0}, 件数：{1}", userName, 0));
+            }
+            if (!user.getValues(attributeName).contains(value)) {
+                throw new ValueAlreadyRemovedException(MessageFormat.format(
+                        "削除対象の値が存在しません。ユーザ名：{0}, 属性名：{1}", userName, attributeName));
+            }
+            String version = user.getValue(VERSION_ATTRIBUTE_NAME);
+            if (version == null) {
+                throw new DataAccessException(MessageFormat.format(
+                        "ユーザ情報のバージョン ({0}) が取得できないため、条件付きで削除できません。ユーザ名：{1}",
+                        VERSION_ATTRIBUTE_NAME, userName));
+            }
+            int status;
+            try {
+                status = HttpUserClient.getInstance().removeValue(id, version, attributeName, value);
+            } catch (IOException e) {
+                throw new DataAccessException(e);
+            }
+            if (status == 200 || status == 204) {
+                logger.debug("属性値の削除が完了しました。");
+                return;
+            }
+            if (status == 404) {
+                throw new UserDuplicatedException(MessageFormat.format(
+                        "更新対象のユーザ情報が1件に特定できません。ユーザ名：{0}, 件数：{1}", userName, 0));
+            }
+            if (status != 412) {
+                throw new DataAccessException(MessageFormat.format(
+                        "属性値の削除に失敗しました。ユーザ名：{0}, ステータス：{1}", userName, status));
+            }
+            logger.debug(MessageFormat.format("ユーザ情報が更新されていたため、取得し直します。ユーザ名：{0}, 試行回数：{1}",
+                    userName, attempt));
+        }
+        throw new DataAccessException(MessageFormat.format(
+                "ユーザ情報の更新が競合したため、属性値を削除できませんでした。ユーザ名：{0}", userName));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.jdbc.JdbcConnectionPool;
+import com.sios.idp.shibboleth.datasource.jdbc.JdbcUserMapper;
+import com.sios.idp.shibboleth.datasource.jdbc.PooledJdbcConnection;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * リレーショナルデータベースからJDBCでユーザ情報を取得するDAOです.<br>
+ * 接続は{@link JdbcConnectionPool}から借用し、SQLは接続毎にキャッシュしたPreparedStatementで実行します。
+ * 実行するSQLは{@link com.sios.idp.shibboleth.common.AppConfig}の以下の設定に従います。
+ * <ul>
+ * <li>jdbcUserQuery：ユーザ名 (1つ目のパラメータ) でユーザ情報を検索するSQL</li>
+ * <li>jdbcUsersQuery：{0}をユーザ名のパラメータの並び (?, ?, ...) に置き換えて複数ユーザを検索するSQL。
+ * 結果にはjdbcUserNameColumnの列を含めてください</li>
+ * <li>jdbcRemoveValueQuery：{0}を属性に対応する列名に置き換えて、値を削除するSQL。
+ * パラメータはユーザ名、削除する値の順です</li>
+ * </ul>
+ * 検索結果の列は{@link JdbcUserMapper}でユーザ情報の属性に変換します。
+ * @author SIOS Technology, Inc.
+ */
+public class JdbcDaoImpl implements Dao {
+
+    /** 1回の検索で検索するユーザ数の既定値. */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** loggerの呼び出します. */
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    /**
+     * 与えられたuserNameを元にデータベースから情報の取得を行なうメソッドです.
+     * @param userName ユーザネーム
+     * @return SearchResultオブジェクト. 存在しない場合はnull
+     * @throws DataAccessException データベースとの接続、または検索に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException ユーザ固有IDの異なる行が存在する際に投げられる例外です.
+     */
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の情報取得を開始します。", userName));
+        SearchResults results = null;
+        try (PooledJdbcConnection connection = borrow()) {
+            try {
+                PreparedStatement statement = connection.prepare(AppConfig.getJdbcUserQuery());
+                statement.setQueryTimeout(getQueryTimeoutSec());
+                statement.setString(1, userName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    results = getMapper().map(resultSet, null, AppConfig.getImmutableUserIdAttributeName()).get("");
+                }
+            } catch (SQLException e) {
+                connection.markBroken();
+                throw new DataAccessException(e);
+            }
+        }
+        if (results != null && ValidationUtil.isSingleRecorde(results)) {
+            logger.debug("ユーザ情報の取得が完了しました。");
+            return results.iterator().next();
+        }
+        logger.debug("ユーザ情報の取得に失敗しました。");
+        return null;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNamesを元に、ユーザ名をuserBatchSize件毎にIN句で検索してデータベースから情報の取得を行なうメソッドです.
+     * PreparedStatementを再利用するため、最後の検索のパラメータは最後のユーザ名を繰り返してuserBatchSize件に揃えます。
+     * @param userNames ユーザネーム
+     * @return ユーザネーム毎のSearchResultsオブジェクト
+     * @throws DataAccessException データベースとの接続、または検索に失敗した際に投げられる例外です.
+     */
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0}件のユーザの情報取得を開始します。", userNames.size()));
+        List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(userNames));
+        Integer configured = AppConfig.getUserBatchSize();
+        int batchSize = configured == null || configured <= 0 ? DEFAULT_BATCH_SIZE : configured;
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < batchSize; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String sql = AppConfig.getJdbcUsersQuery().replace("{0}", placeholders);
+        JdbcUserMapper mapper = getMapper();
+        Map<String, SearchResults> found = new LinkedHashMap<String, SearchResults>();
+        if (!distinct.isEmpty()) {
+            found = search(sql, batchSize, distinct, mapper);
+        }
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            SearchResults user = found.get(userName.toLowerCase(Locale.ROOT));
+            results.put(userName, user == null ? new SearchResults() : user);
+        }
+        logger.debug("ユーザ情報の取得が完了しました。");
+        return results;
+    }
+
+    /**
+     * ユーザ名をbatchSize件毎に検索します.
+     * @param sql batchSize件のユーザ名のパラメータを持つSQL
+     * @param batchSize 1回の検索で検索するユーザ数
+     * @param userNames 重複のないユーザ名
+     * @param mapper 列と属性の対応
+     * @return ユーザ名 (小文字) 毎のユーザ情報
+     * @throws DataAccessException データベースとの接続、または検索に失敗した場合
+     */
+    private static Map<String, SearchResults> search(String sql, int batchSize, List<String> userNames,
+            JdbcUserMapper mapper) throws DataAccessException {
+        Map<String, SearchResults> found = new LinkedHashMap<String, SearchResults>();
+        try (PooledJdbcConnection connection = borrow()) {
+            try {
+                PreparedStatement statement = connection.prepare(sql);
+                for (List<String> chunk : Lists.partition(userNames, batchSize)) {
+                    statement.setQueryTimeout(getQueryTimeoutSec());
+                    for (int i = 0; i < batchSize; i++) {
+                        statement.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        found.putAll(mapper.map(resultSet, AppConfig.getJdbcUserNameColumn(),
+                                AppConfig.getImmutableUserIdAttributeName()));
+                    }
+                }
+            } catch (SQLException e) {
+                connection.markBroken();
+                throw new DataAccessException(e);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNameで特定される行から、指定された属性値を削除するメソッドです.
+     * 値の確認と削除はjdbcRemoveValueQueryの条件 (WHERE {0} = ?) で1回の更新として行い、更新件数で結果を判定します。
+     * 更新された行が1行でない場合はロールバックします。
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException データベースとの接続、または更新に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException 更新対象の行が1行に特定できない場合に投げられる例外です.
+     * @throws ValueAlreadyRemovedException 値を持つ行が存在しない (削除済みの) 場合に投げられる例外です.
+     */
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の属性 {1} の値削除を開始します。", userName, attributeName));
+        String sql;
+        try {
+            sql = AppConfig.getJdbcRemoveValueQuery().replace("{0}", getMapper().getColumnName(attributeName));
+        } catch (IllegalArgumentException e) {
+            throw new DataAccessException(e);
+        }
+        int count = 0;
+        try (PooledJdbcConnection connection = borrow()) {
+            Connection jdbc = connection.getConnection();
+            try {
+                jdbc.setAutoCommit(false);
+                PreparedStatement statement = connection.prepare(sql);
+                statement.setQueryTimeout(getQueryTimeoutSec());
+                statement.setString(1, userName);
+                statement.setString(2, value);
+                count = statement.executeUpdate();
+                if (count == 1) {
+                    jdbc.commit();
+                } else {
+                    jdbc.rollback();
+                }
+                jdbc.setAutoCommit(true);
+            } catch (SQLException e) {
+                connection.markBroken();
+                throw new DataAccessException(e);
+            }
+        }
+        if (count == 0) {
+            throw new ValueAlreadyRemovedException(MessageFormat.format(
+                    "削除対象の値が存在しません。ユーザ名：{0}, 属性名：{1}", userName, attributeName));
+        }
+        if (count != 1) {
+            throw new UserDuplicatedException(MessageFormat.format(
+                    "更新対象の行が1行に特定できません。ユーザ名：{0}, 件数：{1}", userName, count));
+        }
+        logger.debug("属性値の削除が完了しました。");
+    }
+
+    /**
+     * 接続プールから接続を借用します.
+     * @return 接続
+     * @throws DataAccessException 接続できない場合
+     */
+    private static PooledJdbcConnection borrow() throws DataAccessException {
+        try {
+            return JdbcConnectionPool.getInstance().borrow();
+        } catch (SQLException e) {
+            throw new DataAccessException(e);
+        }
+    }
+
+    /**
+     * 設定された列と属性の対応を取得します.
+     * @return 列と属性の対応
+     * @throws DataAccessException 定義の形式が不正な場合
+     */
+    private static JdbcUserMapper getMapper() throws DataAccessException {
+        try {
+            return new JdbcUserMapper(AppConfig.getJdbcColumnMapping());
+        } catch (IllegalArgumentException e) {
+            throw new DataAccessException(e);
+        }
+    }
+
+    /**
+     * SQLのタイムアウトを取得します.
+     * @return タイムアウト (秒). 0の場合は無制限
+     */
+    private static int getQueryTimeoutSec() {
+        Integer timeoutSec = AppConfig.getJdbcQueryTimeoutSec();
+        return timeoutSec == null || timeoutSec < 0 ? 0 : timeoutSec;
+    }
+}
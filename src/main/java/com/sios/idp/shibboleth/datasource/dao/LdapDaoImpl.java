@@ -6,19 +6,25 @@
 package com.sios.idp.shibboleth.datasource.dao;
 
 import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Map;
 
 import javax.naming.NamingException;
+import javax.naming.directory.NoSuchAttributeException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sios.idp.shibboleth.common.AppConfig;
 import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.ldap.LdapUserBatch;
 import com.sios.idp.shibboleth.datasource.ldap.LdapUtil;
 import com.sios.idp.shibboleth.dto.SearchResult;
 import com.sios.idp.shibboleth.dto.SearchResults;
 import com.sios.idp.shibboleth.exception.DataAccessException;
 import com.sios.idp.shibboleth.exception.UnexpectedException;
 import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
 /**
  * LDAP サーチ、バインドなど実行した結果はresult変数へ格納後、上位へ返します.
  * @author SIOS Technology, Inc.
@@ -53,4 +59,53 @@ public class LdapDaoImpl implements Dao {
         }
     }
 
+    @Override
+    /**
+     * 与えられたuserNamesを元に、ユーザ名をuserBatchSize件毎に論理和で結合した検索でLDAPから情報の取得を行なうメソッドです.
+     * @param userNames ユーザネーム
+     * @return ユーザネーム毎のSearchResultsオブジェクト
+     * @throws DataAccessException Ldapとの接続に失敗した際に投げられる例外です.
+     */
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0}件のユーザの情報取得を開始します。", userNames.size()));
+        LdapUserBatch batch = new LdapUserBatch(userNames, AppConfig.getLdapUserNameAttributeName());
+        try {
+            LdapUtil.searchUsers(batch, LdapUserBatch.getBatchSize());
+        } catch (NamingException ne) {
+            throw new DataAccessException(ne);
+        }
+        logger.debug("ユーザ情報の取得が完了しました。");
+        return batch.getResults();
+    }
+
+    @Override
+    /**
+     * 与えられたuserNameで特定されるエントリから、指定された属性値を削除するメソッドです.
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException Ldapとの接続、または更新に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException 更新対象のエントリが1件に特定できない場合に投げられる例外です.
+     * @throws ValueAlreadyRemovedException 値が存在しない (削除済みの) 場合に投げられる例外です.
+     */
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の属性 {1} の値削除を開始します。", userName, attributeName));
+        int count = 0;
+        try {
+            count = LdapUtil.removeAttributeValue(attributeName, value, userName);
+        } catch (NoSuchAttributeException e) {
+            throw new ValueAlreadyRemovedException(MessageFormat.format(
+                    "削除対象の値が存在しません。ユーザ名：{0}, 属性名：{1}", userName, attributeName), e);
+        } catch (NamingException ne) {
+            throw new DataAccessException(ne);
+        }
+        if (count != 1) {
+            throw new UserDuplicatedException(MessageFormat.format(
+                    "更新対象のエントリが1件に特定できません。ユーザ名：{0}, 件数：{1}", userName, count));
+        }
+        logger.debug("属性値の削除が完了しました。");
+    }
+
 }
@@ -0,0 +1,196 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * 委譲した呼び出しの回数、失敗回数、応答時間を操作毎に計測するデコレータです.<br>
+ * {@link UserDuplicatedException}はディレクトリの応答として失敗に含めません。
+ * @author SIOS Technology, Inc.
+ */
+public class MetricsDao extends DaoDecorator {
+
+    /**
+     * 計測する操作です.
+     */
+    public enum Operation {
+        /** ユーザ情報の取得 (同期、非同期). */
+        GET_USER,
+        /** 複数ユーザのユーザ情報の取得. */
+        GET_USERS,
+        /** 属性値の削除. */
+        REMOVE_VALUE
+    }
+
+    /** Class logger. */
+    private final Logger _logger = LoggerFactory.getLogger(this.getClass());
+
+    /** 操作毎の計測値. */
+    private final Map<Operation, Stats> stats = new EnumMap<Operation, Stats>(Operation.class);
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    public MetricsDao(Dao delegate) {
+        super(delegate);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return super.getUser(userName);
+        } catch (DataAccessException | UserDuplicatedException | UnexpectedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            record(Operation.GET_USER, failure, start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        long start = System.nanoTime();
+        CompletableFuture<SearchResult> future;
+        try {
+            future = super.getUserAsync(userName);
+        } catch (RuntimeException e) {
+            record(Operation.GET_USER, e, start);
+            throw e;
+        }
+        return future.whenComplete((result, e) -> record(Operation.GET_USER, e, start));
+    }
+
+    @Override
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return super.getUsers(userNames);
+        } catch (DataAccessException | UnexpectedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            record(Operation.GET_USERS, failure, start);
+        }
+    }
+
+    @Override
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            super.removeValue(userName, attributeName, value);
+        } catch (DataAccessException | UserDuplicatedException | ValueAlreadyRemovedException
+                | UnexpectedException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            record(Operation.REMOVE_VALUE, failure, start);
+        }
+    }
+
+    /**
+     * 呼び出し回数を取得します.
+     * @param operation 操作
+     * @return 呼び出し回数
+     */
+    public long getCallCount(Operation operation) {
+        return stats.get(operation).calls.get();
+    }
+
+    /**
+     * 失敗回数を取得します.
+     * @param operation 操作
+     * @return 失敗回数
+     */
+    public long getFailureCount(Operation operation) {
+        return stats.get(operation).failures.get();
+    }
+
+    /**
+     * 応答時間の合計 (ナノ秒) を取得します.
+     * @param operation 操作
+     * @return 応答時間の合計 (ナノ秒)
+     */
+    public long getTotalLatencyNanos(Operation operation) {
+        return stats.get(operation).totalNanos.get();
+    }
+
+    /**
+     * 応答時間の最大値 (ナノ秒) を取得します.
+     * @param operation 操作
+     * @return 応答時間の最大値 (ナノ秒)
+     */
+    public long getMaxLatencyNanos(Operation operation) {
+        return stats.get(operation).maxNanos.get();
+    }
+
+    /**
+     * 呼び出しの結果を記録します.
+     * @param operation 操作
+     * @param e 委譲先の例外. 成功した場合はnull
+     * @param start 開始時刻 (ナノ秒)
+     */
+    private void record(Operation operation, Throwable e, long start) {
+        long latency = System.nanoTime() - start;
+        Stats target = stats.get(operation);
+        target.calls.incrementAndGet();
+        target.totalNanos.addAndGet(latency);
+        target.maxNanos.accumulateAndGet(latency, Math::max);
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause != null && !(cause instanceof UserDuplicatedException)
+                && !(cause instanceof ValueAlreadyRemovedException)) {
+            target.failures.incrementAndGet();
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("DAOの{}に{}マイクロ秒を要しました。(結果：{})", operation, latency / 1000L,
+                    cause == null ? "成功" : cause.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * 操作毎の計測値です.
+     */
+    private static final class Stats {
+
+        /** 呼び出し回数. */
+        private final AtomicLong calls = new AtomicLong();
+
+        /** 失敗回数. */
+        private final AtomicLong failures = new AtomicLong();
+
+        /** 応答時間の合計 (ナノ秒). */
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        /** 応答時間の最大値 (ナノ秒). */
+        private final AtomicLong maxNanos = new AtomicLong();
+    }
+}
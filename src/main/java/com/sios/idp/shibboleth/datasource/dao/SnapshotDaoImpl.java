@@ -0,0 +1,142 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotJournal;
+import com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotStore;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * メモリマップしたユーザ情報のスナップショットファイルからユーザ情報を取得するDAOです.<br>
+ * ディレクトリへの問い合わせを行わないため、スナップショットの生成以降の変更は次のスナップショット、
+ * または更新ジャーナル ({@link UserSnapshotJournal}) に追記されるまで反映されません。
+ * 属性値の削除 (リカバリコードの消費等) は更新ジャーナルに追記するため、このノードのみに反映されます。
+ * @author SIOS Technology, Inc.
+ */
+public class SnapshotDaoImpl implements Dao {
+
+    /** loggerの呼び出します. */
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    /**
+     * 与えられたuserNameを元にスナップショットから情報の取得を行なうメソッドです.
+     * @param userName ユーザネーム
+     * @return SearchResultオブジェクト. 存在しない場合はnull
+     * @throws DataAccessException スナップショットファイルを開けない場合に投げられる例外です.
+     * @throws UserDuplicatedException スナップショットでユーザ名が重複している場合に投げられる例外です.
+     */
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の情報取得を開始します。", userName));
+        SearchResult result = getJournal().get(userName);
+        logger.debug(result == null ? "ユーザ情報の取得に失敗しました。" : "ユーザ情報の取得が完了しました。");
+        return result;
+    }
+
+    @Override
+    /**
+     * 与えられたuserNamesを元にスナップショットから情報の取得を行なうメソッドです.
+     * 全てのユーザを同じスナップショットとその更新ジャーナルから取得するため、取得中にスナップショットが切り替わっても結果は一貫します。
+     * @param userNames ユーザネーム
+     * @return ユーザネーム毎のSearchResultsオブジェクト. 重複するユーザは検索結果を持たず、重複が設定されます
+     * @throws DataAccessException スナップショットファイルを開けない場合に投げられる例外です.
+     */
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0}件のユーザの情報取得を開始します。", userNames.size()));
+        UserSnapshotJournal journal = getJournal();
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            SearchResults user = new SearchResults();
+            try {
+                SearchResult result = journal.get(userName);
+                if (result != null) {
+                    user.add(result);
+                }
+            } catch (UserDuplicatedException e) {
+                user.setDuplicated(true);
+            }
+            results.put(userName, user);
+        }
+        logger.debug("ユーザ情報の取得が完了しました。");
+        return results;
+    }
+
+    /**
+     * 現在のスナップショットの更新ジャーナルを取得します.
+     * @return 現在のスナップショットの更新ジャーナル
+     * @throws DataAccessException スナップショットファイルを開けない場合
+     */
+    private UserSnapshotJournal getJournal() throws DataAccessException {
+        try {
+            return UserSnapshotStore.getInstance().getJournal();
+        } catch (IOException e) {
+            throw new DataAccessException(e);
+        }
+    }
+
+    @Override
+    /**
+     * 与えられたuserNameのユーザ情報から指定された属性値を削除し、更新ジャーナルに追記するメソッドです.
+     * @param userName ユーザネーム
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @throws DataAccessException 更新ジャーナルへの追記に失敗した際に投げられる例外です.
+     * @throws UserDuplicatedException ユーザ情報が存在しない場合、ユーザ名が重複している場合に投げられる例外です.
+     * @throws ValueAlreadyRemovedException 値を持たない (削除済みの) 場合に投げられる例外です.
+     */
+    public void removeValue(String userName, String attributeName, String value)
+            throws DataAccessException, UserDuplicatedException, ValueAlreadyRemovedException, UnexpectedException {
+        logger.debug(MessageFormat.format("{0} の属性 {1} の値削除を開始します。", userName, attributeName));
+        boolean[] found = new boolean[1];
+        boolean[] removed = new boolean[1];
+        try {
+            getJournal().update(userName, current -> {
+                found[0] = current != null;
+                if (current == null || !current.getValues(attributeName).contains(value)) {
+                    return current;
+                }
+                SearchResult changed = new SearchResult();
+                for (String name : current.getAttributeNames()) {
+                    for (String currentValue : current.getValues(name)) {
+                        if (!name.equals(attributeName) || !currentValue.equals(value) || removed[0]) {
+                            changed.add(name, currentValue);
+                        } else {
+                            removed[0] = true;
+                        }
+                    }
+                }
+                return changed;
+            });
+        } catch (IOException e) {
+            throw new DataAccessException(e);
+        }
+        if (!found[0]) {
+            throw new UserDuplicatedException(MessageFormat.format(
+                    "更新対象のユーザ情報が1件に特定できません。ユーザ名：{0}, 件数：{1}", userName, 0));
+        }
+        if (!removed[0]) {
+            throw new ValueAlreadyRemovedException(MessageFormat.format(
+                    "削除対象の値が存在しません。ユーザ名：{0}, 属性名：{1}", userName, attributeName));
+        }
+        logger.debug("属性値の削除が完了しました。");
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.dao;
+
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UnexpectedException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * 委譲先の応答をdaoTimeoutMillisまで待ち、超過した場合は{@link DataAccessException}とするデコレータです.<br>
+ * 委譲先が非同期に取得できない場合、{@link #getUserAsync(String)}は共有のデーモンスレッドで取得するため、
+ * このデコレータで修飾したDAOは常に非同期に取得できます。
+ * 待ち時間を超過した呼び出しはスレッドを占有し続けるため、スレッド数はdaoTimeoutMaxThreads、
+ * 待機させる呼び出しはdaoTimeoutMaxQueuedまでとし、超過した呼び出しは委譲せずに直ちに{@link DataAccessException}とします。
+ * 属性値の削除は、待ち時間の超過後も更新が反映され得るため制限しません。
+ * @author SIOS Technology, Inc.
+ */
+public class TimeoutDao extends DaoDecorator {
+
+    /** 待ち時間 (ミリ秒) の既定値. */
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000L;
+
+    /** スレッド数の上限の既定値. */
+    private static final int DEFAULT_MAX_THREADS = 32;
+
+    /** 待機させる呼び出し数の上限の既定値. */
+    private static final int DEFAULT_MAX_QUEUED = 64;
+
+    /** 使用されていないスレッドを終了するまでの時間 (秒). */
+    private static final long KEEP_ALIVE_SEC = 60L;
+
+    /** 同期的なDAOを呼び出すスレッドプール. */
+    private static ExecutorService executor;
+
+    /**
+     * コンストラクタです.
+     * @param delegate 委譲先のDAO
+     */
+    public TimeoutDao(Dao delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public SearchResult getUser(String userName)
+            throws DataAccessException, UserDuplicatedException, UnexpectedException {
+        if (getTimeoutMillis() <= 0) {
+            return super.getUser(userName);
+        }
+        return join(getUserAsync(userName));
+    }
+
+    @Override
+    public CompletableFuture<SearchResult> getUserAsync(String userName) {
+        long timeoutMillis = getTimeoutMillis();
+        Dao delegate = getDelegate();
+        CompletableFuture<SearchResult> future;
+        if (isAsync(delegate)) {
+            future = getUserAsync(delegate, userName).copy();
+        } else {
+            try {
+                future = CompletableFuture.supplyAsync(Realm.bind(() -> {
+                    try {
+                        return delegate.getUser(userName);
+                    } catch (DataAccessException | UserDuplicatedException | UnexpectedException e) {
+                        throw new CompletionException(e);
+                    }
+                }), getExecutor());
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.failedFuture(saturated(e));
+            }
+        }
+        if (timeoutMillis <= 0) {
+            return future;
+        }
+        return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).handle((result, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                throw new CompletionException(timeout(timeoutMillis));
+            }
+            if (cause != null) {
+                throw new CompletionException(cause);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public Map<String, SearchResults> getUsers(Collection<String> userNames)
+            throws DataAccessException, UnexpectedException {
+        long timeoutMillis = getTimeoutMillis();
+        if (timeoutMillis <= 0) {
+            return super.getUsers(userNames);
+        }
+        Realm realm = Realm.current();
+        Future<Map<String, SearchResults>> future;
+        try {
+            future = getExecutor().submit(() -> Realm.execute(realm, () -> super.getUsers(userNames)));
+        } catch (RejectedExecutionException e) {
+            throw saturated(e);
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw timeout(timeoutMillis);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DataAccessException) {
+                throw (DataAccessException) cause;
+            }
+            if (cause instanceof UnexpectedException) {
+                throw (UnexpectedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new UnexpectedException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DataAccessException(e);
+        }
+    }
+
+    /**
+     * 同期的なDAOを呼び出すスレッドプールを停止します.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * 同期的なDAOを呼び出すスレッドプールを取得します. 未生成の場合は生成します.
+     * スレッド数と待機させる呼び出し数に上限があり、超過した場合は{@link RejectedExecutionException}となります。
+     * @return スレッドプール
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int maxThreads = positiveOrDefault(AppConfig.getDaoTimeoutMaxThreads(), DEFAULT_MAX_THREADS);
+            int maxQueued = positiveOrDefault(AppConfig.getDaoTimeoutMaxQueued(), DEFAULT_MAX_QUEUED);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(maxQueued), runnable -> {
+                        Thread thread = new Thread(runnable, "dao-timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * スレッドプールが飽和している場合の例外を生成します.
+     * @param cause スレッドプールが受け付けなかった例外
+     * @return 例外
+     */
+    private static DataAccessException saturated(RejectedExecutionException cause) {
+        return new DataAccessException("DAOの呼び出しが上限に達しているため、呼び出しを受け付けませんでした。", cause);
+    }
+
+    /**
+     * 設定値が正の場合は設定値、それ以外の場合は既定値を取得します.
+     * @param configured 設定値
+     * @param defaultValue 既定値
+     * @return 設定値または既定値
+     */
+    private static int positiveOrDefault(Integer configured, int defaultValue) {
+        return configured == null || configured <= 0 ? defaultValue : configured;
+    }
+
+    /**
+     * 待ち時間を超過した場合の例外を生成します.
+     * @param timeoutMillis 待ち時間 (ミリ秒)
+     * @return 例外
+     */
+    private static DataAccessException timeout(long timeoutMillis) {
+        return new DataAccessException(MessageFormat.format(
+                "DAOの応答が{0}ミリ秒以内にありませんでした。", timeoutMillis));
+    }
+
+    /**
+     * 待ち時間 (ミリ秒) を取得します.
+     * @return 待ち時間 (ミリ秒). 0以下の場合は制限しません
+     */
+    private static long getTimeoutMillis() {
+        Long millis = AppConfig.getDaoTimeoutMillis();
+        return millis == null ? DEFAULT_TIMEOUT_MILLIS : millis;
+    }
+}
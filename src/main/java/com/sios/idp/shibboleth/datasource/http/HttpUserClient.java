@@ -0,0 +1,420 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.util.DeferredCloser;
+import com.sios.idp.shibboleth.dto.SearchResults;
+
+/**
+ * REST/SCIMのユーザディレクトリからHTTPでユーザ情報を取得するクライアントです.<br>
+ * 1つのHttpClientを共有し、接続を再利用します。HTTP/2に対応したサーバとは1つの接続で複数のリクエストを多重化し、
+ * 対応していないサーバとはHTTP/1.1のKeep-Aliveで接続を再利用します。
+ * リクエスト毎にタイムアウトを設定し、レスポンスはhttpMaxResponseBytesを超えた時点で読み込みを中止します。
+ * レスポンスは{@link JsonUserParser}で読み込みながら変換します。
+ * 接続先、認証情報は{@link com.sios.idp.shibboleth.common.AppConfig}に従います。
+ * @author SIOS Technology, Inc.
+ */
+public final class HttpUserClient {
+
+    /** 接続タイムアウトの既定値 (ミリ秒). */
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 3000L;
+
+    /** リクエストタイムアウトの既定値 (ミリ秒). */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 5000L;
+
+    /** レスポンスの上限サイズの既定値 (バイト). */
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    /** 複数のユーザ情報を格納するメンバー名の既定値. */
+    public static final String DEFAULT_RESOURCES_MEMBER = "Resources";
+
+    /** Acceptヘッダの値. */
+    private static final String ACCEPT = "application/scim+json, application/json";
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpUserClient.class);
+
+    /** Singletonなインスタンス. */
+    private static HttpUserClient client;
+
+    /** ユーザ情報を取得するURL. {0}はユーザ名. */
+    private final String userUrl;
+
+    /** 属性値を削除するURL. {0}はユーザ情報のid. */
+    private final String patchUrl;
+
+    /** Authorizationヘッダの値. 空の場合は送信しません. */
+    private final String authorization;
+
+    /** リクエストタイムアウト. */
+    private final Duration requestTimeout;
+
+    /** レスポンスの上限サイズ (バイト). */
+    private final int maxResponseBytes;
+
+    /** 複数のユーザ情報を格納するメンバー名. */
+    private final String resourcesMember;
+
+    /** レスポンスの読み込みを行うExecutor. */
+    private final ExecutorService executor;
+
+    /** 共有するHttpClient. */
+    private final HttpClient http;
+
+    /**
+     * コンストラクタです.
+     * @param userUrl ユーザ情報を取得するURL
+     * @param patchUrl 属性値を削除するURL
+     * @param authorization Authorizationヘッダの値
+     * @param connectTimeoutMillis 接続タイムアウト (ミリ秒)
+     * @param requestTimeoutMillis リクエストタイムアウト (ミリ秒)
+     * @param maxResponseBytes レスポンスの上限サイズ (バイト)
+     * @param resourcesMember 複数のユーザ情報を格納するメンバー名
+     */
+    HttpUserClient(String userUrl, String patchUrl, String authorization, long connectTimeoutMillis,
+            long requestTimeoutMillis, int maxResponseBytes, String resourcesMember) {
+        this.userUrl = userUrl;
+        this.patchUrl = patchUrl;
+        this.authorization = authorization;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.maxResponseBytes = maxResponseBytes;
+        this.resourcesMember = resourcesMember;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "http-user-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Singletonなインスタンスを取得します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを取得します。
+     * @return HTTPクライアント
+     * @throws IOException ユーザ情報を取得するURLが設定されていない場合
+     */
+    public static HttpUserClient getInstance() throws IOException {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            return realm.getComponent(HttpUserClient.class, HttpUserClient::create);
+        }
+        synchronized (HttpUserClient.class) {
+            if (client == null) {
+                client = create();
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを破棄します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを破棄します。
+     * 次回の{@link #getInstance()}で再生成されます。
+     */
+    public static synchronized void shutdown() {
+        Realm realm = Realm.current();
+        HttpUserClient target = realm == null ? client : realm.removeComponent(HttpUserClient.class);
+        if (realm == null) {
+            client = null;
+        }
+        if (target != null) {
+            target.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを、現在の設定値で生成したインスタンスに置き換えます.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを置き換えます。生成されていない場合は何もしません。
+     * 古いインスタンスで処理中のリクエストが完了するよう、古いインスタンスはリクエストタイムアウトの経過後に停止します。
+     * @throws IOException ユーザ情報を取得するURLが設定されていない場合. 古いインスタンスを継続して使用します
+     */
+    public static void reconfigure() throws IOException {
+        Realm realm = Realm.current();
+        HttpUserClient previous;
+        if (realm != null) {
+            previous = realm.replaceComponent(HttpUserClient.class, HttpUserClient::create);
+        } else {
+            synchronized (HttpUserClient.class) {
+                previous = client;
+                if (previous != null) {
+                    client = create();
+                }
+            }
+        }
+        if (previous != null) {
+            DeferredCloser.closeLater(previous.executor::shutdownNow, previous.requestTimeout.toMillis());
+        }
+    }
+
+    /**
+     * HTTPクライアントを生成します.
+     * @return HTTPクライアント
+     * @throws IOException ユーザ情報を取得するURLが設定されていない場合
+     */
+    private static HttpUserClient create() throws IOException {
+        String userUrl = AppConfig.getHttpUserUrl();
+        if (userUrl == null || userUrl.trim().isEmpty()) {
+            throw new IOException("ユーザ情報を取得するURL (httpUserUrl) が設定されていません。");
+        }
+        Long connectTimeout = AppConfig.getHttpConnectTimeoutMillis();
+        Long requestTimeout = AppConfig.getHttpRequestTimeoutMillis();
+        Integer maxResponseBytes = AppConfig.getHttpMaxResponseBytes();
+        String resourcesMember = AppConfig.getHttpResourcesMember();
+        return new HttpUserClient(userUrl.trim(), AppConfig.getHttpUserPatchUrl(),
+                AppConfig.getHttpAuthorization(),
+                connectTimeout == null || connectTimeout <= 0 ? DEFAULT_CONNECT_TIMEOUT_MILLIS : connectTimeout,
+                requestTimeout == null || requestTimeout <= 0 ? DEFAULT_REQUEST_TIMEOUT_MILLIS : requestTimeout,
+                maxResponseBytes == null || maxResponseBytes <= 0 ? DEFAULT_MAX_RESPONSE_BYTES : maxResponseBytes,
+                resourcesMember == null || resourcesMember.isEmpty() ? DEFAULT_RESOURCES_MEMBER : resourcesMember);
+    }
+
+    /**
+     * ユーザ情報を取得します.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合 (404を含む) は空
+     * @throws IOException 通信に失敗した場合、タイムアウトした場合、レスポンスが不正な場合
+     */
+    public SearchResults getUser(String userName) throws IOException {
+        try {
+            return getUserAsync(userName).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ユーザ情報の取得が中断されました。");
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * ユーザ情報を非同期に取得します. 同時に発行したリクエストはHTTP/2の1つの接続で多重化されます.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合 (404を含む) は空. 失敗した場合はIOExceptionで完了します
+     */
+    public CompletableFuture<SearchResults> getUserAsync(String userName) {
+        HttpRequest request = newRequest(userUrl.replace("{0}", encode(userName))).GET().build();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenApplyAsync(response -> {
+                    try (InputStream body = limit(response)) {
+                        if (response.statusCode() == 404) {
+                            return new SearchResults();
+                        }
+                        if (response.statusCode() != 200) {
+                            throw new IOException(MessageFormat.format(
+                                    "ユーザ情報の取得に失敗しました。 (URL：{0}, ステータス：{1})", response.uri(),
+                                    response.statusCode()));
+                        }
+                        return JsonUserParser.parse(body, resourcesMember);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+    }
+
+    /**
+     * ユーザ情報の属性値をSCIMのPATCHで削除します.
+     * If-Matchヘッダにバージョンを指定し、取得後にユーザ情報が更新されていた場合はサーバが412で拒否します。
+     * @param id ユーザ情報のid
+     * @param version ユーザ情報を取得した際のバージョン (SCIMのmeta.version、ETag)
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @return レスポンスのステータスコード
+     * @throws IOException 属性値を削除するURLが設定されていない場合、通信に失敗した場合、タイムアウトした場合
+     */
+    public int removeValue(String id, String version, String attributeName, String value) throws IOException {
+        if (patchUrl == null || patchUrl.trim().isEmpty()) {
+            throw new IOException("属性値を削除するURL (httpUserPatchUrl) が設定されていません。");
+        }
+        StringWriter body = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(body)) {
+            generator.writeStartObject()
+                    .writeStartArray("schemas").write("urn:ietf:params:scim:api:messages:2.0:PatchOp").writeEnd()
+                    .writeStartArray("Operations")
+                    .writeStartObject()
+                    .write("op", "remove")
+                    .write("path", attributeName + "[value eq \"" + escape(value) + "\"]")
+                    .writeEnd()
+                    .writeEnd()
+                    .writeEnd();
+        }
+        HttpRequest request = newRequest(patchUrl.trim().replace("{0}", encode(id)))
+                .header("Content-Type", "application/scim+json")
+                .header("If-Match", version)
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+        try {
+            HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+            LOGGER.debug("属性値の削除のレスポンスを受信しました。 (URL：{}, ステータス：{})", response.uri(),
+                    response.statusCode());
+            return response.statusCode();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("属性値の削除が中断されました。");
+        }
+    }
+
+    /**
+     * 共通のヘッダとタイムアウトを設定したリクエストを生成します.
+     * @param url URL
+     * @return リクエストのBuilder
+     */
+    private HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Accept", ACCEPT);
+        if (authorization != null && !authorization.isEmpty()) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    /**
+     * レスポンスの本文を上限サイズで制限します.
+     * @param response レスポンス
+     * @return 上限サイズを超えて読み込んだ場合にIOExceptionとなる本文
+     * @throws IOException Content-Lengthが上限サイズを超える場合
+     */
+    private InputStream limit(HttpResponse<InputStream> response) throws IOException {
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        if (length > maxResponseBytes) {
+            response.body().close();
+            throw new IOException(MessageFormat.format(
+                    "レスポンスのサイズが上限を超えています。 (URL：{0}, サイズ：{1}, 上限：{2})",
+                    response.uri(), length, maxResponseBytes));
+        }
+        return new LimitedInputStream(response.body(), maxResponseBytes);
+    }
+
+    /**
+     * SCIMのフィルタの文字列として埋め込めるよう、ユーザ名の円記号と二重引用符をエスケープしてURLエンコードします.
+     * @param value 値
+     * @return エンコードした値
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(escape(value), StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * JSON文字列の円記号と二重引用符をエスケープします.
+     * @param value 値
+     * @return エスケープした値
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * 非同期処理の例外をIOExceptionに変換します.
+     * @param cause 例外
+     * @return IOException
+     */
+    private static IOException unwrap(Throwable cause) {
+        Throwable actual = cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause;
+        if (actual instanceof IOException) {
+            return (IOException) actual;
+        }
+        return new IOException(actual);
+    }
+
+    /**
+     * 上限サイズを超えて読み込んだ場合にIOExceptionとなる入力ストリームです.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        /** 読み込み可能な残りのバイト数. */
+        private long remaining;
+
+        /**
+         * コンストラクタです.
+         * @param in 入力ストリーム
+         * @param limit 上限サイズ (バイト)
+         */
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        /**
+         * 上限サイズまでの未読の本文を読み捨ててから閉じます.
+         * 終端まで読み込まずに閉じた接続は再利用されないため、JSONの終わり以降の本文も読み込みます。
+         * @throws IOException 閉じるのに失敗した場合
+         */
+        @Override
+        public void close() throws IOException {
+            byte[] buffer = new byte[1024];
+            try {
+                while (remaining >= 0 && read(buffer, 0, buffer.length) >= 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // 読み捨てに失敗した接続は再利用されないだけのため無視する
+            } finally {
+                super.close();
+            }
+        }
+
+        /**
+         * 読み込んだバイト数を数えます.
+         * @param n 読み込んだバイト数
+         * @throws IOException 上限サイズを超えた場合
+         */
+        private void count(int n) throws IOException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new IOException("レスポンスのサイズが上限を超えています。");
+            }
+        }
+    }
+}
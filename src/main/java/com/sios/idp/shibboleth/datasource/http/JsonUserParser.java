@@ -0,0 +1,132 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+
+/**
+ * JSONのレスポンスをユーザ情報に変換するクラスです.<br>
+ * ストリーミングAPIで読み込みながら変換し、JSONの木構造は生成しません。
+ * <ul>
+ * <li>レスポンスのオブジェクトが指定されたメンバー (SCIMのListResponseでは"Resources") の配列を持つ場合は、
+ * 配列の各オブジェクトを1件のユーザ情報とします。それ以外の場合は、レスポンスのオブジェクトを1件のユーザ情報とします</li>
+ * <li>文字列、数値、真偽値のメンバーはメンバー名を属性名とします。nullの値は格納しません</li>
+ * <li>入れ子のオブジェクトのメンバーは「親のメンバー名.メンバー名」を属性名とします (例：name.familyName)</li>
+ * <li>配列の要素は同じ属性名の複数の値とします (例：emails.value)</li>
+ * </ul>
+ * @author SIOS Technology, Inc.
+ */
+public final class JsonUserParser {
+
+    /** JSONパーサの生成に使用するFactory. */
+    private static final JsonParserFactory FACTORY = Json.createParserFactory(null);
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private JsonUserParser() {
+    }
+
+    /**
+     * JSONのレスポンスをユーザ情報に変換します.
+     * @param in レスポンス. 文字コードは自動判別します
+     * @param resourcesMember 複数のユーザ情報を格納するメンバー名
+     * @return ユーザ情報
+     * @throws IOException 読み込みに失敗した場合、JSONの形式が不正な場合、レスポンスがオブジェクトでない場合
+     */
+    public static SearchResults parse(InputStream in, String resourcesMember) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new IOException("レスポンスがJSONのオブジェクトではありません。");
+            }
+            SearchResults results = new SearchResults();
+            SearchResult single = new SearchResult();
+            boolean list = false;
+            for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_OBJECT; event = parser.next()) {
+                String name = parser.getString();
+                JsonParser.Event value = parser.next();
+                if (name.equals(resourcesMember) && value == JsonParser.Event.START_ARRAY) {
+                    list = true;
+                    for (JsonParser.Event element = parser.next(); element != JsonParser.Event.END_ARRAY;
+                            element = parser.next()) {
+                        if (element != JsonParser.Event.START_OBJECT) {
+                            throw new IOException(MessageFormat.format(
+                                    "{0}の要素がJSONのオブジェクトではありません。", resourcesMember));
+                        }
+                        SearchResult result = new SearchResult();
+                        readObject(parser, "", result);
+                        results.add(result);
+                    }
+                } else {
+                    readValue(parser, value, name, single);
+                }
+            }
+            if (!list) {
+                results.add(single);
+            }
+            return results;
+        } catch (JsonException e) {
+            throw new IOException(MessageFormat.format("JSONの読み込みに失敗しました。 (理由：{0})", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * オブジェクトの終わりまでのメンバーをユーザ情報に格納します.
+     * @param parser JSONパーサ. オブジェクトの開始を読み込んだ状態
+     * @param prefix 属性名の接頭辞
+     * @param result 格納先
+     */
+    private static void readObject(JsonParser parser, String prefix, SearchResult result) {
+        for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_OBJECT; event = parser.next()) {
+            String name = prefix + parser.getString();
+            readValue(parser, parser.next(), name, result);
+        }
+    }
+
+    /**
+     * 値をユーザ情報に格納します.
+     * @param parser JSONパーサ. 値の開始を読み込んだ状態
+     * @param event 値の開始のイベント
+     * @param name 属性名
+     * @param result 格納先
+     */
+    private static void readValue(JsonParser parser, JsonParser.Event event, String name, SearchResult result) {
+        switch (event) {
+        case VALUE_STRING:
+        case VALUE_NUMBER:
+            result.add(name, parser.getString());
+            break;
+        case VALUE_TRUE:
+            result.add(name, "true");
+            break;
+        case VALUE_FALSE:
+            result.add(name, "false");
+            break;
+        case START_OBJECT:
+            readObject(parser, name + ".", result);
+            break;
+        case START_ARRAY:
+            for (JsonParser.Event element = parser.next(); element != JsonParser.Event.END_ARRAY;
+                    element = parser.next()) {
+                readValue(parser, element, name, result);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+}
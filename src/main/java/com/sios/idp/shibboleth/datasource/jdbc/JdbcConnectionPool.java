@@ -0,0 +1,349 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.text.MessageFormat;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.util.DeferredCloser;
+
+/**
+ * JDBC接続を再利用するための接続プールです.<br>
+ * 同時に貸し出す接続数をjdbcMaxPoolSizeまでに制限し、上限に達している場合はjdbcBorrowTimeoutMillisまで返却を待ちます。
+ * 返却された接続は最後に返却されたものから再利用し (LIFO)、接続毎にPreparedStatementをキャッシュします
+ * ({@link PooledJdbcConnection})。
+ * 一定時間使用されていなかった接続は、貸し出し前に有効性を確認します。
+ * 接続先、認証情報は{@link com.sios.idp.shibboleth.common.AppConfig}に従います。
+ * @author SIOS Technology, Inc.
+ */
+public final class JdbcConnectionPool {
+
+    /** 同時に貸し出す接続数の既定値. */
+    public static final int DEFAULT_MAX_POOL_SIZE = 10;
+
+    /** 返却を待つ時間の既定値 (ミリ秒). */
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000L;
+
+    /** 接続毎にキャッシュするPreparedStatement数の既定値. */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+    /** 貸し出し前に有効性を確認する、未使用期間の閾値 (ミリ秒). */
+    static final long VALIDATION_INTERVAL_MILLIS = 30000L;
+
+    /** 有効性の確認のタイムアウト (秒). */
+    private static final int VALIDATION_TIMEOUT_SEC = 5;
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    /** Singletonなインスタンス. */
+    private static JdbcConnectionPool pool;
+
+    /** JDBC接続先URL. */
+    private final String url;
+
+    /** 接続ユーザ. */
+    private final String user;
+
+    /** 接続パスワード. */
+    private final String password;
+
+    /** 返却を待つ時間 (ミリ秒). */
+    private final long borrowTimeoutMillis;
+
+    /** 接続毎にキャッシュするPreparedStatement数. */
+    private final int statementCacheSize;
+
+    /** 貸し出し可能な接続数. */
+    private final Semaphore permits;
+
+    /** 返却された接続. */
+    private final Deque<PooledJdbcConnection> idle = new ConcurrentLinkedDeque<PooledJdbcConnection>();
+
+    /** 生成した接続数. */
+    private final AtomicLong createdCount = new AtomicLong();
+
+    /** 貸し出した回数. */
+    private final AtomicLong borrowedCount = new AtomicLong();
+
+    /** PreparedStatementのキャッシュを使用した回数. */
+    private final AtomicLong statementCacheHitCount = new AtomicLong();
+
+    /** PreparedStatementを生成した回数. */
+    private final AtomicLong statementPreparedCount = new AtomicLong();
+
+    /** 停止したか. */
+    private volatile boolean closed;
+
+    /**
+     * コンストラクタです.
+     * @param url JDBC接続先URL
+     * @param user 接続ユーザ. 空の場合はURLのみで接続します
+     * @param password 接続パスワード
+     * @param maxPoolSize 同時に貸し出す接続数
+     * @param borrowTimeoutMillis 返却を待つ時間 (ミリ秒)
+     * @param statementCacheSize 接続毎にキャッシュするPreparedStatement数
+     */
+    JdbcConnectionPool(String url, String user, String password, int maxPoolSize, long borrowTimeoutMillis,
+            int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxPoolSize, true);
+    }
+
+    /**
+     * Singletonなインスタンスを取得します. 初回呼び出し時に生成します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを取得します。
+     * @return JDBC接続プール
+     * @throws SQLException JDBC接続先URLが設定されていない場合
+     */
+    public static JdbcConnectionPool getInstance() throws SQLException {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            return realm.getComponent(JdbcConnectionPool.class, JdbcConnectionPool::create);
+        }
+        synchronized (JdbcConnectionPool.class) {
+            if (pool == null) {
+                pool = create();
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Singletonなインスタンスの全ての接続を切断し、破棄します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを破棄します。
+     * 次回の{@link #getInstance()}で再生成されます。
+     */
+    public static synchronized void shutdown() {
+        Realm realm = Realm.current();
+        JdbcConnectionPool target = realm == null ? pool : realm.removeComponent(JdbcConnectionPool.class);
+        if (realm == null) {
+            pool = null;
+        }
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを、現在の設定値で生成したインスタンスに置き換えます.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを置き換えます。生成されていない場合は何もしません。
+     * 古いインスタンスは接続の返却を待つ時間の経過後に停止し、貸し出し中の接続は返却時に切断します。
+     * @throws SQLException JDBC接続先URLが設定されていない場合. 古いインスタンスを継続して使用します
+     */
+    public static void reconfigure() throws SQLException {
+        Realm realm = Realm.current();
+        JdbcConnectionPool previous;
+        if (realm != null) {
+            previous = realm.replaceComponent(JdbcConnectionPool.class, JdbcConnectionPool::create);
+        } else {
+            synchronized (JdbcConnectionPool.class) {
+                previous = pool;
+                if (previous != null) {
+                    pool = create();
+                }
+            }
+        }
+        if (previous != null) {
+            DeferredCloser.closeLater(previous::close, previous.borrowTimeoutMillis);
+        }
+    }
+
+    /**
+     * JDBC接続プールを生成します.
+     * @return JDBC接続プール
+     * @throws SQLException JDBC接続先URLが設定されていない場合
+     */
+    private static JdbcConnectionPool create() throws SQLException {
+        String url = AppConfig.getJdbcUrl();
+        if (url == null || url.trim().isEmpty()) {
+            throw new SQLException("JDBC接続先URL (jdbcUrl) が設定されていません。");
+        }
+        Integer maxPoolSize = AppConfig.getJdbcMaxPoolSize();
+        Long borrowTimeoutMillis = AppConfig.getJdbcBorrowTimeoutMillis();
+        Integer statementCacheSize = AppConfig.getJdbcStatementCacheSize();
+        JdbcConnectionPool created = new JdbcConnectionPool(url.trim(), AppConfig.getJdbcUser(),
+                AppConfig.getJdbcPassword(),
+                maxPoolSize == null || maxPoolSize <= 0 ? DEFAULT_MAX_POOL_SIZE : maxPoolSize,
+                borrowTimeoutMillis == null || borrowTimeoutMillis < 0
+                        ? DEFAULT_BORROW_TIMEOUT_MILLIS : borrowTimeoutMillis,
+                statementCacheSize == null || statementCacheSize < 0
+                        ? DEFAULT_STATEMENT_CACHE_SIZE : statementCacheSize);
+        LOGGER.info("JDBC接続プールを生成しました。 (レルム：{}, 接続先：{}, 最大接続数：{})",
+                Realm.current(), created.url, created.permits.availablePermits());
+        return created;
+    }
+
+    /**
+     * 接続を貸し出します. 使用後は{@link PooledJdbcConnection#close()}で返却してください.
+     * @return 接続
+     * @throws SQLException 接続に失敗した場合
+     * @throws SQLTimeoutException 返却を待つ時間内に貸し出せる接続がない場合
+     */
+    public PooledJdbcConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("JDBC接続プールは停止しています。");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException(MessageFormat.format(
+                        "{0}ミリ秒以内に貸し出せるJDBC接続がありませんでした。", borrowTimeoutMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        try {
+            PooledJdbcConnection connection = idle.pollFirst();
+            while (connection != null && !isUsable(connection)) {
+                connection.closeQuietly();
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                connection = new PooledJdbcConnection(this, connect(), statementCacheSize);
+                createdCount.incrementAndGet();
+            }
+            borrowedCount.incrementAndGet();
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 生成した接続数を取得します.
+     * @return 生成した接続数
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * 貸し出した回数を取得します.
+     * @return 貸し出した回数
+     */
+    public long getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    /**
+     * PreparedStatementのキャッシュを使用した回数を取得します.
+     * @return キャッシュを使用した回数
+     */
+    public long getStatementCacheHitCount() {
+        return statementCacheHitCount.get();
+    }
+
+    /**
+     * PreparedStatementを生成した回数を取得します.
+     * @return 生成した回数
+     */
+    public long getStatementPreparedCount() {
+        return statementPreparedCount.get();
+    }
+
+    /**
+     * 返却された接続数を取得します.
+     * @return 返却された接続数
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * 接続の返却を受け付けます. 破損した接続、停止後に返却された接続は切断します.
+     * @param connection 接続
+     * @param broken 破損している場合はtrue
+     */
+    void release(PooledJdbcConnection connection, boolean broken) {
+        if (broken || closed) {
+            connection.closeQuietly();
+        } else {
+            idle.offerFirst(connection);
+        }
+        permits.release();
+        if (closed) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * PreparedStatementのキャッシュの使用を記録します.
+     * @param hit キャッシュを使用した場合はtrue
+     */
+    void recordStatement(boolean hit) {
+        if (hit) {
+            statementCacheHitCount.incrementAndGet();
+        } else {
+            statementPreparedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 停止し、返却済みの接続を切断します. 貸し出し中の接続は返却時に切断します.
+     */
+    private void close() {
+        closed = true;
+        closeIdle();
+        LOGGER.info("JDBC接続プールを停止しました。 (接続先：{})", url);
+    }
+
+    /**
+     * 返却済みの接続を切断します.
+     */
+    private void closeIdle() {
+        for (PooledJdbcConnection connection = idle.pollFirst(); connection != null; connection = idle.pollFirst()) {
+            connection.closeQuietly();
+        }
+    }
+
+    /**
+     * 新しい接続を生成します.
+     * @return 接続
+     * @throws SQLException 接続に失敗した場合
+     */
+    private Connection connect() throws SQLException {
+        LOGGER.debug("JDBC接続を生成します。 (接続先：{})", url);
+        if (user == null || user.isEmpty()) {
+            return DriverManager.getConnection(url);
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    /**
+     * 返却済みの接続が再利用できるかを判定します. 一定時間使用されていなかった接続は有効性を確認します.
+     * @param connection 接続
+     * @return 再利用できる場合はtrue
+     */
+    private static boolean isUsable(PooledJdbcConnection connection) {
+        if (connection.getIdleMillis() < VALIDATION_INTERVAL_MILLIS) {
+            return true;
+        }
+        try {
+            return connection.getConnection().isValid(VALIDATION_TIMEOUT_SEC);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+
+/**
+ * JDBCの検索結果の列をユーザ情報の属性に変換するクラスです.<br>
+ * 列と属性の対応は「列名=属性名」をカンマで区切って定義し (例：immutable_id=employeeNumber,secret_key=description)、
+ * 定義されていない列は列名 (列ラベル) をそのまま属性名とします。NULLの値は格納しません。<br>
+ * 同じユーザの複数の行は、ユーザ固有IDの値が同じであれば1件のユーザ情報の複数値属性として結合します
+ * (重複する値は1つにします)。ユーザ固有IDの値が異なる行は別のユーザ情報となり、
+ * {@link com.sios.idp.shibboleth.common.util.ValidationUtil#isSingleRecorde(SearchResults)}でユーザ情報の重複となります。
+ * @author SIOS Technology, Inc.
+ */
+public final class JdbcUserMapper {
+
+    /** SQLに埋め込む列名として許可する形式. */
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** 列名 (小文字) 毎の属性名. */
+    private final Map<String, String> attributeByColumn = new HashMap<String, String>();
+
+    /** 属性名 (小文字) 毎の列名. */
+    private final Map<String, String> columnByAttribute = new HashMap<String, String>();
+
+    /**
+     * コンストラクタです.
+     * @param mapping 列と属性の対応の定義. nullまたは空の場合は列名をそのまま属性名とします
+     * @throws IllegalArgumentException 定義の形式が不正な場合
+     */
+    public JdbcUserMapper(String mapping) {
+        if (mapping == null || mapping.trim().isEmpty()) {
+            return;
+        }
+        for (String pair : mapping.split(",")) {
+            String[] columnAndAttribute = pair.split("=");
+            if (columnAndAttribute.length != 2 || columnAndAttribute[0].trim().isEmpty()
+                    || columnAndAttribute[1].trim().isEmpty()) {
+                throw new IllegalArgumentException(MessageFormat.format(
+                        "列と属性の対応の定義が不正です。「列名=属性名」の形式で指定してください。 ({0})", pair));
+            }
+            String column = columnAndAttribute[0].trim();
+            String attribute = columnAndAttribute[1].trim();
+            attributeByColumn.put(column.toLowerCase(Locale.ROOT), attribute);
+            columnByAttribute.put(attribute.toLowerCase(Locale.ROOT), column);
+        }
+    }
+
+    /**
+     * 列に対応する属性名を取得します.
+     * @param column 列名 (列ラベル)
+     * @return 属性名
+     */
+    public String getAttributeName(String column) {
+        String attribute = attributeByColumn.get(column.toLowerCase(Locale.ROOT));
+        return attribute == null ? column : attribute;
+    }
+
+    /**
+     * 属性に対応する列名を取得します. SQLに埋め込むため、英数字とアンダースコア以外を含む列名は許可しません.
+     * @param attributeName 属性名
+     * @return 列名
+     * @throws IllegalArgumentException 列名の形式が不正な場合
+     */
+    public String getColumnName(String attributeName) {
+        String column = columnByAttribute.get(attributeName.toLowerCase(Locale.ROOT));
+        if (column == null) {
+            column = attributeName;
+        }
+        if (!IDENTIFIER.matcher(column).matches()) {
+            throw new IllegalArgumentException(MessageFormat.format("列名 {0} の形式が不正です。", column));
+        }
+        return column;
+    }
+
+    /**
+     * 検索結果の全ての行をユーザ毎のユーザ情報に変換します.
+     * @param resultSet 検索結果
+     * @param userNameColumn ユーザ名の列名. nullの場合は全ての行を1人のユーザ (キーは空文字列) として扱います.
+     *        ユーザ名の列は属性の対応が定義されている場合のみユーザ情報に格納します
+     * @param immutableIdAttributeName ユーザ固有IDの属性名
+     * @return ユーザ名 (小文字) 毎のユーザ情報
+     * @throws SQLException 検索結果の読み込みに失敗した場合
+     */
+    public Map<String, SearchResults> map(ResultSet resultSet, String userNameColumn,
+            String immutableIdAttributeName) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        Map<String, Map<String, Record>> users = new LinkedHashMap<String, Map<String, Record>>();
+        while (resultSet.next()) {
+            String userName = "";
+            SearchResult row = new SearchResult();
+            for (int i = 1; i <= columnCount; i++) {
+                String column = metaData.getColumnLabel(i);
+                String value = resultSet.getString(i);
+                boolean isUserName = userNameColumn != null && column.equalsIgnoreCase(userNameColumn);
+                if (isUserName && value != null) {
+                    userName = value.toLowerCase(Locale.ROOT);
+                }
+                if (value != null && (!isUserName || attributeByColumn.containsKey(column.toLowerCase(Locale.ROOT)))) {
+                    row.add(getAttributeName(column), value);
+                }
+            }
+            String immutableUserId = immutableIdAttributeName == null ? null : row.getValue(immutableIdAttributeName);
+            Map<String, Record> records = users.get(userName);
+            if (records == null) {
+                records = new LinkedHashMap<String, Record>();
+                users.put(userName, records);
+            }
+            String key = immutableUserId == null ? "" : immutableUserId;
+            Record record = records.get(key);
+            if (record == null) {
+                record = new Record();
+                records.put(key, record);
+            }
+            record.merge(row, metaData, this);
+        }
+
+        Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+        for (Map.Entry<String, Map<String, Record>> user : users.entrySet()) {
+            SearchResults searchResults = new SearchResults();
+            for (Record record : user.getValue().values()) {
+                searchResults.add(record.result);
+            }
+            results.put(user.getKey(), searchResults);
+        }
+        return results;
+    }
+
+    /**
+     * ユーザ固有ID毎に結合するユーザ情報です.
+     */
+    private static final class Record {
+
+        /** ユーザ情報. */
+        private final SearchResult result = new SearchResult();
+
+        /** 格納済みの属性名 (小文字) と値. */
+        private final Set<String> stored = new HashSet<String>();
+
+        /**
+         * 1行分の属性を結合します. 格納済みの値は追加しません.
+         * @param row 1行分の属性
+         * @param metaData 検索結果のメタデータ
+         * @param mapper 列と属性の対応
+         * @throws SQLException メタデータの読み込みに失敗した場合
+         */
+        private void merge(SearchResult row, ResultSetMetaData metaData, JdbcUserMapper mapper) throws SQLException {
+            Set<String> attributes = new HashSet<String>();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String attribute = mapper.getAttributeName(metaData.getColumnLabel(i));
+                if (!attributes.add(attribute.toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                for (String value : row.getValues(attribute)) {
+                    if (stored.add(attribute.toLowerCase(Locale.ROOT) + '\u0000' + value)) {
+                        result.add(attribute, value);
+                    }
+                }
+            }
+        }
+    }
+}
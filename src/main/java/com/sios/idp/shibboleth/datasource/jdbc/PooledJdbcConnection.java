@@ -0,0 +1,146 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link JdbcConnectionPool}から貸し出されたJDBC接続です.<br>
+ * SQL毎のPreparedStatementを最近使用した順に保持し、同じSQLの実行ではパラメータを消去して再利用します。
+ * {@link #close()}で接続をプールに返却します。
+ * 使用中にSQLExceptionが発生した場合は{@link #markBroken()}を呼び出し、返却時に切断させてください。
+ * 1つの接続を複数のスレッドで同時に使用することはできません。
+ * @author SIOS Technology, Inc.
+ */
+public final class PooledJdbcConnection implements AutoCloseable {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledJdbcConnection.class);
+
+    /** 返却先の接続プール. */
+    private final JdbcConnectionPool pool;
+
+    /** JDBC接続. */
+    private final Connection connection;
+
+    /** SQL毎のPreparedStatement. 最近使用した順に保持します. */
+    private final Map<String, PreparedStatement> statements;
+
+    /** 破損しているか. */
+    private boolean broken;
+
+    /** 最後に返却された時刻 (ミリ秒). */
+    private long releasedAt = System.currentTimeMillis();
+
+    /**
+     * コンストラクタです.
+     * @param pool 返却先の接続プール
+     * @param connection JDBC接続
+     * @param statementCacheSize キャッシュするPreparedStatement数
+     */
+    PooledJdbcConnection(JdbcConnectionPool pool, Connection connection, final int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * SQLのPreparedStatementを取得します. キャッシュしている場合はパラメータを消去して再利用します.
+     * 取得したPreparedStatementは閉じないでください。
+     * @param sql SQL
+     * @return PreparedStatement
+     * @throws SQLException 生成に失敗した場合
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            statement.clearParameters();
+            pool.recordStatement(true);
+            return statement;
+        }
+        statement = connection.prepareStatement(sql);
+        pool.recordStatement(false);
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    /**
+     * JDBC接続を取得します. トランザクションの制御に使用します. 接続を閉じないでください.
+     * @return JDBC接続
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * 接続が破損していることを記録します. 返却時に切断されます.
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    /**
+     * 接続をプールに返却します.
+     */
+    @Override
+    public void close() {
+        releasedAt = System.currentTimeMillis();
+        pool.release(this, broken);
+    }
+
+    /**
+     * 最後に返却されてからの経過時間を取得します.
+     * @return 経過時間 (ミリ秒)
+     */
+    long getIdleMillis() {
+        return System.currentTimeMillis() - releasedAt;
+    }
+
+    /**
+     * キャッシュしているPreparedStatementとJDBC接続を閉じます. 失敗した場合は無視します.
+     */
+    void closeQuietly() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("JDBC接続の切断に失敗しました。 (理由：{})", e.getMessage());
+        }
+    }
+
+    /**
+     * PreparedStatementを閉じます. 失敗した場合は無視します.
+     * @param statement PreparedStatement
+     */
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.debug("PreparedStatementのクローズに失敗しました。 (理由：{})", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+import com.sios.idp.shibboleth.common.util.DeferredCloser;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPURL;
+
+/**
+ * 非同期LDAP操作を多重化する少数のLDAP接続を、LDAPレプリカ毎に保持するクラスです.<br>
+ * 各接続は複数の非同期操作を同時に処理できるため、接続はチェックアウトせずラウンドロビンで共有します。
+ * 切断された接続は次回の取得時に再接続します。<br>
+ * LDAP接続先URLに空白区切りで複数のレプリカが定義されている場合、操作毎に以下の方式でレプリカを選択します。
+ * <ul>
+ * <li>EWMA：(応答時間の指数加重移動平均 + 1ミリ秒) × (処理中の操作数 + 1) が最小のレプリカ</li>
+ * <li>LEAST_OUTSTANDING：処理中の操作数が最小のレプリカ</li>
+ * </ul>
+ * 書き込み (属性値の削除) は、先頭に定義されたレプリカ ({@link #getPrimary()}) にのみ送信します。
+ * 切り離されたレプリカ ({@link LdapReplica}) はバックグラウンドで定期的に死活監視し、復旧後に選択対象に戻します。
+ * また、監視間隔の間に操作が完了しなかったレプリカは応答時間の移動平均を減衰させ、再計測の機会を与えます。<br>
+ * ヘッジが有効な場合、{@link LdapHedgePolicy}の遅延時間を経過しても応答のない検索は、別のレプリカにも送信されます。
+ * 接続先、バインド情報、選択方式は{@link com.sios.idp.shibboleth.common.AppConfig}に従います。
+ * @author SIOS Technology, Inc.
+ */
+public final class AsyncLdapConnectionPool {
+
+    /** レプリカの選択方式「応答時間の指数加重移動平均」. */
+    public static final String SELECTION_EWMA = "EWMA";
+
+    /** レプリカの選択方式「処理中の操作数」. */
+    public static final String SELECTION_LEAST_OUTSTANDING = "LEAST_OUTSTANDING";
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLdapConnectionPool.class);
+
+    /** 操作のタイムアウトを制限しない場合に、置き換えた接続プールを切断するまでの時間 (ミリ秒). */
+    private static final long UNLIMITED_DRAIN_MILLIS = 60000L;
+
+    /** Singletonなインスタンス. */
+    private static AsyncLdapConnectionPool pool;
+
+    /** LDAPレプリカ. */
+    private final List<LdapReplica> replicas;
+
+    /** 処理中の操作数による選択か. */
+    private final boolean leastOutstanding;
+
+    /** 同点の場合に最初に評価するレプリカのインデックス. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** 死活監視、ヘッジを実行するExecutor. */
+    private final ScheduledExecutorService scheduler;
+
+    /** LDAP検索のヘッジの要否を判断するポリシー. */
+    private final LdapHedgePolicy hedgePolicy;
+
+    /** 操作のタイムアウト (ミリ秒). 0の場合は制限しません. */
+    private final long timeoutMillis;
+
+    /**
+     * privateコンストラクタです.
+     * @param connectionCount レプリカ毎の接続数
+     * @param timeoutMillis 接続、及び操作のタイムアウト (ミリ秒)
+     * @throws LDAPException LDAP接続先URLが不正な場合
+     */
+    private AsyncLdapConnectionPool(int connectionCount, long timeoutMillis) throws LDAPException {
+        this.timeoutMillis = timeoutMillis;
+        LDAPConnectionOptions options = new LDAPConnectionOptions();
+        options.setConnectTimeoutMillis((int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        options.setResponseTimeoutMillis(timeoutMillis);
+        options.setUseSynchronousMode(false);
+
+        Integer threshold = AppConfig.getLdapReplicaFailureThreshold();
+        List<LdapReplica> list = new ArrayList<LdapReplica>();
+        for (String url : AppConfig.getLdapUrl().trim().split("\\s+")) {
+            list.add(new LdapReplica(new LDAPURL(url), options, connectionCount, threshold == null ? 1 : threshold));
+        }
+        replicas = Collections.unmodifiableList(list);
+        leastOutstanding = SELECTION_LEAST_OUTSTANDING.equalsIgnoreCase(AppConfig.getLdapReplicaSelection());
+
+        Long interval = AppConfig.getLdapReplicaProbeIntervalMillis();
+        long intervalMillis = interval == null || interval <= 0 ? 5000L : interval;
+        Integer percentile = AppConfig.getLdapHedgePercentile();
+        Integer budgetPercent = AppConfig.getLdapHedgeBudgetPercent();
+        Long windowMillis = AppConfig.getLdapHedgeBudgetWindowMillis();
+        hedgePolicy = new LdapHedgePolicy(percentile == null ? 0 : percentile,
+                budgetPercent == null ? 0 : budgetPercent, windowMillis == null ? 10000L : windowMillis);
+
+        Realm realm = Realm.current();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(Realm.bind(realm, runnable), "ldap-replica-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> probe(intervalMillis), intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Singletonなインスタンスを取得します. 初回呼び出し時に生成します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを取得します。
+     * @return LDAP接続プール
+     * @throws LDAPException LDAP接続先URLが不正な場合
+     */
+    public static AsyncLdapConnectionPool getInstance() throws LDAPException {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            return realm.getComponent(AsyncLdapConnectionPool.class, AsyncLdapConnectionPool::create);
+        }
+        synchronized (AsyncLdapConnectionPool.class) {
+            if (pool == null) {
+                pool = create();
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Singletonなインスタンスの全ての接続を切断し、破棄します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを破棄します。
+     * 次回の{@link #getInstance()}で再生成されます。
+     */
+    public static synchronized void shutdown() {
+        Realm realm = Realm.current();
+        AsyncLdapConnectionPool target = realm == null ? pool : realm.removeComponent(AsyncLdapConnectionPool.class);
+        if (realm == null) {
+            pool = null;
+        }
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを、現在の設定値で生成したインスタンスに置き換えます.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを置き換えます。生成されていない場合は何もしません。
+     * 古いインスタンスで処理中の操作が完了するよう、古いインスタンスは操作のタイムアウトの経過後に切断します。
+     * @throws LDAPException LDAP接続先URLが不正な場合. 古いインスタンスを継続して使用します
+     */
+    public static void reconfigure() throws LDAPException {
+        Realm realm = Realm.current();
+        AsyncLdapConnectionPool previous;
+        if (realm != null) {
+            previous = realm.replaceComponent(AsyncLdapConnectionPool.class, AsyncLdapConnectionPool::create);
+        } else {
+            synchronized (AsyncLdapConnectionPool.class) {
+                previous = pool;
+                if (previous != null) {
+                    pool = create();
+                }
+            }
+        }
+        if (previous != null) {
+            // ヘッジした検索は遅延時間の経過後に開始するため、最大でタイムアウトの2倍まで処理中となる
+            DeferredCloser.closeLater(previous::close,
+                    previous.timeoutMillis > 0 ? previous.timeoutMillis * 2 : UNLIMITED_DRAIN_MILLIS);
+        }
+    }
+
+    /**
+     * LDAP接続プールを生成します.
+     * @return LDAP接続プール
+     * @throws LDAPException LDAP接続先URLが不正な場合
+     */
+    private static AsyncLdapConnectionPool create() throws LDAPException {
+        AsyncLdapConnectionPool created =
+                new AsyncLdapConnectionPool(getConnectionCount(), getOperationTimeoutMillis());
+        LOGGER.info("非同期LDAP接続プールを生成しました。 (レルム：{}, 接続先：{}, レプリカ毎の接続数：{}, 選択方式：{})",
+                Realm.current(), created.replicas, getConnectionCount(),
+                created.leastOutstanding ? SELECTION_LEAST_OUTSTANDING : SELECTION_EWMA);
+        return created;
+    }
+
+    /**
+     * 操作のタイムアウト (ミリ秒) を取得します.
+     * @return 操作のタイムアウト (ミリ秒)
+     */
+    public static long getOperationTimeoutMillis() {
+        Long timeout = AppConfig.getLdapOperationTimeoutMillis();
+        return timeout == null || timeout <= 0 ? 0L : timeout;
+    }
+
+    /**
+     * 操作を実行するレプリカを選択します.
+     * 選択対象のレプリカが存在しない場合は、切り離されたレプリカも含めて選択します。
+     * @param excluded 選択から除外するレプリカ (既に失敗したレプリカ)
+     * @return レプリカ. 除外されていないレプリカが存在しない場合はnull
+     */
+    public LdapReplica selectReplica(Collection<LdapReplica> excluded) {
+        LdapReplica selected = select(excluded, true);
+        if (selected == null) {
+            selected = select(excluded, false);
+        }
+        return selected;
+    }
+
+    /**
+     * 書き込みを送信するプライマリのレプリカを取得します.
+     * LDAP接続先URLの先頭に定義されたレプリカをプライマリとします。
+     * @return プライマリのレプリカ
+     */
+    public LdapReplica getPrimary() {
+        return replicas.get(0);
+    }
+
+    /**
+     * レプリカを選択し、プールで管理しない専用のLDAP接続を生成します.
+     * 長時間の検索 (ページング検索、永続検索) など、多重化した接続を占有する操作に使用します。
+     * 使用後は呼び出し元で切断してください。
+     * @return バインド済みのLDAP接続
+     * @throws LDAPException 接続、またはバインドに失敗した場合
+     */
+    public LDAPConnection openConnection() throws LDAPException {
+        return selectReplica(Collections.<LdapReplica>emptyList()).connect();
+    }
+
+    /**
+     * 全てのレプリカの接続を確立します. 起動時のウォームアップで使用します.
+     * 接続に失敗したレプリカは警告を出力してスキップし、初回の操作時に改めて接続します。
+     * @return 確立した接続数
+     */
+    public int connectAll() {
+        int opened = 0;
+        for (LdapReplica replica : replicas) {
+            try {
+                opened += replica.connectAll();
+            } catch (LDAPException e) {
+                LOGGER.warn("LDAPレプリカ {} への接続に失敗しました。 (理由：{})", replica, e.getMessage());
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * LDAP検索のヘッジの要否を判断するポリシーを取得します.
+     * @return ヘッジのポリシー
+     */
+    public LdapHedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * 指定時間の経過後に処理を実行します. ヘッジした検索の開始に使用します.
+     * @param task 処理
+     * @param delayMillis 遅延時間 (ミリ秒)
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 全てのレプリカを取得します.
+     * @return レプリカのリスト
+     */
+    public List<LdapReplica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * 最も評価値の小さいレプリカを選択します.
+     * @param excluded 選択から除外するレプリカ
+     * @param healthyOnly 切り離されたレプリカを除外する場合はtrue
+     * @return レプリカ. 該当するレプリカが存在しない場合はnull
+     */
+    private LdapReplica select(Collection<LdapReplica> excluded, boolean healthyOnly) {
+        int size = replicas.size();
+        int offset = Math.floorMod(next.getAndIncrement(), size);
+        LdapReplica selected = null;
+        double selectedScore = 0;
+        for (int i = 0; i < size; i++) {
+            LdapReplica replica = replicas.get((offset + i) % size);
+            if ((healthyOnly && !replica.isHealthy()) || excluded.contains(replica)) {
+                continue;
+            }
+            double score = leastOutstanding ? replica.getOutstanding()
+                    : (replica.getEwmaMillis() + 1) * (replica.getOutstanding() + 1);
+            if (selected == null || score < selectedScore) {
+                selected = replica;
+                selectedScore = score;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 切り離されたレプリカを死活監視し、操作が完了していないレプリカの応答時間の移動平均を減衰させます.
+     * @param intervalMillis 監視間隔 (ミリ秒)
+     */
+    private void probe(long intervalMillis) {
+        for (LdapReplica replica : replicas) {
+            if (!replica.isHealthy()) {
+                replica.probe();
+            } else {
+                replica.decayIfIdle(intervalMillis);
+            }
+        }
+    }
+
+    /**
+     * 死活監視を停止し、全ての接続を切断します.
+     */
+    private void close() {
+        scheduler.shutdownNow();
+        for (LdapReplica replica : replicas) {
+            replica.close();
+        }
+        LOGGER.info("非同期LDAP接続プールの接続を切断しました。");
+    }
+
+    /**
+     * レプリカ毎の接続数を取得します.
+     * @return 接続数
+     */
+    private static int getConnectionCount() {
+        Integer count = AppConfig.getLdapAsyncConnectionCount();
+        return count == null || count < 1 ? 1 : count;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.util.Sha256;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+
+/**
+ * LDAPの永続検索 (Persistent Search) によりユーザ情報の変更を監視するクラスです.<br>
+ * ベースDN配下のエントリの変更通知のうち、ユーザ固有ID、または秘密鍵の属性値が変化したもの
+ * (及びエントリの削除、DNの変更) について、変更前後のユーザ固有IDを通知します。
+ * 属性値の変化は、前回の通知時の属性値のハッシュ値と比較して判定します。
+ * 前回の通知がないエントリは変化したものとして扱います。
+ * また、削除以外の変更通知のユーザ名を通知します (追加されたユーザ名の検知に使用します)。<br>
+ * 永続検索が終了した場合 (接続断等) は一定時間後に再開し、その間の変更を検知できないため全てのユーザの破棄を通知します。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapChangeWatcher implements AsyncSearchResultListener {
+
+    /** serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** 属性値のハッシュ値を保持するエントリ数の上限. */
+    private static final long MAXIMUM_SIZE = 100000L;
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LdapChangeWatcher.class);
+
+    /** Singletonなインスタンス. */
+    private static LdapChangeWatcher watcher;
+
+    /** ユーザ固有IDの変更の通知先. */
+    private final transient Consumer<String> onUserChanged;
+
+    /** 変更通知のユーザ名の通知先. */
+    private final transient Consumer<String> onUserNameSeen;
+
+    /** 全てのユーザの破棄の通知先. */
+    private final transient Runnable onResync;
+
+    /** DN毎の前回の通知時の属性値. */
+    private final transient Cache<String, Snapshot> snapshots =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+
+    /** 永続検索の開始、再開を実行するExecutor. */
+    private final transient ScheduledExecutorService scheduler;
+
+    /** 受信した変更通知の数. */
+    private final AtomicLong notificationCount = new AtomicLong();
+
+    /** ユーザ固有IDの変更を通知した数. */
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    /** 永続検索を再開した数. */
+    private final AtomicLong restartCount = new AtomicLong();
+
+    /** 永続検索の接続. */
+    private volatile transient LDAPConnection connection;
+
+    /** 停止したか. */
+    private volatile boolean stopped;
+
+    /**
+     * コンストラクタです.
+     * @param onUserChanged ユーザ固有IDの変更の通知先
+     * @param onResync 全てのユーザの破棄の通知先
+     */
+    LdapChangeWatcher(Consumer<String> onUserChanged, Runnable onResync) {
+        this(onUserChanged, userName -> { }, onResync);
+    }
+
+    /**
+     * コンストラクタです.
+     * @param onUserChanged ユーザ固有IDの変更の通知先
+     * @param onUserNameSeen 変更通知のユーザ名の通知先
+     * @param onResync 全てのユーザの破棄の通知先
+     */
+    LdapChangeWatcher(Consumer<String> onUserChanged, Consumer<String> onUserNameSeen, Runnable onResync) {
+        this.onUserChanged = onUserChanged;
+        this.onUserNameSeen = onUserNameSeen;
+        this.onResync = onResync;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ldap-change-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * ユーザ情報の変更の監視を開始します. 既に開始している場合は何もしません.
+     * @param onUserChanged ユーザ固有IDの変更の通知先
+     * @param onResync 全てのユーザの破棄の通知先
+     */
+    public static synchronized void start(Consumer<String> onUserChanged, Runnable onResync) {
+        start(onUserChanged, userName -> { }, onResync);
+    }
+
+    /**
+     * ユーザ情報の変更の監視を開始します. 既に開始している場合は何もしません.
+     * @param onUserChanged ユーザ固有IDの変更の通知先
+     * @param onUserNameSeen 変更通知のユーザ名の通知先
+     * @param onResync 全てのユーザの破棄の通知先
+     */
+    public static synchronized void start(Consumer<String> onUserChanged, Consumer<String> onUserNameSeen,
+            Runnable onResync) {
+        if (watcher == null) {
+            watcher = new LdapChangeWatcher(onUserChanged, onUserNameSeen, onResync);
+            watcher.scheduler.execute(watcher::search);
+        }
+    }
+
+    /**
+     * ユーザ情報の変更の監視を停止します.
+     */
+    public static synchronized void stop() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * 監視中のインスタンスを取得します.
+     * @return 監視中のインスタンス. 監視していない場合はnull
+     */
+    public static synchronized LdapChangeWatcher getInstance() {
+        return watcher;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void searchEntryReturned(SearchResultEntry entry) {
+        notificationCount.incrementAndGet();
+        EntryChangeNotificationControl control;
+        try {
+            control = EntryChangeNotificationControl.get(entry);
+        } catch (LDAPException e) {
+            LOGGER.warn("エントリ変更通知の解析に失敗しました。 (DN：{})", entry.getDN());
+            control = null;
+        }
+        PersistentSearchChangeType changeType = control == null ? null : control.getChangeType();
+        String userNameAttributeName = AppConfig.getLdapUserNameAttributeName();
+        if (changeType != PersistentSearchChangeType.DELETE && userNameAttributeName != null) {
+            String[] userNames = entry.getAttributeValues(userNameAttributeName);
+            for (String userName : userNames == null ? new String[0] : userNames) {
+                onUserNameSeen.accept(userName);
+            }
+        }
+
+        List<String> changed = new ArrayList<String>();
+        if (changeType == PersistentSearchChangeType.MODIFY_DN && control.getPreviousDN() != null) {
+            Snapshot previous = snapshots.getIfPresent(control.getPreviousDN());
+            snapshots.invalidate(control.getPreviousDN());
+            if (previous != null) {
+                changed.addAll(previous.immutableUserIds);
+            }
+        }
+        String immutableIdAttributeName = AppConfig.getImmutableUserIdAttributeName();
+        String[] immutableUserIds = entry.getAttributeValues(immutableIdAttributeName);
+        Snapshot current = new Snapshot(immutableUserIds,
+                digest(immutableUserIds, entry.getAttributeValues(AppConfig.getSecretKeyAttributeName())));
+        Snapshot previous = snapshots.getIfPresent(entry.getDN());
+        if (changeType == PersistentSearchChangeType.DELETE) {
+            snapshots.invalidate(entry.getDN());
+        } else if (previous != null && !current.digest.isEmpty() && previous.digest.equals(current.digest)
+                && changeType != PersistentSearchChangeType.MODIFY_DN) {
+            LOGGER.debug("ユーザ固有ID、秘密鍵の変化していない変更通知を無視します。 (DN：{})", entry.getDN());
+            return;
+        } else {
+            snapshots.put(entry.getDN(), current);
+        }
+        if (previous != null) {
+            changed.addAll(previous.immutableUserIds);
+        }
+        changed.addAll(current.immutableUserIds);
+
+        for (String immutableUserId : new LinkedHashSet<String>(changed)) {
+            LOGGER.info("ユーザ情報の変更を検知しました。 (DN：{}, 変更種別：{}, ユーザ固有ID：{})",
+                    entry.getDN(), changeType, immutableUserId);
+            invalidatedCount.incrementAndGet();
+            onUserChanged.accept(immutableUserId);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void searchReferenceReturned(SearchResultReference reference) {
+        // 参照は追跡しない
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+        if (stopped) {
+            return;
+        }
+        long retryMillis = getRetryMillis();
+        LOGGER.warn("LDAPの永続検索が終了しました。{}ミリ秒後に再開します。 (結果コード：{}, メッセージ：{})",
+                retryMillis, searchResult.getResultCode(), searchResult.getDiagnosticMessage());
+        closeConnection();
+        scheduler.schedule(this::search, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 受信した変更通知の数を取得します.
+     * @return 受信した変更通知の数
+     */
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+
+    /**
+     * ユーザ固有IDの変更を通知した数を取得します.
+     * @return ユーザ固有IDの変更を通知した数
+     */
+    public long getInvalidatedCount() {
+        return invalidatedCount.get();
+    }
+
+    /**
+     * 永続検索を再開した数を取得します.
+     * @return 永続検索を再開した数
+     */
+    public long getRestartCount() {
+        return restartCount.get();
+    }
+
+    /**
+     * 永続検索を開始します. 失敗した場合は一定時間後に再試行します.
+     * 開始前の変更は検知できないため、開始後に全てのユーザの破棄を通知します。
+     */
+    private void search() {
+        if (stopped) {
+            return;
+        }
+        try {
+            LDAPConnection conn = AsyncLdapConnectionPool.getInstance().openConnection();
+            conn.setConnectionName("totp-change-watcher");
+            SearchRequest request = new SearchRequest(this, AppConfig.getLdapBaseDN(), SearchScope.SUB,
+                    Filter.createPresenceFilter("objectClass"), AppConfig.getImmutableUserIdAttributeName(),
+                    AppConfig.getSecretKeyAttributeName(), AppConfig.getLdapUserNameAttributeName());
+            request.addControl(new PersistentSearchRequestControl(
+                    PersistentSearchChangeType.allChangeTypes(), true, true));
+            request.setResponseTimeoutMillis(0L);
+            connection = conn;
+            conn.asyncSearch(request);
+            if (restartCount.getAndIncrement() > 0) {
+                onResync.run();
+            }
+            LOGGER.info("LDAPの永続検索を開始しました。 (接続先：{}, ベースDN：{})",
+                    conn.getConnectedAddress(), AppConfig.getLdapBaseDN());
+        } catch (LDAPException e) {
+            long retryMillis = getRetryMillis();
+            LOGGER.warn("LDAPの永続検索を開始できませんでした。{}ミリ秒後に再試行します。 (結果コード：{})",
+                    retryMillis, e.getResultCode());
+            closeConnection();
+            scheduler.schedule(this::search, retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 監視を停止し、接続を切断します.
+     */
+    private void close() {
+        stopped = true;
+        scheduler.shutdownNow();
+        closeConnection();
+        LOGGER.info("LDAPの永続検索を停止しました。");
+    }
+
+    /**
+     * 永続検索の接続を切断します.
+     */
+    private void closeConnection() {
+        LDAPConnection conn = connection;
+        connection = null;
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * 永続検索を再開するまでの時間を取得します.
+     * @return 再開するまでの時間 (ミリ秒)
+     */
+    private static long getRetryMillis() {
+        Long millis = AppConfig.getLdapChangeWatchRetryMillis();
+        return millis == null || millis <= 0 ? 10000L : millis;
+    }
+
+    /**
+     * ユーザ固有ID、秘密鍵の属性値のハッシュ値を生成します. 属性値そのものは保持しません.
+     * @param immutableUserIds ユーザ固有ID
+     * @param secretKeys 暗号化秘密鍵
+     * @return ハッシュ値. 生成できない場合は空文字列 (常に変化したものとして扱う)
+     */
+    private static String digest(String[] immutableUserIds, String[] secretKeys) {
+        StringBuilder sb = new StringBuilder();
+        for (String[] values : new String[][] {immutableUserIds, secretKeys}) {
+            String[] sorted = values == null ? new String[0] : values.clone();
+            Arrays.sort(sorted);
+            for (String value : sorted) {
+                sb.append(value).append('\u0000');
+            }
+            sb.append('\u0001');
+        }
+        try {
+            return Arrays.toString(Sha256.hash(sb.toString()));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    /**
+     * 前回の通知時の属性値です.
+     */
+    private static final class Snapshot {
+
+        /** ユーザ固有ID. */
+        private final List<String> immutableUserIds;
+
+        /** ユーザ固有ID、秘密鍵の属性値のハッシュ値. */
+        private final String digest;
+
+        /**
+         * コンストラクタです.
+         * @param immutableUserIds ユーザ固有ID
+         * @param digest ユーザ固有ID、秘密鍵の属性値のハッシュ値
+         */
+        private Snapshot(String[] immutableUserIds, String digest) {
+            this.immutableUserIds = immutableUserIds == null
+                    ? Collections.<String>emptyList() : Arrays.asList(immutableUserIds);
+            this.digest = digest;
+        }
+    }
+}
@@ -7,6 +7,7 @@ package com.sios.idp.shibboleth.datasource.ldap;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 
@@ -33,6 +34,14 @@ public interface LdapConnection {
             String filter, String expr, SearchControls scontrols, String...args)
             throws NamingException;
 
+    /**
+     * LDAPのエントリの属性を更新するためのメソッドです.
+     * @param name 更新対象エントリのDN
+     * @param mods 更新内容
+     * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
+     */
+    void modifyAttributes(String name, ModificationItem[] mods) throws NamingException;
+
     /**
      * Ldapのコネクションをクローズするためのメソッドです.
      * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
@@ -5,6 +5,9 @@
  */
 package com.sios.idp.shibboleth.datasource.ldap;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.text.MessageFormat;
 import java.util.Hashtable;
 
 import javax.naming.Context;
@@ -12,8 +15,13 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,25 +36,59 @@ public class LdapConnectionImpl implements LdapConnection {
     /** loggerを呼び出します. */
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /** JNDIのLDAPプロバイダでソケットのFactoryクラスを指定する環境プロパティ名です. */
+    private static final String SOCKET_FACTORY = "java.naming.ldap.factory.socket";
+
     /** DirContext用変数を定義します. */
     private DirContext ctx;
 
+    /** StartTLSで確立したTLS. 使用していない場合はnull. */
+    private StartTlsResponse tls;
+
     @Override
     /**
      * LDAPとの接続を行なうためのメソッドです。
      * 例外発生時（接続情報が間違っている場合）には、NamingExceptionを投げます.
+     * ldapsスキームの場合は{@link LdapTlsSocketFactory}で接続し、StartTLSを使用する場合はTLSを確立してからバインドします。
+     * TLSのセッションはJVMで共有するため、2回目以降の接続ではセッションを再開します。
      * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
      */
     public void open() throws NamingException {
         logger.debug("LDAPとの接続を開始します。");
+        String url = AppConfig.getLdapUrl();
+        boolean ldaps = url != null && url.trim().regionMatches(true, 0, "ldaps:", 0, "ldaps:".length());
+        boolean startTls = !ldaps && LdapTlsContext.isStartTls();
         Hashtable<String, String> env = new Hashtable<String, String>();
         env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.PROVIDER_URL, AppConfig.getLdapUrl());
-        env.put(Context.SECURITY_AUTHENTICATION, "simple");
-        env.put(Context.SECURITY_PRINCIPAL, AppConfig.getLdapBindDN());
-        env.put(Context.SECURITY_CREDENTIALS, AppConfig.getLdapBindPassword());
-        this.ctx = new InitialDirContext(env);
-        logger.debug("LDAPとの接続が完了しました。");
+        env.put(Context.PROVIDER_URL, url);
+        if (ldaps) {
+            env.put(SOCKET_FACTORY, LdapTlsSocketFactory.class.getName());
+        }
+        if (!startTls) {
+            env.put(Context.SECURITY_AUTHENTICATION, "simple");
+            env.put(Context.SECURITY_PRINCIPAL, AppConfig.getLdapBindDN());
+            env.put(Context.SECURITY_CREDENTIALS, AppConfig.getLdapBindPassword());
+            this.ctx = new InitialDirContext(env);
+            logger.debug("LDAPとの接続が完了しました。");
+            return;
+        }
+        // StartTLSでは、TLSを確立してから認証情報を設定し、次の操作の前にバインドさせる
+        LdapContext ldapContext = new InitialLdapContext(env, null);
+        this.ctx = ldapContext;
+        try {
+            this.tls = (StartTlsResponse) ldapContext.extendedOperation(new StartTlsRequest());
+            this.tls.negotiate(LdapTlsContext.getInstance().getSocketFactory());
+        } catch (IOException | GeneralSecurityException e) {
+            close();
+            NamingException ne = new NamingException(MessageFormat.format(
+                    "LDAPとのTLSの確立に失敗しました。 (理由：{0})", e.getMessage()));
+            ne.setRootCause(e);
+            throw ne;
+        }
+        ldapContext.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+        ldapContext.addToEnvironment(Context.SECURITY_PRINCIPAL, AppConfig.getLdapBindDN());
+        ldapContext.addToEnvironment(Context.SECURITY_CREDENTIALS, AppConfig.getLdapBindPassword());
+        logger.debug("LDAPとの接続が完了しました。 (StartTLS)");
     }
 
     /**
@@ -66,11 +108,29 @@ public class LdapConnectionImpl implements LdapConnection {
         return searchResults;
     }
 
+    /**
+     * LDAPのエントリの属性を更新するためのメソッドです.
+     * @param name 更新対象エントリのDN
+     * @param mods 更新内容
+     * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
+     */
+    public void modifyAttributes(String name, ModificationItem[] mods) throws NamingException {
+        this.ctx.modifyAttributes(name, mods);
+    }
+
     /**
      * Ldapのコネクションをクローズするためのメソッドです.
      * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
      */
     public void close() throws NamingException {
+        if (this.tls != null) {
+            try {
+                this.tls.close();
+            } catch (IOException e) {
+                logger.debug("LDAPとのTLSの終了に失敗しました。", e);
+            }
+            this.tls = null;
+        }
         if (this.ctx != null) {
             try {
                 this.ctx.close();
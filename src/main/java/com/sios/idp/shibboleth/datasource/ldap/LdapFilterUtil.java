@@ -0,0 +1,99 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.text.MessageFormat;
+
+/**
+ * LDAP検索フィルタのユーティリティクラスです.
+ * {@link com.sios.idp.shibboleth.common.AppConfig}のldapFilterのような、
+ * JNDIと同じ「{0}」形式のプレースホルダを含むフィルタテンプレートを扱います。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapFilterUtil {
+
+    /**
+     * コンストラクタです.
+     * LdapFilterUtilクラス内からしか参照できません.
+     */
+    private LdapFilterUtil() {
+    }
+
+    /**
+     * フィルタテンプレートのプレースホルダを、RFC 4515に従ってエスケープした値で置換します.
+     * @param template フィルタテンプレート
+     * @param args プレースホルダに渡される値
+     * @return 検索フィルタ
+     */
+    public static String format(String template, String... args) {
+
+        StringBuilder sb = new StringBuilder(template.length() + 16);
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            int end = c == '{' ? template.indexOf('}', i) : -1;
+            if (end > i + 1 && isDigits(template, i + 1, end)) {
+                int index = Integer.parseInt(template.substring(i + 1, end));
+                if (index >= args.length) {
+                    throw new IllegalArgumentException(MessageFormat.format(
+                            "フィルタテンプレートのプレースホルダ {0} に対応する値がありません。", index));
+                }
+                escape(args[index], sb);
+                i = end + 1;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 値をRFC 4515に従ってエスケープし、追加します.
+     * @param value 値
+     * @param sb 追加先
+     */
+    static void escape(String value, StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '*':
+                sb.append("\\2a");
+                break;
+            case '(':
+                sb.append("\\28");
+                break;
+            case ')':
+                sb.append("\\29");
+                break;
+            case '\\':
+                sb.append("\\5c");
+                break;
+            case '\u0000':
+                sb.append("\\00");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * 指定範囲の文字が全て数字であるかを判定します.
+     * @param s 文字列
+     * @param begin 開始位置
+     * @param end 終了位置 (含まない)
+     * @return 全て数字の場合はtrue
+     */
+    private static boolean isDigits(String s, int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
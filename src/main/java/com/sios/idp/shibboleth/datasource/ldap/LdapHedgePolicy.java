@@ -0,0 +1,166 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.util.Arrays;
+
+/**
+ * LDAP検索のヘッジ (応答の遅い検索を別のレプリカに重複して送信すること) の要否を判断するクラスです.<br>
+ * 直近の検索の応答時間を保持し、指定パーセンタイルの応答時間を経過しても応答のない検索をヘッジの対象とします。
+ * ヘッジによる追加の負荷は、集計期間毎の検索数に対する割合 (予算) で制限します。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapHedgePolicy {
+
+    /** 保持する応答時間の数です. */
+    static final int SAMPLE_SIZE = 256;
+
+    /** ヘッジを開始するために必要な応答時間の数です. */
+    static final int MIN_SAMPLES = 20;
+
+    /** パーセンタイルを再計算する間隔 (記録数) です. */
+    private static final int RECOMPUTE_INTERVAL = 16;
+
+    /** ヘッジの遅延時間とするパーセンタイル (1-99). 0以下の場合はヘッジしません. */
+    private final int percentile;
+
+    /** 集計期間毎の検索数に対するヘッジ数の上限の割合 (パーセント). */
+    private final int budgetPercent;
+
+    /** 予算の集計期間 (ナノ秒). */
+    private final long windowNanos;
+
+    /** 直近の応答時間 (ナノ秒) のリングバッファ. */
+    private final long[] samples = new long[SAMPLE_SIZE];
+
+    /** 記録した応答時間の数 (最大{@link #SAMPLE_SIZE}). */
+    private int sampleCount;
+
+    /** 次に記録するリングバッファのインデックス. */
+    private int sampleIndex;
+
+    /** 前回の再計算以降に記録した応答時間の数. */
+    private int sinceRecompute;
+
+    /** ヘッジの遅延時間 (ミリ秒). 応答時間が不足している場合は-1. */
+    private long delayMillis = -1L;
+
+    /** 集計期間の開始時刻 (ナノ秒). */
+    private long windowStart = System.nanoTime();
+
+    /** 集計期間内の検索数. */
+    private long windowRequests;
+
+    /** 集計期間内のヘッジ数. */
+    private long windowHedges;
+
+    /** ヘッジした検索の総数. */
+    private long hedgedCount;
+
+    /** 予算超過によりヘッジしなかった検索の総数. */
+    private long budgetExceededCount;
+
+    /**
+     * コンストラクタです.
+     * @param percentile ヘッジの遅延時間とするパーセンタイル. 0以下の場合はヘッジしません
+     * @param budgetPercent 集計期間毎の検索数に対するヘッジ数の上限の割合 (パーセント)
+     * @param windowMillis 予算の集計期間 (ミリ秒)
+     */
+    LdapHedgePolicy(int percentile, int budgetPercent, long windowMillis) {
+        this.percentile = Math.min(percentile, 99);
+        this.budgetPercent = Math.max(budgetPercent, 0);
+        this.windowNanos = Math.max(windowMillis, 1L) * 1000000L;
+    }
+
+    /**
+     * ヘッジが有効であるかを取得します.
+     * @return ヘッジが有効な場合はtrue
+     */
+    public boolean isEnabled() {
+        return percentile > 0 && budgetPercent > 0;
+    }
+
+    /**
+     * 成功した検索の応答時間を記録します.
+     * @param latencyNanos 応答時間 (ナノ秒)
+     */
+    public synchronized void record(long latencyNanos) {
+        samples[sampleIndex] = latencyNanos;
+        sampleIndex = (sampleIndex + 1) % SAMPLE_SIZE;
+        if (sampleCount < SAMPLE_SIZE) {
+            sampleCount++;
+        }
+        if (sampleCount >= MIN_SAMPLES && (delayMillis < 0 || ++sinceRecompute >= RECOMPUTE_INTERVAL)) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(sampleCount * percentile / 100.0) - 1;
+            delayMillis = Math.max(sorted[Math.max(index, 0)] / 1000000L, 1L);
+            sinceRecompute = 0;
+        }
+    }
+
+    /**
+     * 検索の開始を記録し、ヘッジまでの遅延時間を取得します.
+     * @return ヘッジまでの遅延時間 (ミリ秒). ヘッジが無効、または応答時間が不足している場合は-1
+     */
+    public synchronized long onRequest() {
+        rollWindow();
+        windowRequests++;
+        return isEnabled() ? delayMillis : -1L;
+    }
+
+    /**
+     * 予算内であればヘッジ数を加算します.
+     * 集計期間内のヘッジ数が、集計期間内の検索数に対する割合の上限に達している場合はヘッジしません。
+     * @return ヘッジする場合はtrue
+     */
+    public synchronized boolean tryAcquire() {
+        rollWindow();
+        if ((windowHedges + 1) * 100 > windowRequests * budgetPercent) {
+            budgetExceededCount++;
+            return false;
+        }
+        windowHedges++;
+        hedgedCount++;
+        return true;
+    }
+
+    /**
+     * ヘッジした検索の総数を取得します.
+     * @return ヘッジした検索の総数
+     */
+    public synchronized long getHedgedCount() {
+        return hedgedCount;
+    }
+
+    /**
+     * 予算超過によりヘッジしなかった検索の総数を取得します.
+     * @return 予算超過によりヘッジしなかった検索の総数
+     */
+    public synchronized long getBudgetExceededCount() {
+        return budgetExceededCount;
+    }
+
+    /**
+     * ヘッジの遅延時間を取得します.
+     * @return ヘッジの遅延時間 (ミリ秒). 応答時間が不足している場合は-1
+     */
+    public synchronized long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * 集計期間が経過した場合、集計期間内の検索数とヘッジ数をリセットします.
+     */
+    private void rollWindow() {
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos) {
+            windowStart = now;
+            windowRequests = 0;
+            windowHedges = 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * ベースDN配下の全ユーザをページング検索 (Simple Paged Results) で走査するクラスです.<br>
+ * ユーザ名の属性を持つエントリ毎に、ユーザ名と指定された属性の値を通知します。
+ * 1ページ分のエントリのみを保持するため、ユーザ数によらずメモリ使用量は一定です。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapPagedSearch {
+
+    /** ページサイズの既定値. */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private LdapPagedSearch() {
+    }
+
+    /**
+     * ベースDN配下の全ユーザを走査します.
+     * @param connection バインド済みのLDAP接続
+     * @param baseDN ベースDN
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 取得する属性名
+     * @param pageSize ページサイズ
+     * @param handler ユーザ名と属性名毎の値の通知先
+     * @return 検索したページ数
+     * @throws LDAPException 検索に失敗した場合
+     */
+    public static int forEachUser(LDAPConnection connection, String baseDN, String userNameAttributeName,
+            List<String> attributeNames, int pageSize, BiConsumer<String, Map<String, List<String>>> handler)
+            throws LDAPException {
+        return forEachUser(connection, baseDN, SearchScope.SUB, userNameAttributeName, attributeNames, pageSize,
+                handler);
+    }
+
+    /**
+     * 複数のベースDNの検索範囲の全ユーザを、ベースDNの順に走査します.
+     * @param connection バインド済みのLDAP接続
+     * @param bases ベースDNの一覧
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 取得する属性名
+     * @param pageSize ページサイズ
+     * @param handler ユーザ名と属性名毎の値の通知先
+     * @return 検索したページ数の合計
+     * @throws LDAPException 検索に失敗した場合
+     */
+    public static int forEachUser(LDAPConnection connection, List<LdapSearchBase> bases,
+            String userNameAttributeName, List<String> attributeNames, int pageSize,
+            BiConsumer<String, Map<String, List<String>>> handler) throws LDAPException {
+        int pages = 0;
+        for (LdapSearchBase base : bases) {
+            pages += forEachUser(connection, base.getBaseDN(), base.getScope(), userNameAttributeName,
+                    attributeNames, pageSize, handler);
+        }
+        return pages;
+    }
+
+    /**
+     * ベースDNの検索範囲の全ユーザを走査します.
+     * @param connection バインド済みのLDAP接続
+     * @param baseDN ベースDN
+     * @param scope 検索範囲
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 取得する属性名
+     * @param pageSize ページサイズ
+     * @param handler ユーザ名と属性名毎の値の通知先
+     * @return 検索したページ数
+     * @throws LDAPException 検索に失敗した場合
+     */
+    private static int forEachUser(LDAPConnection connection, String baseDN, SearchScope scope,
+            String userNameAttributeName, List<String> attributeNames, int pageSize,
+            BiConsumer<String, Map<String, List<String>>> handler) throws LDAPException {
+        List<String> requested = new ArrayList<String>(attributeNames);
+        requested.add(userNameAttributeName);
+        SearchRequest request = new SearchRequest(baseDN, scope,
+                Filter.createPresenceFilter(userNameAttributeName), requested.toArray(new String[0]));
+        int pages = 0;
+        ASN1OctetString cookie = null;
+        do {
+            request.setControls(new SimplePagedResultsControl(pageSize, cookie));
+            SearchResult result = connection.search(request);
+            for (SearchResultEntry entry : result.getSearchEntries()) {
+                accept(entry, userNameAttributeName, attributeNames, handler);
+            }
+            pages++;
+            SimplePagedResultsControl response = SimplePagedResultsControl.get(result);
+            cookie = response == null ? null : response.getCookie();
+        } while (cookie != null && cookie.getValueLength() > 0);
+        return pages;
+    }
+
+    /**
+     * エントリのユーザ名と属性名毎の値を通知します. ユーザ名の属性を持たないエントリは通知しません.
+     * @param entry エントリ
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 取得する属性名
+     * @param handler ユーザ名と属性名毎の値の通知先
+     */
+    public static void accept(Entry entry, String userNameAttributeName, List<String> attributeNames,
+            BiConsumer<String, Map<String, List<String>>> handler) {
+        String[] userNames = entry.getAttributeValues(userNameAttributeName);
+        if (userNames == null) {
+            return;
+        }
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        for (String attributeName : attributeNames) {
+            String[] values = entry.getAttributeValues(attributeName);
+            if (values != null) {
+                attributes.put(attributeName, Arrays.asList(values));
+            }
+        }
+        for (String userName : userNames) {
+            handler.accept(userName, attributes);
+        }
+    }
+}
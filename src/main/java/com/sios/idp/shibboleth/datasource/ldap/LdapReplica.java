@@ -0,0 +1,326 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.security.GeneralSecurityException;
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
+
+/**
+ * 非同期LDAP接続プールの接続先となるLDAPレプリカ1台を表すクラスです.<br>
+ * レプリカ毎に少数の接続を保持し、応答時間の指数加重移動平均 (EWMA)、処理中の操作数、連続失敗回数を記録します。
+ * 連続失敗回数が閾値に達したレプリカは切り離され、{@link #probe()}に成功するまで選択対象から外れます。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapReplica {
+
+    /** 応答時間の指数加重移動平均で最新の応答時間に与える重みです. */
+    private static final double EWMA_WEIGHT = 0.3;
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LdapReplica.class);
+
+    /** LDAP接続先URL. */
+    private final LDAPURL ldapUrl;
+
+    /** 接続オプション. */
+    private final LDAPConnectionOptions options;
+
+    /** LDAP接続. */
+    private final LDAPConnection[] connections;
+
+    /** 次に使用する接続のインデックス. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** 処理中の操作数. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** 連続失敗回数. */
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /** 切り離すまでの連続失敗回数. */
+    private final int failureThreshold;
+
+    /** 応答時間の指数加重移動平均 (ミリ秒). */
+    private double ewmaMillis;
+
+    /** 最後に操作が完了した時刻 (ナノ秒). */
+    private long lastCompletedNanos = System.nanoTime();
+
+    /** 選択対象であるか. */
+    private volatile boolean healthy = true;
+
+    /**
+     * コンストラクタです.
+     * @param ldapUrl LDAP接続先URL
+     * @param options 接続オプション
+     * @param connectionCount 接続数
+     * @param failureThreshold 切り離すまでの連続失敗回数
+     */
+    LdapReplica(LDAPURL ldapUrl, LDAPConnectionOptions options, int connectionCount, int failureThreshold) {
+        this.ldapUrl = ldapUrl;
+        this.options = options;
+        this.connections = new LDAPConnection[Math.max(connectionCount, 1)];
+        this.failureThreshold = Math.max(failureThreshold, 1);
+    }
+
+    /**
+     * LDAP接続を取得します. 接続はラウンドロビンで選択し、切断されている場合は再接続します.
+     * @return LDAP接続
+     * @throws LDAPException 接続、またはバインドに失敗した場合
+     */
+    public LDAPConnection getConnection() throws LDAPException {
+        int index = Math.floorMod(next.getAndIncrement(), connections.length);
+        LDAPConnection connection = connections[index];
+        if (connection != null && connection.isConnected()) {
+            return connection;
+        }
+        synchronized (connections) {
+            connection = connections[index];
+            if (connection == null || !connection.isConnected()) {
+                if (connection != null) {
+                    connection.close();
+                }
+                connection = connect();
+                connections[index] = connection;
+                LOGGER.debug("LDAP接続 {} を確立しました。 (接続先：{})", index, ldapUrl);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * 確立していない全ての接続を確立します. 起動時のウォームアップで使用します.
+     * @return 確立した接続数
+     * @throws LDAPException 接続、またはバインドに失敗した場合
+     */
+    int connectAll() throws LDAPException {
+        int opened = 0;
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] == null || !connections[i].isConnected()) {
+                    if (connections[i] != null) {
+                        connections[i].close();
+                    }
+                    connections[i] = connect();
+                    opened++;
+                }
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * 操作の開始を記録します.
+     * @return 操作の開始時刻 (ナノ秒)
+     */
+    public long start() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 操作の成功を記録します. 応答時間を移動平均に反映し、連続失敗回数をリセットします.
+     * @param startNanos {@link #start()}が返却した開始時刻
+     */
+    public void succeeded(long startNanos) {
+        outstanding.decrementAndGet();
+        updateLatency(startNanos);
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * 操作の失敗を記録します. 応答時間を移動平均に反映し、連続失敗回数が閾値に達した場合は切り離します.
+     * @param startNanos {@link #start()}が返却した開始時刻
+     */
+    public void failed(long startNanos) {
+        outstanding.decrementAndGet();
+        updateLatency(startNanos);
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && healthy) {
+            eject();
+        }
+    }
+
+    /**
+     * 操作の取り消しを記録します. 応答時間、連続失敗回数には反映しません.
+     */
+    public void cancelled() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * 切り離されたレプリカに接続、バインドできるかを確認し、成功した場合は選択対象に戻します.
+     * @return 選択対象に戻した場合はtrue
+     */
+    public boolean probe() {
+        try {
+            connect().close();
+        } catch (LDAPException e) {
+            LOGGER.debug("LDAPレプリカの死活監視に失敗しました。 (接続先：{}, 結果コード：{})", ldapUrl, e.getResultCode());
+            return false;
+        }
+        synchronized (this) {
+            ewmaMillis = 0;
+        }
+        consecutiveFailures.set(0);
+        healthy = true;
+        LOGGER.info("LDAPレプリカを選択対象に戻しました。 (接続先：{})", ldapUrl);
+        return true;
+    }
+
+    /**
+     * 指定時間以上操作が完了していない場合、応答時間の移動平均を半減させます.
+     * 応答が遅く選択されなくなったレプリカにも、徐々に操作が割り当てられ応答時間が再計測されます。
+     * @param idleMillis 操作が完了していない時間 (ミリ秒)
+     */
+    public synchronized void decayIfIdle(long idleMillis) {
+        long now = System.nanoTime();
+        if (now - lastCompletedNanos >= idleMillis * 1000000L) {
+            ewmaMillis /= 2;
+            lastCompletedNanos = now;
+        }
+    }
+
+    /**
+     * LDAP操作の結果コードが、レプリカの障害 (接続断、タイムアウト、過負荷) を示すかを判定します.
+     * @param resultCode 結果コード
+     * @return レプリカの障害を示す場合はtrue
+     */
+    public static boolean isReplicaFailure(ResultCode resultCode) {
+        return !ResultCode.isConnectionUsable(resultCode) || resultCode == ResultCode.TIMEOUT
+                || resultCode == ResultCode.BUSY || resultCode == ResultCode.UNAVAILABLE;
+    }
+
+    /**
+     * LDAP接続先URLを取得します.
+     * @return LDAP接続先URL
+     */
+    public LDAPURL getLdapUrl() {
+        return ldapUrl;
+    }
+
+    /**
+     * 選択対象であるかを取得します.
+     * @return 選択対象である場合はtrue
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * 処理中の操作数を取得します.
+     * @return 処理中の操作数
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * 応答時間の指数加重移動平均 (ミリ秒) を取得します.
+     * @return 応答時間の指数加重移動平均 (ミリ秒)
+     */
+    public synchronized double getEwmaMillis() {
+        return ewmaMillis;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public String toString() {
+        return MessageFormat.format("{0} (healthy={1}, outstanding={2}, ewma={3,number,0.0}ms)",
+                ldapUrl, healthy, outstanding.get(), getEwmaMillis());
+    }
+
+    /**
+     * 全ての接続を切断します.
+     */
+    void close() {
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 選択対象から切り離し、全ての接続を切断します. 処理中の操作は接続の切断により異常完了します.
+     */
+    private void eject() {
+        healthy = false;
+        LOGGER.warn("連続して{}回失敗したため、LDAPレプリカを切り離します。 (接続先：{})", failureThreshold, ldapUrl);
+        close();
+    }
+
+    /**
+     * 応答時間を移動平均に反映します.
+     * @param startNanos 開始時刻 (ナノ秒)
+     */
+    private synchronized void updateLatency(long startNanos) {
+        lastCompletedNanos = System.nanoTime();
+        double latencyMillis = (lastCompletedNanos - startNanos) / 1000000.0;
+        ewmaMillis = ewmaMillis == 0 ? latencyMillis : ewmaMillis + EWMA_WEIGHT * (latencyMillis - ewmaMillis);
+    }
+
+    /**
+     * LDAPに接続し、バインドします. 返却した接続は本クラスでは管理しません.
+     * ldapsスキームの場合、またはStartTLSを使用する場合は、{@link LdapTlsContext}の設定でTLSを確立してからバインドします。
+     * @return LDAP接続
+     * @throws LDAPException 接続、TLSの確立、またはバインドに失敗した場合
+     */
+    LDAPConnection connect() throws LDAPException {
+        boolean ldaps = "ldaps".equalsIgnoreCase(ldapUrl.getScheme());
+        boolean startTls = !ldaps && LdapTlsContext.isStartTls();
+        SocketFactory socketFactory = ldaps ? getTlsContext().getSocketFactory() : SocketFactory.getDefault();
+        LDAPConnection connection = new LDAPConnection(socketFactory, options, ldapUrl.getHost(), ldapUrl.getPort());
+        try {
+            if (startTls) {
+                ExtendedResult result = connection.processExtendedOperation(
+                        new StartTLSExtendedRequest(getTlsContext().getSocketFactory()));
+                if (result.getResultCode() != ResultCode.SUCCESS) {
+                    throw new LDAPException(result);
+                }
+            }
+            connection.bind(AppConfig.getLdapBindDN(), AppConfig.getLdapBindPassword());
+        } catch (LDAPException e) {
+            connection.close();
+            LOGGER.error(MessageFormat.format("LDAPへのバインドに失敗しました。 (接続先：{0}, バインドDN：{1}, StartTLS：{2})",
+                    ldapUrl, AppConfig.getLdapBindDN(), startTls));
+            throw e;
+        }
+        connection.setConnectionName("totp-async-ldap");
+        return connection;
+    }
+
+    /**
+     * TLSの設定を取得します.
+     * @return TLSの設定
+     * @throws LDAPException TLSの設定の読み込みに失敗した場合
+     */
+    private LdapTlsContext getTlsContext() throws LDAPException {
+        try {
+            return LdapTlsContext.getInstance();
+        } catch (GeneralSecurityException e) {
+            throw new LDAPException(ResultCode.LOCAL_ERROR, MessageFormat.format(
+                    "LDAPのTLSの設定の読み込みに失敗しました。 (接続先：{0}, 理由：{1})", ldapUrl, e.getMessage()), e);
+        }
+    }
+}
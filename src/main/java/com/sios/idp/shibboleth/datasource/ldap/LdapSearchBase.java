@@ -0,0 +1,179 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.directory.SearchControls;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * ユーザを検索するベースDNと検索範囲、タイムアウトを表すクラスです.<br>
+ * {@link AppConfig}のldapBaseDNsに、ベースDNをセミコロン区切りで定義します。
+ * 各ベースDNには「|」に続けて検索範囲 (sub: サブツリー, one: 1レベル) とタイムアウト (ミリ秒) を指定できます
+ * (例：ou=people,dc=example,dc=com|one|2000;ou=staff,o=corp)。
+ * ldapBaseDNsが空の場合は、ldapBaseDNのサブツリーのみを検索します。
+ * 同じエントリが複数のベースDNの検索範囲に含まれる場合は重複と判定されるため、検索範囲は重複しないよう定義します。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapSearchBase {
+
+    /** ベースDNの区切り文字. */
+    private static final String BASE_SEPARATOR = ";";
+
+    /** ベースDNと検索範囲、タイムアウトの区切り文字 (正規表現). */
+    private static final String OPTION_SEPARATOR = "\\|";
+
+    /** 最後に解析した設定値とベースDNの一覧. */
+    private static volatile Parsed parsed;
+
+    /** ベースDN. */
+    private final String baseDN;
+
+    /** サブツリーを検索するか. falseの場合は1レベル. */
+    private final boolean subtree;
+
+    /** タイムアウト (ミリ秒). 0の場合は操作毎のタイムアウトに従います. */
+    private final long timeoutMillis;
+
+    /**
+     * コンストラクタです.
+     * @param baseDN ベースDN
+     * @param subtree サブツリーを検索する場合はtrue、1レベルの場合はfalse
+     * @param timeoutMillis タイムアウト (ミリ秒). 0の場合は操作毎のタイムアウトに従います
+     */
+    public LdapSearchBase(String baseDN, boolean subtree, long timeoutMillis) {
+        this.baseDN = baseDN;
+        this.subtree = subtree;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 設定されたベースDNの一覧を取得します.
+     * @return ベースDNの一覧. 定義された順
+     * @throws IllegalArgumentException 検索範囲、タイムアウトの指定が不正な場合
+     */
+    public static List<LdapSearchBase> getAll() {
+        String baseDNs = AppConfig.getLdapBaseDNs();
+        String baseDN = AppConfig.getLdapBaseDN();
+        String key = (baseDNs == null ? "" : baseDNs) + "\n" + baseDN;
+        Parsed current = parsed;
+        if (current == null || !current.key.equals(key)) {
+            current = new Parsed(key, parse(baseDNs, baseDN));
+            parsed = current;
+        }
+        return current.bases;
+    }
+
+    /**
+     * ldapBaseDNsの設定値を解析します.
+     * @param baseDNs ldapBaseDNsの設定値
+     * @param baseDN ldapBaseDNsが空の場合に使用するldapBaseDNの設定値
+     * @return ベースDNの一覧
+     * @throws IllegalArgumentException 検索範囲、タイムアウトの指定が不正な場合
+     */
+    static List<LdapSearchBase> parse(String baseDNs, String baseDN) {
+        List<LdapSearchBase> bases = new ArrayList<LdapSearchBase>();
+        if (baseDNs != null) {
+            for (String element : baseDNs.split(BASE_SEPARATOR)) {
+                if (element.trim().isEmpty()) {
+                    continue;
+                }
+                String[] options = element.split(OPTION_SEPARATOR);
+                boolean subtree = true;
+                if (options.length > 1 && !options[1].trim().isEmpty()) {
+                    String scope = options[1].trim();
+                    if (!"sub".equalsIgnoreCase(scope) && !"one".equalsIgnoreCase(scope)) {
+                        throw new IllegalArgumentException(MessageFormat.format(
+                                "ベースDNの検索範囲 {0} が不正です。sub、oneのいずれかを指定してください。 ({1})", scope, element));
+                    }
+                    subtree = "sub".equalsIgnoreCase(scope);
+                }
+                long timeoutMillis = 0L;
+                if (options.length > 2 && !options[2].trim().isEmpty()) {
+                    try {
+                        timeoutMillis = Long.parseLong(options[2].trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(MessageFormat.format(
+                                "ベースDNのタイムアウト {0} が不正です。 ({1})", options[2].trim(), element), e);
+                    }
+                }
+                bases.add(new LdapSearchBase(options[0].trim(), subtree, Math.max(timeoutMillis, 0L)));
+            }
+        }
+        if (bases.isEmpty()) {
+            bases.add(new LdapSearchBase(baseDN, true, 0L));
+        }
+        return Collections.unmodifiableList(bases);
+    }
+
+    /**
+     * ベースDNを取得します.
+     * @return ベースDN
+     */
+    public String getBaseDN() {
+        return baseDN;
+    }
+
+    /**
+     * UnboundID LDAP SDKの検索範囲を取得します.
+     * @return 検索範囲
+     */
+    public SearchScope getScope() {
+        return subtree ? SearchScope.SUB : SearchScope.ONE;
+    }
+
+    /**
+     * JNDIの検索範囲を取得します.
+     * @return {@link SearchControls}の検索範囲
+     */
+    public int getJndiScope() {
+        return subtree ? SearchControls.SUBTREE_SCOPE : SearchControls.ONELEVEL_SCOPE;
+    }
+
+    /**
+     * タイムアウト (ミリ秒) を取得します.
+     * @param defaultMillis タイムアウトが指定されていない場合の値
+     * @return タイムアウト (ミリ秒)
+     */
+    public long getTimeoutMillis(long defaultMillis) {
+        return timeoutMillis > 0 ? timeoutMillis : defaultMillis;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public String toString() {
+        return MessageFormat.format("{0} ({1}{2})", baseDN, subtree ? "sub" : "one",
+                timeoutMillis > 0 ? ", " + timeoutMillis + "ms" : "");
+    }
+
+    /**
+     * 解析した設定値とベースDNの一覧の組です.
+     */
+    private static final class Parsed {
+
+        /** 解析した設定値. */
+        private final String key;
+
+        /** ベースDNの一覧. */
+        private final List<LdapSearchBase> bases;
+
+        /**
+         * コンストラクタです.
+         * @param key 解析した設定値
+         * @param bases ベースDNの一覧
+         */
+        private Parsed(String key, List<LdapSearchBase> bases) {
+            this.key = key;
+            this.bases = bases;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
+/**
+ * LDAPS、StartTLSの接続に使用するTLSの設定を保持するクラスです.<br>
+ * {@link AppConfig}のトラストストア、プロトコル、暗号スイートから1つの{@link SSLContext}を生成し、全てのLDAP接続で共有します。
+ * クライアントのTLSセッションキャッシュは{@link SSLContext}毎に保持されるため、
+ * 再接続時のハンドシェイクはセッションの再開 (簡略化されたハンドシェイク) となります。
+ * ハンドシェイクの回数、再開した回数、所要時間を計測します。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapTlsContext {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LdapTlsContext.class);
+
+    /** ホスト名の検証に使用するアルゴリズム. */
+    private static final String ENDPOINT_IDENTIFICATION_ALGORITHM = "LDAPS";
+
+    /** Singletonなインスタンス. */
+    private static LdapTlsContext context;
+
+    /** TLSのコンテキスト. */
+    private final SSLContext sslContext;
+
+    /** 有効にするプロトコル. 空の場合はJVMの既定値. */
+    private final String[] protocols;
+
+    /** 有効にする暗号スイート. 空の場合はJVMの既定値. */
+    private final String[] cipherSuites;
+
+    /** ホスト名を検証するか. */
+    private final boolean hostnameVerification;
+
+    /** ソケットを生成するFactory. */
+    private final LdapTlsSocketFactory socketFactory;
+
+    /** ハンドシェイクの回数. */
+    private final AtomicLong handshakeCount = new AtomicLong();
+
+    /** セッションを再開したハンドシェイクの回数. */
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    /** ハンドシェイクの所要時間の合計 (ナノ秒). */
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+    /**
+     * privateコンストラクタです.
+     * @throws GeneralSecurityException トラストストアの読み込み、TLSのコンテキストの生成に失敗した場合
+     */
+    private LdapTlsContext() throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(loadTrustStore());
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        Integer timeoutSec = AppConfig.getLdapTlsSessionTimeoutSec();
+        if (timeoutSec != null && timeoutSec >= 0) {
+            sslContext.getClientSessionContext().setSessionTimeout(timeoutSec);
+        }
+        protocols = split(AppConfig.getLdapTlsProtocols());
+        cipherSuites = split(AppConfig.getLdapTlsCipherSuites());
+        hostnameVerification = !Boolean.FALSE.equals(AppConfig.getLdapTlsHostnameVerification());
+        socketFactory = new LdapTlsSocketFactory(sslContext.getSocketFactory(), this);
+    }
+
+    /**
+     * Singletonなインスタンスを取得します. 初回呼び出し時に生成します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを取得します。
+     * @return TLSの設定
+     * @throws GeneralSecurityException トラストストアの読み込み、TLSのコンテキストの生成に失敗した場合
+     */
+    public static LdapTlsContext getInstance() throws GeneralSecurityException {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            return realm.getComponent(LdapTlsContext.class, LdapTlsContext::create);
+        }
+        synchronized (LdapTlsContext.class) {
+            if (context == null) {
+                context = create();
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを破棄します. 次回の{@link #getInstance()}で設定を読み込み直します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを破棄します。
+     */
+    public static synchronized void shutdown() {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            realm.removeComponent(LdapTlsContext.class);
+        } else {
+            context = null;
+        }
+    }
+
+    /**
+     * TLSの設定を読み込みます.
+     * @return TLSの設定
+     * @throws GeneralSecurityException トラストストアの読み込み、TLSのコンテキストの生成に失敗した場合
+     */
+    private static LdapTlsContext create() throws GeneralSecurityException {
+        LdapTlsContext created = new LdapTlsContext();
+        LOGGER.info("LDAPのTLSの設定を読み込みました。 (トラストストア：{}, プロトコル：{}, 暗号スイート：{})",
+                isEmpty(AppConfig.getLdapTrustStorePath()) ? "JVMの既定値" : AppConfig.getLdapTrustStorePath(),
+                created.protocols.length == 0 ? "JVMの既定値" : String.join(",", created.protocols),
+                created.cipherSuites.length == 0 ? "JVMの既定値" : String.join(",", created.cipherSuites));
+        return created;
+    }
+
+    /**
+     * ldapスキームの接続でStartTLSを使用するかを取得します.
+     * @return StartTLSを使用する場合はtrue
+     */
+    public static boolean isStartTls() {
+        return Boolean.TRUE.equals(AppConfig.getLdapStartTls());
+    }
+
+    /**
+     * LDAPS、StartTLSに使用するソケットのFactoryを取得します.
+     * @return ソケットのFactory
+     */
+    public LdapTlsSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * ハンドシェイクの回数を取得します.
+     * @return ハンドシェイクの回数
+     */
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * セッションを再開したハンドシェイクの回数を取得します.
+     * @return セッションを再開したハンドシェイクの回数
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * ハンドシェイクの所要時間の合計 (ナノ秒) を取得します. TCPの接続に要した時間を含みます.
+     * @return ハンドシェイクの所要時間の合計 (ナノ秒)
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos.get();
+    }
+
+    /**
+     * 生成したソケットに、プロトコル、暗号スイート、ホスト名の検証を設定し、ハンドシェイクの計測を開始します.
+     * @param socket ソケット
+     * @return 設定したソケット
+     */
+    SSLSocket configure(SSLSocket socket) {
+        SSLParameters parameters = socket.getSSLParameters();
+        if (protocols.length > 0) {
+            parameters.setProtocols(protocols);
+        }
+        if (cipherSuites.length > 0) {
+            parameters.setCipherSuites(cipherSuites);
+        }
+        if (hostnameVerification) {
+            parameters.setEndpointIdentificationAlgorithm(ENDPOINT_IDENTIFICATION_ALGORITHM);
+        }
+        socket.setSSLParameters(parameters);
+        long createdNanos = System.nanoTime();
+        long createdMillis = System.currentTimeMillis();
+        socket.addHandshakeCompletedListener(
+                event -> onHandshakeCompleted(event.getSession(), createdNanos, createdMillis));
+        return socket;
+    }
+
+    /**
+     * ハンドシェイクの完了を記録します.
+     * 再開したセッションは以前の接続で生成されているため、生成時刻がソケットの生成より前であることで判定します。
+     * @param session TLSセッション
+     * @param createdNanos ソケットの生成時刻 (ナノ秒)
+     * @param createdMillis ソケットの生成時刻 (ミリ秒)
+     */
+    private void onHandshakeCompleted(SSLSession session, long createdNanos, long createdMillis) {
+        long nanos = System.nanoTime() - createdNanos;
+        handshakeCount.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        boolean resumed = session.getCreationTime() < createdMillis;
+        if (resumed) {
+            resumedCount.incrementAndGet();
+        }
+        LOGGER.debug("LDAPとのTLSハンドシェイクが完了しました。 (接続先：{}, プロトコル：{}, 暗号スイート：{}, 再開：{}, 所要時間：{}ミリ秒)",
+                session.getPeerHost(), session.getProtocol(), session.getCipherSuite(), resumed, nanos / 1000000L);
+    }
+
+    /**
+     * 設定されたトラストストアを読み込みます.
+     * @return トラストストア. 設定されていない場合はnull (JVMの既定値を使用します)
+     * @throws GeneralSecurityException 読み込みに失敗した場合
+     */
+    private static KeyStore loadTrustStore() throws GeneralSecurityException {
+        String path = AppConfig.getLdapTrustStorePath();
+        if (isEmpty(path)) {
+            return null;
+        }
+        String type = AppConfig.getLdapTrustStoreType();
+        String password = AppConfig.getLdapTrustStorePassword();
+        KeyStore trustStore = KeyStore.getInstance(isEmpty(type) ? KeyStore.getDefaultType() : type);
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            trustStore.load(in, isEmpty(password) ? null : password.toCharArray());
+        } catch (IOException e) {
+            throw new KeyStoreException(MessageFormat.format(
+                    "LDAPのトラストストア {0} の読み込みに失敗しました。", path), e);
+        }
+        return trustStore;
+    }
+
+    /**
+     * カンマ区切りの設定値を分割します.
+     * @param value 設定値
+     * @return 前後の空白を除いた空でない値
+     */
+    private static String[] split(String value) {
+        List<String> values = new ArrayList<String>();
+        if (value != null) {
+            for (String element : value.split(",")) {
+                if (!element.trim().isEmpty()) {
+                    values.add(element.trim());
+                }
+            }
+        }
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * 設定値が空であるかを判定します.
+     * @param value 設定値
+     * @return nullまたは空白のみの場合はtrue
+     */
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
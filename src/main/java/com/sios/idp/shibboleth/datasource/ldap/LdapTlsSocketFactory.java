@@ -0,0 +1,94 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link LdapTlsContext}の設定を適用したソケットを生成するFactoryクラスです.<br>
+ * JNDIのLDAPプロバイダからはクラス名で指定 (java.naming.ldap.factory.socket) して使用するため、
+ * {@link #getDefault()}は{@link LdapTlsContext}のFactoryを返却します。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapTlsSocketFactory extends SSLSocketFactory {
+
+    /** TLSのコンテキストが生成するFactory. */
+    private final SSLSocketFactory delegate;
+
+    /** TLSの設定. */
+    private final LdapTlsContext context;
+
+    /**
+     * コンストラクタです.
+     * @param delegate TLSのコンテキストが生成するFactory
+     * @param context TLSの設定
+     */
+    LdapTlsSocketFactory(SSLSocketFactory delegate, LdapTlsContext context) {
+        this.delegate = delegate;
+        this.context = context;
+    }
+
+    /**
+     * {@link LdapTlsContext}のFactoryを取得します. JNDIのLDAPプロバイダから呼び出されます.
+     * @return ソケットのFactory
+     * @throws IllegalStateException TLSの設定の読み込みに失敗した場合
+     */
+    public static SocketFactory getDefault() {
+        try {
+            return LdapTlsContext.getInstance().getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return context.configure((SSLSocket) delegate.createSocket(address, port, localAddress, localPort));
+    }
+}
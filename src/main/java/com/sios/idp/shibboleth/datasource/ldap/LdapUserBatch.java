@@ -0,0 +1,177 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+
+/**
+ * 複数ユーザのユーザ情報を少数の検索でまとめて取得するための検索条件と検索結果を保持するクラスです.<br>
+ * ユーザ名をbatchSize件毎に分割し、{@link com.sios.idp.shibboleth.common.AppConfig}のldapFilterの
+ * テンプレートを論理和 (OR) で結合した検索フィルタを生成します。
+ * 受信したエントリはユーザ名の属性 (ldapUserNameAttributeName) の値でユーザに対応付けるため、
+ * ldapFilterはユーザ名の属性で検索するテンプレートである必要があります。<br>
+ * ユーザ毎の検索結果は{@link SearchResults}として保持し、
+ * {@link com.sios.idp.shibboleth.common.util.ValidationUtil#isSingleRecorde(SearchResults)}で
+ * ユーザ毎に存在、重複を判定できます。
+ * @author SIOS Technology, Inc.
+ */
+public final class LdapUserBatch {
+
+    /** 1回の検索で検索するユーザ数の既定値. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** ユーザ名の属性名. */
+    private final String userNameAttributeName;
+
+    /** ユーザ情報として取得する属性名. */
+    private final String[] returningAttributes;
+
+    /** 正規化したユーザ名毎の検索結果. */
+    private final Map<String, SearchResults> byUserName = new LinkedHashMap<String, SearchResults>();
+
+    /** 指定されたユーザ名毎の検索結果. */
+    private final Map<String, SearchResults> results = new LinkedHashMap<String, SearchResults>();
+
+    /**
+     * コンストラクタです.
+     * @param userNames ユーザ名. 大文字・小文字のみ異なるユーザ名は同じ検索結果を共有します
+     * @param userNameAttributeName ユーザ名の属性名
+     */
+    public LdapUserBatch(Collection<String> userNames, String userNameAttributeName) {
+        this.userNameAttributeName = userNameAttributeName;
+        this.returningAttributes = LdapUtil.getReturningAttributes();
+        for (String userName : userNames) {
+            SearchResults shared = byUserName.get(normalize(userName));
+            if (shared == null) {
+                shared = new SearchResults();
+                byUserName.put(normalize(userName), shared);
+            }
+            results.put(userName, shared);
+        }
+    }
+
+    /**
+     * ユーザ名をbatchSize件毎に分割した検索フィルタを生成します.
+     * @param template 1ユーザを検索するフィルタテンプレート
+     * @param batchSize 1回の検索で検索するユーザ数. 0以下の場合は{@link #DEFAULT_BATCH_SIZE}
+     * @return 検索フィルタのリスト
+     */
+    public List<String> createFilters(String template, int batchSize) {
+        List<String> userNames = new ArrayList<String>(byUserName.keySet());
+        List<String> filters = new ArrayList<String>();
+        for (List<String> chunk : Lists.partition(userNames, batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder("(|");
+            for (String userName : chunk) {
+                String filter = LdapFilterUtil.format(template, userName);
+                if (filter.startsWith("(")) {
+                    sb.append(filter);
+                } else {
+                    sb.append('(').append(filter).append(')');
+                }
+            }
+            filters.add(sb.append(')').toString());
+        }
+        return filters;
+    }
+
+    /**
+     * 検索で取得する属性名を取得します. ユーザへの対応付けのため、ユーザ名の属性を加えます.
+     * @return 取得する属性名の配列
+     */
+    public String[] getReturningAttributes() {
+        List<String> attributes = new ArrayList<String>();
+        for (String attributeName : returningAttributes) {
+            attributes.add(attributeName);
+        }
+        attributes.add(userNameAttributeName);
+        return attributes.toArray(new String[attributes.size()]);
+    }
+
+    /**
+     * ユーザ名の属性であるかを判定します.
+     * @param attributeName 属性名
+     * @return ユーザ名の属性の場合はtrue
+     */
+    public boolean isUserNameAttribute(String attributeName) {
+        return userNameAttributeName.equalsIgnoreCase(attributeName);
+    }
+
+    /**
+     * ユーザ情報として取得する属性であるかを判定します.
+     * ユーザへの対応付けのためだけに取得したユーザ名の属性は、ユーザ情報に含めません。
+     * @param attributeName 属性名
+     * @return ユーザ情報として取得する属性の場合はtrue
+     */
+    public boolean isReturningAttribute(String attributeName) {
+        for (String returning : returningAttributes) {
+            if (returning.equalsIgnoreCase(attributeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 受信したエントリを、ユーザ名の属性の値が一致するユーザの検索結果に追加します.
+     * 要求していないユーザ名のエントリは無視します。
+     * @param userNames エントリのユーザ名の属性の値
+     * @param result エントリの属性のうち、ユーザ情報として取得する属性
+     * @return 対応付けたユーザ数
+     */
+    public int add(String[] userNames, SearchResult result) {
+        if (userNames == null) {
+            return 0;
+        }
+        Map<String, SearchResults> matched = new HashMap<String, SearchResults>();
+        for (String userName : userNames) {
+            SearchResults shared = byUserName.get(normalize(userName));
+            if (shared != null) {
+                matched.put(normalize(userName), shared);
+            }
+        }
+        for (SearchResults shared : matched.values()) {
+            shared.add(result);
+        }
+        return matched.size();
+    }
+
+    /**
+     * 指定されたユーザ名毎の検索結果を取得します.
+     * @return ユーザ名毎の検索結果. 指定された全てのユーザ名を含み、存在しないユーザは0件の検索結果です
+     */
+    public Map<String, SearchResults> getResults() {
+        return results;
+    }
+
+    /**
+     * 設定された1回の検索で検索するユーザ数を取得します.
+     * @return ユーザ数. 設定されていない場合は0 ({@link #DEFAULT_BATCH_SIZE}を使用します)
+     */
+    public static int getBatchSize() {
+        Integer batchSize = AppConfig.getUserBatchSize();
+        return batchSize == null ? 0 : batchSize;
+    }
+
+    /**
+     * ユーザ名を正規化します. LDAPのユーザ名の比較は大文字・小文字を区別しないため、小文字に変換します.
+     * @param userName ユーザ名
+     * @return 正規化したユーザ名
+     */
+    private static String normalize(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+}
@@ -5,9 +5,16 @@
  */
 package com.sios.idp.shibboleth.datasource.ldap;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 
 import org.slf4j.Logger;
@@ -18,13 +25,20 @@ import com.sios.idp.shibboleth.dto.SearchResult;
 import com.sios.idp.shibboleth.dto.SearchResults;
 
 /**
- * LdapUtilクラスです. Ldapのsearchを実装するメソッドを持ちます.
+ * LdapUtilクラスです. Ldapのsearch、及び属性値の削除を実装するメソッドを持ちます.
  * @author SIOS Technology, Inc.
  */
 public final class LdapUtil {
     /** loggerの呼び出しをします. */
     private static final Logger LOGGER = LoggerFactory.getLogger(LdapUtil.class);
 
+    /**
+     * 検索結果の最大件数です.
+     * 2件以上は{@link com.sios.idp.shibboleth.common.util.ValidationUtil#isSingleRecorde(SearchResults)}で
+     * ユーザ情報の重複となるため、重複が判定できる2件までを取得します。
+     */
+    private static final long COUNT_LIMIT = 2L;
+
     /**
      * コンストラクタです.
      * LdapUtilクラス内からしか参照できません.
@@ -35,28 +49,135 @@ public final class LdapUtil {
     /**
      * LDAPサーチを利用して必要な情報を取得するためのメソッドです. 上位で受け取ったフィルター情報を元にsearchを実行します.
      * 実行結果についてはConvertResultに渡され、処理が行なわれます.
+     * 取得する属性は{@link com.sios.idp.shibboleth.common.AppConfig}に定義された属性のみとし、
+     * 重複の判定に必要な2件を上限として検索します。
+     * 複数のベースDN ({@link LdapSearchBase}) が定義されている場合は1つの接続で順に検索し、2件に達した時点で終了します。
      * @param userName ユーザネーム
      * @return searchResultオブジェクト
      * @throws NamingException lookup処理に誤りがあります.
      */
     public static SearchResults search(String...userName) throws NamingException {
         LdapConnection lcon = new LdapConnectionImpl();
-        NamingEnumeration<javax.naming.directory.SearchResult> results = null;
+        SearchResults lresults = new SearchResults();
         try {
             lcon.open();
-            SearchControls constraints = new SearchControls();
-            constraints.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            results = lcon.search(
-                    AppConfig.getLdapBaseDN(), AppConfig.getLdapFilter(), constraints, userName);
-            return convertResult(results);
+            for (LdapSearchBase base : LdapSearchBase.getAll()) {
+                if (lresults.getCount() >= COUNT_LIMIT) {
+                    break;
+                }
+                SearchControls constraints = createControls(base, getReturningAttributes());
+                constraints.setCountLimit(COUNT_LIMIT - lresults.getCount());
+                NamingEnumeration<javax.naming.directory.SearchResult> results = null;
+                try {
+                    results = lcon.search(base.getBaseDN(), AppConfig.getLdapFilter(), constraints, userName);
+                    convertResult(results, lresults);
+                } finally {
+                    if (results != null) {
+                        LOGGER.debug("LDAPとの接続切断準備に入ります。");
+                        results.close();
+                        LOGGER.debug("LDAPとの接続切断準備が完了しました。");
+                    }
+                }
+            }
+            return lresults;
         } catch (NamingException ne) {
             throw ne;
         } finally {
-            if (results != null) {
-                LOGGER.debug("LDAPとの接続切断準備に入ります。");
-                results.close();
-                LOGGER.debug("LDAPとの接続切断準備が完了しました。");
+            if (lcon != null) {
+                LOGGER.debug("LDAPとの接続を切断します。");
+                lcon.close();
+                LOGGER.debug("LDAPとの接続が切断されました。");
+            }
+        }
+    }
+
+    /**
+     * 複数ユーザのユーザ情報を、ユーザ名をbatchSize件毎に論理和で結合した検索でまとめて取得します.
+     * 全てのベースDNの全ての検索を1つの接続で実行し、受信したエントリはユーザ名の属性の値でユーザに対応付けます。
+     * 重複の判定のため、件数上限は設けません。
+     * @param batch 検索するユーザ名と検索結果の格納先
+     * @param batchSize 1回の検索で検索するユーザ数
+     * @return 実行した検索の回数
+     * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
+     */
+    public static int searchUsers(LdapUserBatch batch, int batchSize) throws NamingException {
+        List<String> filters = batch.createFilters(AppConfig.getLdapFilter(), batchSize);
+        if (filters.isEmpty()) {
+            return 0;
+        }
+        LdapConnection lcon = new LdapConnectionImpl();
+        try {
+            lcon.open();
+            int count = 0;
+            for (LdapSearchBase base : LdapSearchBase.getAll()) {
+                SearchControls constraints = createControls(base, batch.getReturningAttributes());
+                for (String filter : filters) {
+                    NamingEnumeration<javax.naming.directory.SearchResult> results = null;
+                    try {
+                        results = lcon.search(base.getBaseDN(), filter, constraints);
+                        while (results.hasMore()) {
+                            addUser(batch, results.next());
+                        }
+                    } finally {
+                        if (results != null) {
+                            results.close();
+                        }
+                    }
+                    count++;
+                }
+            }
+            LOGGER.debug("{}件のユーザ情報を{}回の検索で取得しました。", batch.getResults().size(), count);
+            return count;
+        } finally {
+            LOGGER.debug("LDAPとの接続を切断します。");
+            lcon.close();
+            LOGGER.debug("LDAPとの接続が切断されました。");
+        }
+    }
+
+    /**
+     * 上位で受け取ったフィルター情報を元にsearchを実行し、該当エントリが1件の場合のみ指定された属性値を削除するメソッドです.
+     * 該当エントリが1件でない場合は更新を行わず、該当件数のみを返却します。
+     * エントリはベースDNを順に検索し、2件に達した時点で検索を終了します。
+     * @param attributeName 属性名
+     * @param value 削除する値
+     * @param userName ユーザネーム
+     * @return 検索条件に該当したエントリの件数
+     * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
+     */
+    public static int removeAttributeValue(String attributeName, String value, String...userName)
+            throws NamingException {
+        LdapConnection lcon = new LdapConnectionImpl();
+        try {
+            lcon.open();
+            List<String> dns = new ArrayList<String>();
+            for (LdapSearchBase base : LdapSearchBase.getAll()) {
+                if (dns.size() >= COUNT_LIMIT) {
+                    break;
+                }
+                SearchControls constraints = createControls(base, new String[0]);
+                constraints.setCountLimit(COUNT_LIMIT - dns.size());
+                NamingEnumeration<javax.naming.directory.SearchResult> results = null;
+                try {
+                    results = lcon.search(base.getBaseDN(), AppConfig.getLdapFilter(), constraints, userName);
+                    while (dns.size() < COUNT_LIMIT && results.hasMore()) {
+                        dns.add(results.next().getNameInNamespace());
+                    }
+                } finally {
+                    if (results != null) {
+                        results.close();
+                    }
+                }
+            }
+            if (dns.size() == 1) {
+                ModificationItem[] mods = new ModificationItem[] {
+                    new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attributeName, value))
+                };
+                lcon.modifyAttributes(dns.get(0), mods);
+                LOGGER.debug("エントリ {} の属性 {} の値を削除しました。", dns.get(0), attributeName);
             }
+            return dns.size();
+        } finally {
             if (lcon != null) {
                 LOGGER.debug("LDAPとの接続を切断します。");
                 lcon.close();
@@ -65,29 +186,108 @@ public final class LdapUtil {
         }
     }
 
+    /**
+     * ベースDNの検索範囲、タイムアウトと取得する属性を設定した検索条件を生成します.
+     * ベースDNにタイムアウトが指定されている場合は、検索の時間制限としてサーバに送信します。
+     * @param base ベースDN
+     * @param returningAttributes 取得する属性名
+     * @return 検索条件
+     */
+    private static SearchControls createControls(LdapSearchBase base, String[] returningAttributes) {
+        SearchControls constraints = new SearchControls();
+        constraints.setSearchScope(base.getJndiScope());
+        constraints.setReturningAttributes(returningAttributes);
+        long timeoutMillis = base.getTimeoutMillis(0L);
+        if (timeoutMillis > 0) {
+            constraints.setTimeLimit((int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        }
+        return constraints;
+    }
+
+    /**
+     * 検索で取得する属性名を取得します.
+     * ユーザ固有ID、秘密鍵、及びリカバリコード (設定されている場合) の属性のみを取得対象とします。
+     * @return 取得する属性名の配列
+     */
+    public static String[] getReturningAttributes() {
+        List<String> attributes = new ArrayList<String>();
+        attributes.add(AppConfig.getImmutableUserIdAttributeName());
+        attributes.add(AppConfig.getSecretKeyAttributeName());
+        String recoveryCodeAttributeName = AppConfig.getRecoveryCodeAttributeName();
+        if (recoveryCodeAttributeName != null && !recoveryCodeAttributeName.isEmpty()) {
+            attributes.add(recoveryCodeAttributeName);
+        }
+        return attributes.toArray(new String[attributes.size()]);
+    }
+
+    /**
+     * 受信したエントリの属性を詰め替え、ユーザ名の属性の値でユーザに対応付けます.
+     * @param batch 検索結果の格納先
+     * @param entry 受信したエントリ
+     * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
+     */
+    private static void addUser(LdapUserBatch batch, javax.naming.directory.SearchResult entry)
+            throws NamingException {
+        SearchResult lresult = new SearchResult();
+        List<String> userNames = new ArrayList<String>();
+        NamingEnumeration<? extends Attribute> attrResult = entry.getAttributes().getAll();
+        while (attrResult.hasMore()) {
+            Attribute attr = attrResult.next();
+            NamingEnumeration<?> values = attr.getAll();
+            while (values.hasMore()) {
+                String value = values.next().toString();
+                if (batch.isUserNameAttribute(attr.getID())) {
+                    userNames.add(value);
+                }
+                if (batch.isReturningAttribute(attr.getID())) {
+                    lresult.add(attr.getID(), value);
+                }
+            }
+        }
+        if (batch.add(userNames.toArray(new String[userNames.size()]), lresult) == 0) {
+            LOGGER.debug("検索したユーザ名に対応付けられないエントリを無視します。 (DN：{})", entry.getNameInNamespace());
+        }
+    }
+
     /**
      * 上位で受け取ったsearchの結果をSearchResultのaddMap変数へ詰め替えるための メソッドです.
+     * 複数値属性の場合は全ての値を詰め替えます。
+     * 2件目のエントリを受信した時点でユーザ情報の重複が確定するため、2件目の属性は詰め替えずに読み込みを終了します。
      * この作業完了後、上位メソッドはctxを利用してsearchした結果とctxをclose処理します.
      * @param result 上位メソッドでsearchした結果です.
+     * @param lresults 詰め替え先のSearchResultsオブジェクト. 他のベースDNで受信済みのエントリを含みます.
      * @return SearchResultsオブジェクト
      * @throws NamingException LDAPの操作に失敗した際に投げられる例外クラスです.
      */
     private static SearchResults convertResult(
-            NamingEnumeration<javax.naming.directory.SearchResult> result)
+            NamingEnumeration<javax.naming.directory.SearchResult> result, SearchResults lresults)
             throws NamingException {
         javax.naming.directory.SearchResult convertResult = null;
         NamingEnumeration<? extends Attribute> attrResult = null;
-        SearchResults lresults = new SearchResults();
-        SearchResult lresult = new com.sios.idp.shibboleth.dto.SearchResult();
-        while (result != null && result.hasMore()) {
-            convertResult = result.next();
-            attrResult = convertResult.getAttributes().getAll();
-            while (attrResult != null && attrResult.hasMore()) {
-                Attribute attr = attrResult.next();
-                attr.get().toString();
-                lresult.add(attr.getID().toString(), attr.get().toString());
+        try {
+            while (result != null && result.hasMore()) {
+                convertResult = result.next();
+                SearchResult lresult = new com.sios.idp.shibboleth.dto.SearchResult();
+                if (lresults.getCount() > 0) {
+                    LOGGER.debug("検索結果が複数件存在するため、読み込みを終了します。");
+                    lresults.add(lresult);
+                    break;
+                }
+                attrResult = convertResult.getAttributes().getAll();
+                while (attrResult != null && attrResult.hasMore()) {
+                    Attribute attr = attrResult.next();
+                    NamingEnumeration<?> values = attr.getAll();
+                    while (values.hasMore()) {
+                        lresult.add(attr.getID(), values.next().toString());
+                    }
+                }
+                lresults.add(lresult);
+            }
+        } catch (SizeLimitExceededException se) {
+            // 件数上限に達した場合は、重複の判定に必要な件数を取得済みであれば結果として扱う
+            if (lresults.getCount() < COUNT_LIMIT) {
+                throw se;
             }
-            lresults.add(lresult);
         }
         return lresults;
     }
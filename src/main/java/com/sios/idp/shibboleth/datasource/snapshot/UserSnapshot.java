@@ -0,0 +1,271 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * メモリマップしたユーザ情報のスナップショットファイルを参照するクラスです.<br>
+ * スナップショットファイルは {@link UserSnapshotWriter} で生成します。形式は以下の通りです (数値はビッグエンディアン)。
+ * <ul>
+ * <li>ヘッダ ({@value #HEADER_SIZE}バイト)：マジック番号、形式バージョン、ユーザ数、索引のスロット数、生成日時</li>
+ * <li>索引：スロット数 × 4バイト. ユーザ名のハッシュ値を開始位置とするオープンアドレス法で、レコードの位置 (0は空き) を格納</li>
+ * <li>レコード：ユーザ名のハッシュ値、フラグ、ユーザ名、属性名と値のリスト</li>
+ * </ul>
+ * ユーザ情報の取得は索引とレコードの読み取りのみで行い、ファイル全体を読み込みません。
+ * ユーザ名はLDAPの一般的な照合規則 (caseIgnoreMatch) に合わせ、大文字小文字を区別しません。
+ * インスタンスは不変であり、複数スレッドから同時に参照できます。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserSnapshot {
+
+    /** マジック番号 ("TOTP"). */
+    static final int MAGIC = 0x544F5450;
+
+    /** 形式バージョン. */
+    static final int VERSION = 1;
+
+    /** ヘッダのサイズ (バイト). */
+    static final int HEADER_SIZE = 32;
+
+    /** レコードのフラグ「ユーザ名が重複している」. */
+    static final short FLAG_DUPLICATED = 1;
+
+    /** スナップショットファイルのパス. */
+    private final Path path;
+
+    /** メモリマップしたスナップショットファイル. */
+    private final ByteBuffer buffer;
+
+    /** ユーザ数. */
+    private final int userCount;
+
+    /** 索引のスロット数 (2の累乗). */
+    private final int slotCount;
+
+    /** 生成日時 (エポックミリ秒). */
+    private final long createdAt;
+
+    /** 開いた時点のスナップショットファイルのファイルキー. */
+    private final Object fileKey;
+
+    /** 開いた時点のスナップショットファイルの更新日時. */
+    private final FileTime lastModifiedTime;
+
+    /**
+     * コンストラクタです.
+     * @param path スナップショットファイルのパス
+     * @param buffer メモリマップしたスナップショットファイル
+     * @param attributes 開いた時点のファイル属性
+     */
+    private UserSnapshot(Path path, ByteBuffer buffer, BasicFileAttributes attributes) {
+        this.path = path;
+        this.buffer = buffer;
+        this.userCount = buffer.getInt(8);
+        this.slotCount = buffer.getInt(12);
+        this.createdAt = buffer.getLong(16);
+        this.fileKey = attributes.fileKey();
+        this.lastModifiedTime = attributes.lastModifiedTime();
+    }
+
+    /**
+     * スナップショットファイルをメモリマップして開きます.
+     * @param path スナップショットファイルのパス
+     * @return スナップショット
+     * @throws IOException ファイルの読み込みに失敗した場合、スナップショットファイルの形式でない場合
+     */
+    public static UserSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(MessageFormat.format("スナップショットファイルのサイズが不正です。 (パス：{0}, サイズ：{1})",
+                        path, size));
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(MessageFormat.format("スナップショットファイルの形式が不正です。 (パス：{0})", path));
+            }
+            int slots = buffer.getInt(12);
+            if (slots <= 0 || Integer.bitCount(slots) != 1 || HEADER_SIZE + (long) slots * 4 > size) {
+                throw new IOException(MessageFormat.format("スナップショットファイルの索引が不正です。 (パス：{0})", path));
+            }
+            // マップ後に読み取るため、ファイルが置き換えられた場合は生成日時か属性のいずれかが現在のファイルと異なります
+            return new UserSnapshot(path, buffer, Files.readAttributes(path, BasicFileAttributes.class));
+        }
+    }
+
+    /**
+     * 指定されたユーザ名のユーザ情報を取得します.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合はnull
+     * @throws UserDuplicatedException スナップショットの生成時にユーザ名が重複していた場合
+     */
+    public SearchResult get(String userName) throws UserDuplicatedException {
+        byte[] name = normalize(userName);
+        int hash = hash(name);
+        int mask = slotCount - 1;
+        for (int slot = hash & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+            int offset = buffer.getInt(HEADER_SIZE + slot * 4);
+            if (offset == 0) {
+                return null;
+            }
+            if (buffer.getInt(offset) == hash && nameEquals(offset + 8, name)) {
+                if ((buffer.getShort(offset + 4) & FLAG_DUPLICATED) != 0) {
+                    throw new UserDuplicatedException(MessageFormat.format(
+                            "ユーザ名：{0}のユーザ情報が複数件存在します。", userName));
+                }
+                return readAttributes(offset + 8 + 2 + name.length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 全てのユーザ情報を索引の順に通知します. 更新ジャーナルの統合に使用します.
+     * @param handler ユーザ名 (小文字) とユーザ情報の通知先. ユーザ名が重複している場合のユーザ情報はnull
+     */
+    public void forEach(BiConsumer<String, SearchResult> handler) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = buffer.getInt(HEADER_SIZE + slot * 4);
+            if (offset == 0) {
+                continue;
+            }
+            int nameLength = buffer.getShort(offset + 8) & 0xFFFF;
+            String userName = readString(offset + 8 + 2, nameLength);
+            boolean duplicated = (buffer.getShort(offset + 4) & FLAG_DUPLICATED) != 0;
+            handler.accept(userName, duplicated ? null : readAttributes(offset + 8 + 2 + nameLength));
+        }
+    }
+
+    /**
+     * ユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public int size() {
+        return userCount;
+    }
+
+    /**
+     * 生成日時を取得します.
+     * @return 生成日時 (エポックミリ秒)
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * 同じスナップショットファイルを開いたものかを判定します. ファイルキー、更新日時、生成日時を比較します.
+     * @param other 比較するスナップショット
+     * @return 同じファイルの場合はtrue
+     */
+    public boolean isSameFile(UserSnapshot other) {
+        return createdAt == other.createdAt && Objects.equals(fileKey, other.fileKey)
+                && Objects.equals(lastModifiedTime, other.lastModifiedTime);
+    }
+
+    /**
+     * スナップショットファイルのパスを取得します.
+     * @return スナップショットファイルのパス
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * ユーザ名を索引のキーに変換します.
+     * @param userName ユーザ名
+     * @return 小文字に変換し、UTF-8でエンコードしたユーザ名
+     */
+    static byte[] normalize(String userName) {
+        return userName.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * ユーザ名のハッシュ値 (FNV-1a) を計算します.
+     * @param name UTF-8でエンコードしたユーザ名
+     * @return ハッシュ値
+     */
+    static int hash(byte[] name) {
+        int hash = 0x811C9DC5;
+        for (byte b : name) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * レコードのユーザ名が一致するかを判定します.
+     * @param offset ユーザ名の長さの位置
+     * @param name UTF-8でエンコードしたユーザ名
+     * @return 一致する場合はtrue
+     */
+    private boolean nameEquals(int offset, byte[] name) {
+        if ((buffer.getShort(offset) & 0xFFFF) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(offset + 2 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * レコードの属性名と値を読み取ります.
+     * @param offset 属性数の位置
+     * @return ユーザ情報
+     */
+    private SearchResult readAttributes(int offset) {
+        SearchResult result = new SearchResult();
+        int position = offset;
+        int attributeCount = buffer.getShort(position) & 0xFFFF;
+        position += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            int nameLength = buffer.getShort(position) & 0xFFFF;
+            String attributeName = readString(position + 2, nameLength);
+            position += 2 + nameLength;
+            int valueCount = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            for (int j = 0; j < valueCount; j++) {
+                int valueLength = buffer.getInt(position);
+                result.add(attributeName, readString(position + 4, valueLength));
+                position += 4 + valueLength;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * UTF-8の文字列を読み取ります.
+     * @param offset 開始位置
+     * @param length 長さ (バイト)
+     * @return 文字列
+     */
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.datasource.ldap.LdapPagedSearch;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldif.LDIFAddChangeRecord;
+import com.unboundid.ldif.LDIFDeleteChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFModifyChangeRecord;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldif.LDIFRecord;
+
+/**
+ * LDIFファイル、またはLDAPのページング検索からユーザ情報のスナップショットファイルを生成するクラスです.<br>
+ * ユーザ名の属性を持つエントリ毎に、指定された属性の値をスナップショットに格納します。
+ * 既存のスナップショットに対する差分はLDIFファイルから更新ジャーナル ({@link UserSnapshotJournal}) に追記します。
+ * コマンドラインからは以下のように実行します。
+ * <pre>
+ * UserSnapshotExporter ldif &lt;LDIFファイル&gt; &lt;出力先&gt; &lt;ユーザ名の属性&gt; &lt;属性,...&gt;
+ * UserSnapshotExporter ldap &lt;LDAP URL&gt; &lt;バインドDN&gt; &lt;パスワード&gt; &lt;ベースDN&gt; &lt;出力先&gt; &lt;ユーザ名の属性&gt; &lt;属性,...&gt;
+ * UserSnapshotExporter update &lt;LDIFファイル&gt; &lt;スナップショット&gt; &lt;ユーザ名の属性&gt; &lt;属性,...&gt;
+ * </pre>
+ * @author SIOS Technology, Inc.
+ */
+public final class UserSnapshotExporter {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSnapshotExporter.class);
+
+    /**
+     * privateコンストラクタです.
+     * 外部からのインスタンス生成を許可しません。
+     */
+    private UserSnapshotExporter() {
+    }
+
+    /**
+     * LDIFファイルからスナップショットファイルを生成します.
+     * @param ldif LDIFファイルのパス
+     * @param target スナップショットファイルのパス
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 格納する属性名
+     * @return 格納したユーザ数
+     * @throws IOException ファイルの読み書きに失敗した場合
+     * @throws LDIFException LDIFファイルの形式が不正な場合
+     */
+    public static int exportLdif(Path ldif, Path target, String userNameAttributeName, List<String> attributeNames)
+            throws IOException, LDIFException {
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        try (LDIFReader reader = new LDIFReader(ldif.toFile())) {
+            for (Entry entry = reader.readEntry(); entry != null; entry = reader.readEntry()) {
+                LdapPagedSearch.accept(entry, userNameAttributeName, attributeNames, writer::add);
+            }
+        }
+        writer.write(target);
+        LOGGER.info("LDIFファイル {} からスナップショットファイル {} を生成しました。 (ユーザ数：{})", ldif, target, writer.size());
+        return writer.size();
+    }
+
+    /**
+     * LDAPのページング検索でスナップショットファイルを生成します.
+     * @param connection バインド済みのLDAP接続
+     * @param baseDN ベースDN
+     * @param target スナップショットファイルのパス
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 格納する属性名
+     * @return 格納したユーザ数
+     * @throws IOException ファイルの書き込みに失敗した場合
+     * @throws LDAPException 検索に失敗した場合
+     */
+    public static int exportLdap(LDAPConnection connection, String baseDN, Path target, String userNameAttributeName,
+            List<String> attributeNames) throws IOException, LDAPException {
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        LdapPagedSearch.forEachUser(connection, baseDN, userNameAttributeName, attributeNames,
+                LdapPagedSearch.DEFAULT_PAGE_SIZE, writer::add);
+        writer.write(target);
+        LOGGER.info("ベースDN {} からスナップショットファイル {} を生成しました。 (ユーザ数：{})", baseDN, target, writer.size());
+        return writer.size();
+    }
+
+    /**
+     * LDIFファイルのエントリと変更レコードをスナップショットの更新ジャーナルに追記します.<br>
+     * エントリと追加 (add) の変更レコードはユーザ情報を置き換えます。
+     * 削除 (delete) と変更 (modify) の変更レコードは、DNのRDNにユーザ名の属性を含む場合のみ適用し、
+     * それ以外 (moddnを含む) は警告を出力して読み飛ばします。
+     * @param ldif LDIFファイルのパス
+     * @param snapshot スナップショットファイルのパス
+     * @param userNameAttributeName ユーザ名の属性名
+     * @param attributeNames 格納する属性名
+     * @return 追記した更新件数
+     * @throws IOException ファイルの読み書きに失敗した場合
+     * @throws LDIFException LDIFファイルの形式が不正な場合
+     * @throws UserDuplicatedException 変更するユーザのユーザ名がスナップショットで重複している場合
+     */
+    public static int applyLdif(Path ldif, Path snapshot, String userNameAttributeName, List<String> attributeNames)
+            throws IOException, LDIFException, UserDuplicatedException {
+        UserSnapshotJournal journal = UserSnapshotJournal.open(UserSnapshot.open(snapshot));
+        int count = 0;
+        try (LDIFReader reader = new LDIFReader(ldif.toFile())) {
+            for (LDIFRecord record = reader.readLDIFRecord(); record != null; record = reader.readLDIFRecord()) {
+                Entry entry = null;
+                if (record instanceof Entry) {
+                    entry = (Entry) record;
+                } else if (record instanceof LDIFAddChangeRecord) {
+                    entry = ((LDIFAddChangeRecord) record).getEntryToAdd();
+                }
+                if (entry != null) {
+                    Map<String, Map<String, List<String>>> users = new LinkedHashMap<String, Map<String, List<String>>>();
+                    LdapPagedSearch.accept(entry, userNameAttributeName, attributeNames, users::put);
+                    for (Map.Entry<String, Map<String, List<String>>> user : users.entrySet()) {
+                        journal.put(user.getKey(), user.getValue());
+                        count++;
+                    }
+                    continue;
+                }
+                String userName = getUserName(record.getDN(), userNameAttributeName);
+                if (userName == null) {
+                    LOGGER.warn("ユーザ名を特定できない変更レコードを読み飛ばします。 (DN：{})", record.getDN());
+                } else if (record instanceof LDIFDeleteChangeRecord) {
+                    journal.remove(userName);
+                    count++;
+                } else if (record instanceof LDIFModifyChangeRecord) {
+                    Modification[] modifications = ((LDIFModifyChangeRecord) record).getModifications();
+                    journal.update(userName, current -> current == null ? null
+                            : modify(current, modifications, attributeNames));
+                    count++;
+                } else {
+                    LOGGER.warn("適用できない変更レコードを読み飛ばします。 (DN：{})", record.getDN());
+                }
+            }
+        }
+        LOGGER.info("LDIFファイル {} の更新をスナップショット {} の更新ジャーナルに追記しました。 (更新件数：{})",
+                ldif, snapshot, count);
+        return count;
+    }
+
+    /**
+     * DNのRDNからユーザ名を取得します.
+     * @param dn DN
+     * @param userNameAttributeName ユーザ名の属性名
+     * @return ユーザ名. RDNにユーザ名の属性を含まない場合はnull
+     * @throws LDIFException DNの形式が不正な場合
+     */
+    private static String getUserName(String dn, String userNameAttributeName) throws LDIFException {
+        RDN rdn;
+        try {
+            rdn = new DN(dn).getRDN();
+        } catch (LDAPException e) {
+            throw new LDIFException(e.getMessage(), 0, false, e);
+        }
+        if (rdn == null) {
+            return null;
+        }
+        String[] names = rdn.getAttributeNames();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(userNameAttributeName)) {
+                return rdn.getAttributeValues()[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ユーザ情報に変更を適用します. 格納する属性以外の変更は無視します.
+     * @param current 現在のユーザ情報
+     * @param modifications 変更
+     * @param attributeNames 格納する属性名
+     * @return 変更後のユーザ情報
+     */
+    private static SearchResult modify(SearchResult current, Modification[] modifications,
+            List<String> attributeNames) {
+        Map<String, List<String>> attributes = UserSnapshotJournal.toAttributes(current);
+        for (Modification modification : modifications) {
+            String attributeName = null;
+            for (String name : attributeNames) {
+                if (name.equalsIgnoreCase(modification.getAttributeName())) {
+                    attributeName = name;
+                }
+            }
+            if (attributeName == null) {
+                continue;
+            }
+            List<String> values = attributes.get(attributeName);
+            if (values == null) {
+                values = new ArrayList<String>();
+                attributes.put(attributeName, values);
+            }
+            switch (modification.getModificationType().intValue()) {
+            case ModificationType.ADD_INT_VALUE:
+                values.addAll(Arrays.asList(modification.getValues()));
+                break;
+            case ModificationType.DELETE_INT_VALUE:
+                if (modification.hasValue()) {
+                    values.removeAll(Arrays.asList(modification.getValues()));
+                } else {
+                    values.clear();
+                }
+                break;
+            case ModificationType.REPLACE_INT_VALUE:
+                values.clear();
+                values.addAll(Arrays.asList(modification.getValues()));
+                break;
+            default:
+                break;
+            }
+            if (values.isEmpty()) {
+                attributes.remove(attributeName);
+            }
+        }
+        SearchResult changed = new SearchResult();
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            for (String value : attribute.getValue()) {
+                changed.add(attribute.getKey(), value);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * コマンドラインからスナップショットファイルを生成します.
+     * @param args 引数
+     * @throws Exception 生成に失敗した場合
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 5 && "ldif".equals(args[0])) {
+            exportLdif(Paths.get(args[1]), Paths.get(args[2]), args[3], Arrays.asList(args[4].split(",")));
+        } else if (args.length == 8 && "ldap".equals(args[0])) {
+            LDAPURL url = new LDAPURL(args[1]);
+            try (LDAPConnection connection = new LDAPConnection(url.getHost(), url.getPort(), args[2], args[3])) {
+                exportLdap(connection, args[4], Paths.get(args[5]), args[6], Arrays.asList(args[7].split(",")));
+            }
+        } else if (args.length == 5 && "update".equals(args[0])) {
+            applyLdif(Paths.get(args[1]), Paths.get(args[2]), args[3], Arrays.asList(args[4].split(",")));
+        } else {
+            System.err.println("usage: UserSnapshotExporter ldif <ldif> <output> <userNameAttr> <attr,...>");
+            System.err.println("       UserSnapshotExporter ldap <url> <bindDN> <password> <baseDN> <output>"
+                    + " <userNameAttr> <attr,...>");
+            System.err.println("       UserSnapshotExporter update <ldif> <snapshot> <userNameAttr> <attr,...>");
+            System.exit(2);
+        }
+    }
+}
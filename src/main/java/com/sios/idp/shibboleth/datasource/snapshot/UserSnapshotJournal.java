@@ -0,0 +1,510 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * ユーザ情報のスナップショットに対する更新を追記するジャーナルファイルです.<br>
+ * スナップショットファイルは読み取り専用のため、ユーザ情報の追加・変更・削除はスナップショットファイルと同じディレクトリの
+ * ジャーナルファイル (スナップショットファイル名 + {@value #SUFFIX}) に追記し、参照時にスナップショットより優先します。
+ * 形式は以下の通りです (数値はビッグエンディアン)。
+ * <ul>
+ * <li>ヘッダ ({@value #HEADER_SIZE}バイト)：マジック番号、形式バージョン、対象スナップショットの生成日時</li>
+ * <li>レコード：長さ、CRC32、種別 (更新、削除)、ユーザ名、属性名と値のリスト</li>
+ * </ul>
+ * 対象スナップショットの生成日時が異なるジャーナルは参照しません。
+ * 末尾の書きかけのレコードは読み込み時に無視し、次の追記時に切り詰めます。<br>
+ * 追記はファイルロックで排他するため、インポートツールとIdPのように複数のプロセスから追記できます。
+ * 他のプロセスの追記は{@link #refresh()}で取り込みます。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserSnapshotJournal {
+
+    /** ジャーナルファイル名の接尾辞. */
+    public static final String SUFFIX = ".journal";
+
+    /** マジック番号 ("TJNL"). */
+    static final int MAGIC = 0x544A4E4C;
+
+    /** 形式バージョン. */
+    static final int VERSION = 1;
+
+    /** ヘッダのサイズ (バイト). */
+    static final int HEADER_SIZE = 16;
+
+    /** レコードの種別「更新」. */
+    private static final byte PUT = 1;
+
+    /** レコードの種別「削除」. */
+    private static final byte REMOVE = 2;
+
+    /** 削除されたユーザを表すユーザ情報. */
+    private static final SearchResult REMOVED = new SearchResult();
+
+    /** ジャーナルファイルのパス. */
+    private final Path path;
+
+    /** 対象のスナップショット. */
+    private final UserSnapshot base;
+
+    /** ユーザ名 (小文字) 毎の更新後のユーザ情報. 削除されたユーザは{@link #REMOVED}. */
+    private final Map<String, SearchResult> updates = new ConcurrentHashMap<String, SearchResult>();
+
+    /** 読み込み済みの位置. */
+    private long position;
+
+    /**
+     * コンストラクタです.
+     * @param path ジャーナルファイルのパス
+     * @param base 対象のスナップショット
+     */
+    private UserSnapshotJournal(Path path, UserSnapshot base) {
+        this.path = path;
+        this.base = base;
+    }
+
+    /**
+     * スナップショットのジャーナルファイルを読み込みます. ジャーナルファイルが存在しない場合は更新のない状態です.
+     * @param base 対象のスナップショット
+     * @return ジャーナル
+     * @throws IOException ファイルの読み込みに失敗した場合、ジャーナルファイルの形式でない場合
+     */
+    public static UserSnapshotJournal open(UserSnapshot base) throws IOException {
+        UserSnapshotJournal journal = new UserSnapshotJournal(getPath(base.getPath()), base);
+        journal.refresh();
+        return journal;
+    }
+
+    /**
+     * スナップショットファイルに対応するジャーナルファイルのパスを取得します.
+     * @param snapshot スナップショットファイルのパス
+     * @return ジャーナルファイルのパス
+     */
+    public static Path getPath(Path snapshot) {
+        return snapshot.resolveSibling(snapshot.getFileName() + SUFFIX);
+    }
+
+    /**
+     * 指定されたユーザ名の更新後のユーザ情報を取得します. 更新されていない場合はスナップショットから取得します.
+     * @param userName ユーザ名
+     * @return ユーザ情報. 存在しない場合、削除された場合はnull
+     * @throws UserDuplicatedException スナップショットでユーザ名が重複しており、更新されていない場合
+     */
+    public SearchResult get(String userName) throws UserDuplicatedException {
+        SearchResult updated = updates.get(userName.toLowerCase(Locale.ROOT));
+        if (updated == null) {
+            return base.get(userName);
+        }
+        return updated == REMOVED ? null : copy(updated);
+    }
+
+    /**
+     * ユーザ情報を追加、または置き換えます.
+     * @param userName ユーザ名
+     * @param attributes 属性名毎の値
+     * @throws IOException 追記に失敗した場合
+     */
+    public synchronized void put(String userName, Map<String, List<String>> attributes) throws IOException {
+        SearchResult result = new SearchResult();
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            for (String value : attribute.getValue()) {
+                result.add(attribute.getKey(), value);
+            }
+        }
+        try (FileChannel channel = openForAppend(); FileLock lock = channel.lock()) {
+            prepare(channel);
+            write(channel, userName, result);
+        }
+    }
+
+    /**
+     * ユーザ情報を削除します.
+     * @param userName ユーザ名
+     * @throws IOException 追記に失敗した場合
+     */
+    public synchronized void remove(String userName) throws IOException {
+        try (FileChannel channel = openForAppend(); FileLock lock = channel.lock()) {
+            prepare(channel);
+            write(channel, userName, null);
+        }
+    }
+
+    /**
+     * 現在のユーザ情報を変更します. 他のプロセスの追記を取り込んでから変更するため、同じユーザへの更新は失われません.
+     * @param userName ユーザ名
+     * @param change 現在のユーザ情報 (存在しない場合はnull) を受け取り、変更後のユーザ情報 (削除する場合はnull) を返す処理.
+     *        受け取ったインスタンスをそのまま返した場合は追記しません
+     * @throws IOException 追記に失敗した場合
+     * @throws UserDuplicatedException スナップショットでユーザ名が重複しており、更新されていない場合
+     */
+    public synchronized void update(String userName, UnaryOperator<SearchResult> change)
+            throws IOException, UserDuplicatedException {
+        try (FileChannel channel = openForAppend(); FileLock lock = channel.lock()) {
+            prepare(channel);
+            SearchResult current = get(userName);
+            SearchResult changed = change.apply(current);
+            if (changed != current) {
+                write(channel, userName, changed);
+            }
+        }
+    }
+
+    /**
+     * 更新されたユーザ数を取得します.
+     * @return 更新されたユーザ数
+     */
+    public int size() {
+        return updates.size();
+    }
+
+    /**
+     * 対象のスナップショットを取得します.
+     * @return 対象のスナップショット
+     */
+    public UserSnapshot getBase() {
+        return base;
+    }
+
+    /**
+     * 他のプロセスが追記したレコードを取り込みます.
+     * @return 取り込んだレコード数
+     * @throws IOException ファイルの読み込みに失敗した場合、ジャーナルファイルの形式でない場合
+     */
+    public synchronized int refresh() throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * スナップショットと更新を統合したスナップショットファイルを書き出し、ジャーナルを新しいスナップショットのものとして空にします.
+     * 統合中は他のプロセスの追記とスナップショットファイルの生成 ({@link UserSnapshotWriter#write(Path)}) を待機させます。
+     * スナップショットファイルが対象のスナップショットから置き換えられている場合は統合しません。
+     * 統合後にこのインスタンスで追記することはできません。
+     * @return 統合したスナップショット
+     * @throws IOException ファイルの読み書きに失敗した場合、スナップショットファイルが置き換えられている場合
+     */
+    synchronized UserSnapshot compact() throws IOException {
+        try (FileChannel channel = openForAppend(); FileLock lock = channel.lock()) {
+            if (!base.isSameFile(UserSnapshot.open(base.getPath()))) {
+                throw new IOException(MessageFormat.format(
+                        "スナップショットファイルが置き換えられているため統合できません。 (パス：{0})", base.getPath()));
+            }
+            read(channel);
+            UserSnapshotWriter writer = new UserSnapshotWriter();
+            base.forEach((userName, result) -> {
+                if (updates.containsKey(userName)) {
+                    return;
+                }
+                if (result == null) {
+                    writer.addDuplicated(userName);
+                } else {
+                    writer.add(userName, toAttributes(result));
+                }
+            });
+            for (Map.Entry<String, SearchResult> update : updates.entrySet()) {
+                if (update.getValue() != REMOVED) {
+                    writer.add(update.getKey(), toAttributes(update.getValue()));
+                }
+            }
+            // 古いスナップショットのジャーナルに追記しているプロセスを検出できるよう、生成日時を必ず進めます
+            writer.write(base.getPath(), Math.max(System.currentTimeMillis(), base.getCreatedAt() + 1));
+            UserSnapshot compacted = UserSnapshot.open(base.getPath());
+            channel.truncate(0);
+            writeHeader(channel, compacted.getCreatedAt());
+            channel.force(false);
+            position = Long.MAX_VALUE;
+            return compacted;
+        }
+    }
+
+    /**
+     * 追記のためにジャーナルファイルを開きます. 存在しない場合は作成します.
+     * @return ジャーナルファイル
+     * @throws IOException ファイルを開けない場合
+     */
+    private FileChannel openForAppend() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * ファイルロックの取得後、追記の前に他のプロセスの追記を取り込みます.
+     * 古いスナップショットのジャーナルは空にし、末尾の書きかけのレコードは切り詰めます。
+     * @param channel ジャーナルファイル
+     * @throws IOException 統合済みの場合、スナップショットファイルが更新されている場合、読み書きに失敗した場合
+     */
+    private void prepare(FileChannel channel) throws IOException {
+        if (position == Long.MAX_VALUE) {
+            throw new IOException(MessageFormat.format("統合済みのジャーナルには追記できません。 (パス：{0})", path));
+        }
+        long createdAt = channel.size() < HEADER_SIZE ? Long.MIN_VALUE : readHeader(channel);
+        if (createdAt > base.getCreatedAt()) {
+            throw new IOException(MessageFormat.format(
+                    "スナップショットファイルが更新されているため追記できません。 (パス：{0})", path));
+        }
+        if (createdAt != base.getCreatedAt()) {
+            channel.truncate(0);
+            writeHeader(channel, base.getCreatedAt());
+            updates.clear();
+            position = HEADER_SIZE;
+        }
+        read(channel);
+        if (channel.size() > position) {
+            channel.truncate(position);
+        }
+    }
+
+    /**
+     * 変更後のユーザ情報を追記し、更新に反映します.
+     * @param channel ジャーナルファイル
+     * @param userName ユーザ名
+     * @param changed 変更後のユーザ情報. 削除する場合はnull
+     * @throws IOException 追記に失敗した場合
+     */
+    private void write(FileChannel channel, String userName, SearchResult changed) throws IOException {
+        byte[] record = encode(changed == null ? REMOVE : PUT, userName, changed);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        channel.force(false);
+        position += record.length;
+        updates.put(userName.toLowerCase(Locale.ROOT), changed == null ? REMOVED : copy(changed));
+    }
+
+    /**
+     * 読み込み済みの位置以降のレコードを取り込みます. 対象のスナップショットが異なるジャーナルは取り込みません.
+     * @param channel ジャーナルファイル
+     * @return 取り込んだレコード数
+     * @throws IOException ファイルの読み込みに失敗した場合、ジャーナルファイルの形式でない場合
+     */
+    private int read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || position == Long.MAX_VALUE || readHeader(channel) != base.getCreatedAt()) {
+            return 0;
+        }
+        if (position < HEADER_SIZE) {
+            position = HEADER_SIZE;
+        }
+        int count = 0;
+        while (position + 8 <= size) {
+            ByteBuffer head = readFully(channel, position, 8);
+            int length = head.getInt(0);
+            if (length <= 0 || position + 8 + length > size) {
+                break;
+            }
+            ByteBuffer payload = readFully(channel, position + 8, length);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != head.getInt(4)) {
+                break;
+            }
+            apply(payload);
+            position += 8 + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * レコードを更新に反映します.
+     * @param payload レコードの種別以降
+     * @throws IOException レコードの種別が不正な場合
+     */
+    private void apply(ByteBuffer payload) throws IOException {
+        byte type = payload.get();
+        String userName = readString(payload, payload.getShort() & 0xFFFF);
+        if (type == REMOVE) {
+            updates.put(userName, REMOVED);
+            return;
+        }
+        if (type != PUT) {
+            throw new IOException(MessageFormat.format("ジャーナルのレコードの種別が不正です。 (パス：{0}, 種別：{1})", path, type));
+        }
+        SearchResult result = new SearchResult();
+        int attributeCount = payload.getShort() & 0xFFFF;
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readString(payload, payload.getShort() & 0xFFFF);
+            int valueCount = payload.getShort() & 0xFFFF;
+            for (int j = 0; j < valueCount; j++) {
+                result.add(attributeName, readString(payload, payload.getInt()));
+            }
+        }
+        updates.put(userName, result);
+    }
+
+    /**
+     * ヘッダを検証し、対象スナップショットの生成日時を読み取ります.
+     * @param channel ジャーナルファイル
+     * @return 対象スナップショットの生成日時
+     * @throws IOException ジャーナルファイルの形式でない場合
+     */
+    private long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException(MessageFormat.format("ジャーナルファイルの形式が不正です。 (パス：{0})", path));
+        }
+        return header.getLong(8);
+    }
+
+    /**
+     * ヘッダを書き出します.
+     * @param channel ジャーナルファイル
+     * @param createdAt 対象スナップショットの生成日時
+     * @throws IOException 書き出しに失敗した場合
+     */
+    private static void writeHeader(FileChannel channel, long createdAt) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(createdAt);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * 指定された位置から指定されたバイト数を読み込みます.
+     * @param channel ジャーナルファイル
+     * @param offset 開始位置
+     * @param length バイト数
+     * @return 読み込んだバイト列
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("ジャーナルファイルの終端に達しました。");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * レコードをエンコードします.
+     * @param type 種別
+     * @param userName ユーザ名
+     * @param result ユーザ情報. 削除の場合はnull
+     * @return 長さとCRC32を含むレコード
+     * @throws IOException ユーザ名、属性名、値の数が上限を超える場合
+     */
+    private static byte[] encode(byte type, String userName, SearchResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeShortString(out, userName.toLowerCase(Locale.ROOT));
+        if (result != null) {
+            writeShortLength(out, result.getAttributeNames().size());
+            for (String attributeName : result.getAttributeNames()) {
+                writeShortString(out, attributeName);
+                List<String> values = result.getValues(attributeName);
+                writeShortLength(out, values.size());
+                for (String value : values) {
+                    byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return record.array();
+    }
+
+    /**
+     * 2バイトの長さとUTF-8の文字列を書き出します.
+     * @param out 出力先
+     * @param value 文字列
+     * @throws IOException 長さが上限を超える場合
+     */
+    private static void writeShortString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        writeShortLength(out, encoded.length);
+        out.write(encoded);
+    }
+
+    /**
+     * 2バイトの長さを書き出します.
+     * @param out 出力先
+     * @param length 長さ
+     * @throws IOException 長さが上限 (65535) を超える場合
+     */
+    private static void writeShortLength(DataOutputStream out, int length) throws IOException {
+        if (length > 0xFFFF) {
+            throw new IOException(MessageFormat.format("ジャーナルファイルに格納できる長さの上限を超えています。 ({0})", length));
+        }
+        out.writeShort(length);
+    }
+
+    /**
+     * UTF-8の文字列を読み取ります.
+     * @param buffer 読み取り元
+     * @param length 長さ (バイト)
+     * @return 文字列
+     */
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * ユーザ情報を属性名毎の値に変換します.
+     * @param result ユーザ情報
+     * @return 属性名毎の値
+     */
+    static Map<String, List<String>> toAttributes(SearchResult result) {
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        for (String attributeName : result.getAttributeNames()) {
+            attributes.put(attributeName, new ArrayList<String>(result.getValues(attributeName)));
+        }
+        return attributes;
+    }
+
+    /**
+     * ユーザ情報を複製します.
+     * @param result ユーザ情報
+     * @return 複製したユーザ情報
+     */
+    private static SearchResult copy(SearchResult result) {
+        SearchResult copied = new SearchResult();
+        for (String attributeName : result.getAttributeNames()) {
+            for (String value : result.getValues(attributeName)) {
+                copied.add(attributeName, value);
+            }
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.realm.Realm;
+
+/**
+ * 現在のユーザ情報スナップショットを保持するクラスです.<br>
+ * {@link com.sios.idp.shibboleth.common.AppConfig}のuserSnapshotPathのファイルを初回参照時に開き、
+ * userSnapshotReloadIntervalMillis毎にファイルの更新を確認します。
+ * 更新されたファイルは新しいスナップショットとして開いた後に参照を切り替えるため、
+ * 参照中の処理は切り替え前のスナップショットを最後まで使用します。<br>
+ * スナップショットに対する更新は{@link UserSnapshotJournal}に追記され、同じ間隔で他のプロセスの追記を取り込みます。
+ * 更新件数がuserSnapshotCompactThresholdに達した場合は、スナップショットファイルに統合します。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserSnapshotStore {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSnapshotStore.class);
+
+    /** Singletonなインスタンス. */
+    private static UserSnapshotStore store;
+
+    /** スナップショットファイルのパス. */
+    private final Path path;
+
+    /** 現在のスナップショット. */
+    private volatile UserSnapshot snapshot;
+
+    /** 現在のスナップショットの更新ジャーナル. */
+    private volatile UserSnapshotJournal journal;
+
+    /** 現在のスナップショットのファイル属性 (ファイルキー、更新日時、サイズ). */
+    private List<Object> version;
+
+    /** 更新を確認するExecutor. */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * コンストラクタです.
+     * @param path スナップショットファイルのパス
+     */
+    UserSnapshotStore(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Singletonなインスタンスを取得します. 初回呼び出し時にスナップショットファイルを開きます.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを取得します。
+     * @return スナップショットの保持クラス
+     * @throws IOException スナップショットファイルが設定されていない場合、開けない場合
+     */
+    public static UserSnapshotStore getInstance() throws IOException {
+        Realm realm = Realm.current();
+        if (realm != null) {
+            return realm.getComponent(UserSnapshotStore.class, UserSnapshotStore::open);
+        }
+        synchronized (UserSnapshotStore.class) {
+            if (store == null) {
+                store = open();
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Singletonなインスタンスの更新の確認を停止し、破棄します.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを破棄します。
+     * 次回の{@link #getInstance()}で再生成されます。
+     */
+    public static synchronized void shutdown() {
+        Realm realm = Realm.current();
+        UserSnapshotStore target = realm == null ? store : realm.removeComponent(UserSnapshotStore.class);
+        if (realm == null) {
+            store = null;
+        }
+        if (target != null && target.scheduler != null) {
+            target.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Singletonなインスタンスを、現在の設定値で開いたインスタンスに置き換えます.
+     * レルムが束縛されている場合は、レルム毎のインスタンスを置き換えます。生成されていない場合は何もしません。
+     * 古いインスタンスのスナップショットを参照中の要求はそのまま完了できるため、古いインスタンスは更新の確認のみを停止します。
+     * @throws IOException スナップショットファイルが設定されていない場合、開けない場合. 古いインスタンスを継続して使用します
+     */
+    public static void reconfigure() throws IOException {
+        Realm realm = Realm.current();
+        UserSnapshotStore previous;
+        if (realm != null) {
+            previous = realm.replaceComponent(UserSnapshotStore.class, UserSnapshotStore::open);
+        } else {
+            synchronized (UserSnapshotStore.class) {
+                previous = store;
+                if (previous != null) {
+                    store = open();
+                }
+            }
+        }
+        if (previous != null && previous.scheduler != null) {
+            previous.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 設定されたスナップショットファイルを開き、更新の確認を開始します.
+     * @return スナップショットの保持クラス
+     * @throws IOException スナップショットファイルが設定されていない場合、開けない場合
+     */
+    private static UserSnapshotStore open() throws IOException {
+        String configured = AppConfig.getUserSnapshotPath();
+        if (configured == null || configured.trim().isEmpty()) {
+            throw new IOException("スナップショットファイルのパス (userSnapshotPath) が設定されていません。");
+        }
+        UserSnapshotStore created = new UserSnapshotStore(Paths.get(configured.trim()));
+        created.reload();
+        Long interval = AppConfig.getUserSnapshotReloadIntervalMillis();
+        if (interval != null && interval > 0) {
+            Realm realm = Realm.current();
+            created.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(Realm.bind(realm, runnable), "user-snapshot-reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            created.scheduler.scheduleWithFixedDelay(created::reloadQuietly, interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+        return created;
+    }
+
+    /**
+     * 現在のスナップショットを取得します.
+     * @return 現在のスナップショット
+     */
+    public UserSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 現在のスナップショットの更新ジャーナルを取得します. ユーザ情報の参照と更新はジャーナルを通して行います.
+     * @return 現在のスナップショットの更新ジャーナル
+     */
+    public UserSnapshotJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * スナップショットファイルが更新されている場合は開き直し、参照を切り替えます.
+     * 更新されていない場合は、他のプロセスが更新ジャーナルに追記したレコードを取り込みます。
+     * @return 切り替えた場合はtrue
+     * @throws IOException スナップショットファイルを開けない場合. 現在のスナップショットは維持されます
+     */
+    public synchronized boolean reload() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        List<Object> current = Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        if (current.equals(version)) {
+            int count = journal.refresh();
+            if (count > 0) {
+                LOGGER.debug("スナップショットの更新ジャーナルから{}件の更新を取り込みました。 (パス：{})", count, path);
+            }
+            return false;
+        }
+        long start = System.nanoTime();
+        UserSnapshot opened = UserSnapshot.open(path);
+        UserSnapshotJournal openedJournal = UserSnapshotJournal.open(opened);
+        snapshot = opened;
+        journal = openedJournal;
+        version = current;
+        LOGGER.info("ユーザ情報のスナップショットを切り替えました。 (パス：{}, ユーザ数：{}, 所要時間：{}ミリ秒)",
+                path, opened.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * 更新ジャーナルをスナップショットファイルに統合し、統合したスナップショットに参照を切り替えます.
+     * @return 統合した更新件数. 更新がない場合は0
+     * @throws IOException ファイルの読み書きに失敗した場合. 現在のスナップショットは維持されます
+     */
+    public synchronized int compact() throws IOException {
+        UserSnapshotJournal current = journal;
+        int count = current.size();
+        if (count == 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        current.compact();
+        reload();
+        LOGGER.info("スナップショットの更新ジャーナルを統合しました。 (パス：{}, 更新件数：{}, 所要時間：{}ミリ秒)",
+                path, count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return count;
+    }
+
+    /**
+     * 定期的な更新の確認を行います. 失敗した場合は現在のスナップショットを維持します.
+     */
+    private void reloadQuietly() {
+        try {
+            reload();
+            Integer threshold = AppConfig.getUserSnapshotCompactThreshold();
+            if (threshold != null && threshold > 0 && journal.size() >= threshold) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("スナップショットファイルの更新の確認に失敗しました。現在のスナップショットを使用します。 (パス：{}, 理由：{})",
+                    path, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ユーザ情報のスナップショットファイルを生成するクラスです.<br>
+ * {@link #add(String, Map)}で追加したユーザ情報を {@link UserSnapshot} の形式で書き出します。
+ * 同じユーザ名が複数回追加された場合は重複として記録し、参照時に
+ * {@link com.sios.idp.shibboleth.exception.UserDuplicatedException}とします。<br>
+ * ファイルは同じディレクトリの一時ファイルに書き出した後に置き換えるため、参照中のプロセスが書きかけのファイルを読むことはありません。
+ * 置き換えは更新ジャーナル ({@link UserSnapshotJournal}) のファイルロックを取得して行うため、統合と競合しません。
+ * @author SIOS Technology, Inc.
+ */
+public final class UserSnapshotWriter {
+
+    /** ユーザ名毎の属性名と値. 重複したユーザ名はnull. */
+    private final Map<String, Map<String, List<String>>> users = new LinkedHashMap<String, Map<String, List<String>>>();
+
+    /**
+     * ユーザ情報を追加します.
+     * @param userName ユーザ名
+     * @param attributes 属性名毎の値
+     */
+    public void add(String userName, Map<String, List<String>> attributes) {
+        String key = userName.toLowerCase(Locale.ROOT);
+        if (users.containsKey(key)) {
+            users.put(key, null);
+        } else {
+            users.put(key, new LinkedHashMap<String, List<String>>(attributes));
+        }
+    }
+
+    /**
+     * ユーザ名が重複しているユーザを追加します. 既存のスナップショットの重複を引き継ぐ場合に使用します.
+     * @param userName ユーザ名
+     */
+    public void addDuplicated(String userName) {
+        users.put(userName.toLowerCase(Locale.ROOT), null);
+    }
+
+    /**
+     * 追加したユーザ数を取得します.
+     * @return ユーザ数
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * スナップショットファイルを書き出します. 既存のファイルは置き換えます.
+     * 更新ジャーナルのファイルロックを取得し、他のプロセスの統合の完了を待ってから置き換えます。
+     * @param target スナップショットファイルのパス
+     * @throws IOException 書き出しに失敗した場合、ファイルサイズが上限 (2GB) を超える場合
+     */
+    public void write(Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(UserSnapshotJournal.getPath(target),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            write(target, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 生成日時を指定してスナップショットファイルを書き出します. 既存のファイルは置き換えます.
+     * @param target スナップショットファイルのパス
+     * @param createdAt 生成日時 (エポックミリ秒)
+     * @throws IOException 書き出しに失敗した場合、ファイルサイズが上限 (2GB) を超える場合
+     */
+    void write(Path target, long createdAt) throws IOException {
+        int slotCount = Integer.highestOneBit(Math.max(users.size() * 2, 2) - 1) << 1;
+        int[] slots = new int[slotCount];
+        List<byte[]> records = new ArrayList<byte[]>(users.size());
+        long offset = UserSnapshot.HEADER_SIZE + (long) slotCount * 4;
+        for (Map.Entry<String, Map<String, List<String>>> user : users.entrySet()) {
+            byte[] name = UserSnapshot.normalize(user.getKey());
+            byte[] record = encode(name, user.getValue());
+            if (offset + record.length > Integer.MAX_VALUE) {
+                throw new IOException("スナップショットファイルのサイズが上限を超えます。");
+            }
+            int slot = UserSnapshot.hash(name) & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = (int) offset;
+            records.add(record);
+            offset += record.length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(UserSnapshot.HEADER_SIZE + slotCount * 4);
+        header.putInt(UserSnapshot.MAGIC).putInt(UserSnapshot.VERSION).putInt(users.size()).putInt(slotCount)
+                .putLong(createdAt).putLong(0L);
+        for (int slot : slots) {
+            header.putInt(slot);
+        }
+        header.flip();
+
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                for (byte[] record : records) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * レコードをエンコードします.
+     * @param name UTF-8でエンコードしたユーザ名
+     * @param attributes 属性名毎の値. 重複したユーザ名の場合はnull
+     * @return レコード
+     * @throws IOException ユーザ名、属性名、値の数が上限を超える場合
+     */
+    private static byte[] encode(byte[] name, Map<String, List<String>> attributes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(UserSnapshot.hash(name));
+        out.writeShort(attributes == null ? UserSnapshot.FLAG_DUPLICATED : 0);
+        out.writeShort(0);
+        writeShortLength(out, name.length);
+        out.write(name);
+        if (attributes == null) {
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+        writeShortLength(out, attributes.size());
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            byte[] attributeName = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+            writeShortLength(out, attributeName.length);
+            out.write(attributeName);
+            writeShortLength(out, attribute.getValue().size());
+            for (String value : attribute.getValue()) {
+                byte[] bytesValue = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytesValue.length);
+                out.write(bytesValue);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 2バイトの長さを書き出します.
+     * @param out 出力先
+     * @param length 長さ
+     * @throws IOException 長さが上限 (65535) を超える場合
+     */
+    private static void writeShortLength(DataOutputStream out, int length) throws IOException {
+        if (length > 0xFFFF) {
+            throw new IOException(MessageFormat.format("スナップショットファイルに格納できる長さの上限を超えています。 ({0})", length));
+        }
+        out.writeShort(length);
+    }
+}
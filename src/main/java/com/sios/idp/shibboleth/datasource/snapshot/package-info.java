@@ -0,0 +1,9 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+/**
+ * Shibboleth IdP 多要素認証機能のユーザ情報スナップショットファイルを提供します.
+ */
+package com.sios.idp.shibboleth.datasource.snapshot;
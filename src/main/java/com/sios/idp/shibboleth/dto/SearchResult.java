@@ -5,16 +5,21 @@
  */
 package com.sios.idp.shibboleth.dto;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * サーチ結果の格納とサーチ結果を取得するためのクラスです.
+ * 1つの属性名に対して複数の値 (複数値属性) を保持できます。
  * @author SIOS Technology, Inc.
  */
 public class SearchResult {
     /** LDAPのサーチ結果を格納するためのMap型変数を定義します. */
-    private Map<String, String> addMap = new HashMap<String, String>();
+    private Map<String, List<String>> addMap = new HashMap<String, List<String>>();
 
     /**
      * インスタンスを生成します.
@@ -24,30 +29,62 @@ public class SearchResult {
 
     /**
      * サーチ結果を格納するためのメソッドです.
+     * 既に同じ属性名の値が格納されている場合は、その属性の値として追加されます。
      * @param key 検索を行なう際に利用する属性名
      * @param value 検索を行なう際に実際に返されるValue名
      */
     public void add(String key, String value) {
-        this.addMap.put(key, value);
+        List<String> values = this.addMap.get(key);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            this.addMap.put(key, values);
+        }
+        values.add(value);
     }
 
     /**
      * 指定されたキーに対応した値を取得します.
+     * 複数の値が格納されている場合は最初に格納された値を返します。
      * @param key 検索時の属性名
      * @return 指定されたキーに対応した値を返します.
      */
     public String getValue(String key) {
-        return getAttrString(this.addMap, key);
+        List<String> values = getAttrValues(this.addMap, key);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    /**
+     * 指定されたキーに対応した全ての値を取得します.
+     * @param key 検索時の属性名
+     * @return 指定されたキーに対応した値のリスト (変更不可). 値が存在しない場合は空のリスト
+     */
+    public List<String> getValues(String key) {
+        List<String> values = getAttrValues(this.addMap, key);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * 格納されている属性名を取得します.
+     * @return 属性名の集合 (変更不可)
+     */
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(this.addMap.keySet());
     }
 
     /**
      * プライベートメソッド 渡されたLDAPからの実行結果と渡されたキーに対応した値を検索し、呼び出し元へ検索結果を返します.
      * @param resultMap サーチ結果が格納されているMap
      * @param key Valueの値を引っ張るための属性名
-     * @return 格納された結果から渡されたキーで検索をかけた結果を文字列として返す
+     * @return 格納された結果から渡されたキーで検索をかけた結果を値のリストとして返す
      */
-    private String getAttrString(Map<String, String> resultMap, String key) {
-        String result = null;
+    private List<String> getAttrValues(Map<String, List<String>> resultMap, String key) {
+        List<String> result = null;
         if (resultMap != null) {
             result = resultMap.get(key);
         }
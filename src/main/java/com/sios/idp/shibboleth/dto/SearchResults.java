@@ -17,6 +17,9 @@ public class SearchResults implements Iterable<SearchResult> {
     /** SearchResultを格納するためのListを宣言します. */
     private List<SearchResult> listResults = new ArrayList<SearchResult>();
 
+    /** ユーザ情報が重複しているか. 重複の検知のみで、個々の検索結果を持たない場合に使用します. */
+    private boolean duplicated;
+
     /**
      * SearchResultを格納するためのメソッドです.
      * @param lresult SearchResultオブジェクト
@@ -39,6 +42,24 @@ public class SearchResults implements Iterable<SearchResult> {
         return counter;
     }
 
+    /**
+     * ユーザ情報が重複しているかを設定するメソッドです.
+     * 重複は検知できたが個々の検索結果を保持しない場合 (一括取得、スナップショット等) に設定します。
+     * @param duplicated 重複している場合はtrue
+     */
+    public void setDuplicated(boolean duplicated) {
+        this.duplicated = duplicated;
+    }
+
+    /**
+     * ユーザ情報が重複しているかを取得するメソッドです.
+     * 設定されている場合、または2件以上のSearchResultが格納されている場合に重複とします。
+     * @return 重複している場合はtrue
+     */
+    public boolean isDuplicated() {
+        return duplicated || listResults.size() > 1;
+    }
+
     /**
      * iteratorメソッドの実装の実装を行ないます.
      * @return SearchResultsIterator
@@ -0,0 +1,49 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+package com.sios.idp.shibboleth.exception;
+
+/**
+ * 削除対象の値が既に存在しない場合に投げられる例外クラスです.<br>
+ * 使用済みのリカバリコード等、1度だけ削除できる値を別の要求が先に削除した場合に投げられます。
+ * ユーザ情報が1件に特定できない場合の{@link UserDuplicatedException}とは区別します。
+ * @author SIOS Technology, Inc.
+ */
+public class ValueAlreadyRemovedException extends UnrecoverableException {
+    /** シリアルバージョンIDです. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * インスタンスを生成します.
+     */
+    public ValueAlreadyRemovedException() {
+        super();
+    }
+
+    /**
+     * 指定したメッセージで初期化されたインスタンスを生成します.
+     * @param message メッセージ
+     */
+    public ValueAlreadyRemovedException(final String message) {
+        super(message);
+    }
+
+    /**
+     * 指定したメッセージとエラー原因で初期化されたインスタンスを生成します.
+     * @param message メッセージ
+     * @param throwable エラー原因
+     */
+    public ValueAlreadyRemovedException(final String message, final Throwable throwable) {
+        super(message, throwable);
+    }
+
+    /**
+     * 指定したエラー原因で初期化されたインスタンスを生成します.
+     * @param throwable 原因
+     */
+    public ValueAlreadyRemovedException(final Throwable throwable) {
+        super(throwable);
+    }
+}
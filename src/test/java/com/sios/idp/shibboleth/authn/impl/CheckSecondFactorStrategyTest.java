@@ -0,0 +1,89 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+import com.sios.idp.shibboleth.common.TotpAuthnSessionChecker;
+
+import net.shibboleth.idp.authn.context.SubjectContext;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.impl.CheckSecondFactorStrategy}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class CheckSecondFactorStrategyTest {
+
+    /**
+     * 001: String apply(ProfileRequestContext)のテストメソッドです.
+     * TOTP認証セッションが正当な場合はnull、不正な場合は2要素目のフロー名が返却されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testApply001() throws Exception {
+
+        CheckSecondFactorStrategy strategy = new CheckSecondFactorStrategy();
+        strategy.setTotpAuthnSessionChecker(new StubChecker("user001"));
+
+        assertNull(strategy.apply(createContext("user001")));
+        assertEquals("authn/Totp", strategy.apply(createContext("user002")));
+
+        strategy.setNextFlow("authn/Other");
+        assertEquals("authn/Other", strategy.apply(createContext("user002")));
+    }
+
+    /**
+     * 002: String apply(ProfileRequestContext)のテストメソッドです.
+     * ユーザ名が取得できない場合は、TOTP認証セッションを確認せずに2要素目のフロー名が返却されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testApply002() throws Exception {
+
+        StubChecker checker = new StubChecker("user001");
+        CheckSecondFactorStrategy strategy = new CheckSecondFactorStrategy();
+        strategy.setTotpAuthnSessionChecker(checker);
+        strategy.setUsernameLookupStrategy(input -> null);
+
+        assertEquals("authn/Totp", strategy.apply(createContext("user001")));
+        assertEquals("authn/Totp", strategy.apply(null));
+        assertEquals(0, checker.count);
+    }
+
+    /**
+     * 1要素目で認証したユーザ名を持つプロファイルリクエストコンテキストを生成します.
+     * @param username ユーザ名
+     * @return プロファイルリクエストコンテキスト
+     */
+    private static ProfileRequestContext createContext(String username) {
+        ProfileRequestContext context = new ProfileRequestContext();
+        context.getSubcontext(SubjectContext.class, true).setPrincipalName(username);
+        return context;
+    }
+
+    /**
+     * 指定されたユーザのみTOTP認証セッションが正当と判定する、Cookieを参照しない確認クラスです.
+     */
+    public static final class StubChecker extends TotpAuthnSessionChecker {
+
+        private final String validUsername;
+        private int count;
+
+        private StubChecker(String validUsername) {
+            this.validUsername = validUsername;
+        }
+
+        @Override
+        public boolean isValidTotpAuthnSession(String username) {
+            count++;
+            return validUsername.equals(username);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.recovery;
+
+import static org.junit.Assert.*;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.dao.Dao;
+import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.RecoveryCodeVerificationException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.recovery.RecoveryCodeVerifier}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class RecoveryCodeVerifierTest {
+
+    private static final String RECOVERY_CODE_ATTR_NAME = "recoveryCodeAttr";
+
+    @Mocked
+    final AppConfig _appConfig = null;
+    @Mocked
+    DaoFactory _daoFactory;
+    @Mocked
+    Dao _dao;
+
+    /**
+     * リカバリコード検証オブジェクトを生成します.
+     * @return リカバリコード検証オブジェクト
+     */
+    private RecoveryCodeVerifier createVerifier() {
+        return new RecoveryCodeVerifier(300L);
+    }
+
+    /**
+     * 001: boolean verify(String userName, String code)のテストメソッドです.
+     * リカバリコードが1度だけ一致し、使用済みの値がデータソースから削除されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify001() throws Exception {
+
+        final String userName = "user001";
+        final String stored1 = RecoveryCodes.toStoredValue("salt01", "11111111");
+        final String stored2 = RecoveryCodes.toStoredValue("salt01", "22222222");
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored1);
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored2);
+                _dao.getUser(userName);
+                result = searchResult;
+                times = 1;
+            }
+        };
+
+        RecoveryCodeVerifier verifier = createVerifier();
+        assertTrue(verifier.verify(userName, "11111111"));
+        assertFalse(verifier.verify(userName, "11111111"));
+        assertTrue(verifier.verify(userName, "22222222"));
+
+        new Verifications() {
+            {
+                _dao.removeValue(userName, RECOVERY_CODE_ATTR_NAME, stored1);
+                times = 1;
+                _dao.removeValue(userName, RECOVERY_CODE_ATTR_NAME, stored2);
+                times = 1;
+            }
+        };
+    }
+
+    /**
+     * 002: boolean verify(String userName, String code)のテストメソッドです.
+     * 一致しないリカバリコードの場合、データソースの削除が行われないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify002() throws Exception {
+
+        final String userName = "user001";
+        final String stored = RecoveryCodes.toStoredValue("salt01", "11111111");
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored);
+                _dao.getUser(userName);
+                result = searchResult;
+            }
+        };
+
+        assertFalse(createVerifier().verify(userName, "99999999"));
+
+        new Verifications() {
+            {
+                _dao.removeValue(anyString, anyString, anyString);
+                times = 0;
+            }
+        };
+    }
+
+    /**
+     * 003: boolean verify(String userName, String code)のテストメソッドです.
+     * キャッシュが再ロードされても使用済みの値が再利用されないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify003() throws Exception {
+
+        final String userName = "user001";
+        final String stored = RecoveryCodes.toStoredValue("salt01", "11111111");
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                // データソースの削除が複製先に未反映のまま再ロードされる
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored);
+                _dao.getUser(userName);
+                result = searchResult;
+            }
+        };
+
+        RecoveryCodeVerifier verifier = createVerifier();
+        assertTrue(verifier.verify(userName, "11111111"));
+        verifier.invalidate(userName);
+        assertFalse(verifier.verify(userName, "11111111"));
+    }
+
+    /**
+     * 004: boolean verify(String userName, String code)のテストメソッドです.
+     * リカバリコードの属性名が設定されていない場合、データソースにアクセスせずに不一致となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify004() throws Exception {
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = "";
+            }
+        };
+
+        assertFalse(createVerifier().verify("user001", "11111111"));
+
+        new Verifications() {
+            {
+                _dao.getUser(anyString);
+                times = 0;
+            }
+        };
+    }
+
+    /**
+     * 005: boolean verify(String userName, String code)のテストメソッドです.
+     * ユーザ情報が取得できない場合、RecoveryCodeVerificationExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test(expected = RecoveryCodeVerificationException.class)
+    public void testVerify005() throws Exception {
+
+        final String userName = "user001";
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                _dao.getUser(userName);
+                result = null;
+            }
+        };
+
+        createVerifier().verify(userName, "11111111");
+    }
+
+    /**
+     * 006: boolean verify(String userName, String code)のテストメソッドです.
+     * データソースからの削除に失敗した場合、RecoveryCodeVerificationExceptionがthrowされ、
+     * リカバリコードが使用済みにならずに再ロードされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify006() throws Exception {
+
+        final String userName = "user001";
+        final String stored = RecoveryCodes.toStoredValue("salt01", "11111111");
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored);
+                _dao.getUser(userName);
+                result = searchResult;
+                times = 2;
+                _dao.removeValue(userName, RECOVERY_CODE_ATTR_NAME, stored);
+                result = new DataAccessException("write failure");
+            }
+        };
+
+        RecoveryCodeVerifier verifier = createVerifier();
+        for (int i = 0; i < 2; i++) {
+            try {
+                verifier.verify(userName, "11111111");
+                fail();
+            } catch (RecoveryCodeVerificationException e) {
+                assertTrue(e.getCause() instanceof DataAccessException);
+            }
+        }
+    }
+
+    /**
+     * 007: boolean verify(String userName, String code)のテストメソッドです.
+     * 他の要求が先にデータソースから削除していた場合、例外とせずに不一致となり、再ロード後も一致しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testVerify007() throws Exception {
+
+        final String userName = "user001";
+        final String stored = RecoveryCodes.toStoredValue("salt01", "11111111");
+
+        new Expectations() {
+            {
+                AppConfig.getRecoveryCodeAttributeName();
+                result = RECOVERY_CODE_ATTR_NAME;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(RECOVERY_CODE_ATTR_NAME, stored);
+                _dao.getUser(userName);
+                result = searchResult;
+                _dao.removeValue(userName, RECOVERY_CODE_ATTR_NAME, stored);
+                result = new ValueAlreadyRemovedException("already removed");
+                times = 1;
+            }
+        };
+
+        RecoveryCodeVerifier verifier = createVerifier();
+        assertFalse(verifier.verify(userName, "11111111"));
+        verifier.invalidate(userName);
+        assertFalse(verifier.verify(userName, "11111111"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.recovery;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.recovery.RecoveryCodes}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class RecoveryCodesTest {
+
+    /**
+     * 001: String consume(String code)のテストメソッドです.
+     * 格納値と一致したリカバリコードが1度だけ一致し、格納値が返却されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testConsume001() throws Exception {
+
+        String stored1 = RecoveryCodes.toStoredValue("salt01", "ABCD-EFGH");
+        String stored2 = RecoveryCodes.toStoredValue("salt01", "IJKL-MNOP");
+        RecoveryCodes codes = RecoveryCodes.parse(Arrays.asList(stored1, stored2));
+        assertEquals(2, codes.size());
+
+        assertEquals(stored1, codes.consume("ABCD-EFGH"));
+        assertNull(codes.consume("ABCD-EFGH"));
+        assertEquals(1, codes.size());
+    }
+
+    /**
+     * 002: String consume(String code)のテストメソッドです.
+     * 空白、ハイフン、大文字・小文字の違いを無視して一致することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testConsume002() throws Exception {
+
+        String stored = RecoveryCodes.toStoredValue("salt01", "ABCD-EFGH");
+        RecoveryCodes codes = RecoveryCodes.parse(Arrays.asList(stored));
+
+        assertEquals(stored, codes.consume(" abcd efgh "));
+    }
+
+    /**
+     * 003: String consume(String code)のテストメソッドです.
+     * ソルトが異なるリカバリコードが混在する場合でも一致することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testConsume003() throws Exception {
+
+        String stored1 = RecoveryCodes.toStoredValue("salt01", "11111111");
+        String stored2 = RecoveryCodes.toStoredValue("salt02", "22222222");
+        RecoveryCodes codes = RecoveryCodes.parse(Arrays.asList(stored1, stored2));
+
+        assertEquals(stored2, codes.consume("22222222"));
+        assertNull(codes.consume("33333333"));
+        assertNull(codes.consume(""));
+        assertNull(codes.consume(null));
+    }
+
+    /**
+     * 004: RecoveryCodes parse(Collection storedValues)のテストメソッドです.
+     * 形式が不正な値が無視されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testParse001() throws Exception {
+
+        String stored = RecoveryCodes.toStoredValue("salt01", "11111111");
+        RecoveryCodes codes = RecoveryCodes.parse(Arrays.asList(stored, "nosep", "$hash", "salt$", null));
+
+        assertEquals(1, codes.size());
+    }
+
+    /**
+     * 005: String toStoredValue(String salt, String code)のテストメソッドです.
+     * 区切り文字を含むソルトが指定された場合、IllegalArgumentExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testToStoredValue001() throws Exception {
+        RecoveryCodes.toStoredValue("salt$01", "11111111");
+    }
+
+    /**
+     * 006: boolean isWellFormed(String code)のテストメソッドです.
+     * Base32の16～64文字のみがリカバリコードの形式と判定され、TOTP等の入力が除外されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testIsWellFormed001() throws Exception {
+
+        assertTrue(RecoveryCodes.isWellFormed("ABCD-EFGH-IJKL-MNOP"));
+        assertTrue(RecoveryCodes.isWellFormed(" abcd efgh 2345 6777 "));
+        assertFalse(RecoveryCodes.isWellFormed("123456"));
+        assertFalse(RecoveryCodes.isWellFormed("ABCD-EFGH"));
+        assertFalse(RecoveryCodes.isWellFormed("ABCD-EFGH-IJKL-MNO1"));
+        assertFalse(RecoveryCodes.isWellFormed(new String(new char[65]).replace('\0', 'A')));
+        assertFalse(RecoveryCodes.isWellFormed(""));
+        assertFalse(RecoveryCodes.isWellFormed(null));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.exception.TotpGenerationException;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.BlockingTotpProvider}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class BlockingTotpProviderTest {
+
+    @Mocked
+    final AppConfig _appConfig = null;
+
+    /**
+     * 001: Totp getTotp(String userName)のテストメソッドです.
+     * 非同期TOTPプロバイダの結果が返却されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp001() throws Exception {
+
+        final Totp totp = new Totp("001", 1L, "123456");
+        TotpProvider provider = new BlockingTotpProvider(
+                userName -> CompletableFuture.supplyAsync(() -> totp));
+
+        assertSame(totp, provider.getTotp("user001"));
+    }
+
+    /**
+     * 002: Totp getTotp(String userName)のテストメソッドです.
+     * 非同期TOTPプロバイダが異常完了した場合、原因のTotpGenerationExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp002() throws Exception {
+
+        final TotpGenerationException cause = new TotpGenerationException("error");
+        TotpProvider provider = new BlockingTotpProvider(userName -> {
+            CompletableFuture<Totp> future = new CompletableFuture<Totp>();
+            future.completeExceptionally(cause);
+            return future;
+        });
+
+        try {
+            provider.getTotp("user001");
+            fail();
+        } catch (TotpGenerationException e) {
+            assertSame(cause, e);
+        }
+    }
+
+    /**
+     * 003: Totp getTotp(String userName)のテストメソッドです.
+     * 待機時間内に完了しない場合、TotpGenerationExceptionがthrowされ、CompletionStageが取り消されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp003() throws Exception {
+
+        new Expectations() {
+            {
+                AppConfig.getTotpGenerationTimeoutMillis();
+                result = 50L;
+            }
+        };
+        final CompletableFuture<Totp> future = new CompletableFuture<Totp>();
+        TotpProvider provider = new BlockingTotpProvider(userName -> future);
+
+        try {
+            provider.getTotp("user001");
+            fail();
+        } catch (TotpGenerationException e) {
+            assertEquals("ユーザ名：user001のTOTP生成が50ミリ秒以内に完了しませんでした。", e.getMessage());
+        }
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import mockit.Expectations;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.Mocked;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.exception.TotpGenerationException;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.CachePrefetcher}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class CachePrefetcherTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    @After
+    public void tearDown() {
+        AsyncLdapConnectionPool.shutdown();
+    }
+
+    /**
+     * 001: void prefetchUsers()のテストメソッドです.
+     * ページサイズを超える全ユーザのユーザ情報がキャッシュに格納されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testPrefetchUsers001() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials("cn=admin", "password");
+        config.setSchema(null);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+        for (int i = 0; i < 600; i++) {
+            server.add("dn: uid=prefetch" + i + "," + BASE_DN, "objectClass: inetOrgPerson", "uid: prefetch" + i,
+                    "employeeNumber: " + i, "description: SECRET" + i, "mail: prefetch" + i + "@example.com");
+        }
+        server.startListening();
+        final int port = server.getListenPort();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getLdapUrl() {
+                return "ldap://localhost:" + port;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return "cn=admin";
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return "password";
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return BASE_DN;
+            }
+            @Mock
+            String getLdapUserNameAttributeName() {
+                return "uid";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            String getSecretKeyAttributeName() {
+                return "description";
+            }
+            @Mock
+            Long getUserRecordCacheTtlSec() {
+                return 60L;
+            }
+        };
+
+        try {
+            CachePrefetcher prefetcher = new CachePrefetcher(null, 1);
+            prefetcher.prefetchUsers();
+            assertEquals(600L, prefetcher.getCachedUserCount());
+            assertEquals(2L, prefetcher.getPageCount());
+            assertEquals("SECRET599", UserRecordCache.getInstance().getFresh("prefetch599").getValue("description"));
+            assertNull(UserRecordCache.getInstance().getFresh("prefetch599").getValue("mail"));
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * 002: void warmSecretKeys(List)のテストメソッドです.
+     * 全てのユーザのTOTPが生成され、失敗したユーザが計上されることをテストします。
+     * @param provider TOTP生成クラス
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testWarmSecretKeys001(@Mocked final TotpProviderImpl provider) throws Exception {
+
+        new Expectations() {
+            {
+                provider.getTotp("user001");
+                provider.getTotp("user002");
+                provider.getTotp("user003");
+                result = new TotpGenerationException("秘密鍵の取得に失敗しました。");
+            }
+        };
+
+        CachePrefetcher prefetcher = new CachePrefetcher(provider, 2);
+        prefetcher.warmSecretKeys(Arrays.asList("user001", "user002", "user003"));
+        assertEquals(2L, prefetcher.getWarmedUserCount());
+        assertEquals(1L, prefetcher.getFailedUserCount());
+    }
+
+    /**
+     * 003: int save(Path)、List load(Path)のテストメソッドです.
+     * 記録したユーザ名が保存、読み込みできることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testActiveUsers001() throws Exception {
+
+        Path path = Files.createTempDirectory("prefetch").resolve("active-users.txt");
+        assertTrue(ActiveUserRegistry.getInstance().load(path).isEmpty());
+
+        ActiveUserRegistry.getInstance().record("active001");
+        ActiveUserRegistry.getInstance().record("active002");
+        assertTrue(ActiveUserRegistry.getInstance().save(path) >= 2);
+        assertTrue(ActiveUserRegistry.getInstance().load(path).containsAll(Arrays.asList("active001", "active002")));
+    }
+}
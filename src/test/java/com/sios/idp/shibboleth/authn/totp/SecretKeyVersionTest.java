@@ -0,0 +1,86 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.exception.InvalidUserDataException;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.SecretKeyVersion}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class SecretKeyVersionTest {
+
+    /**
+     * 001: SecretKeyVersion parse(String value)のテストメソッドです.
+     * バージョンなし、バージョン付きの属性値が解析できることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testParse001() throws Exception {
+
+        SecretKeyVersion legacy = SecretKeyVersion.parse("AAAA");
+        assertFalse(legacy.isVersioned());
+        assertEquals("AAAA", legacy.getEncryptedSecretKey());
+
+        SecretKeyVersion versioned = SecretKeyVersion.parse("{phone:3:1600000000}BBBB");
+        assertTrue(versioned.isVersioned());
+        assertEquals("phone", versioned.getSlot());
+        assertEquals(3L, versioned.getVersion());
+        assertEquals(1600000000L, versioned.getActivatedAtSec());
+        assertEquals("BBBB", versioned.getEncryptedSecretKey());
+    }
+
+    /**
+     * 002: SecretKeyVersion parse(String value)のテストメソッドです.
+     * バージョン情報の形式が不正な場合、InvalidUserDataExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testParse002() throws Exception {
+
+        String[] invalids = { "{phone:1}AAAA", "{phone:x:0}AAAA", "{phone:1:0}", "{phone:1:0AAAA", "{:1:0}AAAA" };
+        for (String invalid : invalids) {
+            try {
+                SecretKeyVersion.parse(invalid);
+                fail(invalid);
+            } catch (InvalidUserDataException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * 003: List selectAcceptable(List keyVersions, long nowSec, long overlapSec)のテストメソッドです.
+     * 重複期間中は新旧両方、経過後は新しい鍵のみ、有効化前の鍵は受け入れないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelectAcceptable001() throws Exception {
+
+        SecretKeyVersion v1 = SecretKeyVersion.parse("{phone:1:0}AAAA");
+        SecretKeyVersion v2 = SecretKeyVersion.parse("{phone:2:1000}BBBB");
+        SecretKeyVersion v3 = SecretKeyVersion.parse("{phone:3:5000}CCCC");
+        SecretKeyVersion legacy = SecretKeyVersion.parse("DDDD");
+        List<SecretKeyVersion> all = Arrays.asList(v1, v2, v3, legacy);
+
+        // v2の有効化から重複期間内
+        assertEquals(Arrays.asList(v1, v2, legacy), SecretKeyVersion.selectAcceptable(all, 1500L, 600L));
+        // v2の有効化から重複期間経過後
+        assertEquals(Arrays.asList(v2, legacy), SecretKeyVersion.selectAcceptable(all, 1600L, 600L));
+        // v3の有効化直後は1つ前のバージョンのみ残る
+        assertEquals(Arrays.asList(v2, v3, legacy), SecretKeyVersion.selectAcceptable(all, 5000L, 600L));
+        // 有効化前の鍵しか存在しないスロットは受け入れない
+        assertEquals(Arrays.asList(legacy), SecretKeyVersion.selectAcceptable(Arrays.asList(v3, legacy), 100L, 600L));
+    }
+}
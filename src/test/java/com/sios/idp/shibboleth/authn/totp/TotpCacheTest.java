@@ -12,12 +12,16 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import mockit.Delegate;
 import mockit.Mocked;
 import mockit.Expectations;
 
 import org.junit.Test;
 
+import com.google.common.base.Ticker;
 import com.sios.idp.shibboleth.common.AppConfig;
 
 /**
@@ -572,6 +576,202 @@ public class TotpCacheTest {
         assertTrue(target.exists("user1", t1Another.getTimeCounter()));
     }
 
+    /**
+     * 011: boolean authenticate() のテストメソッドです.
+     * 複数デバイスのTOTPが登録されている場合、いずれのデバイスのTOTPでも認証でき、
+     * 認証済みとなるのは一致したデバイス・タイムカウントのTOTPのみであることをテストします。
+     */
+    @Test
+    public void testAuthenticate001() {
+
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = 30;
+                AppConfig.getAllowedTimeCountOffset();
+                result = 1;
+                AppConfig.getTotpCacheExpirationBufferSec();
+                result = 30;
+            }
+        };
+
+        prepareCache();
+
+        TotpCache target = TotpCache.getInstance();
+        target.add("user1", new Totp("user1", 2L, "111111", "deviceA"));
+        target.add("user1", new Totp("user1", 1L, "222222", "deviceA"));
+        target.add("user1", new Totp("user1", 2L, "333333", "deviceB"));
+        target.add("user1", new Totp("user1", 1L, "444444", "deviceB"));
+
+        // デバイス登録前はデバイス毎のTOTPは比較対象外
+        assertFalse(target.authenticate("user1", new Totp("user1", 2L, "333333")));
+
+        target.registerDevices("user1", java.util.Arrays.asList("deviceA", "deviceB"));
+        assertTrue(target.isAvailable("user1", new Totp("user1", 2L, "333333")));
+        assertTrue(target.authenticate("user1", new Totp("user1", 2L, "333333")));
+        // 同一デバイス・タイムカウントのTOTPは再利用できない
+        assertFalse(target.authenticate("user1", new Totp("user1", 2L, "333333")));
+        assertFalse(target.isAvailable("user1", new Totp("user1", 2L, "333333")));
+        // 他デバイス、及び同一デバイスの他タイムカウントのTOTPは影響を受けない
+        assertTrue(target.authenticate("user1", new Totp("user1", 2L, "111111")));
+        assertTrue(target.authenticate("user1", new Totp("user1", 2L, "444444")));
+        assertTrue(target.get("user1", "deviceB", 2L).isAuthenticated());
+        assertFalse(target.get("user1", "deviceA", 1L).isAuthenticated());
+        assertFalse(target.authenticate("user1", new Totp("user1", 2L, "999999")));
+    }
+
+    /**
+     * void updateKeyVersions(String immutableUserId, Map keyVersions)のテストメソッドです.
+     * 鍵バージョンが変化したデバイスのTOTPのみが破棄されることをテストします。
+     */
+    @Test
+    public void testUpdateKeyVersions001() {
+
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = 30;
+                AppConfig.getAllowedTimeCountOffset();
+                result = 1;
+                AppConfig.getTotpCacheExpirationBufferSec();
+                result = 30;
+            }
+        };
+
+        prepareCache();
+
+        TotpCache target = TotpCache.getInstance();
+        java.util.Map<String, String> versions = new java.util.LinkedHashMap<String, String>();
+        versions.put("deviceA", "deviceA");
+        versions.put("deviceB", "deviceB");
+        assertFalse(target.updateKeyVersions("user1", versions));
+        target.add("user1", new Totp("user1", 2L, "111111", "deviceA"));
+        target.add("user1", new Totp("user1", 2L, "333333", "deviceB"));
+        target.registerDevices("user1", versions.keySet());
+        assertTrue(target.authenticate("user1", new Totp("user1", 2L, "111111")));
+
+        // 変化がない場合は何も破棄しない
+        assertFalse(target.updateKeyVersions("user1", versions));
+
+        // deviceBのみ鍵が変化 (deviceAの認証済みフラグは保持される)
+        versions.remove("deviceB");
+        versions.put("deviceC", "deviceC");
+        assertTrue(target.updateKeyVersions("user1", versions));
+        assertNull(target.get("user1", "deviceB", 2L));
+        assertTrue(target.get("user1", "deviceA", 2L).isAuthenticated());
+
+        // 単一の秘密鍵の鍵が変化した場合はユーザ固有IDのTOTPを破棄する
+        java.util.Map<String, String> single = new java.util.HashMap<String, String>();
+        single.put(null, "key1");
+        target.updateKeyVersions("user2", single);
+        target.add("user2", new Totp("user2", 2L, "555555"));
+        single.put(null, "key2");
+        assertTrue(target.updateKeyVersions("user2", single));
+        assertNull(target.get("user2", 2L));
+    }
+
+    /**
+     * 013: boolean reconfigure() のテストメソッドです.
+     * 寿命が変更された場合、認証済みフラグを引き継ぎ、置き換え後に追加したTOTPが置き換え後のキャッシュで認証できることをテストします。
+     */
+    @Test
+    public void testReconfigure001() {
+
+        AtomicLong timeStepSec = new AtomicLong(30L);
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = new Delegate<Long>() {
+                    @SuppressWarnings("unused")
+                    Long delegate() {
+                        return timeStepSec.get();
+                    }
+                };
+                AppConfig.getAllowedTimeCountOffset();
+                result = 1;
+                AppConfig.getTotpCacheExpirationBufferSec();
+                result = 30;
+            }
+        };
+
+        prepareCache();
+
+        TotpCache target = TotpCache.getInstance();
+        target.add("user1", new Totp("user1", 2L, "111111"));
+        assertTrue(target.authenticate("user1", new Totp("user1", 2L, "111111")));
+        assertFalse(target.reconfigure());
+
+        timeStepSec.set(60L);
+        assertTrue(target.reconfigure());
+        // 認証済みのTOTPは置き換え後も再利用できない
+        assertFalse(target.authenticate("user1", new Totp("user1", 2L, "111111")));
+        target.add("user1", new Totp("user1", 3L, "222222"));
+        assertTrue(target.exists("user1", 3L));
+        assertTrue(target.authenticate("user1", new Totp("user1", 3L, "222222")));
+        assertFalse(target.authenticate("user1", new Totp("user1", 3L, "222222")));
+        assertFalse(target.reconfigure());
+    }
+
+    /**
+     * 014: TotpStorage(TotpStorage previous) のテストメソッドです.
+     * 引き継いだエントリの寿命が、引き継いだ時刻ではなく元のキャッシュに格納した時刻から計算されることをテストします。
+     */
+    @Test
+    public void testTotpStorage001() {
+
+        AtomicLong timeStepSec = new AtomicLong(30L);
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = new Delegate<Long>() {
+                    @SuppressWarnings("unused")
+                    Long delegate() {
+                        return timeStepSec.get();
+                    }
+                };
+                AppConfig.getAllowedTimeCountOffset();
+                result = 1;
+                AppConfig.getTotpCacheExpirationBufferSec();
+                result = 30;
+            }
+        };
+        AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+
+        // 寿命90秒
+        TotpStorage previous = new TotpStorage(ticker);
+        previous.put("user1", 1L, new Totp("user1", 1L, "111111"));
+        previous.putDeviceIds("user1", java.util.Arrays.asList("deviceA"));
+        now.set(TimeUnit.SECONDS.toNanos(80L));
+
+        // 寿命150秒で引き継ぐ
+        timeStepSec.set(60L);
+        TotpStorage storage = new TotpStorage(previous);
+        assertEquals(150L, storage.getExpireAfterWriteSec());
+        storage.put("user2", 1L, new Totp("user2", 1L, "222222"));
+        now.set(TimeUnit.SECONDS.toNanos(149L));
+        assertTrue(storage.contains("user1", 1L));
+        assertNotNull(storage.getDeviceIds("user1"));
+
+        // 格納から150秒で破棄され、引き継いだ時刻からは計算しない
+        now.set(TimeUnit.SECONDS.toNanos(150L));
+        assertFalse(storage.contains("user1", 1L));
+        assertNull(storage.get("user1", 1L));
+        assertNull(storage.getDeviceIds("user1"));
+        assertTrue(storage.contains("user2", 1L));
+
+        // 寿命が経過したエントリは引き継がない
+        TotpStorage next = new TotpStorage(storage);
+        now.set(TimeUnit.SECONDS.toNanos(151L));
+        assertFalse(next.contains("user1", 1L));
+        assertTrue(next.contains("user2", 1L));
+    }
+
     private int getCount(TotpStorage totpStorage, String userName) {
         Iterator keys = totpStorage.getKeys(userName);
         int cnt = 0;
@@ -0,0 +1,73 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.TotpGenerator}のテストクラスです.
+ * 期待値はRFC 6238 Appendix BのHMAC-SHA1のテストベクタを使用します。
+ * @author SIOS Technology, Inc.
+ */
+public class TotpGeneratorTest {
+
+    private static final byte[] SECRET = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * 001: String generateTotp() のテストメソッドです. RFC 6238のテストベクタと一致するTOTPが生成されることをテストします。
+     * @throws GeneralSecurityException TOTP生成に失敗した場合
+     */
+    @Test
+    public void testGenerateTotp001() throws GeneralSecurityException {
+        assertEquals("94287082", new TotpGenerator(SECRET, 1L, 8).generateTotp());
+        assertEquals("07081804", new TotpGenerator(SECRET, 37037036L, 8).generateTotp());
+        assertEquals("14050471", new TotpGenerator(SECRET, 37037037L, 8).generateTotp());
+        assertEquals("89005924", new TotpGenerator(SECRET, 41152263L, 8).generateTotp());
+    }
+
+    /**
+     * 002: String generateTotp() のテストメソッドです. TOTP桁数に合わせて切り詰め、左ゼロ埋めされることをテストします。
+     * @throws GeneralSecurityException TOTP生成に失敗した場合
+     */
+    @Test
+    public void testGenerateTotp002() throws GeneralSecurityException {
+        assertEquals("287082", new TotpGenerator(SECRET, 1L, 6).generateTotp());
+        assertEquals("081804", new TotpGenerator(SECRET, 37037036L, 6).generateTotp());
+    }
+
+    /**
+     * 003: String[] generateTotps() のテストメソッドです.
+     * 一括生成したTOTPがタイムカウント毎に個別生成したTOTPと一致することをテストします。
+     * @throws GeneralSecurityException TOTP生成に失敗した場合
+     */
+    @Test
+    public void testGenerateTotps001() throws GeneralSecurityException {
+        String[] actual = new TotpGenerator(SECRET, 37037037L, 8).generateTotps(2);
+        assertEquals(2, actual.length);
+        assertEquals("14050471", actual[0]);
+        assertEquals("07081804", actual[1]);
+
+        String[] window = new TotpGenerator(SECRET, 100L, 6).generateTotps(5);
+        for (int i = 0; i < window.length; i++) {
+            assertEquals(new TotpGenerator(SECRET, 100L - i, 6).generateTotp(), window[i]);
+        }
+    }
+
+    /**
+     * 004: String[] generateTotps() のテストメソッドです. 生成件数が1未満の場合IllegalArgumentExceptionがthrowされることをテストします。
+     * @throws GeneralSecurityException TOTP生成に失敗した場合
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testGenerateTotps002() throws GeneralSecurityException {
+        new TotpGenerator(SECRET, 100L, 6).generateTotps(0);
+    }
+}
@@ -13,15 +13,26 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mockit.Mocked;
 import mockit.Expectations;
+import mockit.Verifications;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.sios.idp.shibboleth.common.AppConfig;
 import com.sios.idp.shibboleth.common.util.SecretKeyDecrypter;
+import com.sios.idp.shibboleth.datasource.dao.AsyncDao;
+import com.sios.idp.shibboleth.datasource.dao.CachingDao;
+import com.sios.idp.shibboleth.datasource.dao.CircuitBreakerDao;
+import com.sios.idp.shibboleth.datasource.dao.DaoCircuitBreaker;
 import com.sios.idp.shibboleth.datasource.dao.Dao;
 import com.sios.idp.shibboleth.datasource.dao.DaoFactory;
 import com.sios.idp.shibboleth.dto.SearchResult;
@@ -75,6 +86,9 @@ public class TotpProviderImplTest {
 
         // private static final なSingletonに新規インスタンスをセット
         instanceField.set(null, obj);
+
+        // 復号化済み秘密鍵のキャッシュを破棄
+        SecretKeyCache.getInstance().invalidateAll();
     }
 
     /**
@@ -126,8 +140,8 @@ public class TotpProviderImplTest {
                 AppConfig.getTotpLength();
                 result = totpLength;
                 _totpGenerator = new TotpGenerator(hash, timeCount, totpLength);
-                _totpGenerator.generateTotp();
-                result = otp;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp, otp };
             }
         };
 
@@ -572,7 +586,7 @@ public class TotpProviderImplTest {
                 result = timeStep;
                 AppConfig.getTotpLength();
                 result = totpLength;
-                _totpGenerator.generateTotp();
+                _totpGenerator.generateTotps(anyInt);
                 result = new GeneralSecurityException();
             }
         };
@@ -674,8 +688,8 @@ public class TotpProviderImplTest {
                 AppConfig.getTotpLength();
                 result = totpLength;
                 _totpGenerator = new TotpGenerator(hash, timeCount, totpLength);
-                _totpGenerator.generateTotp();
-                result = otp;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp, otp };
                 AppConfig.getAllowedTimeCountOffset();
                 result = 1L;
             }
@@ -745,8 +759,8 @@ public class TotpProviderImplTest {
                 AppConfig.getTotpLength();
                 result = totpLength;
                 _totpGenerator = new TotpGenerator(hash, timeCount, totpLength);
-                _totpGenerator.generateTotp();
-                result = otp;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp, otp };
                 AppConfig.getAllowedTimeCountOffset();
                 result = 1L;
             }
@@ -850,4 +864,646 @@ public class TotpProviderImplTest {
                     IMMUTABLE_USER_ID_ATTR_NAME), e.getMessage());
         }
     }
+
+    /**
+     * 017: long getTotp() のテストメソッドです.
+     * 秘密鍵が複数 (複数デバイス) 登録されている場合、全デバイスのTOTPが生成・キャッシュされ、
+     * 認証済みフラグがデバイス毎に管理されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp017() throws Exception {
+
+        final String userName = "user001";
+        final String immutableUserId = "001";
+        final long timeStep = 30L;
+        final int totpLength = 6;
+        final String secretKeyStr1 = "AAAAAAAAA";
+        final String secretKeyStr2 = "BBBBBBBBB";
+        final String secretKeyPass = "PASSWORD";
+        final byte[] hash1 = { 117, -92 };
+        final byte[] hash2 = { 118, -93 };
+        final String otp1 = "111111";
+        final String otp2 = "222222";
+        final long now = System.currentTimeMillis();
+        final long timeCount = now / (timeStep * 1000);
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+                searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr1);
+                searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr2);
+                _dao.getUser(userName);
+                result = searchResult;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+
+                // 秘密鍵の復号化 (デバイス毎)
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr1, secretKeyPass);
+                result = hash1;
+                SecretKeyDecrypter.decrypt(secretKeyStr2, secretKeyPass);
+                result = hash2;
+
+                AppConfig.getTimeStepSec();
+                result = timeStep;
+                AppConfig.getTotpLength();
+                result = totpLength;
+                _totpGenerator.generateTotps(anyInt);
+                returns(new String[] { otp1 }, new String[] { otp2 });
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        TotpProvider provider = new TotpProviderImpl();
+        Totp actual = provider.getTotp(userName);
+        assertEquals(timeCount, actual.getTimeCounter());
+        assertEquals(otp1, actual.getTotp());
+        assertNotNull(actual.getDeviceId());
+
+        // どちらのデバイスのTOTPでも認証でき、リプレイ防止はデバイス毎に行われる
+        TotpCache cache = TotpCache.getInstance();
+        assertTrue(cache.authenticate(immutableUserId, new Totp(immutableUserId, timeCount, otp2)));
+        assertFalse(cache.authenticate(immutableUserId, new Totp(immutableUserId, timeCount, otp2)));
+        assertTrue(cache.authenticate(immutableUserId, new Totp(immutableUserId, timeCount, otp1)));
+        assertFalse(cache.authenticate(immutableUserId, new Totp(immutableUserId, timeCount, otp1)));
+    }
+
+    /**
+     * 018: long getTotp() のテストメソッドです.
+     * 秘密鍵のローテーションの重複期間中は新旧両方の鍵のTOTPで認証でき、
+     * 重複期間経過後は旧鍵のTOTPが破棄されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp018() throws Exception {
+
+        final String userName = "user001";
+        final String immutableUserId = "001";
+        final long timeStep = 30L;
+        final int totpLength = 6;
+        final long nowSec = System.currentTimeMillis() / 1000L;
+        final String secretKeyStr1 = "AAAAAAAAA";
+        final String secretKeyStr2 = "BBBBBBBBB";
+        final String secretKeyPass = "PASSWORD";
+        final byte[] hash1 = { 117, -92 };
+        final byte[] hash2 = { 118, -93 };
+        final String otp1 = "111111";
+        final String otp2 = "222222";
+        final long timeCount = nowSec / timeStep;
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+                searchResult.add(SECRET_KEY_ATTR_NAME, "{phone:1:0}" + secretKeyStr1);
+                searchResult.add(SECRET_KEY_ATTR_NAME, "{phone:2:" + (nowSec - 60L) + "}" + secretKeyStr2);
+                _dao.getUser(userName);
+                result = searchResult;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                // 1回目は重複期間中、2回目は重複期間経過後
+                AppConfig.getSecretKeyRotationOverlapSec();
+                returns(3600L, 0L);
+
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr1, secretKeyPass);
+                result = hash1;
+                SecretKeyDecrypter.decrypt(secretKeyStr2, secretKeyPass);
+                result = hash2;
+
+                AppConfig.getTimeStepSec();
+                result = timeStep;
+                AppConfig.getTotpLength();
+                result = totpLength;
+                _totpGenerator.generateTotps(anyInt);
+                returns(new String[] { otp1 }, new String[] { otp2 });
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        TotpProvider provider = new TotpProviderImpl();
+        provider.getTotp(userName);
+        TotpCache cache = TotpCache.getInstance();
+        assertTrue(cache.isAvailable(immutableUserId, new Totp(immutableUserId, timeCount, otp1)));
+        assertTrue(cache.isAvailable(immutableUserId, new Totp(immutableUserId, timeCount, otp2)));
+
+        // 重複期間経過後は新しい鍵のTOTPのみ有効
+        Totp actual = provider.getTotp(userName);
+        assertEquals(otp2, actual.getTotp());
+        assertFalse(cache.isAvailable(immutableUserId, new Totp(immutableUserId, timeCount, otp1)));
+        assertTrue(cache.authenticate(immutableUserId, new Totp(immutableUserId, timeCount, otp2)));
+    }
+
+    /**
+     * 019: long getTotp() のテストメソッドです.
+     * circuitBreakerデコレータで修飾したDAOが連続して失敗しサーキットブレーカーが開いた場合、DAOを呼び出さずにTotpGenerationExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp019() throws Exception {
+
+        final String userName = "user019";
+
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = 30L;
+                AppConfig.getDaoCircuitBreakerFailureThreshold();
+                result = 1;
+                AppConfig.getDaoCircuitBreakerOpenMillis();
+                result = 60000L;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = new CircuitBreakerDao(_dao);
+                _dao.getUser(userName);
+                result = new DataAccessException("データアクセスに失敗しました。");
+                times = 1;
+            }
+        };
+
+        DaoCircuitBreaker breaker = DaoCircuitBreaker.getInstance();
+        long opened = breaker.getOpenedCount();
+        TotpProvider provider = new TotpProviderImpl();
+        try {
+            provider.getTotp(userName);
+            fail("例外が発生するはず");
+        } catch (TotpGenerationException e) {
+            assertEquals(MessageFormat.format("ユーザ名：{0}のユーザ情報取得時にデータアクセスエラーが発生しました。", userName), e.getMessage());
+        }
+        assertEquals(DaoCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(opened + 1, breaker.getOpenedCount());
+
+        try {
+            provider.getTotp(userName);
+            fail("例外が発生するはず");
+        } catch (TotpGenerationException e) {
+            assertEquals(MessageFormat.format("ユーザ名：{0}のユーザ情報取得時にデータアクセスエラーが発生しました。", userName), e.getMessage());
+            assertEquals("circuit breaker is open", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * 020: long getTotp() のテストメソッドです.
+     * cacheデコレータで修飾したDAOが失敗した場合、期限内に取得できたユーザ情報を使用してTOTPが生成されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp020() throws Exception {
+
+        final String userName = "user020";
+        final String immutableUserId = "020";
+        final String secretKeyStr = "AAAAAAAAA";
+        final String secretKeyPass = "PASSWORD";
+        final String otp = "123456";
+        final SearchResult searchResult = new SearchResult();
+        searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+        searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr);
+
+        new Expectations() {
+            {
+                AppConfig.getUserRecordMaxStalenessSec();
+                result = 60L;
+                AppConfig.getLdapChangeWatchEnabled();
+                result = true;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = new CachingDao(_dao);
+                _dao.getUser(userName);
+                result = searchResult;
+                result = new DataAccessException("データアクセスに失敗しました。");
+                times = 2;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr, secretKeyPass);
+                result = new byte[] { 117, -92 };
+                AppConfig.getTimeStepSec();
+                result = 30L;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp };
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        long staleServed = UserRecordCache.getInstance().getStaleServedCount();
+        TotpProvider provider = new TotpProviderImpl();
+        assertEquals(otp, provider.getTotp(userName).getTotp());
+        assertEquals(otp, provider.getTotp(userName).getTotp());
+        assertEquals(staleServed + 1, UserRecordCache.getInstance().getStaleServedCount());
+    }
+
+    /**
+     * 021: long getTotp() のテストメソッドです.
+     * cacheデコレータで修飾したDAOは、ユーザ情報のキャッシュの有効期間内はDAOに問い合わせずにTOTPが生成されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp021() throws Exception {
+
+        final String userName = "user021";
+        final String secretKeyStr = "AAAAAAAAA";
+        final String otp = "123456";
+        final SearchResult searchResult = new SearchResult();
+        searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, "021");
+        searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr);
+
+        new Expectations() {
+            {
+                AppConfig.getUserRecordCacheTtlSec();
+                result = 60L;
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = new CachingDao(_dao);
+                _dao.getUser(userName);
+                result = searchResult;
+                times = 1;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                SecretKeyDecrypter.decrypt(secretKeyStr, anyString);
+                result = new byte[] { 117, -92 };
+                AppConfig.getTimeStepSec();
+                result = 30L;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp };
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        long hits = UserRecordCache.getInstance().getFreshHitCount();
+        TotpProvider provider = new TotpProviderImpl();
+        assertEquals(otp, provider.getTotp(userName).getTotp());
+        assertEquals(otp, provider.getTotp(userName).getTotp());
+        assertEquals(hits + 1, UserRecordCache.getInstance().getFreshHitCount());
+    }
+
+    /**
+     * 022: long getTotp() のテストメソッドです.
+     * ユーザ名のBloomフィルタに存在しないユーザ名は、DAOに問い合わせずに例外が発生することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp022() throws Exception {
+
+        final String userName = "unknown022";
+
+        new Expectations() {
+            {
+                AppConfig.getTimeStepSec();
+                result = 30L;
+            }
+        };
+
+        UserNameFilter filter = UserNameFilter.getInstance();
+        filter.build(Arrays.asList("user022"));
+        long rejected = filter.getRejectedCount();
+        try {
+            TotpProvider provider = new TotpProviderImpl();
+            provider.getTotp(userName);
+            fail("例外が発生するはず");
+        } catch (TotpGenerationException e) {
+            assertEquals(MessageFormat.format("ユーザ名：{0}のユーザ情報が取得できませんでした。", userName), e.getMessage());
+            assertEquals(rejected + 1, filter.getRejectedCount());
+        } finally {
+            UserNameFilter.stop();
+        }
+
+        new Verifications() {
+            {
+                _dao.getUser(anyString);
+                times = 0;
+            }
+        };
+    }
+
+    /**
+     * 023: long getTotp() のテストメソッドです.
+     * 同じ秘密鍵が暗号化し直された場合、TOTPの認証済みフラグが保持されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotp023() throws Exception {
+
+        final String userName = "user023";
+        final String immutableUserId = "023";
+        final long timeStep = 30L;
+        final String secretKeyStr1 = "REENCRYPTED023A";
+        final String secretKeyStr2 = "REENCRYPTED023B";
+        final String secretKeyPass = "PASSWORD";
+        final String otp = "123456";
+        final SearchResult searchResult1 = new SearchResult();
+        searchResult1.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+        searchResult1.add(SECRET_KEY_ATTR_NAME, secretKeyStr1);
+        final SearchResult searchResult2 = new SearchResult();
+        searchResult2.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+        searchResult2.add(SECRET_KEY_ATTR_NAME, secretKeyStr2);
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                _dao.getUser(userName);
+                returns(searchResult1, searchResult2);
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr1, secretKeyPass);
+                result = new byte[] { 117, -92 };
+                times = 1;
+                SecretKeyDecrypter.decrypt(secretKeyStr2, secretKeyPass);
+                result = new byte[] { 117, -92 };
+                times = 1;
+                AppConfig.getTimeStepSec();
+                result = timeStep;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp };
+                times = 1;
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        TotpProvider provider = new TotpProviderImpl();
+        Totp first = provider.getTotp(userName);
+        TotpCache cache = TotpCache.getInstance();
+        Totp input = new Totp(immutableUserId, first.getTimeCounter(), otp);
+        assertTrue(cache.authenticate(immutableUserId, input));
+
+        assertEquals(otp, provider.getTotp(userName).getTotp());
+        assertFalse(cache.isAvailable(immutableUserId, input));
+    }
+
+    /**
+     * 019: CompletionStage getTotpAsync() のテストメソッドです.
+     * DAOが{@link AsyncDao}の場合、ユーザ情報の取得完了を待たずにCompletionStageが返却され、
+     * 取得完了後にTOTPが生成されることをテストします。
+     * @param asyncDao 非同期DAO
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotpAsync001(@Mocked final AsyncDao asyncDao) throws Exception {
+
+        final String userName = "user001";
+        final String immutableUserId = "001";
+        final long timeStep = 30L;
+        final String secretKeyStr = "AAAAAAAAA";
+        final String secretKeyPass = "PASSWORD";
+        final byte[] hash = { 117, -92 };
+        final String otp = "123456";
+        final CompletableFuture<SearchResult> userInfo = new CompletableFuture<SearchResult>();
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = asyncDao;
+                asyncDao.getUserAsync(userName);
+                result = userInfo;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr, secretKeyPass);
+                result = hash;
+                AppConfig.getTimeStepSec();
+                result = timeStep;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp };
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        CompletionStage<Totp> stage = new TotpProviderImpl().getTotpAsync(userName);
+        assertFalse(stage.toCompletableFuture().isDone());
+
+        SearchResult searchResult = new SearchResult();
+        searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+        searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr);
+        userInfo.complete(searchResult);
+
+        Totp actual = stage.toCompletableFuture().get();
+        assertEquals(immutableUserId, actual.getImmutableUserId());
+        assertEquals(otp, actual.getTotp());
+    }
+
+    /**
+     * 020: CompletionStage getTotpAsync() のテストメソッドです.
+     * 非同期DAOのユーザ情報取得が異常完了した場合、TotpGenerationExceptionで異常完了することをテストします。
+     * @param asyncDao 非同期DAO
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotpAsync002(@Mocked final AsyncDao asyncDao) throws Exception {
+
+        final String userName = "user001";
+        final CompletableFuture<SearchResult> userInfo = new CompletableFuture<SearchResult>();
+        userInfo.completeExceptionally(new UserDuplicatedException("duplicated"));
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = asyncDao;
+                asyncDao.getUserAsync(userName);
+                result = userInfo;
+                AppConfig.getTimeStepSec();
+                result = 30L;
+            }
+        };
+
+        try {
+            new TotpProviderImpl().getTotpAsync(userName).toCompletableFuture().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TotpGenerationException);
+            assertEquals(MessageFormat.format("ユーザ名：{0}のユーザ情報が複数件存在します。", userName),
+                    e.getCause().getMessage());
+            assertTrue(e.getCause().getCause() instanceof UserDuplicatedException);
+        }
+    }
+
+    /**
+     * 021: CompletionStage getTotpAsync() のテストメソッドです.
+     * 復号化が必要な秘密鍵が複数ある場合、復号化が指定されたExecutorで実行され、
+     * TOTPはデバイスの順に生成されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotpAsync003() throws Exception {
+
+        final String userName = "user001";
+        final String immutableUserId = "001";
+        final long timeStep = 30L;
+        final String secretKeyStr1 = "AAAAAAAAA";
+        final String secretKeyStr2 = "BBBBBBBBB";
+        final String secretKeyPass = "PASSWORD";
+        final byte[] hash1 = { 117, -92 };
+        final byte[] hash2 = { 118, -93 };
+        final String otp1 = "111111";
+        final String otp2 = "222222";
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = _dao;
+                SearchResult searchResult = new SearchResult();
+                searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+                searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr1);
+                searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr2);
+                _dao.getUser(userName);
+                result = searchResult;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr1, secretKeyPass);
+                result = hash1;
+                SecretKeyDecrypter.decrypt(secretKeyStr2, secretKeyPass);
+                result = hash2;
+                AppConfig.getTimeStepSec();
+                result = timeStep;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                returns(new String[] { otp1 }, new String[] { otp2 });
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        final AtomicInteger executed = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                new Thread(command).start();
+            }
+        };
+        TotpProviderImpl provider = new TotpProviderImpl(executor);
+        Totp actual = provider.getTotpAsync(userName).toCompletableFuture().get();
+        assertEquals(2, executed.get());
+        assertEquals(otp1, actual.getTotp());
+
+        // 2回目は復号化済みの秘密鍵、生成済みのTOTPを使用する
+        actual = provider.getTotp(userName);
+        assertEquals(2, executed.get());
+        assertEquals(otp1, actual.getTotp());
+    }
+
+    /**
+     * 022: CompletionStage getTotpAsync() のテストメソッドです.
+     * 同じユーザのTOTP生成が同時に要求された場合、ユーザ情報の取得が1回にまとめられることをテストします。
+     * @param asyncDao 非同期DAO
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetTotpAsync004(@Mocked final AsyncDao asyncDao) throws Exception {
+
+        final String userName = "user001";
+        final String immutableUserId = "001";
+        final String secretKeyStr = "AAAAAAAAA";
+        final String secretKeyPass = "PASSWORD";
+        final String otp = "123456";
+        final CompletableFuture<SearchResult> userInfo = new CompletableFuture<SearchResult>();
+
+        new Expectations() {
+            {
+                DaoFactory.getInstance();
+                result = _daoFactory;
+                _daoFactory.createInstance();
+                result = asyncDao;
+                asyncDao.getUserAsync(userName);
+                result = userInfo;
+                times = 1;
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                AppConfig.getSecretKeyPassPhrase();
+                result = secretKeyPass;
+                SecretKeyDecrypter.decrypt(secretKeyStr, secretKeyPass);
+                result = new byte[] { 117, -92 };
+                times = 1;
+                AppConfig.getTimeStepSec();
+                result = 30L;
+                AppConfig.getTotpLength();
+                result = 6;
+                _totpGenerator.generateTotps(anyInt);
+                result = new String[] { otp };
+            }
+        };
+
+        // タイムステップ設定後のキャッシュを使用する
+        setUp();
+
+        long coalesced = TotpProviderImpl.getCoalescedUserInfoCount();
+        TotpProviderImpl provider = new TotpProviderImpl();
+        CompletableFuture<Totp> first = provider.getTotpAsync(userName).toCompletableFuture();
+        CompletableFuture<Totp> second = provider.getTotpAsync(userName).toCompletableFuture();
+        assertEquals(coalesced + 1, TotpProviderImpl.getCoalescedUserInfoCount());
+
+        SearchResult searchResult = new SearchResult();
+        searchResult.add(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId);
+        searchResult.add(SECRET_KEY_ATTR_NAME, secretKeyStr);
+        userInfo.complete(searchResult);
+
+        assertEquals(otp, first.get().getTotp());
+        assertEquals(otp, second.get().getTotp());
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.UserNameFilter}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class UserNameFilterTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    @After
+    public void tearDown() {
+        UserNameFilter.stop();
+        AsyncLdapConnectionPool.shutdown();
+    }
+
+    /**
+     * 001: void rebuild()のテストメソッドです.
+     * ページサイズを超える全ユーザのユーザ名でBloomフィルタが構築され、存在しないユーザ名が拒否されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRebuild001() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials("cn=admin", "password");
+        config.setSchema(null);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+        for (int i = 0; i < 600; i++) {
+            server.add("dn: uid=filter" + i + "," + BASE_DN, "objectClass: inetOrgPerson", "uid: filter" + i);
+        }
+        server.startListening();
+        final int port = server.getListenPort();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getLdapUrl() {
+                return "ldap://localhost:" + port;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return "cn=admin";
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return "password";
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return BASE_DN;
+            }
+            @Mock
+            String getLdapUserNameAttributeName() {
+                return "uid";
+            }
+            @Mock
+            Double getUserNameFilterFpp() {
+                return 0.001d;
+            }
+        };
+
+        try {
+            UserNameFilter filter = new UserNameFilter();
+            assertFalse(filter.isReady());
+            assertTrue(filter.mightContain("unknown"));
+
+            filter.rebuild();
+            assertTrue(filter.isReady());
+            assertEquals(600L, filter.getBuiltUserCount());
+            assertTrue(filter.getBuildMillis() >= 0L);
+            assertTrue(filter.getExpectedFpp() < 0.001d);
+            for (int i = 0; i < 600; i++) {
+                assertTrue(filter.mightContain("filter" + i));
+            }
+            assertTrue(filter.mightContain("FILTER599"));
+            int rejected = 0;
+            for (int i = 0; i < 10000; i++) {
+                if (!filter.mightContain("unknown" + i)) {
+                    rejected++;
+                }
+            }
+            assertTrue(rejected > 9900);
+            assertEquals(rejected, filter.getRejectedCount());
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * 002: void put(String)のテストメソッドです.
+     * 構築後に追加したユーザ名が存在する可能性があると判定されることをテストします。
+     */
+    @Test
+    public void testPut001() {
+
+        UserNameFilter filter = new UserNameFilter();
+        filter.put("user001");
+        assertFalse(filter.isReady());
+
+        List<String> userNames = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            userNames.add("user" + i);
+        }
+        filter.build(userNames);
+        double fpp = filter.getExpectedFpp();
+        assertFalse(filter.mightContain("added1"));
+        for (int i = 0; i < 100; i++) {
+            filter.put("Added" + i);
+        }
+        assertTrue(filter.mightContain("added1"));
+        assertTrue(filter.getExpectedFpp() > fpp);
+    }
+
+    /**
+     * 003: void recordFalsePositive()のテストメソッドです.
+     * Bloomフィルタの構築後のみ誤検知が計上されることをテストします。
+     */
+    @Test
+    public void testRecordFalsePositive001() {
+
+        UserNameFilter filter = new UserNameFilter();
+        filter.recordFalsePositive();
+        assertEquals(0L, filter.getFalsePositiveCount());
+
+        filter.build(new ArrayList<String>());
+        filter.recordFalsePositive();
+        assertEquals(1L, filter.getFalsePositiveCount());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.authn.totp;
+
+import static org.junit.Assert.*;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.dto.SearchResult;
+
+/**
+ * {@link com.sios.idp.shibboleth.authn.totp.UserRecordCache}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class UserRecordCacheTest {
+
+    private static final String IMMUTABLE_ID_ATTR_NAME = "immutableIdAttr";
+
+    @Before
+    public void setUp() {
+        new MockUp<AppConfig>() {
+            @Mock
+            Long getUserRecordCacheTtlSec() {
+                return 60L;
+            }
+            @Mock
+            Long getUserRecordMaxStalenessSec() {
+                return 60L;
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return IMMUTABLE_ID_ATTR_NAME;
+            }
+        };
+        UserRecordCache.getInstance().invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        UserRecordCache.getInstance().invalidateAll();
+    }
+
+    /**
+     * 001: void invalidateImmutableUserId(String immutableUserId)のテストメソッドです.
+     * 指定されたユーザ固有IDを持つユーザ情報のみが破棄されることをテストします。
+     * 格納し直したユーザ情報は、新しいユーザ固有IDで破棄されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testInvalidateImmutableUserId001() throws Exception {
+
+        UserRecordCache cache = UserRecordCache.getInstance();
+        cache.put("user001", createResult("id001"));
+        cache.put("alias001", createResult("id001"));
+        cache.put("user002", createResult("id002"));
+
+        cache.invalidateImmutableUserId("id001");
+        assertNull(cache.getStale("user001"));
+        assertNull(cache.getStale("alias001"));
+        assertNotNull(cache.getStale("user002"));
+
+        cache.put("user002", createResult("id002"));
+        cache.put("user002", createResult("id003"));
+        cache.invalidateImmutableUserId("id002");
+        assertNotNull(cache.getStale("user002"));
+        cache.invalidateImmutableUserId("id003");
+        assertNull(cache.getStale("user002"));
+        assertEquals(0L, cache.size());
+    }
+
+    /**
+     * ユーザ固有IDを持つユーザ情報を生成します.
+     * @param immutableUserId ユーザ固有ID
+     * @return ユーザ情報
+     */
+    private static SearchResult createResult(String immutableUserId) {
+        SearchResult result = new SearchResult();
+        result.add(IMMUTABLE_ID_ATTR_NAME, immutableUserId);
+        return result;
+    }
+}
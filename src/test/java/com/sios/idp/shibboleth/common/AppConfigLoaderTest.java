@@ -8,6 +8,17 @@ package com.sios.idp.shibboleth.common;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
 import javax.servlet.ServletContext;
 
 import mockit.Expectations;
@@ -15,6 +26,8 @@ import mockit.Mocked;
 
 import org.junit.Test;
 
+import com.sios.idp.shibboleth.common.realm.ConfigScope;
+import com.sios.idp.shibboleth.common.realm.Realm;
 import com.sios.idp.shibboleth.exception.ConfigInitializationException;
 
 /**
@@ -256,4 +269,261 @@ public class AppConfigLoaderTest {
         assertEquals(expected3, MockAppConfigMultiple.getStr3());
     }
 
+    private static final class MockAppConfigDefault implements Config {
+
+        private static String str1;
+        @DefaultValue("60")
+        private static Long lng2;
+        @DefaultValue("true")
+        private static Boolean bool3;
+
+        public static String getStr1() {
+            return str1;
+        }
+
+        public static Long getLng2() {
+            return lng2;
+        }
+
+        public static Boolean getBool3() {
+            return bool3;
+        }
+
+        private MockAppConfigDefault() {
+        }
+    }
+
+    /**
+     * 007: void load(Config config)のテストメソッドです.
+     * {@link DefaultValue}が付与されたフィールドに対応するモックServletContextのパラメータが存在しない場合、
+     * 既定値がロードされることをテストする。
+     * @throws ConfigInitializationException コンテキストパラメータ時に予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLoad007() throws ConfigInitializationException {
+
+        final String expected1 = "strValue1";
+
+        new Expectations() {
+            {
+                ctx.getInitParameter("str1");
+                result = expected1;
+                ctx.getInitParameter("bool3");
+                result = "false";
+            }
+        };
+
+        AppConfigLoader loader = new AppConfigLoader(ctx);
+        loader.load(MockAppConfigDefault.class);
+
+        assertEquals(expected1, MockAppConfigDefault.getStr1());
+        assertEquals(Long.valueOf(60L), MockAppConfigDefault.getLng2());
+        assertEquals(Boolean.FALSE, MockAppConfigDefault.getBool3());
+    }
+
+    /**
+     * 008: Map loadOverrides(Class configClass, String prefix)のテストメソッドです.
+     * 接頭辞を付けたモックServletContextのパラメータのみが、フィールドの型に変換されて返却されることをテストする。
+     * @throws ConfigInitializationException コンテキストパラメータ時に予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLoadOverrides001() throws ConfigInitializationException {
+
+        new Expectations() {
+            {
+                ctx.getInitParameter("realm.a.str1");
+                result = " strValue1 ";
+                ctx.getInitParameter("realm.a.lng2");
+                result = "30";
+            }
+        };
+
+        AppConfigLoader loader = new AppConfigLoader(ctx);
+        Map<String, Object> values = loader.loadOverrides(MockAppConfigDefault.class, "realm.a.");
+
+        assertEquals(2, values.size());
+        assertEquals("strValue1", values.get("str1"));
+        assertEquals(Long.valueOf(30L), values.get("lng2"));
+        assertFalse(values.containsKey("bool3"));
+    }
+
+    /**
+     * 009: void load(Config config)のテストメソッドです.
+     * 設定ファイルの値がコンテキストパラメータより優先され、いずれにも定義されていない場合は既定値がロードされることをテストする。
+     * 接頭辞を付けた設定ファイルの値は、loadOverridesの結果に含まれることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLoad008() throws Exception {
+
+        final Path file = Files.createTempFile("totp", ".properties");
+        try {
+            Files.write(file, "str1 = ファイルの値\nrealm.a.bool3=true\n".getBytes(StandardCharsets.UTF_8));
+            new Expectations() {
+                {
+                    ctx.getInitParameter("configFilePath");
+                    result = file.toString();
+                    ctx.getInitParameter("str1");
+                    result = "strValue1";
+                    ctx.getInitParameter("lng2");
+                    result = "30";
+                }
+            };
+
+            AppConfigLoader loader = new AppConfigLoader(ctx);
+            loader.load(MockAppConfigDefault.class);
+
+            assertEquals("ファイルの値", MockAppConfigDefault.getStr1());
+            assertEquals(Long.valueOf(30L), MockAppConfigDefault.getLng2());
+            assertEquals(Boolean.TRUE, MockAppConfigDefault.getBool3());
+            assertEquals(Collections.singletonMap("bool3", Boolean.TRUE),
+                    loader.loadOverrides(MockAppConfigDefault.class, "realm.a."));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * 010: Set reload()のテストメソッドです.
+     * 設定ファイルの変更後に再読み込みすると、変更された設定項目のみが返却され、AppConfigが新しい値を返却することをテストする。
+     * 変換できない値に変更された場合は例外がthrowされ、直前のスナップショットが維持されることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testReload001() throws Exception {
+
+        final Path file = Files.createTempFile("totp", ".properties");
+        ConfigSnapshot original = AppConfig.getDefaultSnapshot();
+        try {
+            writeAppConfig(file, "timeStepSec=30\n");
+            new Expectations() {
+                {
+                    ctx.getInitParameter("configFilePath");
+                    result = file.toString();
+                }
+            };
+
+            AppConfigLoader loader = new AppConfigLoader(ctx);
+            loader.load(AppConfig.class);
+            ConfigSnapshot loaded = AppConfig.getSnapshot();
+            assertEquals(Long.valueOf(30L), AppConfig.getTimeStepSec());
+            assertEquals(file.toString(), AppConfig.getConfigFilePath());
+            assertTrue(loader.reload().isEmpty());
+            assertSame(loaded, AppConfig.getSnapshot());
+
+            writeAppConfig(file, "timeStepSec=60\ntotpLength=8\n");
+            assertEquals(new TreeSet<String>(Arrays.asList("timeStepSec", "totpLength")),
+                    loader.reload());
+            assertEquals(Long.valueOf(60L), AppConfig.getTimeStepSec());
+            assertEquals(Integer.valueOf(8), AppConfig.getTotpLength());
+            assertTrue(AppConfig.getSnapshot().getVersion() > loaded.getVersion());
+            assertEquals(Long.valueOf(30L), loaded.get(ConfigKey.TIME_STEP_SEC));
+
+            ConfigSnapshot reloaded = AppConfig.getSnapshot();
+            writeAppConfig(file, "timeStepSec=abc\n");
+            try {
+                loader.reload();
+                fail("例外が発生するはず");
+            } catch (ConfigInitializationException e) {
+                // expected
+            }
+            assertSame(reloaded, AppConfig.getSnapshot());
+        } finally {
+            AppConfig.setSnapshot(original);
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * 011: ConfigScope.pin(Action action)のテストメソッドです.
+     * 処理中にスナップショットが置き換えられても、処理の開始時のスナップショットの値が返却され、
+     * {@link Realm#bind(Supplier)}で別のスレッドに引き継がれることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testPin001() throws Exception {
+
+        ConfigSnapshot original = AppConfig.getDefaultSnapshot();
+        try {
+            ConfigSnapshot first = new ConfigSnapshot(Collections.<String, Object>singletonMap("timeStepSec", 30L), "first");
+            ConfigSnapshot second = new ConfigSnapshot(Collections.<String, Object>singletonMap("timeStepSec", 60L), "second");
+            AppConfig.setSnapshot(first);
+
+            Supplier<Long> bound = ConfigScope.pin(() -> {
+                AppConfig.setSnapshot(second);
+                assertEquals(Long.valueOf(30L), AppConfig.getTimeStepSec());
+                assertSame(first, AppConfig.getSnapshot());
+                // 固定済みの場合は固定したスナップショットのまま実行する
+                assertSame(first, ConfigScope.pin(AppConfig::getSnapshot));
+                Supplier<Long> timeStepSec = AppConfig::getTimeStepSec;
+                return Realm.bind(timeStepSec);
+            });
+
+            assertNull(ConfigScope.current());
+            assertEquals(Long.valueOf(60L), AppConfig.getTimeStepSec());
+            assertEquals(Long.valueOf(30L), CompletableFuture.supplyAsync(bound).get());
+        } finally {
+            AppConfig.setSnapshot(original);
+        }
+    }
+
+    /**
+     * 012: void load(Class configClass)のテストメソッドです.
+     * AppConfigを読み込むと、{@link ConfigKey}の全ての設定項目が定義された順に、設定項目の型でスナップショットに格納されることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLoad009() throws Exception {
+
+        final Path file = Files.createTempFile("totp", ".properties");
+        ConfigSnapshot original = AppConfig.getDefaultSnapshot();
+        try {
+            writeAppConfig(file, "timeStepSec=30\nrealm.a.ldapAsyncConnectionCount=4\n");
+            new Expectations() {
+                {
+                    ctx.getInitParameter("configFilePath");
+                    result = file.toString();
+                }
+            };
+
+            AppConfigLoader loader = new AppConfigLoader(ctx);
+            loader.load(AppConfig.class);
+            ConfigSnapshot loaded = AppConfig.getSnapshot();
+            assertEquals(ConfigKey.values().size(), loaded.getValues().size());
+            int i = 0;
+            for (Map.Entry<String, Object> entry : loaded.getValues().entrySet()) {
+                ConfigKey<?> key = ConfigKey.values().get(i++);
+                assertEquals(key.getName(), entry.getKey());
+                assertTrue(key.getName(), key.getType().isInstance(entry.getValue()));
+            }
+            assertEquals(Integer.valueOf(2), loaded.get(ConfigKey.LDAP_ASYNC_CONNECTION_COUNT));
+            assertEquals(Collections.singletonMap("ldapAsyncConnectionCount", 4),
+                    loader.loadOverrides(AppConfig.class, "realm.a."));
+        } finally {
+            AppConfig.setSnapshot(original);
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * AppConfigの必須の設定項目と、指定された設定値を設定ファイルに書き込みます.
+     * @param file 設定ファイル
+     * @param values 追加する設定値 (プロパティ形式)
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private static void writeAppConfig(Path file, String values) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String name : new String[] {"ldapUrl", "ldapBindDN", "ldapBindPassword", "ldapBaseDN", "ldapFilter",
+                "cipherArgorithm", "cipherTransformationName", "immutableIdAttributeName", "secretKeyAttributeName",
+                "secretKeyPassPhrase", "daoImplClassName", "totpAuthnSessionIdCookieName",
+                "totpAuthnSessionIssueDateCookieName", "totpAuthnSessionIdSalt"}) {
+            sb.append(name).append('=').append(name).append("Value\n");
+        }
+        for (String name : new String[] {"saltLength", "iterationCount", "cipherKeyLength", "totpLength",
+                "allowedTimeCountOffset", "totpCacheExpirationBufferSec", "totpAuthnSessionExpirationSec"}) {
+            sb.append(name).append("=1\n");
+        }
+        Files.write(file, (sb + values).getBytes(StandardCharsets.UTF_8));
+    }
+
 }
@@ -0,0 +1,125 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.common;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link com.sios.idp.shibboleth.common.ConfigFileWatcher}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class ConfigFileWatcherTest {
+
+    @Mocked
+    ServletContext ctx;
+
+    private Path file;
+    private ConfigSnapshot original;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("totp", ".properties");
+        original = AppConfig.getDefaultSnapshot();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConfigFileWatcher.stop();
+        AppConfig.setSnapshot(original);
+        Files.delete(file);
+    }
+
+    /**
+     * 001: void start(AppConfigLoader loader, Consumer onChange)のテストメソッドです.
+     * 設定ファイルの変更を検知して再読み込みし、変更された設定項目が通知されることをテストします。
+     * 変換できない値に変更された場合は通知されず、直前の設定値が維持されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testStart001() throws Exception {
+
+        write("secretKeyCacheExpirationSec=60\n");
+        new Expectations() {
+            {
+                ctx.getInitParameter("configFilePath");
+                result = file.toString();
+            }
+        };
+        AppConfigLoader loader = new AppConfigLoader(ctx);
+        loader.load(AppConfig.class);
+        BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<Set<String>>();
+        ConfigFileWatcher.start(loader, changes::add);
+
+        write("secretKeyCacheExpirationSec=120\n");
+        assertEquals(Collections.singleton("secretKeyCacheExpirationSec"), changes.poll(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(120L), AppConfig.getSecretKeyCacheExpirationSec());
+
+        write("secretKeyCacheExpirationSec=invalid\n");
+        assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(Long.valueOf(120L), AppConfig.getSecretKeyCacheExpirationSec());
+    }
+
+    /**
+     * 002: void start(AppConfigLoader loader, Consumer onChange)のテストメソッドです.
+     * 設定ファイルが指定されていない場合は監視を開始しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testStart002() throws Exception {
+
+        new Expectations() {
+            {
+                ctx.getInitParameter("configFilePath");
+                result = "";
+            }
+        };
+        AppConfigLoader loader = new AppConfigLoader(ctx);
+        assertNull(loader.getConfigFilePath());
+        ConfigFileWatcher.start(loader, names -> fail("通知されないはず"));
+        ConfigFileWatcher.stop();
+    }
+
+    /**
+     * 必須の設定項目と監視間隔、指定された設定値を設定ファイルに書き込みます.
+     * @param values 追加する設定値 (プロパティ形式)
+     * @throws Exception 書き込みに失敗した場合
+     */
+    private void write(String values) throws Exception {
+        StringBuilder sb = new StringBuilder("configFileCheckIntervalMillis=20\n");
+        for (String name : new String[] {"ldapUrl", "ldapBindDN", "ldapBindPassword", "ldapBaseDN", "ldapFilter",
+                "cipherArgorithm", "cipherTransformationName", "immutableIdAttributeName", "secretKeyAttributeName",
+                "secretKeyPassPhrase", "daoImplClassName", "totpAuthnSessionIdCookieName",
+                "totpAuthnSessionIssueDateCookieName", "totpAuthnSessionIdSalt"}) {
+            sb.append(name).append('=').append(name).append("Value\n");
+        }
+        for (String name : new String[] {"saltLength", "iterationCount", "cipherKeyLength", "timeStepSec",
+                "totpLength", "allowedTimeCountOffset", "totpCacheExpirationBufferSec",
+                "totpAuthnSessionExpirationSec"}) {
+            sb.append(name).append("=1\n");
+        }
+        sb.append(values);
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.common;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.datasource.dao.AsyncLdapDaoImpl;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.common.WarmUp}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class WarmUpTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    private ConfigSnapshot original;
+    private Map<String, Object> values;
+
+    @Before
+    public void setUp() {
+        original = AppConfig.getDefaultSnapshot();
+        values = new HashMap<String, Object>();
+        values.put("warmUpEnabled", Boolean.TRUE);
+        values.put("warmUpIterations", 50);
+        values.put("timeStepSec", 30L);
+        values.put("totpLength", 6);
+        values.put("allowedTimeCountOffset", 1);
+        values.put("totpCacheExpirationBufferSec", 0L);
+        values.put("secretKeyCacheExpirationSec", 60L);
+        values.put("saltLength", 16);
+        values.put("iterationCount", 1000);
+        values.put("cipherKeyLength", 256);
+        values.put("cipherArgorithm", "AES");
+        values.put("cipherTransformationName", "AES/CBC/PKCS5Padding");
+        values.put("daoImplClassName", "com.example.NoSuchDao");
+    }
+
+    @After
+    public void tearDown() {
+        AsyncLdapConnectionPool.shutdown();
+        AppConfig.setSnapshot(original);
+    }
+
+    /**
+     * 001: long run()のテストメソッドです.
+     * DAOの生成に失敗しても、暗号処理とキャッシュのウォームアップ後に完了となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRun001() throws Exception {
+
+        AppConfig.setSnapshot(new ConfigSnapshot(values, "test"));
+
+        assertTrue(WarmUp.run() >= 0L);
+    }
+
+    /**
+     * 002: long run()のテストメソッドです.
+     * warmUpEnabledがfalseの場合は、ウォームアップせずに完了となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRun002() throws Exception {
+
+        values.put("warmUpEnabled", Boolean.FALSE);
+        values.remove("timeStepSec");
+        AppConfig.setSnapshot(new ConfigSnapshot(values, "test"));
+
+        assertEquals(0L, WarmUp.run());
+    }
+
+    /**
+     * 003: long run()のテストメソッドです.
+     * 非同期LDAPのDAOを使用する場合に、接続プールの全ての接続が確立されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRun003() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials("cn=admin", "password");
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        try {
+            values.put("daoImplClassName", AsyncLdapDaoImpl.class.getName());
+            values.put("ldapUrl", "ldap://localhost:" + server.getListenPort());
+            values.put("ldapBindDN", "cn=admin");
+            values.put("ldapBindPassword", "password");
+            values.put("ldapBaseDN", BASE_DN);
+            values.put("ldapFilter", "(uid={0})");
+            values.put("ldapAsyncConnectionCount", 2);
+            values.put("ldapOperationTimeoutMillis", 5000L);
+            AppConfig.setSnapshot(new ConfigSnapshot(values, "test"));
+
+            WarmUp.run();
+
+            assertEquals(0, AsyncLdapConnectionPool.getInstance().connectAll());
+        } finally {
+            AsyncLdapConnectionPool.shutdown();
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * 004: long run()のテストメソッドです.
+     * warmUpTimeoutMillisを超過した場合は、残りの処理を行わずに完了となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRun004() throws Exception {
+
+        values.put("warmUpIterations", Integer.MAX_VALUE);
+        values.put("warmUpTimeoutMillis", 100L);
+        AppConfig.setSnapshot(new ConfigSnapshot(values, "test"));
+
+        assertTrue(WarmUp.run() < 5000L);
+    }
+}
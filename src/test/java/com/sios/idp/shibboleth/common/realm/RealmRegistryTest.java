@@ -0,0 +1,234 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.common.realm;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.ServletContext;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.authn.totp.TotpCache;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.AppConfigLoader;
+import com.sios.idp.shibboleth.common.Config;
+import com.sios.idp.shibboleth.exception.ConfigInitializationException;
+
+/**
+ * {@link com.sios.idp.shibboleth.common.realm.RealmRegistry}、{@link com.sios.idp.shibboleth.common.realm.Realm}の
+ * テストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class RealmRegistryTest {
+
+    private Realm tenantA;
+    private Realm tenantB;
+
+    @Before
+    public void setUp() {
+        Map<String, Object> parametersA = new HashMap<String, Object>();
+        parametersA.put("ldapUrl", "ldap://tenant-a.example.com");
+        parametersA.put("realmRelyingParties", "https://sp1.example.com, https://sp2.example.com");
+        tenantA = new Realm("tenant-a", parametersA);
+        Map<String, Object> parametersB = new HashMap<String, Object>();
+        parametersB.put("ldapUrl", "ldap://tenant-b.example.com");
+        parametersB.put("realmStripSuffix", Boolean.FALSE);
+        parametersB.put("realmRelyingParties", "https://sp3.example.com");
+        tenantB = new Realm("tenant-b", parametersB);
+        RealmRegistry.set(Arrays.asList(tenantA, tenantB));
+    }
+
+    @After
+    public void tearDown() {
+        RealmRegistry.set(Collections.<Realm>emptyList());
+    }
+
+    /**
+     * 001: Realm select(String userName, String relyingPartyId)のテストメソッドです.
+     * 依頼元のレルムが接尾辞のレルムより優先され、依頼元が不明な場合は接尾辞で選択し、
+     * いずれにも該当しない場合はnullとなることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelect001() throws Exception {
+
+        RealmRegistry registry = RealmRegistry.getInstance();
+        assertSame(tenantA, registry.select("alice@tenant-a", null));
+        assertSame(tenantA, registry.select("alice@tenant-b", "https://sp1.example.com"));
+        assertSame(tenantB, registry.select("alice@tenant-b", "https://unknown.example.com"));
+        assertSame(tenantB, registry.select("alice@tenant-b", "https://sp3.example.com"));
+        assertSame(tenantA, registry.select("alice", "https://sp2.example.com"));
+        assertSame(tenantB, registry.select("alice@example.com", "https://sp3.example.com"));
+        assertNull(registry.select("alice@tenant-c", null));
+        assertNull(registry.select("alice", "https://unknown.example.com"));
+        assertNull(registry.select(null, null));
+    }
+
+    /**
+     * 002: RealmRegistry(Collection realms)のテストメソッドです.
+     * 同じ依頼元が複数のレルムに定義されている場合、及びレルムを定義しない場合をテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelect002() throws Exception {
+
+        Realm duplicated = new Realm("tenant-c",
+                Collections.<String, Object>singletonMap("realmRelyingParties", "https://sp3.example.com"));
+        try {
+            RealmRegistry.set(Arrays.asList(tenantA, tenantB, duplicated));
+            fail("例外が発生するはず");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        RealmRegistry.set(Collections.<Realm>emptyList());
+        assertNull(RealmRegistry.getInstance().select("alice@tenant-a", "https://sp1.example.com"));
+        assertTrue(RealmRegistry.getInstance().getRealms().isEmpty());
+    }
+
+    /**
+     * 003: String toLocalUserName(String userName)のテストメソッドです.
+     * 実行中のレルムの接尾辞のみが取り除かれ、realmStripSuffixがfalseのレルムでは取り除かれないことをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testToLocalUserName001() throws Exception {
+
+        assertEquals("alice@tenant-a", RealmRegistry.toLocalUserName("alice@tenant-a"));
+        tenantA.execute(() -> {
+            assertEquals("alice", RealmRegistry.toLocalUserName("alice@tenant-a"));
+            assertEquals("alice@tenant-b", RealmRegistry.toLocalUserName("alice@tenant-b"));
+            assertEquals("alice", RealmRegistry.toLocalUserName("alice"));
+            return null;
+        });
+        tenantB.execute(() -> {
+            assertEquals("alice@tenant-b", RealmRegistry.toLocalUserName("alice@tenant-b"));
+            return null;
+        });
+    }
+
+    /**
+     * 004: Realm execute(Action action)のテストメソッドです.
+     * 実行中のレルムの設定値がAppConfigから取得でき、終了後は元のレルムに戻ることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute001() throws Exception {
+
+        String defaultUrl = AppConfig.getLdapUrl();
+        String url = tenantA.execute(() -> {
+            assertSame(tenantA, Realm.current());
+            assertEquals("ldap://tenant-b.example.com", tenantB.execute(AppConfig::getLdapUrl));
+            assertSame(tenantA, Realm.current());
+            return AppConfig.getLdapUrl();
+        });
+        assertEquals("ldap://tenant-a.example.com", url);
+        assertNull(Realm.current());
+        assertEquals(defaultUrl, AppConfig.getLdapUrl());
+        assertEquals(defaultUrl, Realm.execute(null, AppConfig::getLdapUrl));
+    }
+
+    /**
+     * 005: Supplier bind(Supplier supplier)のテストメソッドです.
+     * 別スレッドで実行される処理に呼び出し元のレルムが引き継がれ、キーがレルム毎に修飾されることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testBind001() throws Exception {
+
+        CompletableFuture<Realm> future = tenantA.execute(
+                () -> CompletableFuture.supplyAsync(Realm.bind(Realm::current)));
+        assertSame(tenantA, future.get());
+        CompletableFuture<String> chained = tenantB.execute(() -> CompletableFuture.completedFuture("alice")
+                .thenApplyAsync(Realm.bind((String userName) -> Realm.qualify(userName))));
+        assertEquals("tenant-b\u0000alice", chained.get());
+        assertEquals("alice", Realm.qualify("alice"));
+        assertNull(CompletableFuture.supplyAsync(Realm::current).get());
+    }
+
+    /**
+     * 006: T getComponent(Class type, Action factory)のテストメソッドです.
+     * Singletonなインスタンスがレルム毎に生成、保持され、破棄後は再生成されることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetComponent001() throws Exception {
+
+        new MockUp<AppConfig>() {
+            @Mock
+            Long getTimeStepSec() {
+                return 30L;
+            }
+            @Mock
+            Integer getAllowedTimeCountOffset() {
+                return 1;
+            }
+            @Mock
+            Long getTotpCacheExpirationBufferSec() {
+                return 0L;
+            }
+        };
+        TotpCache defaultCache = TotpCache.getInstance();
+        TotpCache cacheA = tenantA.execute(TotpCache::getInstance);
+        TotpCache cacheB = tenantB.execute(TotpCache::getInstance);
+        assertNotSame(defaultCache, cacheA);
+        assertNotSame(defaultCache, cacheB);
+        assertNotSame(cacheA, cacheB);
+        assertSame(cacheA, tenantA.execute(TotpCache::getInstance));
+        assertSame(defaultCache, TotpCache.getInstance());
+
+        assertSame(cacheA, tenantA.removeComponent(TotpCache.class));
+        assertNull(tenantA.removeComponent(TotpCache.class));
+        assertNotSame(cacheA, tenantA.execute(TotpCache::getInstance));
+    }
+
+    /**
+     * 007: void load(AppConfigLoader loader)のテストメソッドです.
+     * 既定の設定に対してのみ動作する設定項目をレルムで上書きした場合は、レルムの定義を置き換えずに例外となることをテストする。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLoad001() throws Exception {
+
+        new MockUp<AppConfig>() {
+            @Mock
+            String getRealms() {
+                return "tenant-c";
+            }
+        };
+        new MockUp<AppConfigLoader>() {
+            @Mock
+            void $init(ServletContext ctx) {
+            }
+            @Mock
+            Map<String, Object> loadOverrides(Class<? extends Config> configClass, String prefix) {
+                assertEquals("realm.tenant-c.", prefix);
+                return Collections.<String, Object>singletonMap("prefetchEnabled", Boolean.TRUE);
+            }
+        };
+        try {
+            RealmRegistry.load(new AppConfigLoader(null));
+            fail();
+        } catch (ConfigInitializationException e) {
+            assertEquals("設定項目 prefetchEnabled は既定の設定に対してのみ有効なため、レルム tenant-c で上書きできません。",
+                    e.getMessage());
+        }
+        assertSame(tenantA, RealmRegistry.getInstance().getRealm("tenant-a"));
+        assertNull(RealmRegistry.getInstance().getRealm("tenant-c"));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.common.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * {@link com.sios.idp.shibboleth.common.util.SingleFlight}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class SingleFlightTest {
+
+    /**
+     * 001: CompletableFuture execute(K key, Supplier call)のテストメソッドです.
+     * 同じキーの処理が実行中の場合は合流し、処理が1回だけ実行されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute001() throws Exception {
+
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CompletableFuture<String> call = new CompletableFuture<String>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<String> first = flight.execute("user001", () -> {
+            calls.incrementAndGet();
+            return call;
+        });
+        CompletableFuture<String> second = flight.execute("user001", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        CompletableFuture<String> other = flight.execute("user002", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("user002");
+        });
+
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals("user002", other.get());
+        assertEquals(1, flight.getInFlightCount());
+
+        call.complete("user001");
+        assertEquals("user001", first.get());
+        assertEquals("user001", second.get());
+        assertEquals(2, calls.get());
+        assertEquals(2L, flight.getExecutedCount());
+        assertEquals(1L, flight.getCoalescedCount());
+        assertEquals(0, flight.getInFlightCount());
+    }
+
+    /**
+     * 002: CompletableFuture execute(K key, Supplier call)のテストメソッドです.
+     * 処理の完了後の呼び出しでは、再度処理が実行されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute002() throws Exception {
+
+        SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        assertEquals(Integer.valueOf(1),
+                flight.execute("key", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).get());
+        assertEquals(Integer.valueOf(2),
+                flight.execute("key", () -> CompletableFuture.completedFuture(calls.incrementAndGet())).get());
+        assertEquals(0L, flight.getCoalescedCount());
+    }
+
+    /**
+     * 003: CompletableFuture execute(K key, Supplier call)のテストメソッドです.
+     * 処理が異常完了した場合、合流した全ての呼び出し元に原因の例外が通知されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute003() throws Exception {
+
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CompletableFuture<String> call = new CompletableFuture<String>();
+        final IllegalStateException cause = new IllegalStateException();
+
+        CompletableFuture<String> first = flight.execute("key", () -> call);
+        CompletableFuture<String> second = flight.execute("key", () -> call);
+        call.completeExceptionally(cause);
+
+        for (CompletableFuture<String> future : new CompletableFuture[] { first, second }) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(cause, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 004: CompletableFuture execute(K key, Supplier call)のテストメソッドです.
+     * 呼び出し元の取り消しが、合流した他の呼び出し元に影響しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute004() throws Exception {
+
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CompletableFuture<String> call = new CompletableFuture<String>();
+
+        CompletableFuture<String> first = flight.execute("key", () -> call);
+        CompletableFuture<String> second = flight.execute("key", () -> call);
+        first.cancel(true);
+        call.complete("value");
+
+        assertTrue(first.isCancelled());
+        assertEquals("value", second.get());
+    }
+
+    /**
+     * 005: CompletableFuture execute(K key, Supplier call)のテストメソッドです.
+     * 処理の開始時に例外が発生した場合、異常完了し実行中の処理に残らないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExecute005() throws Exception {
+
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+
+        CompletableFuture<String> future = flight.execute("key", () -> {
+            throw new IllegalArgumentException();
+        });
+
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, flight.getInFlightCount());
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.AsyncLdapDaoImpl}のテストクラスです.
+ * インメモリLDAPサーバに対して実行します。
+ * @author SIOS Technology, Inc.
+ */
+public class AsyncLdapDaoImplTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String BIND_DN = "cn=admin";
+    private static final String BIND_PASSWORD = "password";
+
+    private static InMemoryDirectoryServer server;
+
+    /** 検索要求に注入する遅延 (ミリ秒). */
+    private static volatile long searchDelayMillis = 0L;
+
+    /** 遅延を注入する検索のベースDN. nullの場合は全ての検索. */
+    private static volatile String delayedBaseDN = null;
+
+    private static String baseDNs;
+
+    private static long operationTimeoutMillis;
+
+    /** 先頭に追加するLDAP接続先URL. nullの場合はインメモリLDAPサーバのみ. */
+    private static String primaryUrl;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                if (searchDelayMillis > 0 && (delayedBaseDN == null
+                        || delayedBaseDN.equalsIgnoreCase(request.getRequest().getBaseDN()))) {
+                    try {
+                        Thread.sleep(searchDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: ou=people," + BASE_DN, "objectClass: organizationalUnit", "ou: people");
+        server.add("dn: ou=others," + BASE_DN, "objectClass: organizationalUnit", "ou: others");
+        server.add("dn: uid=user001,ou=people," + BASE_DN, "objectClass: inetOrgPerson", "uid: user001",
+                "employeeNumber: 001", "description: secret1", "description: secret2", "cn: user001", "sn: user001",
+                "mail: user001@example.com");
+        server.add("dn: uid=dup,ou=people," + BASE_DN, "objectClass: inetOrgPerson", "uid: dup",
+                "employeeNumber: 002", "cn: dup", "sn: dup");
+        server.add("dn: uid=dup,ou=others," + BASE_DN, "objectClass: inetOrgPerson", "uid: dup",
+                "employeeNumber: 003", "cn: dup", "sn: dup");
+        server.add("dn: uid=dup2,ou=people," + BASE_DN, "objectClass: inetOrgPerson", "uid: dup2",
+                "employeeNumber: 004", "cn: dup2", "sn: dup2");
+        server.add("dn: cn=dup,uid=dup2,ou=people," + BASE_DN, "objectClass: inetOrgPerson", "uid: dup2",
+                "cn: dup", "sn: dup2");
+        server.add("dn: cn=dup,uid=dup,ou=people," + BASE_DN, "objectClass: inetOrgPerson", "uid: dup2",
+                "cn: dup", "sn: dup2");
+        server.startListening();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.shutDown(true);
+    }
+
+    @Before
+    public void setUp() {
+        searchDelayMillis = 0L;
+        delayedBaseDN = null;
+        baseDNs = "";
+        operationTimeoutMillis = 2000L;
+        primaryUrl = null;
+        final int port = server.getListenPort();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getLdapUrl() {
+                return primaryUrl == null ? "ldap://localhost:" + port : primaryUrl + " ldap://localhost:" + port;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return BIND_DN;
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return BIND_PASSWORD;
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return BASE_DN;
+            }
+            @Mock
+            String getLdapBaseDNs() {
+                return baseDNs;
+            }
+            @Mock
+            String getLdapFilter() {
+                return "(uid={0})";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            String getSecretKeyAttributeName() {
+                return "description";
+            }
+            @Mock
+            String getRecoveryCodeAttributeName() {
+                return "";
+            }
+            @Mock
+            String getLdapUserNameAttributeName() {
+                return "uid";
+            }
+            @Mock
+            Integer getUserBatchSize() {
+                return 2;
+            }
+            @Mock
+            Integer getLdapAsyncConnectionCount() {
+                return 1;
+            }
+            @Mock
+            Long getLdapOperationTimeoutMillis() {
+                return operationTimeoutMillis;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        AsyncLdapConnectionPool.shutdown();
+    }
+
+    /**
+     * 001: CompletableFuture getUserAsync(String userName)のテストメソッドです.
+     * 設定された属性のみが、複数値属性は全ての値が取得できることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserAsync001() throws Exception {
+
+        SearchResult result = new AsyncLdapDaoImpl().getUserAsync("user001").get();
+
+        assertEquals("001", result.getValue("employeeNumber"));
+        assertEquals(2, result.getValues("description").size());
+        assertTrue(result.getValues("mail").isEmpty());
+    }
+
+    /**
+     * 002: CompletableFuture getUserAsync(String userName)のテストメソッドです.
+     * ユーザが存在しない場合はnull、重複する場合はUserDuplicatedExceptionで完了することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserAsync002() throws Exception {
+
+        AsyncDao dao = new AsyncLdapDaoImpl();
+        assertNull(dao.getUserAsync("nobody").get());
+        try {
+            dao.getUserAsync("dup").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UserDuplicatedException);
+        }
+        // 件数上限を超える場合も重複として扱う
+        try {
+            dao.getUser("dup2");
+            fail();
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 003: CompletableFuture getUserAsync(String userName)のテストメソッドです.
+     * 1つの接続上で多数の検索が応答を待たずに発行され、全て完了することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserAsync003() throws Exception {
+
+        searchDelayMillis = 100L;
+        operationTimeoutMillis = 10000L;
+        AsyncDao dao = new AsyncLdapDaoImpl();
+        List<CompletableFuture<SearchResult>> futures = new ArrayList<CompletableFuture<SearchResult>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            futures.add(dao.getUserAsync("user001"));
+        }
+        // 発行は応答を待たずに戻る
+        assertTrue(System.currentTimeMillis() - start < searchDelayMillis * 5);
+        for (CompletableFuture<SearchResult> future : futures) {
+            assertEquals("001", future.get().getValue("employeeNumber"));
+        }
+    }
+
+    /**
+     * 004: SearchResult getUser(String userName)のテストメソッドです.
+     * 操作がタイムアウトした場合、DataAccessExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test(expected = DataAccessException.class)
+    public void testGetUser001() throws Exception {
+
+        operationTimeoutMillis = 100L;
+        searchDelayMillis = 1000L;
+        new AsyncLdapDaoImpl().getUser("user001");
+    }
+
+    /**
+     * 005: void removeValue(String userName, String attributeName, String value)のテストメソッドです.
+     * 指定した値のみが削除され、削除済みの値の場合はValueAlreadyRemovedExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue001() throws Exception {
+
+        AsyncDao dao = new AsyncLdapDaoImpl();
+        dao.removeValue("user001", "description", "secret2");
+
+        List<String> values = dao.getUser("user001").getValues("description");
+        assertEquals(1, values.size());
+        assertEquals("secret1", values.get(0));
+
+        try {
+            dao.removeValue("user001", "description", "secret2");
+            fail("例外が発生するはず");
+        } catch (ValueAlreadyRemovedException e) {
+            assertEquals("削除対象の値が存在しません。ユーザ名：user001, 属性名：description", e.getMessage());
+        }
+
+        server.modify("dn: uid=user001,ou=people," + BASE_DN, "changetype: modify", "add: description",
+                "description: secret2");
+    }
+
+    /**
+     * 006: Map getUsers(Collection userNames)のテストメソッドです.
+     * バッチサイズ毎の検索で全てのユーザの検索結果が取得でき、存在しないユーザは0件、重複するユーザは2件以上となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUsers001() throws Exception {
+
+        Map<String, SearchResults> results = new AsyncLdapDaoImpl().getUsers(
+                Arrays.asList("user001", "nobody", "dup", "DUP2", "a*"));
+
+        assertEquals(Arrays.asList("user001", "nobody", "dup", "DUP2", "a*"),
+                new ArrayList<String>(results.keySet()));
+        assertTrue(ValidationUtil.isSingleRecorde(results.get("user001")));
+        SearchResult result = results.get("user001").iterator().next();
+        assertEquals("001", result.getValue("employeeNumber"));
+        assertEquals(2, result.getValues("description").size());
+        assertTrue(result.getValues("uid").isEmpty());
+        assertTrue(result.getValues("mail").isEmpty());
+        assertFalse(ValidationUtil.isSingleRecorde(results.get("nobody")));
+        assertEquals(2, results.get("dup").getCount());
+        assertEquals(3, results.get("DUP2").getCount());
+        assertEquals(0, results.get("a*").getCount());
+    }
+
+    /**
+     * 007: CompletableFuture getUserAsync(String userName)のテストメソッドです.
+     * 複数のベースDNを検索し、ベースDN毎の検索範囲に従うこと、ベースDNをまたいで重複する場合はUserDuplicatedExceptionで
+     * 完了することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserAsync004() throws Exception {
+
+        baseDNs = "ou=people," + BASE_DN + "|one; ou=others," + BASE_DN + "|one";
+        AsyncDao dao = new AsyncLdapDaoImpl();
+
+        assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+        assertNull(dao.getUser("nobody"));
+        // 1レベルの検索範囲では、下位のエントリは検索されない
+        assertEquals("004", dao.getUser("dup2").getValue("employeeNumber"));
+        try {
+            dao.getUserAsync("dup").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UserDuplicatedException);
+        }
+
+        Map<String, SearchResults> results = dao.getUsers(Arrays.asList("user001", "dup", "dup2"));
+        assertEquals(1, results.get("user001").getCount());
+        assertEquals(2, results.get("dup").getCount());
+        assertEquals(1, results.get("dup2").getCount());
+
+        try {
+            dao.removeValue("dup", "description", "none");
+            fail();
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 008: CompletableFuture getUserAsync(String userName)のテストメソッドです.
+     * 1つのベースDNで重複が確定した場合は、応答の遅い他のベースDNの検索を待たずに完了することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserAsync005() throws Exception {
+
+        baseDNs = "ou=people," + BASE_DN + ";ou=others," + BASE_DN;
+        delayedBaseDN = "ou=others," + BASE_DN;
+        searchDelayMillis = 1000L;
+        operationTimeoutMillis = 10000L;
+        AsyncDao dao = new AsyncLdapDaoImpl();
+        long start = System.currentTimeMillis();
+        try {
+            dao.getUser("dup2");
+            fail();
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < searchDelayMillis);
+    }
+
+    /**
+     * 009: SearchResult getUser(String userName)のテストメソッドです.
+     * ベースDN毎のタイムアウトが適用され、タイムアウトしたベースDNがある場合はDataAccessExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUser002() throws Exception {
+
+        baseDNs = "ou=people," + BASE_DN + ";ou=others," + BASE_DN + "|sub|200";
+        delayedBaseDN = "ou=others," + BASE_DN;
+        searchDelayMillis = 1000L;
+        operationTimeoutMillis = 10000L;
+        long start = System.currentTimeMillis();
+        try {
+            new AsyncLdapDaoImpl().getUser("user001");
+            fail();
+        } catch (DataAccessException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < searchDelayMillis);
+    }
+
+    /**
+     * 010: void removeValue(String userName, String attributeName, String value)のテストメソッドです.
+     * 削除はプライマリ (先頭のレプリカ) にのみ送信され、プライマリの障害時は他のレプリカで再試行せずに
+     * DataAccessExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue002() throws Exception {
+
+        primaryUrl = "ldap://localhost:1";
+        AsyncDao dao = new AsyncLdapDaoImpl();
+        assertEquals(2, dao.getUser("user001").getValues("description").size());
+        try {
+            dao.removeValue("user001", "description", "secret2");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            // expected
+        }
+        assertEquals(2, dao.getUser("user001").getValues("description").size());
+    }
+}
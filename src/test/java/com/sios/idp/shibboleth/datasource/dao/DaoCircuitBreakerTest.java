@@ -0,0 +1,150 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.DaoCircuitBreaker}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class DaoCircuitBreakerTest {
+
+    @Mocked
+    final AppConfig _appConfig = null;
+
+    /**
+     * 001: boolean tryAcquire()のテストメソッドです.
+     * 連続失敗回数が閾値に達した場合に開き、呼び出しが遮断されることをテストします。
+     */
+    @Test
+    public void testTryAcquire001() {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoCircuitBreakerFailureThreshold();
+                result = 3;
+                AppConfig.getDaoCircuitBreakerOpenMillis();
+                result = 60000L;
+            }
+        };
+
+        DaoCircuitBreaker breaker = new DaoCircuitBreaker();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess(0L);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(DaoCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1L, breaker.getOpenedCount());
+        assertEquals(1L, breaker.getRejectedCount());
+    }
+
+    /**
+     * 002: boolean tryAcquire()のテストメソッドです.
+     * 開いてから一定時間が経過した場合に1件のみ試行が許可され、成功した場合に閉じることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testTryAcquire002() throws Exception {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoCircuitBreakerFailureThreshold();
+                result = 1;
+                AppConfig.getDaoCircuitBreakerOpenMillis();
+                result = 50L;
+            }
+        };
+
+        DaoCircuitBreaker breaker = new DaoCircuitBreaker();
+        breaker.tryAcquire();
+        breaker.onFailure();
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(100L);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(DaoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess(0L);
+        assertEquals(DaoCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(1L, breaker.getHalfOpenedCount());
+        assertEquals(1L, breaker.getClosedCount());
+    }
+
+    /**
+     * 003: boolean tryAcquire()のテストメソッドです.
+     * 半開状態での試行に失敗した場合に再び開くことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testTryAcquire003() throws Exception {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoCircuitBreakerFailureThreshold();
+                result = 5;
+                AppConfig.getDaoCircuitBreakerSlowCallMillis();
+                result = 10L;
+                AppConfig.getDaoCircuitBreakerOpenMillis();
+                result = 50L;
+            }
+        };
+
+        DaoCircuitBreaker breaker = new DaoCircuitBreaker();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(breaker.tryAcquire());
+            // 応答時間の閾値超過は失敗として扱う
+            breaker.onSuccess(20000000L);
+        }
+        assertEquals(DaoCircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100L);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(DaoCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(2L, breaker.getOpenedCount());
+    }
+
+    /**
+     * 004: boolean tryAcquire()のテストメソッドです.
+     * 閾値が0の場合は開かないことをテストします。
+     */
+    @Test
+    public void testTryAcquire004() {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoCircuitBreakerFailureThreshold();
+                result = 0;
+            }
+        };
+
+        DaoCircuitBreaker breaker = new DaoCircuitBreaker();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(DaoCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.authn.totp.UserRecordCache;
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.DaoDecorator}とその組み込みのデコレータのテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class DaoDecoratorTest {
+
+    /** 委譲先のスタブ. */
+    private StubDao stub;
+
+    @Before
+    public void setUp() {
+        stub = new StubDao();
+        new MockUp<AppConfig>() {
+            @Mock
+            Long getUserRecordCacheTtlSec() {
+                return 60L;
+            }
+            @Mock
+            Long getUserRecordMaxStalenessSec() {
+                return 60L;
+            }
+            @Mock
+            Boolean getLdapChangeWatchEnabled() {
+                return true;
+            }
+            @Mock
+            Long getDaoTimeoutMillis() {
+                return 200L;
+            }
+            @Mock
+            Integer getDaoCircuitBreakerFailureThreshold() {
+                return 1;
+            }
+            @Mock
+            Long getDaoCircuitBreakerOpenMillis() {
+                return 50L;
+            }
+        };
+        UserRecordCache.getInstance().invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        stub.release.countDown();
+        UserRecordCache.getInstance().invalidateAll();
+        TimeoutDao.shutdown();
+    }
+
+    /**
+     * 001: CachingDaoのテストメソッドです.
+     * 有効期間内のユーザ情報は委譲せずに返却し、属性値を削除した場合に破棄することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCachingDao001() throws Exception {
+
+        CachingDao dao = new CachingDao(stub);
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+        assertEquals("user001", dao.getUserAsync("user001").get().getValue("uid"));
+        assertNull(dao.getUser("nobody"));
+        assertNull(dao.getUser("nobody"));
+        assertEquals(Arrays.asList("user001", "nobody", "nobody"), stub.calls);
+
+        Map<String, SearchResults> results = dao.getUsers(Arrays.asList("user001", "user002", "nobody"));
+        assertEquals(Arrays.asList("user001", "user002", "nobody"), new ArrayList<String>(results.keySet()));
+        assertEquals(1, results.get("user001").getCount());
+        assertEquals(0, results.get("nobody").getCount());
+        assertEquals(Arrays.asList("user001", "nobody", "nobody", "user002", "nobody"), stub.calls);
+
+        dao.removeValue("user001", "uid", "user001");
+        dao.getUser("user001");
+        assertEquals("user001", stub.calls.get(stub.calls.size() - 1));
+        assertEquals(6, stub.calls.size());
+    }
+
+    /**
+     * 002: CoalescingDaoのテストメソッドです.
+     * 同一ユーザの同時取得が1回の委譲にまとめられることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCoalescingDao001() throws Exception {
+
+        stub.blocking = true;
+        CoalescingDao dao = new CoalescingDao(new TimeoutDao(stub));
+        List<CompletableFuture<SearchResult>> futures = new ArrayList<CompletableFuture<SearchResult>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(dao.getUserAsync("user001"));
+        }
+        stub.release.countDown();
+        for (CompletableFuture<SearchResult> future : futures) {
+            assertEquals("user001", future.get(1, TimeUnit.SECONDS).getValue("uid"));
+        }
+        assertEquals(1, stub.calls.size());
+        assertEquals(1L, dao.getExecutedCount());
+        assertEquals(4L, dao.getCoalescedCount());
+
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+        assertEquals(2, stub.calls.size());
+    }
+
+    /**
+     * 003: TimeoutDaoのテストメソッドです.
+     * 同期的なDAOの応答が待ち時間を超過した場合にDataAccessExceptionとなり、
+     * 委譲先の例外はそのまま投げられることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testTimeoutDao001() throws Exception {
+
+        stub.blocking = true;
+        Dao dao = new TimeoutDao(stub);
+        long start = System.nanoTime();
+        try {
+            dao.getUser("user001");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("DAOの応答が200ミリ秒以内にありませんでした。", e.getMessage());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        try {
+            dao.getUsers(Arrays.asList("user001"));
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            // expected
+        }
+
+        stub.release.countDown();
+        try {
+            dao.getUser("dup");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+        assertEquals(1, dao.getUsers(Arrays.asList("user001")).get("user001").getCount());
+    }
+
+    /**
+     * 004: CircuitBreakerDao、MetricsDaoのテストメソッドです.
+     * サーキットブレーカーが開いている間は委譲せずに失敗し、呼び出しの結果が計測されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCircuitBreakerDao001() throws Exception {
+
+        MetricsDao dao = new MetricsDao(new CircuitBreakerDao(stub));
+
+        try {
+            dao.getUser("dup");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+        assertEquals(DaoCircuitBreaker.State.CLOSED, DaoCircuitBreaker.getInstance().getState());
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                dao.getUser("error");
+                fail("例外が発生するはず");
+            } catch (DataAccessException e) {
+                // expected
+            }
+        }
+        assertEquals(DaoCircuitBreaker.State.OPEN, DaoCircuitBreaker.getInstance().getState());
+        assertEquals(Arrays.asList("dup", "error"), stub.calls);
+
+        Thread.sleep(100L);
+        assertEquals("user001", dao.getUserAsync("user001").get().getValue("uid"));
+        assertEquals(DaoCircuitBreaker.State.CLOSED, DaoCircuitBreaker.getInstance().getState());
+
+        assertEquals(4L, dao.getCallCount(MetricsDao.Operation.GET_USER));
+        assertEquals(2L, dao.getFailureCount(MetricsDao.Operation.GET_USER));
+        assertTrue(dao.getTotalLatencyNanos(MetricsDao.Operation.GET_USER)
+                >= dao.getMaxLatencyNanos(MetricsDao.Operation.GET_USER));
+        assertEquals(0L, dao.getCallCount(MetricsDao.Operation.REMOVE_VALUE));
+    }
+
+    /**
+     * 005: DaoDecoratorのテストメソッドです.
+     * 値の削除に対応していないDAOに委譲した場合、既定のremoveValueがDataAccessExceptionを投げることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testDaoDecorator001() throws Exception {
+
+        Dao readOnly = userName -> null;
+        Dao dao = new MetricsDao(readOnly);
+        try {
+            dao.removeValue("user001", "recoveryCodeAttr", "value");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertTrue(e.getMessage().contains("unsupported"));
+        }
+        assertEquals(1L, ((MetricsDao) dao).getFailureCount(MetricsDao.Operation.REMOVE_VALUE));
+    }
+
+    /**
+     * 006: TimeoutDaoのテストメソッドです.
+     * スレッドと待機させる呼び出しが上限に達している場合、委譲せずに直ちにDataAccessExceptionとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testTimeoutDao002() throws Exception {
+
+        new MockUp<AppConfig>() {
+            @Mock
+            Integer getDaoTimeoutMaxThreads() {
+                return 1;
+            }
+            @Mock
+            Integer getDaoTimeoutMaxQueued() {
+                return 1;
+            }
+        };
+        stub.blocking = true;
+        TimeoutDao dao = new TimeoutDao(stub);
+        CompletableFuture<SearchResult> running = dao.getUserAsync("user001");
+        CompletableFuture<SearchResult> queued = dao.getUserAsync("user002");
+
+        long start = System.nanoTime();
+        try {
+            dao.getUser("user003");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("DAOの呼び出しが上限に達しているため、呼び出しを受け付けませんでした。", e.getMessage());
+        }
+        try {
+            dao.getUsers(Arrays.asList("user004"));
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("DAOの呼び出しが上限に達しているため、呼び出しを受け付けませんでした。", e.getMessage());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200L));
+
+        stub.release.countDown();
+        running.handle((result, e) -> null).get();
+        queued.handle((result, e) -> null).get();
+        assertEquals("user005", dao.getUser("user005").getValue("uid"));
+        assertFalse(stub.calls.contains("user003"));
+        assertFalse(stub.calls.contains("user004"));
+    }
+
+    /**
+     * 007: CachingDaoのテストメソッドです.
+     * 委譲先が失敗した場合、サーキットブレーカーが遮断した場合に期限内のユーザ情報を返却することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCachingDao002() throws Exception {
+
+        new MockUp<AppConfig>() {
+            @Mock
+            Long getUserRecordCacheTtlSec() {
+                return 0L;
+            }
+        };
+        CachingDao dao = new CachingDao(new CircuitBreakerDao(stub));
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+
+        stub.failing = true;
+        long staleServed = UserRecordCache.getInstance().getStaleServedCount();
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+        assertEquals(DaoCircuitBreaker.State.OPEN, DaoCircuitBreaker.getInstance().getState());
+        assertEquals("user001", dao.getUserAsync("user001").get().getValue("uid"));
+        assertEquals(staleServed + 2, UserRecordCache.getInstance().getStaleServedCount());
+        assertEquals(2, stub.calls.size());
+
+        try {
+            dao.getUser("user002");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("circuit breaker is open", e.getMessage());
+        }
+
+        stub.failing = false;
+        Thread.sleep(100L);
+        assertEquals("user002", dao.getUser("user002").getValue("uid"));
+        assertEquals(DaoCircuitBreaker.State.CLOSED, DaoCircuitBreaker.getInstance().getState());
+    }
+
+    /**
+     * 008: DaoDecoratorのテストメソッドです.
+     * 委譲先が非同期に取得できる場合、timeoutデコレータで修飾した場合に限り非同期に取得できると判定することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testDaoDecorator002() throws Exception {
+
+        assertFalse(new MetricsDao(new CachingDao(stub)).isAsync());
+        assertTrue(new MetricsDao(new TimeoutDao(new CachingDao(stub))).isAsync());
+        AsyncDao async = new AsyncDao() {
+            @Override
+            public SearchResult getUser(String userName) {
+                return null;
+            }
+            @Override
+            public CompletableFuture<SearchResult> getUserAsync(String userName) {
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        assertTrue(new MetricsDao(new CachingDao(async)).isAsync());
+
+        stub.blocking = true;
+        CompletableFuture<SearchResult> future = new CachingDao(new TimeoutDao(stub)).getUserAsync("user001");
+        assertFalse(future.isDone());
+        stub.release.countDown();
+        assertEquals("user001", future.get(1, TimeUnit.SECONDS).getValue("uid"));
+    }
+
+    /**
+     * 009: CachingDaoのテストメソッドです.
+     * ディレクトリの変更を監視していない場合、委譲先が失敗しても期限内のユーザ情報を返却しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCachingDao003() throws Exception {
+
+        new MockUp<AppConfig>() {
+            @Mock
+            Long getUserRecordCacheTtlSec() {
+                return 0L;
+            }
+            @Mock
+            Boolean getLdapChangeWatchEnabled() {
+                return false;
+            }
+        };
+        CachingDao dao = new CachingDao(stub);
+        assertEquals("user001", dao.getUser("user001").getValue("uid"));
+
+        stub.failing = true;
+        long staleServed = UserRecordCache.getInstance().getStaleServedCount();
+        try {
+            dao.getUser("user001");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("error", e.getMessage());
+        }
+        try {
+            dao.getUserAsync("user001").get();
+            fail("例外が発生するはず");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DataAccessException);
+        }
+        assertEquals(staleServed, UserRecordCache.getInstance().getStaleServedCount());
+    }
+
+    /**
+     * テスト用の同期的なDAOです.
+     * "nobody"は存在しないユーザ、"dup"は重複するユーザ、"error"は通信に失敗するユーザとします。
+     */
+    private static final class StubDao implements Dao {
+
+        /** 委譲されたユーザ名. */
+        private final List<String> calls = new CopyOnWriteArrayList<String>();
+
+        /** 応答を保留する場合はtrue. */
+        private volatile boolean blocking;
+
+        /** 全てのユーザの取得を失敗させる場合はtrue. */
+        private volatile boolean failing;
+
+        /** 保留を解除するラッチ. */
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public SearchResult getUser(String userName) throws DataAccessException, UserDuplicatedException {
+            calls.add(userName);
+            if (blocking) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DataAccessException(e);
+                }
+            }
+            if (failing) {
+                throw new DataAccessException("error");
+            }
+            switch (userName) {
+            case "nobody":
+                return null;
+            case "dup":
+                throw new UserDuplicatedException("dup");
+            case "error":
+                throw new DataAccessException("error");
+            default:
+                SearchResult result = new SearchResult();
+                result.add("uid", userName);
+                return result;
+            }
+        }
+
+        @Override
+        public void removeValue(String userName, String attributeName, String value) {
+        }
+    }
+}
@@ -7,6 +7,11 @@
 package com.sios.idp.shibboleth.datasource.dao;
 
 import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import mockit.Expectations;
 import mockit.Mocked;
 
@@ -76,4 +81,74 @@ public class DaoFactoryTest {
         fail("例外が発生するはず");
     }
 
+    /**
+     * 004: Dao createInstance() のテストメソッドです.
+     * 指定されたデコレータで外側から順に修飾され、設定が変更されるまで同じインスタンスが返却されることをテストします。
+     * @throws DaoInstantiationException DAOのインスタンス生成に失敗した場合
+     */
+    @Test
+    public void testCreateInstance003() throws DaoInstantiationException {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoImplClassName();
+                result = "com.sios.idp.shibboleth.datasource.dao.LdapDaoImpl";
+                AppConfig.getDaoDecorators();
+                result = " metrics, circuitBreaker,com.sios.idp.shibboleth.datasource.dao.CoalescingDao ,cache";
+            }
+        };
+        Dao dao = target.createInstance();
+        assertSame(dao, target.createInstance());
+        assertFalse(dao instanceof AsyncDao);
+
+        List<Class<?>> chain = new ArrayList<Class<?>>();
+        for (Dao current = dao; current != null;
+                current = current instanceof DaoDecorator ? ((DaoDecorator) current).getDelegate() : null) {
+            chain.add(current.getClass());
+        }
+        assertEquals(Arrays.<Class<?>>asList(MetricsDao.class, CircuitBreakerDao.class, CoalescingDao.class,
+                CachingDao.class, LdapDaoImpl.class), chain);
+    }
+
+    /**
+     * 005: Dao createInstance() のテストメソッドです.
+     * デコレータでないクラスが指定された場合、DaoInstantiationExceptionがthrowされることをテストします。
+     * @throws DaoInstantiationException DAOのインスタンス生成に失敗した場合
+     */
+    @Test(expected = DaoInstantiationException.class)
+    public void testCreateInstance004() throws DaoInstantiationException {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoImplClassName();
+                result = "com.sios.idp.shibboleth.datasource.dao.LdapDaoImpl";
+                AppConfig.getDaoDecorators();
+                result = "metrics,com.sios.idp.shibboleth.datasource.dao.LdapDaoImpl";
+            }
+        };
+        target.createInstance();
+        fail("例外が発生するはず");
+    }
+
+    /**
+     * 006: Dao createInstance() のテストメソッドです.
+     * timeoutデコレータで修飾した場合に限り、AsyncDaoを実装したインスタンスが返却されることをテストします。
+     * @throws DaoInstantiationException DAOのインスタンス生成に失敗した場合
+     */
+    @Test
+    public void testCreateInstance005() throws DaoInstantiationException {
+
+        new Expectations() {
+            {
+                AppConfig.getDaoImplClassName();
+                result = "com.sios.idp.shibboleth.datasource.dao.LdapDaoImpl";
+                AppConfig.getDaoDecorators();
+                result = "metrics,timeout";
+            }
+        };
+        Dao dao = target.createInstance();
+        assertTrue(dao instanceof AsyncDao);
+        assertTrue(((DaoDecorator) dao).getDelegate() instanceof MetricsDao);
+    }
+
 }
@@ -0,0 +1,344 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.http.HttpUserClient;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.DataAccessException;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.HttpDaoImpl}のテストクラスです.
+ * ローカルのスタブサーバに対して実行します。
+ * @author SIOS Technology, Inc.
+ */
+public class HttpDaoImplTest {
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    /** 受信したリクエストの接続元ポート. */
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    /** 受信したリクエスト (メソッド、パス、Authorizationヘッダ、本文). */
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+
+    /** スタブサーバのユーザ情報のバージョン. */
+    private final AtomicInteger version = new AtomicInteger(1);
+
+    /** PATCHの前に他の要求による更新を模擬する回数. */
+    private final AtomicInteger conflicts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.createContext("/scim/v2/Users", this::handle);
+        server.start();
+        final int port = server.getAddress().getPort();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getHttpUserUrl() {
+                return "http://localhost:" + port + "/scim/v2/Users?filter=userName%20eq%20%22{0}%22";
+            }
+            @Mock
+            String getHttpUserPatchUrl() {
+                return "http://localhost:" + port + "/scim/v2/Users/{0}";
+            }
+            @Mock
+            String getHttpAuthorization() {
+                return "Bearer token";
+            }
+            @Mock
+            Long getHttpRequestTimeoutMillis() {
+                return 500L;
+            }
+            @Mock
+            Integer getHttpMaxResponseBytes() {
+                return 1024;
+            }
+            @Mock
+            Integer getUserBatchSize() {
+                return 2;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        HttpUserClient.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * 001: SearchResult getUser(String userName)のテストメソッドです.
+     * SCIMのListResponseがユーザ情報に変換され、認証ヘッダの送信とエスケープが行われ、接続が再利用されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUser001() throws Exception {
+
+        Dao dao = new HttpDaoImpl();
+        SearchResult result = dao.getUser("user001");
+
+        assertEquals("2819c223", result.getValue("id"));
+        assertEquals("user001", result.getValue("userName"));
+        assertEquals("Jensen", result.getValue("name.familyName"));
+        assertEquals(Arrays.asList("SECRET1", "SECRET2"), result.getValues("totpSecret"));
+        assertEquals(Arrays.asList("a@example.com", "b@example.com"), result.getValues("emails.value"));
+        assertEquals("true", result.getValue("active"));
+        assertEquals("3", result.getValue("loginCount"));
+        assertNull(result.getValue("nickName"));
+        assertNull(result.getValue("totalResults"));
+
+        assertNotNull(dao.getUser("User\"001 "));
+        assertNotNull(dao.getUser("user001"));
+        assertEquals("GET userName eq \"user001\" Bearer token ", requests.get(0));
+        assertEquals("GET userName eq \"User\\\"001 \" Bearer token ", requests.get(1));
+        assertEquals(1, clientPorts.size());
+    }
+
+    /**
+     * 002: SearchResult getUser(String userName)のテストメソッドです.
+     * ユーザが存在しない場合はnull、複数存在する場合はUserDuplicatedExceptionとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUser002() throws Exception {
+
+        Dao dao = new HttpDaoImpl();
+        assertNull(dao.getUser("nobody"));
+        assertNull(dao.getUser("gone"));
+        try {
+            dao.getUser("dup");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 003: SearchResult getUser(String userName)のテストメソッドです.
+     * レスポンスの上限サイズを超えた場合、タイムアウトした場合、サーバエラーの場合にDataAccessExceptionとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUser003() throws Exception {
+
+        Dao dao = new HttpDaoImpl();
+        for (String userName : Arrays.asList("large", "slow", "error")) {
+            try {
+                dao.getUser(userName);
+                fail("例外が発生するはず：" + userName);
+            } catch (DataAccessException e) {
+                // expected
+            }
+        }
+        assertEquals("user001", dao.getUser("user001").getValue("userName"));
+    }
+
+    /**
+     * 004: Map getUsers(Collection userNames)のテストメソッドです.
+     * 全てのユーザのユーザ情報が入力の順に取得できることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUsers001() throws Exception {
+
+        Map<String, SearchResults> results = new HttpDaoImpl().getUsers(
+                Arrays.asList("user001", "nobody", "dup", "user001", "user002"));
+
+        assertEquals(Arrays.asList("user001", "nobody", "dup", "user002"),
+                Arrays.asList(results.keySet().toArray()));
+        assertEquals(1, results.get("user001").getCount());
+        assertEquals(0, results.get("nobody").getCount());
+        assertEquals(2, results.get("dup").getCount());
+        assertEquals("user002", results.get("user002").iterator().next().getValue("userName"));
+        assertEquals(4, requests.size());
+    }
+
+    /**
+     * 005: void removeValue(String userName, String attributeName, String value)のテストメソッドです.
+     * ユーザ情報のidに対してバージョンをIf-Matchに指定したSCIMのPATCHが送信され、
+     * 値を持たない場合はValueAlreadyRemovedExceptionとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue001() throws Exception {
+
+        Dao dao = new HttpDaoImpl();
+        dao.removeValue("user001", "totpSecret", "SECRET2");
+        assertEquals("PATCH /scim/v2/Users/2819c223 Bearer token W/\"1\" "
+                + "{\"schemas\":[\"urn:ietf:params:scim:api:messages:2.0:PatchOp\"],"
+                + "\"Operations\":[{\"op\":\"remove\",\"path\":\"totpSecret[value eq \\\"SECRET2\\\"]\"}]}",
+                requests.get(1));
+
+        try {
+            dao.removeValue("user001", "totpSecret", "SECRET9");
+            fail("例外が発生するはず");
+        } catch (ValueAlreadyRemovedException e) {
+            assertEquals("削除対象の値が存在しません。ユーザ名：user001, 属性名：totpSecret", e.getMessage());
+        }
+        try {
+            dao.removeValue("nobody", "totpSecret", "SECRET2");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            assertEquals("更新対象のユーザ情報が1件に特定できません。ユーザ名：nobody, 件数：0", e.getMessage());
+        }
+        assertEquals(4, requests.size());
+    }
+
+    /**
+     * 006: void removeValue(String userName, String attributeName, String value)のテストメソッドです.
+     * 取得後にユーザ情報が更新されていた (412) 場合は取得し直して削除し、競合が続く場合はDataAccessExceptionとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue002() throws Exception {
+
+        Dao dao = new HttpDaoImpl();
+        conflicts.set(1);
+        dao.removeValue("user001", "totpSecret", "SECRET2");
+        assertEquals(4, requests.size());
+        assertTrue(requests.get(1).startsWith("PATCH /scim/v2/Users/2819c223 Bearer token W/\"1\" "));
+        assertTrue(requests.get(3).startsWith("PATCH /scim/v2/Users/2819c223 Bearer token W/\"2\" "));
+
+        requests.clear();
+        conflicts.set(3);
+        try {
+            dao.removeValue("user001", "totpSecret", "SECRET2");
+            fail("例外が発生するはず");
+        } catch (DataAccessException e) {
+            assertEquals("ユーザ情報の更新が競合したため、属性値を削除できませんでした。ユーザ名：user001", e.getMessage());
+        }
+        assertEquals(6, requests.size());
+    }
+
+    /**
+     * スタブサーバのリクエストを処理します.
+     * @param exchange リクエストとレスポンス
+     * @throws IOException 送信に失敗した場合
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        String query = exchange.getRequestURI().getQuery();
+        String filter = query == null ? "" : query.substring("filter=".length());
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if ("PATCH".equals(exchange.getRequestMethod())) {
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            requests.add("PATCH " + exchange.getRequestURI().getPath() + " " + authorization + " " + ifMatch + " "
+                    + new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            // 他の要求による更新を模擬する
+            if (conflicts.getAndDecrement() > 0) {
+                version.incrementAndGet();
+            }
+            if (!("W/\"" + version.get() + "\"").equals(ifMatch)) {
+                send(exchange, 412, "{\"status\":\"412\"}");
+                return;
+            }
+            send(exchange, 204, "");
+            return;
+        }
+        requests.add("GET " + filter + " " + authorization + " ");
+        String userName = filter.substring(filter.indexOf('"') + 1, filter.lastIndexOf('"'));
+        switch (userName) {
+        case "nobody":
+            send(exchange, 200, list());
+            break;
+        case "gone":
+            send(exchange, 404, "{\"status\":\"404\"}");
+            break;
+        case "dup":
+            send(exchange, 200, list(user("1", "dup"), user("2", "dup")));
+            break;
+        case "large":
+            send(exchange, 200, list(user("1", String.join("", Collections.nCopies(2000, "x")))));
+            break;
+        case "slow":
+            try {
+                Thread.sleep(2000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            send(exchange, 200, list());
+            break;
+        case "error":
+            send(exchange, 500, "{}");
+            break;
+        case "user002":
+            send(exchange, 200, list(user("2", "user002")));
+            break;
+        default:
+            send(exchange, 200, list(user("2819c223", "user001")));
+            break;
+        }
+    }
+
+    private static String list(String... users) {
+        return "{\"schemas\":[\"urn:ietf:params:scim:api:messages:2.0:ListResponse\"],\"totalResults\":"
+                + users.length + ",\"Resources\":[" + String.join(",", users) + "]}";
+    }
+
+    private String user(String id, String userName) {
+        return "{\"id\":\"" + id + "\",\"userName\":\"" + userName + "\",\"name\":{\"familyName\":\"Jensen\"},"
+                + "\"meta\":{\"version\":\"W/\\\"" + version.get() + "\\\"\"},"
+                + "\"emails\":[{\"value\":\"a@example.com\",\"primary\":true},{\"value\":\"b@example.com\"}],"
+                + "\"totpSecret\":[\"SECRET1\",\"SECRET2\"],\"active\":true,\"loginCount\":3,\"nickName\":null}";
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/scim+json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.common.util.ValidationUtil;
+import com.sios.idp.shibboleth.datasource.jdbc.JdbcConnectionPool;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.JdbcDaoImpl}のテストクラスです.
+ * インメモリデータベース (H2) に対して実行します。
+ * @author SIOS Technology, Inc.
+ */
+public class JdbcDaoImplTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcDaoImplTest.class);
+
+    private static final String JDBC_URL = "jdbc:h2:mem:totp;DB_CLOSE_DELAY=-1";
+
+    /** テーブルを保持するための接続. */
+    private static Connection keepAlive;
+
+    @BeforeClass
+    public static void createTable() throws Exception {
+        keepAlive = DriverManager.getConnection(JDBC_URL);
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("CREATE TABLE totp_user (user_name VARCHAR(64), immutable_id VARCHAR(64),"
+                    + " secret_key VARCHAR(256), recovery_code VARCHAR(256))");
+        }
+    }
+
+    @AfterClass
+    public static void dropTable() throws Exception {
+        keepAlive.close();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("DELETE FROM totp_user");
+            statement.execute("INSERT INTO totp_user VALUES ('user001', '001', 'secret1', 'code1')");
+            statement.execute("INSERT INTO totp_user VALUES ('user001', '001', 'secret2', 'code2')");
+            statement.execute("INSERT INTO totp_user VALUES ('user001', '001', 'secret1', NULL)");
+            statement.execute("INSERT INTO totp_user VALUES ('dup', '002', 'secret3', NULL)");
+            statement.execute("INSERT INTO totp_user VALUES ('dup', '003', 'secret4', NULL)");
+            for (int i = 0; i < 100; i++) {
+                statement.execute("INSERT INTO totp_user VALUES ('bench" + i + "', 'b" + i + "', 'secret', NULL)");
+            }
+        }
+        new MockUp<AppConfig>() {
+            @Mock
+            String getJdbcUrl() {
+                return JDBC_URL;
+            }
+            @Mock
+            Integer getJdbcMaxPoolSize() {
+                return 4;
+            }
+            @Mock
+            String getJdbcUserQuery() {
+                return "SELECT immutable_id, secret_key, recovery_code FROM totp_user WHERE user_name = ?";
+            }
+            @Mock
+            String getJdbcUsersQuery() {
+                return "SELECT user_name, immutable_id, secret_key, recovery_code FROM totp_user"
+                        + " WHERE user_name IN ({0})";
+            }
+            @Mock
+            String getJdbcUserNameColumn() {
+                return "user_name";
+            }
+            @Mock
+            String getJdbcRemoveValueQuery() {
+                return "UPDATE totp_user SET {0} = NULL WHERE user_name = ? AND {0} = ?";
+            }
+            @Mock
+            String getJdbcColumnMapping() {
+                return "immutable_id=employeeNumber,secret_key=description,recovery_code=recoveryCode";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            Integer getUserBatchSize() {
+                return 2;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        JdbcConnectionPool.shutdown();
+    }
+
+    /**
+     * 001: SearchResult getUser(String userName)のテストメソッドです.
+     * 同じユーザ固有IDの複数の行が複数値属性として結合され、存在しないユーザはnullとなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUser001() throws Exception {
+
+        Dao dao = new JdbcDaoImpl();
+        SearchResult result = dao.getUser("user001");
+
+        assertEquals("001", result.getValue("employeeNumber"));
+        assertEquals(1, result.getValues("employeeNumber").size());
+        assertEquals(Arrays.asList("secret1", "secret2"), result.getValues("description"));
+        assertEquals(Arrays.asList("code1", "code2"), result.getValues("recoveryCode"));
+        assertNull(dao.getUser("nobody"));
+    }
+
+    /**
+     * 002: SearchResult getUser(String userName)のテストメソッドです.
+     * ユーザ固有IDの異なる行が存在する場合、UserDuplicatedExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test(expected = UserDuplicatedException.class)
+    public void testGetUser002() throws Exception {
+
+        new JdbcDaoImpl().getUser("dup");
+    }
+
+    /**
+     * 003: Map getUsers(Collection userNames)のテストメソッドです.
+     * バッチサイズ毎の検索で全てのユーザの検索結果が取得でき、同じSQLのPreparedStatementが再利用されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUsers001() throws Exception {
+
+        Map<String, SearchResults> results = new JdbcDaoImpl().getUsers(
+                Arrays.asList("user001", "nobody", "dup", "USER001", "bench1"));
+
+        assertEquals(Arrays.asList("user001", "nobody", "dup", "USER001", "bench1"),
+                new ArrayList<String>(results.keySet()));
+        assertTrue(ValidationUtil.isSingleRecorde(results.get("user001")));
+        SearchResult result = results.get("user001").iterator().next();
+        assertEquals(Arrays.asList("secret1", "secret2"), result.getValues("description"));
+        assertTrue(result.getValues("user_name").isEmpty());
+        assertEquals(0, results.get("nobody").getCount());
+        assertEquals(2, results.get("dup").getCount());
+        assertEquals("b1", results.get("bench1").iterator().next().getValue("employeeNumber"));
+
+        JdbcConnectionPool pool = JdbcConnectionPool.getInstance();
+        assertEquals(1L, pool.getStatementPreparedCount());
+        assertEquals(0L, pool.getStatementCacheHitCount());
+    }
+
+    /**
+     * 004: void removeValue(String userName, String attributeName, String value)のテストメソッドです.
+     * 指定した値のみが削除され、更新対象が複数行の場合はロールバックされ、削除済みの値の場合は
+     * ValueAlreadyRemovedExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue001() throws Exception {
+
+        Dao dao = new JdbcDaoImpl();
+        dao.removeValue("user001", "recoveryCode", "code2");
+        assertEquals(Arrays.asList("code1"), dao.getUser("user001").getValues("recoveryCode"));
+
+        try {
+            dao.removeValue("user001", "description", "secret1");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            assertTrue(e.getMessage().contains("件数：2"));
+        }
+        assertEquals(Arrays.asList("secret1", "secret2"), dao.getUser("user001").getValues("description"));
+
+        try {
+            dao.removeValue("user001", "recoveryCode", "code2");
+            fail("例外が発生するはず");
+        } catch (ValueAlreadyRemovedException e) {
+            assertEquals("削除対象の値が存在しません。ユーザ名：user001, 属性名：recoveryCode", e.getMessage());
+        }
+    }
+
+    /**
+     * 005: SearchResult getUser(String userName)の性能測定です.
+     * 複数スレッドからの検索で接続とPreparedStatementが再利用されることを確認し、スループットをログに出力します。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserBenchmark001() throws Exception {
+
+        final Dao dao = new JdbcDaoImpl();
+        final int threads = 4;
+        final int lookups = 2000;
+        // ウォームアップ
+        for (int i = 0; i < 100; i++) {
+            dao.getUser("bench" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(() -> {
+                    int found = 0;
+                    for (int i = 0; i < lookups / threads; i++) {
+                        if (dao.getUser("bench" + ((i + offset) % 100)) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }));
+            }
+            int found = 0;
+            for (Future<Integer> future : futures) {
+                found += future.get();
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            assertEquals(lookups, found);
+            LOGGER.info("JdbcDaoImpl.getUser: {}件, {}ミリ秒, {}件/秒", lookups,
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos), lookups * 1000000000L / Math.max(elapsedNanos, 1L));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        JdbcConnectionPool pool = JdbcConnectionPool.getInstance();
+        assertTrue(pool.getCreatedCount() <= threads);
+        assertEquals(pool.getCreatedCount(), pool.getStatementPreparedCount());
+        assertEquals(lookups + 100 - pool.getStatementPreparedCount(), pool.getStatementCacheHitCount());
+    }
+}
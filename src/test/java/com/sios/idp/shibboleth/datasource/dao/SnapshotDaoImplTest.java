@@ -0,0 +1,184 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.dao;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotStore;
+import com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotWriter;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+import com.sios.idp.shibboleth.exception.ValueAlreadyRemovedException;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.dao.SnapshotDaoImpl}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class SnapshotDaoImplTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotDaoImplTest.class);
+
+    private static final int USER_COUNT = 200;
+
+    private InMemoryDirectoryServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials("cn=admin", "password");
+        config.setSchema(null);
+        server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        server.add("dn: dc=example,dc=com", "objectClass: domain", "dc: example");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        for (int i = 0; i < USER_COUNT; i++) {
+            server.add("dn: uid=user" + i + ",dc=example,dc=com", "objectClass: inetOrgPerson",
+                    "uid: user" + i, "employeeNumber: " + i, "description: SECRET" + i, "carLicense: CODE" + i);
+            Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+            attributes.put("employeeNumber", Collections.singletonList(String.valueOf(i)));
+            attributes.put("description", Collections.singletonList("SECRET" + i));
+            attributes.put("carLicense", Arrays.asList("CODE" + i, "CODE" + i + "B"));
+            writer.add("user" + i, attributes);
+        }
+        final Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        writer.write(file);
+        final int port = server.getListenPort();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getUserSnapshotPath() {
+                return file.toString();
+            }
+            @Mock
+            Long getUserSnapshotReloadIntervalMillis() {
+                return 0L;
+            }
+            @Mock
+            String getLdapUrl() {
+                return "ldap://localhost:" + port;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return "cn=admin";
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return "password";
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return "dc=example,dc=com";
+            }
+            @Mock
+            String getLdapFilter() {
+                return "(uid={0})";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            String getSecretKeyAttributeName() {
+                return "description";
+            }
+            @Mock
+            String getRecoveryCodeAttributeName() {
+                return "carLicense";
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        UserSnapshotStore.shutdown();
+        server.shutDown(true);
+    }
+
+    /**
+     * 001: void removeValue(String, String, String)のテストメソッドです.
+     * 削除した値が更新ジャーナルを通して参照に反映され、値を持たない場合はValueAlreadyRemovedException、
+     * ユーザが存在しない場合はUserDuplicatedExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRemoveValue001() throws Exception {
+
+        Dao dao = new SnapshotDaoImpl();
+        dao.removeValue("user1", "carLicense", "CODE1");
+        assertEquals(Arrays.asList("CODE1B"), dao.getUser("user1").getValues("carLicense"));
+        assertEquals("SECRET1", dao.getUser("USER1").getValue("description"));
+        assertEquals(1, UserSnapshotStore.getInstance().getJournal().size());
+
+        try {
+            dao.removeValue("user1", "carLicense", "CODE1");
+            fail("例外が発生するはず");
+        } catch (ValueAlreadyRemovedException e) {
+            assertEquals("削除対象の値が存在しません。ユーザ名：user1, 属性名：carLicense", e.getMessage());
+        }
+        try {
+            dao.removeValue("nobody", "carLicense", "CODE1");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 002: SearchResult getUser(String)の性能測定です.
+     * ローカルのインメモリディレクトリに対するLdapDaoImplと同じユーザ情報が取得できることを確認し、それぞれの平均応答時間をログに出力します。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserBenchmark001() throws Exception {
+
+        Dao snapshotDao = new SnapshotDaoImpl();
+        Dao ldapDao = new LdapDaoImpl();
+        for (int i = 0; i < USER_COUNT; i++) {
+            assertEquals(ldapDao.getUser("user" + i).getValue("description"),
+                    snapshotDao.getUser("user" + i).getValue("description"));
+        }
+
+        long ldapNanos = measure(ldapDao, 1000);
+        long snapshotNanos = measure(snapshotDao, 100000);
+        LOGGER.info("getUserの平均応答時間：LdapDaoImpl {}マイクロ秒, SnapshotDaoImpl {}マイクロ秒",
+                TimeUnit.NANOSECONDS.toMicros(ldapNanos), TimeUnit.NANOSECONDS.toMicros(snapshotNanos));
+    }
+
+    /**
+     * ユーザ情報の取得の平均応答時間を測定します.
+     * @param dao DAO
+     * @param lookups 取得回数
+     * @return 平均応答時間 (ナノ秒)
+     * @throws Exception 取得に失敗した場合
+     */
+    private static long measure(Dao dao, int lookups) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            assertNotNull(dao.getUser("user" + (i % USER_COUNT)));
+        }
+        return (System.nanoTime() - start) / lookups;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.dto.SearchResults;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.http.JsonUserParser}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class JsonUserParserTest {
+
+    /**
+     * 001: SearchResults parse(InputStream, String)のテストメソッドです.
+     * 複数のユーザ情報のメンバーを持たないオブジェクトが1件のユーザ情報となり、入れ子の配列も複数の値となることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testParse001() throws Exception {
+
+        SearchResults results = parse("{\"uid\":\"user001\",\"codes\":[[\"A\",\"B\"],\"C\"],"
+                + "\"Resources\":\"none\",\"meta\":{\"version\":{\"major\":1}}}");
+
+        assertEquals(1, results.getCount());
+        SearchResult result = results.iterator().next();
+        assertEquals("user001", result.getValue("uid"));
+        assertEquals(Arrays.asList("A", "B", "C"), result.getValues("codes"));
+        assertEquals("none", result.getValue("Resources"));
+        assertEquals("1", result.getValue("meta.version.major"));
+    }
+
+    /**
+     * 002: SearchResults parse(InputStream, String)のテストメソッドです.
+     * オブジェクトでない場合、JSONの形式が不正な場合にIOExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testParse002() throws Exception {
+
+        for (String json : Arrays.asList("[]", "{\"uid\":", "{\"Resources\":[1]}")) {
+            try {
+                parse(json);
+                fail("例外が発生するはず：" + json);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static SearchResults parse(String json) throws IOException {
+        return JsonUserParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "Resources");
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.jdbc.JdbcConnectionPool}のテストクラスです.
+ * インメモリデータベース (H2) に対して実行します。
+ * @author SIOS Technology, Inc.
+ */
+public class JdbcConnectionPoolTest {
+
+    private static final String JDBC_URL = "jdbc:h2:mem:pool";
+
+    /**
+     * 001: PooledJdbcConnection borrow()のテストメソッドです.
+     * 返却された接続が再利用され、上限まで貸し出している場合はタイムアウトすることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testBorrow001() throws Exception {
+
+        JdbcConnectionPool pool = new JdbcConnectionPool(JDBC_URL, "", "", 1, 100L, 4);
+        PooledJdbcConnection first = pool.borrow();
+        try {
+            pool.borrow();
+            fail("例外が発生するはず");
+        } catch (SQLTimeoutException e) {
+            // expected
+        }
+        first.close();
+        assertEquals(1, pool.getIdleCount());
+
+        PooledJdbcConnection second = pool.borrow();
+        assertSame(first, second);
+        second.close();
+        assertEquals(1L, pool.getCreatedCount());
+        assertEquals(2L, pool.getBorrowedCount());
+    }
+
+    /**
+     * 002: PooledJdbcConnection borrow()のテストメソッドです.
+     * 破損した接続は返却時に切断され、次の貸し出しで新しい接続が生成されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testBorrow002() throws Exception {
+
+        JdbcConnectionPool pool = new JdbcConnectionPool(JDBC_URL, "", "", 1, 100L, 4);
+        PooledJdbcConnection first = pool.borrow();
+        first.markBroken();
+        first.close();
+        assertTrue(first.getConnection().isClosed());
+        assertEquals(0, pool.getIdleCount());
+
+        PooledJdbcConnection second = pool.borrow();
+        assertNotSame(first, second);
+        second.close();
+        assertEquals(2L, pool.getCreatedCount());
+    }
+
+    /**
+     * 003: PreparedStatement prepare(String sql)のテストメソッドです.
+     * 同じSQLのPreparedStatementが再利用され、上限を超えた場合は最も古いものが閉じられることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testPrepare001() throws Exception {
+
+        JdbcConnectionPool pool = new JdbcConnectionPool(JDBC_URL, "", "", 1, 100L, 2);
+        try (PooledJdbcConnection connection = pool.borrow()) {
+            PreparedStatement one = connection.prepare("SELECT 1");
+            assertSame(one, connection.prepare("SELECT 1"));
+            PreparedStatement two = connection.prepare("SELECT 2");
+            connection.prepare("SELECT 1");
+            connection.prepare("SELECT 3");
+            assertTrue(two.isClosed());
+            assertFalse(one.isClosed());
+        }
+        assertEquals(3L, pool.getStatementPreparedCount());
+        assertEquals(2L, pool.getStatementCacheHitCount());
+    }
+
+    /**
+     * 004: void reconfigure()のテストメソッドです.
+     * 新しい接続プールに置き換えた後も、古い接続プールから貸し出し中の接続は返却まで使用でき、
+     * 古い接続プールは返却を待つ時間の経過後に停止することをテストします。
+     * @param appConfig モック化したAppConfig
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testReconfigure001(@Mocked AppConfig appConfig) throws Exception {
+
+        new Expectations() {
+            {
+                AppConfig.getJdbcUrl();
+                result = JDBC_URL;
+                AppConfig.getJdbcBorrowTimeoutMillis();
+                result = 100L;
+            }
+        };
+
+        JdbcConnectionPool.shutdown();
+        // 生成されていない場合は何もしない
+        JdbcConnectionPool.reconfigure();
+
+        JdbcConnectionPool first = JdbcConnectionPool.getInstance();
+        PooledJdbcConnection borrowed = first.borrow();
+        try {
+            JdbcConnectionPool.reconfigure();
+            JdbcConnectionPool second = JdbcConnectionPool.getInstance();
+            assertNotSame(first, second);
+            assertFalse(borrowed.getConnection().isClosed());
+
+            Thread.sleep(500L);
+            try {
+                first.borrow();
+                fail("例外が発生するはず");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertFalse(borrowed.getConnection().isClosed());
+            borrowed.close();
+            assertTrue(borrowed.getConnection().isClosed());
+            assertSame(second, JdbcConnectionPool.getInstance());
+        } finally {
+            JdbcConnectionPool.shutdown();
+        }
+    }
+}
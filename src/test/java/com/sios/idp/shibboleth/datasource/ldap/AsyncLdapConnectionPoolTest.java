@@ -0,0 +1,324 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.dao.AsyncLdapDaoImpl;
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.AsyncLdapConnectionPool}のテストクラスです.
+ * 3台のインメモリLDAPサーバをレプリカとして、レプリカの選択、切り離し、復旧をテストします。
+ * @author SIOS Technology, Inc.
+ */
+public class AsyncLdapConnectionPoolTest {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String BIND_DN = "cn=admin";
+    private static final String BIND_PASSWORD = "password";
+    private static final int REPLICA_COUNT = 3;
+
+    private final InMemoryDirectoryServer[] servers = new InMemoryDirectoryServer[REPLICA_COUNT];
+    private final int[] ports = new int[REPLICA_COUNT];
+    private final AtomicInteger[] searchCounts = new AtomicInteger[REPLICA_COUNT];
+    private final long[] searchDelayMillis = new long[REPLICA_COUNT];
+
+    private String selection;
+    private long operationTimeoutMillis;
+    private int hedgePercentile;
+
+    @Before
+    public void setUp() throws Exception {
+
+        StringBuilder urls = new StringBuilder();
+        for (int i = 0; i < REPLICA_COUNT; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+            searchCounts[i] = new AtomicInteger();
+            searchDelayMillis[i] = 0L;
+            servers[i] = createServer(i);
+            servers[i].startListening();
+            urls.append("ldap://localhost:").append(ports[i]).append(' ');
+        }
+        selection = AsyncLdapConnectionPool.SELECTION_EWMA;
+        operationTimeoutMillis = 2000L;
+        hedgePercentile = 0;
+
+        final String ldapUrl = urls.toString();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getLdapUrl() {
+                return ldapUrl;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return BIND_DN;
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return BIND_PASSWORD;
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return BASE_DN;
+            }
+            @Mock
+            String getLdapFilter() {
+                return "(uid={0})";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            String getSecretKeyAttributeName() {
+                return "description";
+            }
+            @Mock
+            String getRecoveryCodeAttributeName() {
+                return "";
+            }
+            @Mock
+            Integer getLdapAsyncConnectionCount() {
+                return 1;
+            }
+            @Mock
+            Long getLdapOperationTimeoutMillis() {
+                return operationTimeoutMillis;
+            }
+            @Mock
+            String getLdapReplicaSelection() {
+                return selection;
+            }
+            @Mock
+            Integer getLdapReplicaFailureThreshold() {
+                return 2;
+            }
+            @Mock
+            Long getLdapReplicaProbeIntervalMillis() {
+                return 100L;
+            }
+            @Mock
+            Integer getLdapHedgePercentile() {
+                return hedgePercentile;
+            }
+            @Mock
+            Integer getLdapHedgeBudgetPercent() {
+                return 100;
+            }
+            @Mock
+            Long getLdapHedgeBudgetWindowMillis() {
+                return 10000L;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        AsyncLdapConnectionPool.shutdown();
+        for (InMemoryDirectoryServer server : servers) {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * 001: LdapReplica selectReplica(Collection excluded)のテストメソッドです.
+     * EWMA方式では、応答の遅いレプリカが選択されにくくなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelectReplica001() throws Exception {
+
+        searchDelayMillis[1] = 100L;
+        AsyncLdapDaoImpl dao = new AsyncLdapDaoImpl();
+        for (int i = 0; i < 60; i++) {
+            assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+        }
+
+        assertEquals(60, searchCounts[0].get() + searchCounts[1].get() + searchCounts[2].get());
+        assertTrue(searchCounts[1].get() < 10);
+        assertTrue(searchCounts[0].get() + searchCounts[2].get() > 50);
+    }
+
+    /**
+     * 002: LdapReplica selectReplica(Collection excluded)のテストメソッドです.
+     * LEAST_OUTSTANDING方式では、処理中の操作が少ないレプリカが選択され、
+     * 応答の遅いレプリカへの同時要求が少なくなることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelectReplica002() throws Exception {
+
+        selection = AsyncLdapConnectionPool.SELECTION_LEAST_OUTSTANDING;
+        searchDelayMillis[1] = 300L;
+        AsyncLdapDaoImpl dao = new AsyncLdapDaoImpl();
+        for (int round = 0; round < 5; round++) {
+            List<CompletableFuture<SearchResult>> futures = new ArrayList<CompletableFuture<SearchResult>>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(dao.getUserAsync("user001"));
+                Thread.sleep(20L);
+            }
+            for (CompletableFuture<SearchResult> future : futures) {
+                assertEquals("001", future.get().getValue("employeeNumber"));
+            }
+        }
+
+        // 遅いレプリカは処理中の操作が残るため、ラウンド毎に高々1回しか選択されない
+        assertTrue(searchCounts[1].get() <= 5);
+        AsyncLdapConnectionPool pool = AsyncLdapConnectionPool.getInstance();
+        for (LdapReplica replica : pool.getReplicas()) {
+            assertEquals(0, replica.getOutstanding());
+        }
+    }
+
+    /**
+     * 003: LdapReplica selectReplica(Collection excluded)のテストメソッドです.
+     * 停止したレプリカでの失敗時は他のレプリカで再試行され、
+     * 連続失敗回数が閾値に達したレプリカは切り離され、復旧後に死活監視で選択対象に戻ることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelectReplica003() throws Exception {
+
+        AsyncLdapDaoImpl dao = new AsyncLdapDaoImpl();
+        assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+        servers[0].shutDown(true);
+
+        // 停止したレプリカが選択されても、他のレプリカで再試行されて成功する
+        // (選択されにくいレプリカも応答時間の移動平均の減衰により、いずれ選択される)
+        LdapReplica stopped = AsyncLdapConnectionPool.getInstance().getReplicas().get(0);
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (stopped.isHealthy() && System.currentTimeMillis() < deadline) {
+            assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+            Thread.sleep(5L);
+        }
+        assertFalse(stopped.isHealthy());
+
+        // 切り離されたレプリカは選択されない
+        int count = searchCounts[0].get();
+        for (int i = 0; i < 10; i++) {
+            dao.getUser("user001");
+        }
+        assertEquals(count, searchCounts[0].get());
+
+        // 復旧後、死活監視により選択対象に戻る
+        servers[0] = createServer(0);
+        servers[0].startListening();
+        deadline = System.currentTimeMillis() + 5000L;
+        while (!stopped.isHealthy() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertTrue(stopped.isHealthy());
+        for (int i = 0; i < 10; i++) {
+            dao.getUser("user001");
+        }
+        assertTrue(searchCounts[0].get() > 0);
+    }
+
+    /**
+     * 004: LdapReplica selectReplica(Collection excluded)のテストメソッドです.
+     * 全てのレプリカが除外されている場合はnullが返却されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testSelectReplica004() throws Exception {
+
+        AsyncLdapConnectionPool pool = AsyncLdapConnectionPool.getInstance();
+        assertEquals(REPLICA_COUNT, pool.getReplicas().size());
+        assertNotNull(pool.selectReplica(Collections.<LdapReplica>emptyList()));
+        assertNull(pool.selectReplica(pool.getReplicas()));
+    }
+
+    /**
+     * 005: SearchResult getUser(String userName)のテストメソッドです.
+     * ヘッジが有効な場合、応答の遅いレプリカへの検索は遅延時間の経過後に別のレプリカにも送信され、
+     * 先に完了した結果が使用され、遅い検索は放棄されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGetUserHedged001() throws Exception {
+
+        selection = AsyncLdapConnectionPool.SELECTION_LEAST_OUTSTANDING;
+        hedgePercentile = 90;
+        AsyncLdapDaoImpl dao = new AsyncLdapDaoImpl();
+
+        // 応答時間が揃うまではヘッジしない
+        for (int i = 0; i < LdapHedgePolicy.MIN_SAMPLES; i++) {
+            dao.getUser("user001");
+        }
+        AsyncLdapConnectionPool pool = AsyncLdapConnectionPool.getInstance();
+        LdapHedgePolicy policy = pool.getHedgePolicy();
+        assertEquals(0L, policy.getHedgedCount());
+        assertTrue(policy.getDelayMillis() >= 1L);
+
+        searchDelayMillis[1] = 1000L;
+        for (int i = 0; i < 9; i++) {
+            long start = System.currentTimeMillis();
+            assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+            assertTrue(System.currentTimeMillis() - start < 500L);
+        }
+        assertTrue(searchCounts[1].get() > LdapHedgePolicy.MIN_SAMPLES / REPLICA_COUNT);
+        assertTrue(policy.getHedgedCount() > 0);
+        for (LdapReplica replica : pool.getReplicas()) {
+            assertEquals(0, replica.getOutstanding());
+        }
+    }
+
+    /**
+     * インメモリLDAPサーバを生成します.
+     * @param index レプリカのインデックス
+     * @return インメモリLDAPサーバ
+     * @throws Exception 生成に失敗した場合
+     */
+    private InMemoryDirectoryServer createServer(final int index) throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setSchema(null);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", ports[index]));
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                searchCounts[index].incrementAndGet();
+                if (searchDelayMillis[index] > 0) {
+                    try {
+                        Thread.sleep(searchDelayMillis[index]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: uid=user001," + BASE_DN, "objectClass: inetOrgPerson", "uid: user001",
+                "employeeNumber: 001", "description: secret1", "cn: user001", "sn: user001");
+        return server;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.LdapChangeWatcher}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class LdapChangeWatcherTest {
+
+    private static final String IMMUTABLE_USER_ID_ATTR_NAME = "employeeNumber";
+    private static final String SECRET_KEY_ATTR_NAME = "totpSecret";
+    private static final String DN = "uid=user001,ou=people,dc=example,dc=com";
+
+    @Mocked
+    final AppConfig _appConfig = null;
+
+    private final List<String> changed = new ArrayList<String>();
+
+    private int resyncCount;
+
+    private LdapChangeWatcher watcher;
+
+    /**
+     * 属性名を設定し、監視クラスを生成します.
+     */
+    @Before
+    public void setUp() {
+        new Expectations() {
+            {
+                AppConfig.getImmutableUserIdAttributeName();
+                result = IMMUTABLE_USER_ID_ATTR_NAME;
+                minTimes = 0;
+                AppConfig.getSecretKeyAttributeName();
+                result = SECRET_KEY_ATTR_NAME;
+                minTimes = 0;
+            }
+        };
+        watcher = new LdapChangeWatcher(changed::add, () -> resyncCount++);
+    }
+
+    /**
+     * 001: void searchEntryReturned(SearchResultEntry)のテストメソッドです.
+     * 秘密鍵が変化した場合にユーザ固有IDが通知され、変化していない場合は通知されないことをテストします。
+     */
+    @Test
+    public void testSearchEntryReturned001() {
+
+        watcher.searchEntryReturned(entry(DN, "001", "SECRET1", PersistentSearchChangeType.MODIFY, null));
+        assertEquals(Arrays.asList("001"), changed);
+
+        // 秘密鍵以外の属性の変更
+        watcher.searchEntryReturned(entry(DN, "001", "SECRET1", PersistentSearchChangeType.MODIFY, null));
+        assertEquals(Arrays.asList("001"), changed);
+
+        watcher.searchEntryReturned(entry(DN, "001", "SECRET2", PersistentSearchChangeType.MODIFY, null));
+        assertEquals(Arrays.asList("001", "001"), changed);
+        assertEquals(3L, watcher.getNotificationCount());
+        assertEquals(2L, watcher.getInvalidatedCount());
+    }
+
+    /**
+     * 002: void searchEntryReturned(SearchResultEntry)のテストメソッドです.
+     * ユーザ固有IDが変化した場合に変更前後のユーザ固有IDが通知されることをテストします。
+     */
+    @Test
+    public void testSearchEntryReturned002() {
+
+        watcher.searchEntryReturned(entry(DN, "001", "SECRET1", PersistentSearchChangeType.ADD, null));
+        changed.clear();
+
+        watcher.searchEntryReturned(entry(DN, "002", "SECRET1", PersistentSearchChangeType.MODIFY, null));
+        assertEquals(Arrays.asList("001", "002"), changed);
+    }
+
+    /**
+     * 003: void searchEntryReturned(SearchResultEntry)のテストメソッドです.
+     * エントリの削除、DNの変更が通知されることをテストします。
+     */
+    @Test
+    public void testSearchEntryReturned003() {
+
+        String newDn = "uid=user001,ou=moved,dc=example,dc=com";
+        watcher.searchEntryReturned(entry(DN, "001", "SECRET1", PersistentSearchChangeType.ADD, null));
+        changed.clear();
+
+        watcher.searchEntryReturned(entry(newDn, "001", "SECRET1", PersistentSearchChangeType.MODIFY_DN, DN));
+        assertEquals(Arrays.asList("001"), changed);
+
+        watcher.searchEntryReturned(entry(newDn, "001", "SECRET1", PersistentSearchChangeType.DELETE, null));
+        assertEquals(Arrays.asList("001", "001"), changed);
+
+        // 削除後の再追加は変化したものとして扱う
+        watcher.searchEntryReturned(entry(newDn, "001", "SECRET1", PersistentSearchChangeType.ADD, null));
+        assertEquals(3, changed.size());
+        assertEquals(0, resyncCount);
+    }
+
+    /**
+     * 永続検索の変更通知を生成します.
+     * @param dn DN
+     * @param immutableUserId ユーザ固有ID
+     * @param secretKey 暗号化秘密鍵
+     * @param changeType 変更種別
+     * @param previousDn 変更前のDN
+     * @return 変更通知
+     */
+    private static SearchResultEntry entry(String dn, String immutableUserId, String secretKey,
+            PersistentSearchChangeType changeType, String previousDn) {
+        return new SearchResultEntry(dn,
+                new Attribute[] {
+                        new Attribute(IMMUTABLE_USER_ID_ATTR_NAME, immutableUserId),
+                        new Attribute(SECRET_KEY_ATTR_NAME, secretKey) },
+                new EntryChangeNotificationControl(changeType, previousDn, -1L));
+    }
+}
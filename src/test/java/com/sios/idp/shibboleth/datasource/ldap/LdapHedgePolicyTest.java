@@ -0,0 +1,97 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.LdapHedgePolicy}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class LdapHedgePolicyTest {
+
+    /**
+     * 001: long onRequest()のテストメソッドです.
+     * 応答時間が{@link LdapHedgePolicy#MIN_SAMPLES}件記録されるまでは-1が返却され、
+     * 以降は指定パーセンタイルの応答時間が返却されることをテストします。
+     */
+    @Test
+    public void testOnRequest001() {
+
+        LdapHedgePolicy policy = new LdapHedgePolicy(90, 10, 10000L);
+        for (int i = 1; i < LdapHedgePolicy.MIN_SAMPLES; i++) {
+            policy.record(i * 1000000L);
+        }
+        assertEquals(-1L, policy.onRequest());
+
+        policy.record(LdapHedgePolicy.MIN_SAMPLES * 1000000L);
+        // 1ms～20msの90パーセンタイル
+        assertEquals(18L, policy.onRequest());
+    }
+
+    /**
+     * 002: long onRequest()のテストメソッドです.
+     * パーセンタイルが0の場合はヘッジしないことをテストします。
+     */
+    @Test
+    public void testOnRequest002() {
+
+        LdapHedgePolicy policy = new LdapHedgePolicy(0, 10, 10000L);
+        for (int i = 0; i < LdapHedgePolicy.MIN_SAMPLES; i++) {
+            policy.record(1000000L);
+        }
+        assertFalse(policy.isEnabled());
+        assertEquals(-1L, policy.onRequest());
+    }
+
+    /**
+     * 003: boolean tryAcquire()のテストメソッドです.
+     * 集計期間内のヘッジ数が検索数に対する割合の上限を超えないことをテストします。
+     */
+    @Test
+    public void testTryAcquire001() {
+
+        LdapHedgePolicy policy = new LdapHedgePolicy(90, 10, 60000L);
+        for (int i = 0; i < 20; i++) {
+            policy.onRequest();
+        }
+        assertTrue(policy.tryAcquire());
+        assertTrue(policy.tryAcquire());
+        assertFalse(policy.tryAcquire());
+        assertEquals(2L, policy.getHedgedCount());
+        assertEquals(1L, policy.getBudgetExceededCount());
+
+        for (int i = 0; i < 10; i++) {
+            policy.onRequest();
+        }
+        assertTrue(policy.tryAcquire());
+        assertFalse(policy.tryAcquire());
+    }
+
+    /**
+     * 004: boolean tryAcquire()のテストメソッドです.
+     * 集計期間の経過後は、検索数とヘッジ数がリセットされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testTryAcquire002() throws Exception {
+
+        LdapHedgePolicy policy = new LdapHedgePolicy(90, 50, 50L);
+        policy.onRequest();
+        policy.onRequest();
+        assertTrue(policy.tryAcquire());
+        assertFalse(policy.tryAcquire());
+
+        Thread.sleep(100L);
+        assertFalse(policy.tryAcquire());
+        policy.onRequest();
+        policy.onRequest();
+        assertTrue(policy.tryAcquire());
+    }
+}
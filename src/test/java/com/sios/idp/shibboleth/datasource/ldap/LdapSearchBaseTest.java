@@ -0,0 +1,69 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.naming.directory.SearchControls;
+
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.LdapSearchBase}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class LdapSearchBaseTest {
+
+    /**
+     * 001: List parse(String baseDNs, String baseDN)のテストメソッドです.
+     * ベースDN毎の検索範囲、タイムアウトが解析され、省略時はサブツリー、操作毎のタイムアウトとなることをテストします。
+     */
+    @Test
+    public void testParse001() {
+
+        List<LdapSearchBase> bases = LdapSearchBase.parse(
+                " ou=people,dc=example,dc=com|one|300 ;;ou=staff,o=corp| |;o=partners|SUB", "dc=example,dc=com");
+
+        assertEquals(3, bases.size());
+        assertEquals("ou=people,dc=example,dc=com", bases.get(0).getBaseDN());
+        assertEquals(SearchScope.ONE, bases.get(0).getScope());
+        assertEquals(SearchControls.ONELEVEL_SCOPE, bases.get(0).getJndiScope());
+        assertEquals(300L, bases.get(0).getTimeoutMillis(5000L));
+        assertEquals("ou=staff,o=corp", bases.get(1).getBaseDN());
+        assertEquals(SearchScope.SUB, bases.get(1).getScope());
+        assertEquals(5000L, bases.get(1).getTimeoutMillis(5000L));
+        assertEquals(SearchControls.SUBTREE_SCOPE, bases.get(2).getJndiScope());
+    }
+
+    /**
+     * 002: List parse(String baseDNs, String baseDN)のテストメソッドです.
+     * ベースDNが定義されていない場合はldapBaseDNのサブツリーとなり、検索範囲、タイムアウトが不正な場合は
+     * IllegalArgumentExceptionがthrowされることをテストします。
+     */
+    @Test
+    public void testParse002() {
+
+        for (String baseDNs : new String[] {null, "", " ; "}) {
+            List<LdapSearchBase> bases = LdapSearchBase.parse(baseDNs, "dc=example,dc=com");
+            assertEquals(1, bases.size());
+            assertEquals("dc=example,dc=com", bases.get(0).getBaseDN());
+            assertEquals(SearchScope.SUB, bases.get(0).getScope());
+        }
+        for (String baseDNs : new String[] {"o=corp|base", "o=corp|one|1s"}) {
+            try {
+                LdapSearchBase.parse(baseDNs, "dc=example,dc=com");
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.datasource.dao.AsyncLdapDaoImpl;
+import com.sios.idp.shibboleth.dto.SearchResults;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.OperationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.ssl.KeyStoreKeyManager;
+import com.unboundid.util.ssl.SSLUtil;
+import com.unboundid.util.ssl.cert.ManageCertificates;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.LdapTlsContext}のテストクラスです.
+ * 自己署名証明書を使用するLDAPS、StartTLSのインメモリLDAPサーバに対して、TLSの確立とセッションの再開をテストします。
+ * @author SIOS Technology, Inc.
+ */
+public class LdapTlsContextTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LdapTlsContextTest.class);
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String BIND_DN = "cn=admin";
+    private static final String BIND_PASSWORD = "password";
+    private static final String STORE_PASSWORD = "changeit";
+
+    private static File keyStore;
+    private static InMemoryDirectoryServer server;
+
+    private String ldapUrl;
+    private boolean startTls;
+    private String trustStorePath;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        keyStore = File.createTempFile("ldap-tls", ".p12");
+        keyStore.delete();
+        ResultCode resultCode = ManageCertificates.main((InputStream) null, null, null,
+                "generate-self-signed-certificate", "--keystore", keyStore.getPath(),
+                "--keystore-password", STORE_PASSWORD, "--keystore-type", "PKCS12", "--alias", "server",
+                "--subject-dn", "CN=localhost", "--subject-alternative-name-dns", "localhost", "--days-valid", "1");
+        assertEquals(ResultCode.SUCCESS, resultCode);
+
+        SSLUtil serverSsl = new SSLUtil(
+                new KeyStoreKeyManager(keyStore, STORE_PASSWORD.toCharArray(), "PKCS12", "server"), null);
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setSchema(null);
+        config.setAuthenticationRequiredOperationTypes(OperationType.SEARCH);
+        config.setListenerConfigs(
+                InMemoryListenerConfig.createLDAPSConfig("ldaps", null, 0,
+                        serverSsl.createSSLServerSocketFactory(), null),
+                InMemoryListenerConfig.createLDAPConfig("ldap", null, 0, serverSsl.createSSLSocketFactory()));
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: uid=user001," + BASE_DN, "objectClass: inetOrgPerson", "uid: user001",
+                "employeeNumber: 001", "description: secret1", "cn: user001", "sn: user001");
+        server.startListening();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.shutDown(true);
+        keyStore.delete();
+    }
+
+    @Before
+    public void setUp() {
+        ldapUrl = "ldaps://localhost:" + server.getListenPort("ldaps");
+        startTls = false;
+        trustStorePath = keyStore.getPath();
+        new MockUp<AppConfig>() {
+            @Mock
+            String getLdapUrl() {
+                return ldapUrl;
+            }
+            @Mock
+            String getLdapBindDN() {
+                return BIND_DN;
+            }
+            @Mock
+            String getLdapBindPassword() {
+                return BIND_PASSWORD;
+            }
+            @Mock
+            String getLdapBaseDN() {
+                return BASE_DN;
+            }
+            @Mock
+            String getLdapFilter() {
+                return "(uid={0})";
+            }
+            @Mock
+            String getImmutableUserIdAttributeName() {
+                return "employeeNumber";
+            }
+            @Mock
+            String getSecretKeyAttributeName() {
+                return "description";
+            }
+            @Mock
+            String getRecoveryCodeAttributeName() {
+                return "";
+            }
+            @Mock
+            Integer getLdapAsyncConnectionCount() {
+                return 1;
+            }
+            @Mock
+            Long getLdapOperationTimeoutMillis() {
+                return 5000L;
+            }
+            @Mock
+            Boolean getLdapStartTls() {
+                return startTls;
+            }
+            @Mock
+            String getLdapTrustStorePath() {
+                return trustStorePath;
+            }
+            @Mock
+            String getLdapTrustStorePassword() {
+                return STORE_PASSWORD;
+            }
+            @Mock
+            String getLdapTrustStoreType() {
+                return "PKCS12";
+            }
+            @Mock
+            Boolean getLdapTlsHostnameVerification() {
+                return true;
+            }
+        };
+        LdapTlsContext.shutdown();
+    }
+
+    @After
+    public void tearDown() {
+        AsyncLdapConnectionPool.shutdown();
+        LdapTlsContext.shutdown();
+    }
+
+    /**
+     * 001: LDAPSのテストメソッドです.
+     * 再接続時にTLSセッションが再開され、接続プールでは接続を再利用するためハンドシェイクが発生しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLdaps001() throws Exception {
+
+        LdapReplica replica = new LdapReplica(new LDAPURL(ldapUrl), new LDAPConnectionOptions(), 1, 1);
+        long[] nanos = new long[5];
+        for (int i = 0; i < nanos.length; i++) {
+            long start = System.nanoTime();
+            try (LDAPConnection connection = replica.connect()) {
+                nanos[i] = System.nanoTime() - start;
+                assertNotNull(connection.getSSLSession());
+                assertNotNull(connection.getEntry("uid=user001," + BASE_DN));
+            }
+        }
+        LdapTlsContext context = LdapTlsContext.getInstance();
+        awaitHandshakes(context, 5L);
+        assertEquals(4L, context.getResumedCount());
+        LOGGER.info("LDAPS接続 (初回)：{}マイクロ秒, (再開、平均)：{}マイクロ秒, ハンドシェイク合計：{}マイクロ秒",
+                nanos[0] / 1000L, (nanos[1] + nanos[2] + nanos[3] + nanos[4]) / 4000L,
+                context.getHandshakeNanos() / 1000L);
+
+        AsyncLdapDaoImpl dao = new AsyncLdapDaoImpl();
+        for (int i = 0; i < 20; i++) {
+            assertEquals("001", dao.getUser("user001").getValue("employeeNumber"));
+        }
+        awaitHandshakes(context, 6L);
+        Thread.sleep(100L);
+        assertEquals(6L, context.getHandshakeCount());
+        assertEquals(5L, context.getResumedCount());
+    }
+
+    /**
+     * 002: StartTLSのテストメソッドです.
+     * UnboundID、JNDIの接続でStartTLSの確立後にバインド、検索できることをテストします。
+     * サーバは認証されていない検索を拒否します。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testStartTls001() throws Exception {
+
+        ldapUrl = "ldap://localhost:" + server.getListenPort("ldap");
+        startTls = true;
+        LdapReplica replica = new LdapReplica(new LDAPURL(ldapUrl), new LDAPConnectionOptions(), 1, 1);
+        try (LDAPConnection connection = replica.connect()) {
+            assertNotNull(connection.getSSLSession());
+            assertNotNull(connection.getEntry("uid=user001," + BASE_DN));
+        }
+
+        SearchResults results = LdapUtil.search("user001");
+        assertEquals(1, results.getCount());
+        assertEquals("001", results.iterator().next().getValue("employeeNumber"));
+
+        LdapTlsContext context = LdapTlsContext.getInstance();
+        awaitHandshakes(context, 2L);
+        assertEquals(1L, context.getResumedCount());
+    }
+
+    /**
+     * 003: LDAPSのテストメソッドです.
+     * JNDIの接続で検索でき、2回目以降の接続でTLSセッションが再開されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLdaps002() throws Exception {
+
+        for (int i = 0; i < 3; i++) {
+            SearchResults results = LdapUtil.search("user001");
+            assertEquals(1, results.getCount());
+        }
+        LdapTlsContext context = LdapTlsContext.getInstance();
+        awaitHandshakes(context, 3L);
+        assertEquals(2L, context.getResumedCount());
+    }
+
+    /**
+     * 004: LDAPSのテストメソッドです.
+     * サーバ証明書がトラストストアに含まれない場合に、接続に失敗することをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testLdaps003() throws Exception {
+
+        trustStorePath = "";
+        LdapReplica replica = new LdapReplica(new LDAPURL(ldapUrl), new LDAPConnectionOptions(), 1, 1);
+        try {
+            replica.connect().close();
+            fail("例外が発生するはず");
+        } catch (LDAPException e) {
+            // expected
+        }
+        try {
+            LdapUtil.search("user001");
+            fail("例外が発生するはず");
+        } catch (NamingException e) {
+            // expected
+        }
+        assertEquals(0L, LdapTlsContext.getInstance().getHandshakeCount());
+    }
+
+    /**
+     * ハンドシェイクの完了の通知は別スレッドで行われるため、指定回数に達するまで待機します.
+     * @param context TLSの設定
+     * @param expected ハンドシェイクの回数
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private static void awaitHandshakes(LdapTlsContext context, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (context.getHandshakeCount() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(expected, context.getHandshakeCount());
+    }
+}
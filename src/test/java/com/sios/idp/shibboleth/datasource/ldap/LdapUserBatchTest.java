@@ -0,0 +1,82 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.common.AppConfig;
+import com.sios.idp.shibboleth.dto.SearchResult;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.ldap.LdapUserBatch}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class LdapUserBatchTest {
+
+    @Mocked
+    private AppConfig appConfig;
+
+    /**
+     * 001: List createFilters(String template, int batchSize)のテストメソッドです.
+     * ユーザ名がバッチサイズ毎に論理和で結合され、値がエスケープされることをテストします。
+     */
+    @Test
+    public void testCreateFilters001() {
+
+        LdapUserBatch batch = new LdapUserBatch(Arrays.asList("user1", "USER1", "user2", "a*b"), "uid");
+
+        List<String> filters = batch.createFilters("uid={0}", 2);
+        assertEquals(Arrays.asList("(|(uid=user1)(uid=user2))", "(|(uid=a\\2ab))"), filters);
+
+        filters = batch.createFilters("(&(objectClass=person)(uid={0}))", 0);
+        assertEquals(1, filters.size());
+        assertEquals("(|(&(objectClass=person)(uid=user1))(&(objectClass=person)(uid=user2))"
+                + "(&(objectClass=person)(uid=a\\2ab)))", filters.get(0));
+    }
+
+    /**
+     * 002: int add(String[] userNames, SearchResult result)のテストメソッドです.
+     * エントリがユーザ名の大文字・小文字を区別せずに対応付けられ、要求していないユーザ名は無視されることをテストします。
+     */
+    @Test
+    public void testAdd001() {
+
+        new Expectations() {
+            {
+                AppConfig.getImmutableUserIdAttributeName();
+                result = "employeeNumber";
+                AppConfig.getSecretKeyAttributeName();
+                result = "description";
+            }
+        };
+
+        LdapUserBatch batch = new LdapUserBatch(Arrays.asList("user1", "USER1", "user2"), "uid");
+        assertEquals(1, batch.add(new String[] {"User1"}, new SearchResult()));
+        assertEquals(1, batch.add(new String[] {"user2", "other"}, new SearchResult()));
+        assertEquals(1, batch.add(new String[] {"user2"}, new SearchResult()));
+        assertEquals(0, batch.add(new String[] {"other"}, new SearchResult()));
+        assertEquals(0, batch.add(null, new SearchResult()));
+
+        assertEquals(3, batch.getResults().size());
+        assertEquals(1, batch.getResults().get("user1").getCount());
+        assertSame(batch.getResults().get("user1"), batch.getResults().get("USER1"));
+        assertEquals(2, batch.getResults().get("user2").getCount());
+
+        assertArrayEquals(new String[] {"employeeNumber", "description", "uid"}, batch.getReturningAttributes());
+        assertTrue(batch.isUserNameAttribute("UID"));
+        assertFalse(batch.isReturningAttribute("uid"));
+        assertTrue(batch.isReturningAttribute("employeenumber"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.datasource.ldap.LdapPagedSearch;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotExporter}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class UserSnapshotExporterTest {
+
+    /**
+     * 001: int exportLdif(Path, Path, String, List)のテストメソッドです.
+     * LDIFファイルのユーザ名の属性を持つエントリがスナップショットに格納されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExportLdif001() throws Exception {
+
+        Path dir = Files.createTempDirectory("snapshot");
+        Path ldif = dir.resolve("users.ldif");
+        Files.write(ldif, Arrays.asList(
+                "dn: ou=people,dc=example,dc=com",
+                "objectClass: organizationalUnit",
+                "ou: people",
+                "",
+                "dn: uid=user001,ou=people,dc=example,dc=com",
+                "objectClass: inetOrgPerson",
+                "uid: user001",
+                "cn: user001",
+                "sn: user001",
+                "employeeNumber: 001",
+                "description: SECRET1",
+                "description: SECRET2"), StandardCharsets.UTF_8);
+        Path target = dir.resolve("users.snap");
+
+        assertEquals(1, UserSnapshotExporter.exportLdif(ldif, target, "uid",
+                Arrays.asList("employeeNumber", "description")));
+        UserSnapshot snapshot = UserSnapshot.open(target);
+        assertEquals("001", snapshot.get("user001").getValue("employeeNumber"));
+        assertEquals(Arrays.asList("SECRET1", "SECRET2"), snapshot.get("user001").getValues("description"));
+    }
+
+    /**
+     * 002: int exportLdap(LDAPConnection, String, Path, String, List)のテストメソッドです.
+     * ページサイズを超えるエントリがページング検索で全て格納されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testExportLdap001() throws Exception {
+
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.setSchema(null);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.startListening();
+        try {
+            server.add("dn: dc=example,dc=com", "objectClass: domain", "dc: example");
+            int count = LdapPagedSearch.DEFAULT_PAGE_SIZE + 10;
+            for (int i = 0; i < count; i++) {
+                server.add("dn: uid=user" + i + ",dc=example,dc=com", "objectClass: inetOrgPerson",
+                        "uid: user" + i, "employeeNumber: " + i, "description: SECRET" + i);
+            }
+            Path target = Files.createTempDirectory("snapshot").resolve("users.snap");
+            try (LDAPConnection connection = server.getConnection()) {
+                assertEquals(count, UserSnapshotExporter.exportLdap(connection, "dc=example,dc=com", target, "uid",
+                        Arrays.asList("employeeNumber", "description")));
+            }
+            UserSnapshot snapshot = UserSnapshot.open(target);
+            assertEquals(count, snapshot.size());
+            assertEquals("SECRET" + (count - 1), snapshot.get("user" + (count - 1)).getValue("description"));
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * 003: int applyLdif(Path, Path, String, List)のテストメソッドです.
+     * LDIFファイルのエントリと変更レコードが更新ジャーナルに追記され、ユーザ名を特定できない変更レコードは読み飛ばすことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testApplyLdif001() throws Exception {
+
+        Path dir = Files.createTempDirectory("snapshot");
+        Path target = dir.resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", UserSnapshotTest.attributes("001", "SECRET1"));
+        writer.add("user002", UserSnapshotTest.attributes("002", "SECRET2"));
+        writer.write(target);
+        Path ldif = dir.resolve("changes.ldif");
+        Files.write(ldif, Arrays.asList(
+                "dn: uid=user003,ou=people,dc=example,dc=com",
+                "changetype: add",
+                "objectClass: inetOrgPerson",
+                "uid: user003",
+                "employeeNumber: 003",
+                "totpSecret: SECRET3",
+                "",
+                "dn: uid=user001,ou=people,dc=example,dc=com",
+                "changetype: modify",
+                "add: totpSecret",
+                "totpSecret: SECRET4",
+                "-",
+                "replace: telephoneNumber",
+                "telephoneNumber: 0000",
+                "",
+                "dn: uid=user002,ou=people,dc=example,dc=com",
+                "changetype: delete",
+                "",
+                "dn: cn=user001,ou=people,dc=example,dc=com",
+                "changetype: delete"), StandardCharsets.UTF_8);
+
+        assertEquals(3, UserSnapshotExporter.applyLdif(ldif, target, "uid",
+                Arrays.asList("employeeNumber", "totpSecret")));
+        UserSnapshotJournal journal = UserSnapshotJournal.open(UserSnapshot.open(target));
+        assertEquals("003", journal.get("user003").getValue("employeeNumber"));
+        assertEquals(Arrays.asList("SECRET1", "SECRET4"), journal.get("user001").getValues("totpSecret"));
+        assertNull(journal.get("user001").getValue("telephoneNumber"));
+        assertNull(journal.get("user002"));
+    }
+}
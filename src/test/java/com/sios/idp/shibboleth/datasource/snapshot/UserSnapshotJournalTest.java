@@ -0,0 +1,230 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import static com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotTest.attributes;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.snapshot.UserSnapshotJournal}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class UserSnapshotJournalTest {
+
+    /**
+     * 001: void put(String, Map)、void remove(String)のテストメソッドです.
+     * 更新がスナップショットより優先され、ジャーナルファイルを開き直した場合と他のインスタンスの取り込みでも反映されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testPut001() throws Exception {
+
+        Path file = writeSnapshot();
+        UserSnapshot snapshot = UserSnapshot.open(file);
+        UserSnapshotJournal journal = UserSnapshotJournal.open(snapshot);
+        UserSnapshotJournal other = UserSnapshotJournal.open(snapshot);
+
+        journal.put("User001", attributes("001", "SECRET9"));
+        journal.put("user003", attributes("003", "SECRET3"));
+        journal.remove("user002");
+
+        assertEquals("SECRET9", journal.get("user001").getValue("totpSecret"));
+        assertEquals("003", journal.get("USER003").getValue("employeeNumber"));
+        assertNull(journal.get("user002"));
+        assertEquals("SECRET1", snapshot.get("user001").getValue("totpSecret"));
+        assertEquals(3, journal.size());
+
+        assertEquals(3, other.refresh());
+        assertNull(other.get("user002"));
+        UserSnapshotJournal reopened = UserSnapshotJournal.open(snapshot);
+        assertEquals("SECRET9", reopened.get("user001").getValue("totpSecret"));
+        assertNull(reopened.get("user002"));
+    }
+
+    /**
+     * 002: void update(String, UnaryOperator)のテストメソッドです.
+     * 他のインスタンスの追記を取り込んでから変更し、変更がない場合は追記しないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testUpdate001() throws Exception {
+
+        Path file = writeSnapshot();
+        UserSnapshot snapshot = UserSnapshot.open(file);
+        UserSnapshotJournal journal = UserSnapshotJournal.open(snapshot);
+        UserSnapshotJournal other = UserSnapshotJournal.open(snapshot);
+
+        other.put("user001", attributes("001", "SECRET1", "SECRET2"));
+        journal.update("user001", current -> {
+            SearchResult changed = new SearchResult();
+            changed.add("employeeNumber", current.getValue("employeeNumber"));
+            changed.add("totpSecret", current.getValues("totpSecret").get(1));
+            return changed;
+        });
+        assertEquals(Arrays.asList("SECRET2"), journal.get("user001").getValues("totpSecret"));
+
+        long size = Files.size(UserSnapshotJournal.getPath(file));
+        journal.update("user002", current -> current);
+        assertEquals(size, Files.size(UserSnapshotJournal.getPath(file)));
+    }
+
+    /**
+     * 003: int refresh()のテストメソッドです.
+     * 末尾の書きかけのレコードを無視し、次の追記で切り詰めることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testRefresh001() throws Exception {
+
+        Path file = writeSnapshot();
+        UserSnapshot snapshot = UserSnapshot.open(file);
+        UserSnapshotJournal journal = UserSnapshotJournal.open(snapshot);
+        journal.put("user001", attributes("001", "SECRET9"));
+        Path journalFile = UserSnapshotJournal.getPath(file);
+        long size = Files.size(journalFile);
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}));
+        }
+
+        UserSnapshotJournal reopened = UserSnapshotJournal.open(snapshot);
+        assertEquals(1, reopened.size());
+        assertEquals("SECRET9", reopened.get("user001").getValue("totpSecret"));
+
+        reopened.remove("user002");
+        assertTrue(Files.size(journalFile) > size);
+        assertEquals(2, UserSnapshotJournal.open(snapshot).size());
+    }
+
+    /**
+     * 004: int compact()のテストメソッドです.
+     * 更新がスナップショットファイルに統合されてジャーナルが空になり、統合前のスナップショットに対する追記が拒否されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCompact001() throws Exception {
+
+        Path file = writeSnapshot();
+        UserSnapshotStore store = new UserSnapshotStore(file);
+        store.reload();
+        UserSnapshotJournal stale = UserSnapshotJournal.open(store.getSnapshot());
+        store.getJournal().put("user003", attributes("003", "SECRET3"));
+        store.getJournal().remove("user002");
+
+        assertEquals(2, store.compact());
+        assertEquals(0, store.getJournal().size());
+        UserSnapshot compacted = store.getSnapshot();
+        assertEquals(2, compacted.size());
+        assertEquals("SECRET1", compacted.get("user001").getValue("totpSecret"));
+        assertEquals("SECRET3", compacted.get("user003").getValue("totpSecret"));
+        assertNull(compacted.get("user002"));
+
+        try {
+            stale.put("user004", attributes("004", "SECRET4"));
+            fail("例外が発生するはず");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("スナップショットファイルが更新されているため追記できません。"));
+        }
+        assertNull(UserSnapshotJournal.open(compacted).get("user004"));
+    }
+
+    /**
+     * 005: int compact()のテストメソッドです.
+     * スナップショットで重複しているユーザ名が、属性を持たないレコードを書き出さずに重複のまま統合されることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCompact002() throws Exception {
+
+        Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "SECRET1"));
+        writer.add("dup", attributes("002", "SECRET2"));
+        writer.add("DUP", attributes("003", "SECRET3"));
+        writer.write(file);
+        UserSnapshotStore store = new UserSnapshotStore(file);
+        store.reload();
+
+        store.compact();
+        UserSnapshot compacted = store.getSnapshot();
+        assertEquals(2, compacted.size());
+        try {
+            compacted.get("dup");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            // expected
+        }
+        List<String> duplicated = new ArrayList<String>();
+        compacted.forEach((userName, result) -> {
+            if (result == null) {
+                duplicated.add(userName);
+            }
+        });
+        assertEquals(Arrays.asList("dup"), duplicated);
+    }
+
+    /**
+     * 006: int compact()のテストメソッドです.
+     * 最後の再読み込みの後にスナップショットファイルが生成し直された場合、統合せずにIOExceptionがthrowされ、
+     * 生成し直されたスナップショットファイルが上書きされないことをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testCompact003() throws Exception {
+
+        Path file = writeSnapshot();
+        UserSnapshotStore store = new UserSnapshotStore(file);
+        store.reload();
+        store.getJournal().put("user003", attributes("003", "SECRET3"));
+
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "ROTATED1"));
+        writer.write(file);
+
+        try {
+            store.compact();
+            fail("例外が発生するはず");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("スナップショットファイルが置き換えられているため統合できません。"));
+        }
+        UserSnapshot exported = UserSnapshot.open(file);
+        assertEquals(1, exported.size());
+        assertEquals("ROTATED1", exported.get("user001").getValue("totpSecret"));
+
+        assertTrue(store.reload());
+        assertEquals("ROTATED1", store.getJournal().get("user001").getValue("totpSecret"));
+        assertNull(store.getJournal().get("user003"));
+    }
+
+    /**
+     * user001、user002を格納したスナップショットファイルを書き出します.
+     * @return スナップショットファイルのパス
+     * @throws IOException 書き出しに失敗した場合
+     */
+    private static Path writeSnapshot() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "SECRET1"));
+        writer.add("user002", attributes("002", "SECRET2"));
+        writer.write(file);
+        return file;
+    }
+}
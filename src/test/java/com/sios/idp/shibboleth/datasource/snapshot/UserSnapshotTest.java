@@ -0,0 +1,141 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (c) 2020 SIOS Technology, Inc.
+ */
+// CHECKSTYLE:OFF
+package com.sios.idp.shibboleth.datasource.snapshot;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sios.idp.shibboleth.dto.SearchResult;
+import com.sios.idp.shibboleth.exception.UserDuplicatedException;
+
+/**
+ * {@link com.sios.idp.shibboleth.datasource.snapshot.UserSnapshot}のテストクラスです.
+ * @author SIOS Technology, Inc.
+ */
+public class UserSnapshotTest {
+
+    /**
+     * 001: SearchResult get(String)のテストメソッドです.
+     * 書き出したユーザ情報が、大文字小文字を区別せずに取得できることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGet001() throws Exception {
+
+        Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        for (int i = 0; i < 1000; i++) {
+            writer.add("user" + i, attributes("id" + i, "SECRET" + i, "SECRET" + i + "B"));
+        }
+        writer.write(file);
+
+        UserSnapshot snapshot = UserSnapshot.open(file);
+        assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++) {
+            SearchResult result = snapshot.get("user" + i);
+            assertEquals("id" + i, result.getValue("employeeNumber"));
+            assertEquals(Arrays.asList("SECRET" + i, "SECRET" + i + "B"), result.getValues("totpSecret"));
+        }
+        assertEquals("id7", snapshot.get("USER7").getValue("employeeNumber"));
+        assertNull(snapshot.get("user1000"));
+    }
+
+    /**
+     * 002: SearchResult get(String)のテストメソッドです.
+     * 重複したユーザ名の場合にUserDuplicatedExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testGet002() throws Exception {
+
+        Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "SECRET1"));
+        writer.add("User001", attributes("002", "SECRET2"));
+        writer.add("user002", attributes("002", "SECRET2"));
+        writer.write(file);
+
+        UserSnapshot snapshot = UserSnapshot.open(file);
+        try {
+            snapshot.get("user001");
+            fail("例外が発生するはず");
+        } catch (UserDuplicatedException e) {
+            assertEquals("ユーザ名：user001のユーザ情報が複数件存在します。", e.getMessage());
+        }
+        assertEquals("002", snapshot.get("user002").getValue("employeeNumber"));
+    }
+
+    /**
+     * 003: UserSnapshot open(Path)のテストメソッドです.
+     * スナップショットファイルの形式でない場合にIOExceptionがthrowされることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testOpen001() throws Exception {
+
+        Path file = Files.createTempFile("users", ".snap");
+        Files.write(file, new byte[64]);
+        try {
+            UserSnapshot.open(file);
+            fail("例外が発生するはず");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("スナップショットファイルの形式が不正です。"));
+        }
+    }
+
+    /**
+     * 004: boolean reload()のテストメソッドです.
+     * スナップショットファイルが置き換えられた場合のみ参照が切り替わり、切り替え前のスナップショットも参照できることをテストします。
+     * @throws Exception 予期せぬエラーが発生した場合
+     */
+    @Test
+    public void testReload001() throws Exception {
+
+        Path file = Files.createTempDirectory("snapshot").resolve("users.snap");
+        UserSnapshotWriter writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "SECRET1"));
+        writer.write(file);
+
+        UserSnapshotStore store = new UserSnapshotStore(file);
+        assertTrue(store.reload());
+        assertFalse(store.reload());
+        UserSnapshot before = store.getSnapshot();
+
+        writer = new UserSnapshotWriter();
+        writer.add("user001", attributes("001", "SECRET2"));
+        writer.add("user002", attributes("002", "SECRET3"));
+        writer.write(file);
+
+        assertTrue(store.reload());
+        assertEquals(2, store.getSnapshot().size());
+        assertEquals("SECRET2", store.getSnapshot().get("user001").getValue("totpSecret"));
+        assertEquals("SECRET1", before.get("user001").getValue("totpSecret"));
+    }
+
+    /**
+     * 属性名毎の値を生成します.
+     * @param immutableUserId ユーザ固有ID
+     * @param secretKeys 暗号化秘密鍵
+     * @return 属性名毎の値
+     */
+    static Map<String, List<String>> attributes(String immutableUserId, String... secretKeys) {
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        attributes.put("employeeNumber", Collections.singletonList(immutableUserId));
+        attributes.put("totpSecret", Arrays.asList(secretKeys));
+        return attributes;
+    }
+}
@@ -102,4 +102,28 @@ public class SearchResultTest {
         String resultString = result.getValue("testkey");
         assertNull(resultString);
     }
+
+    /**
+     * 同じキーで複数回addした場合、getValuesで全ての値が格納順に取得でき、getValueでは最初の値が取得できる事を確認する.
+     */
+    @Test
+    public void multiValueadd() {
+        final String key = "secretKey";
+        SearchResult result = new SearchResult();
+        result.add(key, "value1");
+        result.add(key, "value2");
+        assertEquals("value1", result.getValue(key));
+        assertEquals(2, result.getValues(key).size());
+        assertEquals("value1", result.getValues(key).get(0));
+        assertEquals("value2", result.getValues(key).get(1));
+    }
+
+    /**
+     * SearchResult内に格納されていないキーでgetValuesを呼び出した場合、空のリストが帰ってくる事を確認する.
+     */
+    @Test
+    public void getValuesmapNull() {
+        SearchResult result = new SearchResult();
+        assertTrue(result.getValues("testkey").isEmpty());
+    }
 }
@@ -105,4 +105,22 @@ public class SearchResultsTest {
         }
         assertFalse(iter.hasNext());
     }
+
+    /**
+     * 008 重複の判定の確認テストです. 重複を設定した場合、2件以上格納した場合に重複となる事を確認します.
+     */
+    @Test
+    public void duplicated() {
+        SearchResults searchResults = new SearchResults();
+        assertFalse(searchResults.isDuplicated());
+        searchResults.setDuplicated(true);
+        assertTrue(searchResults.isDuplicated());
+        assertEquals(0, searchResults.getCount());
+
+        searchResults = new SearchResults();
+        searchResults.add(new SearchResult());
+        assertFalse(searchResults.isDuplicated());
+        searchResults.add(new SearchResult());
+        assertTrue(searchResults.isDuplicated());
+    }
 }